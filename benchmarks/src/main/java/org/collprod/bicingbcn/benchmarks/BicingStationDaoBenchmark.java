@@ -0,0 +1,75 @@
+package org.collprod.bicingbcn.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.collprod.bicingbcn.BicingStationDao;
+import org.collprod.bicingbcn.StationSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Charsets;
+
+/**
+ * <p>
+ * Benchmarks for the parsers of BicingStationDao, that are called by the Spark streams for each
+ * Kafka message.
+ * </p>
+ * <p>
+ * parse() returns a lazy Iterable for some parsers, so all the values are consumed to include
+ * the whole cost of parsing
+ * </p>
+ * */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BicingStationDaoBenchmark {
+
+	@Param({"METAMODEL", "STAX"})
+	private BicingStationDao.Parser parser;
+
+	@Param({"50", "424", "2000"})
+	private int numStations;
+
+	private BicingStationDao dao;
+	private String data;
+	private byte [] dataBytes;
+
+	@Setup
+	public void setup() {
+		this.dao = new BicingStationDao(this.parser);
+		this.data = SyntheticSnapshots.fromDefaultSeed(42).generate(1401551587L, this.numStations);
+		this.dataBytes = this.data.getBytes(Charsets.UTF_8);
+	}
+
+	@Benchmark
+	public void parseString(Blackhole blackhole) {
+		for (BicingStationDao.Value value : this.dao.parse(this.data)) {
+			blackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public void parseBytes(Blackhole blackhole) {
+		for (BicingStationDao.Value value : this.dao.parse(this.dataBytes)) {
+			blackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public StationSnapshot parseSnapshot() {
+		return this.dao.parseSnapshot(this.dataBytes);
+	}
+}
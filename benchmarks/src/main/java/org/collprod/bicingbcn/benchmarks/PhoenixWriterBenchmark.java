@@ -0,0 +1,92 @@
+package org.collprod.bicingbcn.benchmarks;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.collprod.bicingbcn.BicingStationDao;
+import org.collprod.bicingbcn.StationReading;
+import org.collprod.bicingbcn.etl.PhoenixWriter;
+import org.collprod.bicingbcn.etl.StationDimensionCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Benchmarks for PhoenixWriter.loadBicingBigTableStatement(), that is called by the ETL for each
+ * station in each update, against stub JDBC statements (see StubJdbc). So this measures the
+ * cost of filling the statement, including the station lookup and the time dimension fields, but
+ * not the cost of Phoenix. The station is looked up with a query, or taken from a
+ * StationDimensionCache.Station as done by PhoenixWriter.BatchWriter
+ * */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhoenixWriterBenchmark {
+
+	/**
+	 * Whether the stations have all the fields of BICING_DIM_STATION, or just the id. Missing
+	 * fields take a different path for each column
+	 * */
+	@Param({"true", "false"})
+	private boolean completeDimension;
+
+	private PhoenixWriter phoenixWriter;
+	private StationReading [] readings;
+	private PreparedStatement stmtBicingBigTable;
+	private PreparedStatement stmtGetStationInfo;
+	private StationDimensionCache.Station station;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		this.phoenixWriter = new PhoenixWriter();
+		String data = SyntheticSnapshots.fromDefaultSeed(42).generate(1401551587L, 424);
+		this.readings = Iterables.toArray(new BicingStationDao(BicingStationDao.Parser.STAX).parse(data),
+				StationReading.class);
+		this.stmtBicingBigTable = StubJdbc.preparedStatement(null);
+		// see PhoenixWriter.DimStationRecord
+		ResultSet stationInfo = this.completeDimension ?
+				StubJdbc.resultSet(1L, 2.180042, 41.397952, 21L, "Eixample", "la Dreta de l'Eixample", "08010",
+						"Gran Via Corts Catalanes 760", 35720.0, 266416L, 7.46)
+			:	StubJdbc.resultSet(1L, null, null, null, null, null, null, null, null, null, null);
+		this.stmtGetStationInfo = StubJdbc.preparedStatement(stationInfo);
+		try {
+			this.station = new StationDimensionCache.Station(
+					this.phoenixWriter.lookupStationRecord(this.stmtGetStationInfo, 1L));
+		} catch (SQLException sqle) {
+			throw new RuntimeException(sqle);
+		}
+	}
+
+	@Benchmark
+	public boolean loadBicingBigTableStatement() {
+		StationReading reading = this.readings[this.next];
+		this.next = (this.next + 1) % this.readings.length;
+		// a valid previous state, so lent and returned are computed
+		return this.phoenixWriter.loadBicingBigTableStatement(reading, (reading.bikes() + 3) % 20,
+				this.stmtBicingBigTable, this.stmtGetStationInfo);
+	}
+
+	@Benchmark
+	public boolean loadBicingBigTableStatementCachedStation() {
+		StationReading reading = this.readings[this.next];
+		this.next = (this.next + 1) % this.readings.length;
+		return this.phoenixWriter.loadBicingBigTableStatement(reading, (reading.bikes() + 3) % 20,
+				this.stmtBicingBigTable, this.station);
+	}
+}
@@ -0,0 +1,106 @@
+package org.collprod.bicingbcn.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * <p>
+ * In memory stubs for the JDBC objects used by PhoenixWriter, so its code for filling statements can
+ * be benchmarked without a Phoenix cluster.
+ * </p>
+ * <p>
+ * The stubs are dynamic proxies, so they work with the JDBC version of any JDK. This adds the cost
+ * of a reflective call to each JDBC call, which is constant across versions of PhoenixWriter, so
+ * it doesn't hide regressions
+ * </p>
+ * */
+public class StubJdbc {
+
+	private StubJdbc() {
+	}
+
+	/**
+	 * @return a PreparedStatement that keeps the parameters set in an array, and where
+	 * executeQuery() returns results. Executing updates returns 1, and other methods do
+	 * nothing and return null, false or 0
+	 * */
+	public static PreparedStatement preparedStatement(final ResultSet results) {
+		return (PreparedStatement) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(),
+				new Class<?> [] {PreparedStatement.class}, new InvocationHandler() {
+			private final Object [] parameters = new Object[64];
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+					this.parameters[(Integer) args[0]] = args[1];
+					return null;
+				}
+				if (name.equals("executeQuery")) {
+					return results;
+				}
+				if (name.equals("executeUpdate")) {
+					return 1;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * @return a ResultSet with row as its only row, that is returned again after each
+	 * call to next(), so it can be used for several queries. Columns are 1-based as in
+	 * JDBC, and null values are supported
+	 * */
+	public static ResultSet resultSet(final Object... row) {
+		return (ResultSet) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(),
+				new Class<?> [] {ResultSet.class}, new InvocationHandler() {
+			private boolean wasNull = false;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("next")) {
+					return true;
+				}
+				if (name.equals("wasNull")) {
+					return this.wasNull;
+				}
+				if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+					Object value = row[(Integer) args[0] - 1];
+					this.wasNull = value == null;
+					return value == null ? defaultValue(method.getReturnType()) : value;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == Boolean.TYPE) {
+			return false;
+		}
+		if (type == Integer.TYPE) {
+			return 0;
+		}
+		if (type == Long.TYPE) {
+			return 0L;
+		}
+		if (type == Double.TYPE) {
+			return 0.0;
+		}
+		if (type == Float.TYPE) {
+			return 0.0f;
+		}
+		if (type == Short.TYPE) {
+			return (short) 0;
+		}
+		if (type == Byte.TYPE) {
+			return (byte) 0;
+		}
+		return null;
+	}
+}
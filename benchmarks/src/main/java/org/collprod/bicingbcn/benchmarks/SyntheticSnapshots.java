@@ -0,0 +1,121 @@
+package org.collprod.bicingbcn.benchmarks;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * <p>
+ * Generates synthetic Bicing XML files with any number of stations, taking a real file as seed. So the
+ * benchmarks use realistic documents, with the same layout and kind of values as the Bicing data source, but
+ * different sizes.
+ * </p>
+ * <p>
+ * Station i of a generated file is a copy of station (i % n) of the seed, for n the number of stations of
+ * the seed, with a new id for the copies, and random slots, bikes and status. The generation is deterministic
+ * for a given random seed. The station elements are copied as text, so the generator does not depend
+ * on the parsers under benchmark
+ * </p>
+ * */
+public class SyntheticSnapshots {
+
+	/**
+	 * A real Bicing file with 424 stations, see pom.xml
+	 * */
+	public static final String DEFAULT_SEED_RESOURCE = "/bicing_2014-05-31_15.53.07_UTC.xml";
+
+	private static final Pattern STATION_PATTERN = Pattern.compile("<station>.*?</station>", Pattern.DOTALL);
+	private static final Pattern ID_PATTERN = Pattern.compile("<id>\\d+</id>");
+	private static final Pattern STATUS_PATTERN = Pattern.compile("<status>\\w*</status>");
+	private static final Pattern SLOTS_PATTERN = Pattern.compile("<slots>\\d*</slots>");
+	private static final Pattern BIKES_PATTERN = Pattern.compile("<bikes>\\d*</bikes>");
+
+	/**
+	 * Copy k of a seed station gets id k * ID_OFFSET + seed id, greater than any id in Bicing
+	 * */
+	private static final int ID_OFFSET = 1000;
+	/**
+	 * One in CLOSED_ONE_IN stations is closed, roughly as in the real data
+	 * */
+	private static final int CLOSED_ONE_IN = 20;
+	private static final int MAX_CAPACITY = 30;
+
+	private final List<String> seedStations;
+	private final Random random;
+
+	/**
+	 * @param seedXml a Bicing XML file used as seed
+	 * @param randomSeed seed for the random values of the generated stations
+	 * */
+	public SyntheticSnapshots(String seedXml, long randomSeed) {
+		this.seedStations = new ArrayList<String>();
+		Matcher stationMatcher = STATION_PATTERN.matcher(seedXml);
+		while (stationMatcher.find()) {
+			this.seedStations.add(stationMatcher.group());
+		}
+		if (this.seedStations.isEmpty()) {
+			throw new IllegalArgumentException("No station found in seed XML");
+		}
+		this.random = new Random(randomSeed);
+	}
+
+	/**
+	 * Uses DEFAULT_SEED_RESOURCE as seed
+	 * */
+	public static SyntheticSnapshots fromDefaultSeed(long randomSeed) {
+		URL seedUrl = SyntheticSnapshots.class.getResource(DEFAULT_SEED_RESOURCE);
+		try {
+			return new SyntheticSnapshots(Resources.toString(seedUrl, Charsets.UTF_8), randomSeed);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * @return number of stations in the seed
+	 * */
+	public int seedSize() {
+		return this.seedStations.size();
+	}
+
+	/**
+	 * @param updatetime update time of the snapshot, in seconds as in the Bicing files
+	 * @param numStations number of stations in the generated file
+	 *
+	 * @return a Bicing XML file with numStations stations
+	 * */
+	public String generate(long updatetime, int numStations) {
+		// approx 330 chars per station
+		StringBuilder xml = new StringBuilder(100 + numStations * 350);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<bicing_stations>\n");
+		xml.append(" <updatetime><![CDATA[").append(updatetime).append("]]></updatetime>\n");
+		for (int i = 0; i < numStations; i++) {
+			String station = this.seedStations.get(i % this.seedStations.size());
+			int copy = i / this.seedStations.size();
+			if (copy > 0) {
+				Matcher idMatcher = ID_PATTERN.matcher(station);
+				idMatcher.find();
+				int seedId = Integer.parseInt(station.substring(idMatcher.start() + "<id>".length(),
+													idMatcher.end() - "</id>".length()));
+				station = idMatcher.replaceFirst("<id>" + (copy * ID_OFFSET + seedId) + "</id>");
+			}
+			boolean open = this.random.nextInt(CLOSED_ONE_IN) != 0;
+			int capacity = this.random.nextInt(MAX_CAPACITY) + 1;
+			int bikes = this.random.nextInt(capacity + 1);
+			station = STATUS_PATTERN.matcher(station).replaceFirst("<status>" + (open ? "OPN" : "CLS") + "</status>");
+			station = SLOTS_PATTERN.matcher(station).replaceFirst("<slots>" + (capacity - bikes) + "</slots>");
+			station = BIKES_PATTERN.matcher(station).replaceFirst("<bikes>" + bikes + "</bikes>");
+			xml.append(' ').append(station).append('\n');
+		}
+		xml.append("</bicing_stations>\n");
+		return xml.toString();
+	}
+}
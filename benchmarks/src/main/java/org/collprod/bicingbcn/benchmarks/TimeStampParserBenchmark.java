@@ -0,0 +1,53 @@
+package org.collprod.bicingbcn.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.collprod.bicingbcn.ingestion.tsparser.BicingBCNTimeStampParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+/**
+ * Benchmarks for BicingBCNTimeStampParser, that is called by the Storm ingestion for each
+ * downloaded file
+ * */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeStampParserBenchmark {
+
+	@Param({"50", "424", "2000"})
+	private int numStations;
+
+	private BicingBCNTimeStampParser parser;
+	private String data;
+
+	@Setup
+	public void setup() {
+		this.parser = new BicingBCNTimeStampParser();
+		this.data = SyntheticSnapshots.fromDefaultSeed(42).generate(1401551587L, this.numStations);
+	}
+
+	@Benchmark
+	public Optional<Long> apply() {
+		return this.parser.apply(this.data);
+	}
+
+	@Benchmark
+	public Optional<String> getKey() {
+		return this.parser.getKey(this.data);
+	}
+}
@@ -0,0 +1,143 @@
+package org.collprod.bicingbcn.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * <p>
+ * Codecs for the CONTENT_FIELD of the tuples emitted by RestIngestionSpout in storm-ingestion. The content is
+ * the bytes of the downloaded data in UTF-8, encoded with the codec named in the CODEC_FIELD of the tuple.
+ * </p>
+ * <p>
+ * When the content is sent outside of Storm, e.g. to Kafka, the codec is recorded in the message by
+ * frame(): the encoded content is prefixed with MAGIC followed by the id of the codec.
+ * Content encoded with NONE is not framed, so consumers that expect raw data still work in that case.
+ * As MAGIC is not a valid first byte for an XML document, unframeAndDecode() can be used for both framed
+ * and raw messages. The Kafka messages written by storm-ingestion are decoded by spark-stream-visuals
+ * with this same class
+ * </p>
+ * */
+public enum PayloadCodec {
+	NONE((byte) 0) {
+		@Override
+		public byte[] encode(byte[] raw) {
+			return raw;
+		}
+		@Override
+		public byte[] decode(byte[] encoded) {
+			return encoded;
+		}
+	},
+	GZIP((byte) 1) {
+		@Override
+		public byte[] encode(byte[] raw) throws IOException {
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream(raw.length / 4);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(encoded);
+			gzipOut.write(raw);
+			gzipOut.close();
+			return encoded.toByteArray();
+		}
+		@Override
+		public byte[] decode(byte[] encoded) throws IOException {
+			GZIPInputStream gzipIn = new GZIPInputStream(new ByteArrayInputStream(encoded));
+			try {
+				return ByteStreams.toByteArray(gzipIn);
+			} finally {
+				gzipIn.close();
+			}
+		}
+	},
+	SNAPPY((byte) 2) {
+		@Override
+		public byte[] encode(byte[] raw) throws IOException {
+			return Snappy.compress(raw);
+		}
+		@Override
+		public byte[] decode(byte[] encoded) throws IOException {
+			return Snappy.uncompress(encoded);
+		}
+	};
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PayloadCodec.class);
+
+	/**
+	 * First byte of framed messages
+	 * */
+	public static final byte MAGIC = 0;
+
+	/**
+	 * Size in bytes of the prefix added by frame()
+	 * */
+	private static final int FRAME_HEADER_SIZE = 2;
+
+	/**
+	 * Identifies the codec in framed messages
+	 * */
+	private final byte id;
+
+	private PayloadCodec(byte id) {
+		this.id = id;
+	}
+
+	public abstract byte[] encode(byte[] raw) throws IOException;
+
+	public abstract byte[] decode(byte[] encoded) throws IOException;
+
+	/**
+	 * @return encoded prefixed with MAGIC and the id of this codec, or encoded itself for NONE
+	 * */
+	public byte[] frame(byte[] encoded) {
+		if (this == NONE) {
+			return encoded;
+		}
+		byte [] framed = new byte[FRAME_HEADER_SIZE + encoded.length];
+		framed[0] = MAGIC;
+		framed[1] = this.id;
+		System.arraycopy(encoded, 0, framed, FRAME_HEADER_SIZE, encoded.length);
+		return framed;
+	}
+
+	/**
+	 * @return the raw content for a message created with frame()
+	 * @throws IOException if the codec in the message is unknown, or the message cannot be decoded
+	 * */
+	public static byte[] unframeAndDecode(byte[] message) throws IOException {
+		if (message.length == 0 || message[0] != MAGIC) {
+			// not framed
+			return message;
+		}
+		if (message.length < FRAME_HEADER_SIZE) {
+			throw new IOException("Truncated message header");
+		}
+		for (PayloadCodec codec : values()) {
+			if (codec.id == message[1]) {
+				return codec.decode(Arrays.copyOfRange(message, FRAME_HEADER_SIZE, message.length));
+			}
+		}
+		throw new IOException("Unknown codec id " + message[1]);
+	}
+
+	/**
+	 * @return the codec for name, ignoring case, e.g. "snappy" for SNAPPY
+	 * @throws RuntimeException if there is no codec for name
+	 * */
+	public static PayloadCodec forName(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException iae) {
+			String msg = "Unknown payload codec " + name;
+			LOGGER.error(msg);
+			throw new RuntimeException(msg);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.collprod.bicingbcn.common;
+
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>
+ * Computes the version of a station catalog, that is a hash of the static attributes of all its stations:
+ * coordinates, street, height, street number and nearby stations. Two snapshots have the same catalog iff
+ * they have the same version, with high probability.
+ * </p>
+ * <p>
+ * The version is computed by storm-ingestion when publishing catalogs and by spark-stream-visuals when
+ * parsing snapshots, and both have to agree, so both use this class. Stations must be added sorted by id.
+ * Not thread safe
+ * </p>
+ * */
+public class StationCatalogHasher {
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private final Hasher hasher = HASH_FUNCTION.newHasher();
+	private boolean empty = true;
+	private int lastId;
+
+	/**
+	 * @throws IllegalArgumentException if id is lower than the id of the previous station
+	 * */
+	public StationCatalogHasher add(int id, double latitude, double longitude, String street, int height,
+			int streetNumber, List<Integer> nearbyStationList) {
+		Preconditions.checkArgument(this.empty || this.lastId <= id, "stations must be added sorted by id");
+		this.empty = false;
+		this.lastId = id;
+		this.hasher.putInt(id)
+			.putDouble(latitude)
+			.putDouble(longitude)
+			.putString(street, Charsets.UTF_8)
+			.putInt(height)
+			.putInt(streetNumber)
+			.putInt(nearbyStationList.size());
+		for (Integer nearbyStation : nearbyStationList) {
+			this.hasher.putInt(nearbyStation);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the version of the catalog of the stations added so far. Can only be called once
+	 * */
+	public long version() {
+		return this.hasher.hash().asLong();
+	}
+}
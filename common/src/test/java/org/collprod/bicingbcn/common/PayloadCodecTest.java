@@ -0,0 +1,78 @@
+package org.collprod.bicingbcn.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for class PayloadCodec
+ * */
+public class PayloadCodecTest {
+
+	private static final byte [] RAW_CONTENT = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><bicing_stations>"
+			+ "<updatetime><![CDATA[1401558787]]></updatetime>"
+			+ "<station><id>1</id><street><![CDATA[Gran Via Corts Catalanes]]></street><status>OPN</status></station>"
+			+ "</bicing_stations>").getBytes(Charsets.UTF_8);
+
+	@Test
+	public void roundTrip() throws IOException {
+		for (PayloadCodec codec : PayloadCodec.values()) {
+			byte [] encoded = codec.encode(RAW_CONTENT);
+			Assert.assertTrue(codec.name(), Arrays.equals(RAW_CONTENT, codec.decode(encoded)));
+			Assert.assertTrue(codec.name(), Arrays.equals(RAW_CONTENT,
+					PayloadCodec.unframeAndDecode(codec.frame(encoded))));
+		}
+	}
+
+	@Test
+	public void rawMessagesAreNotFramed() throws IOException {
+		Assert.assertTrue(Arrays.equals(RAW_CONTENT, PayloadCodec.NONE.frame(RAW_CONTENT)));
+		Assert.assertTrue(Arrays.equals(RAW_CONTENT, PayloadCodec.unframeAndDecode(RAW_CONTENT)));
+		Assert.assertEquals(0, PayloadCodec.unframeAndDecode(new byte[0]).length);
+	}
+
+	/**
+	 * Messages framed by storm-ingestion must be decoded by spark-stream-visuals, also across versions, so
+	 * the wire format is pinned with these vectors, which must not change
+	 * */
+	@Test
+	public void wireFormatVectors() throws IOException {
+		byte [] raw = "bicing".getBytes(Charsets.UTF_8);
+		byte [] gzipFramed = new byte [] {PayloadCodec.MAGIC, 1,
+				(byte) 0x1f, (byte) 0x8b, (byte) 0x08, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, 
+				(byte) 0x00, (byte) 0xff, (byte) 0x4b, (byte) 0xca, (byte) 0x4c, (byte) 0xce, (byte) 0xcc, (byte) 0x4b, 
+				(byte) 0x07, (byte) 0x00, (byte) 0x5e, (byte) 0x00, (byte) 0xe1, (byte) 0x26, (byte) 0x06, (byte) 0x00, 
+				(byte) 0x00, (byte) 0x00};
+		// a single literal of 6 bytes
+		byte [] snappyFramed = new byte [] {PayloadCodec.MAGIC, 2, 0x06, 0x14, 'b', 'i', 'c', 'i', 'n', 'g'};
+		Assert.assertTrue(Arrays.equals(raw, PayloadCodec.unframeAndDecode(gzipFramed)));
+		Assert.assertTrue(Arrays.equals(raw, PayloadCodec.unframeAndDecode(snappyFramed)));
+		Assert.assertTrue(Arrays.equals(raw, PayloadCodec.unframeAndDecode(raw)));
+
+		byte [] encoded = PayloadCodec.GZIP.encode(raw);
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(gzipFramed, 0, 2), Arrays.copyOfRange(PayloadCodec.GZIP.frame(encoded), 0, 2)));
+		encoded = PayloadCodec.SNAPPY.encode(raw);
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(snappyFramed, 0, 2), Arrays.copyOfRange(PayloadCodec.SNAPPY.frame(encoded), 0, 2)));
+	}
+
+	@Test(expected=IOException.class)
+	public void unknownCodecId() throws IOException {
+		PayloadCodec.unframeAndDecode(new byte[] {PayloadCodec.MAGIC, 100, 1, 2, 3});
+	}
+
+	@Test
+	public void forName() {
+		Assert.assertEquals(PayloadCodec.SNAPPY, PayloadCodec.forName("snappy"));
+		Assert.assertEquals(PayloadCodec.NONE, PayloadCodec.forName(" NONE "));
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void unknownCodecName() {
+		PayloadCodec.forName("lz5");
+	}
+}
@@ -0,0 +1,49 @@
+package org.collprod.bicingbcn.common;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for class StationCatalogHasher
+ * */
+public class StationCatalogHasherTest {
+
+	/**
+	 * Version of the catalog built by catalog(). The versions computed by storm-ingestion are stored in
+	 * the catalogs published to Kafka and read by spark-stream-visuals, so this must not change. The 
+	 * tests for StationCatalogTracker in storm-ingestion and StationSnapshot in spark-stream-visuals check 
+	 * this same value
+	 * */
+	static final long CATALOG_VERSION = -2539698906791770675L;
+
+	private static StationCatalogHasher catalog() {
+		return new StationCatalogHasher()
+			.add(1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, Arrays.asList(24, 369, 387, 426))
+			.add(2, 41.394282, 2.175557, "Plaza Tetuan", 21, 8, Arrays.asList(360, 368, 387));
+	}
+
+	@Test
+	public void versionIsPinned() {
+		Assert.assertEquals(CATALOG_VERSION, catalog().version());
+	}
+
+	@Test
+	public void versionDependsOnAllFields() {
+		Assert.assertFalse(CATALOG_VERSION == new StationCatalogHasher()
+			.add(1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, Arrays.asList(24, 369, 387, 426))
+			.add(2, 41.394282, 2.175557, "Plaza Tetuan", 21, 8, Arrays.asList(360, 368)).version());
+		Assert.assertFalse(CATALOG_VERSION == new StationCatalogHasher()
+			.add(1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, Arrays.asList(24, 369, 387, 426))
+			.add(2, 41.394282, 2.175557, "Plaza Tetuan", 22, 8, Arrays.asList(360, 368, 387)).version());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void stationsMustBeSorted() {
+		new StationCatalogHasher()
+			.add(2, 41.394282, 2.175557, "Plaza Tetuan", 21, 8, Arrays.asList(360, 368, 387))
+			.add(1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, Arrays.asList(24, 369, 387, 426));
+	}
+}
@@ -0,0 +1,103 @@
+package org.collprod.bicingbcn;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.serializer.KryoSerializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * <p>
+ * Registers Kryo serializers for StationSnapshot and StationSnapshot.Row, that write the columns
+ * of a snapshot directly, using variable length ints for the ids, slots and bikes. A row is written
+ * as a snapshot with just that station, see StationSnapshot.Row. StationCatalog objects are rare, and
+ * are written with Java serialization, so they are registered in the StationCatalogCache of the 
+ * reader when read
+ * </p>
+ * <p>
+ * Use configure() for using Kryo with this registrator in a Spark program
+ * </p>
+ * */
+public class BicingKryoRegistrator implements KryoRegistrator {
+
+	/**
+	 * @return conf, configured to use Kryo serialization with this registrator
+	 * */
+	public static SparkConf configure(SparkConf conf) {
+		return conf.set("spark.serializer", KryoSerializer.class.getName())
+				.set("spark.kryo.registrator", BicingKryoRegistrator.class.getName());
+	}
+
+	@Override
+	public void registerClasses(Kryo kryo) {
+		StationSnapshotSerializer snapshotSerializer = new StationSnapshotSerializer();
+		kryo.register(StationSnapshot.class, snapshotSerializer);
+		kryo.register(StationSnapshot.Row.class, new RowSerializer(snapshotSerializer));
+		kryo.register(StationCatalog.class, new JavaSerializer());
+	}
+
+	public static class StationSnapshotSerializer extends Serializer<StationSnapshot> {
+
+		@Override
+		public void write(Kryo kryo, Output output, StationSnapshot snapshot) {
+			output.writeLong(snapshot.updatetime());
+			output.writeLong(snapshot.catalogVersion());
+			String [] statuses = snapshot.statuses();
+			output.writeInt(statuses.length, true);
+			for (String status : statuses) {
+				output.writeString(status);
+			}
+			int size = snapshot.size();
+			output.writeInt(size, true);
+			output.writeBytes(snapshot.statusCodes());
+			for (int i = 0; i < size; i++) {
+				output.writeInt(snapshot.id(i), true);
+				output.writeInt(snapshot.slots(i), true);
+				output.writeInt(snapshot.bikes(i), true);
+			}
+		}
+
+		@Override
+		public StationSnapshot read(Kryo kryo, Input input, Class<StationSnapshot> type) {
+			long updatetime = input.readLong();
+			long catalogVersion = input.readLong();
+			String [] statuses = new String[input.readInt(true)];
+			for (int i = 0; i < statuses.length; i++) {
+				statuses[i] = input.readString();
+			}
+			int size = input.readInt(true);
+			byte [] statusCodes = input.readBytes(size);
+			int [] ids = new int[size];
+			int [] slots = new int[size];
+			int [] bikes = new int[size];
+			for (int i = 0; i < size; i++) {
+				ids[i] = input.readInt(true);
+				slots[i] = input.readInt(true);
+				bikes[i] = input.readInt(true);
+			}
+			return new StationSnapshot(updatetime, catalogVersion, ids, statusCodes, slots, bikes, statuses);
+		}
+	}
+
+	public static class RowSerializer extends Serializer<StationSnapshot.Row> {
+		private final StationSnapshotSerializer snapshotSerializer;
+
+		public RowSerializer(StationSnapshotSerializer snapshotSerializer) {
+			this.snapshotSerializer = snapshotSerializer;
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, StationSnapshot.Row row) {
+			this.snapshotSerializer.write(kryo, output, row.detach().snapshot());
+		}
+
+		@Override
+		public StationSnapshot.Row read(Kryo kryo, Input input, Class<StationSnapshot.Row> type) {
+			return this.snapshotSerializer.read(kryo, input, StationSnapshot.class).row(0);
+		}
+	}
+}
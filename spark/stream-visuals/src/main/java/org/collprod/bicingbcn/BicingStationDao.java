@@ -1,10 +1,18 @@
 package org.collprod.bicingbcn;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.metamodel.DataContext;
 import org.apache.metamodel.DataContextFactory;
@@ -14,9 +22,11 @@ import org.apache.metamodel.query.CompiledQuery;
 import org.apache.metamodel.query.Query;
 import org.apache.metamodel.schema.Column;
 import org.apache.metamodel.schema.Table;
+import org.collprod.bicingbcn.common.PayloadCodec;
 import org.xml.sax.InputSource;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
@@ -37,12 +47,59 @@ import com.google.common.primitives.Ints;
  * <p>
  * TODO: put the contract interface in a separate class, and implement here renaming to BicingStationDaoImpl
  * </p>
+ * 
+ * <p>
+ * Two implementations of parse() are available, see Parser. Both produce the same values 
+ * </p>
+ * 
+ * <p>
+ * The contents can be parsed from a String, or directly from the bytes of a message with parse(byte[]) and
+ * parse(ByteBuffer), which avoids decoding the message into a String first. Bytes are always read as UTF-8,
+ * which is the encoding of the downloaded data, see PayloadCodec 
+ * </p>
+ * 
+ * <p>
+ * parseSnapshot() returns all the stations in a single StationSnapshot instead of a Value per station,
+ * and parseSnapshotAndCatalog() also returns the static fields of the stations in a StationCatalog. 
+ * Neither registers the catalog in StationCatalogCache, that is up to the caller 
+ * </p>
  * */
 public class BicingStationDao implements Serializable {
 	
 	// generated by Eclipse
 	private static final long serialVersionUID = 6335397659147272320L;
 	
+	/**
+	 * Implementations of parse()
+	 * */
+	public static enum Parser {
+		/**
+		 * Loads the whole document into an Apache MetaModel XmlDataContext, which builds a DOM,
+		 * and then queries it 
+		 * */
+		METAMODEL,
+		/**
+		 * Parses the document in a single pass with a StAX reader, without building a DOM. 
+		 * This is much faster and generates much less garbage 
+		 * */
+		STAX
+	}
+	
+	private static final XMLInputFactory XML_INPUT_FACTORY;
+	static {
+		XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+		// get CDATA sections together with the surrounding text
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+	
+	/**
+	 * Expected number of stations per file, used to size the result
+	 * */
+	private static final int EXPECTED_STATIONS = 512;
+	
+	private final Parser parser;
+	
 	private CompiledQuery updatetimeCompiledQuery;
 	private Column updatetimeColumn;
 	
@@ -58,7 +115,15 @@ public class BicingStationDao implements Serializable {
 	private Column slotsColumn;
 	private Column bikesColumn;
 		
+	/**
+	 * DAO using Parser.STAX
+	 * */
 	public BicingStationDao() {
+		this(Parser.STAX);
+	}
+	
+	public BicingStationDao(Parser parser) {
+		this.parser = parser;
 		this.updatetimeCompiledQuery = null;
 		this.updatetimeColumn = null;
 		
@@ -75,8 +140,21 @@ public class BicingStationDao implements Serializable {
 		this.bikesColumn = null;
 	}
 	
+	/**
+	 * A StationSnapshot and its StationCatalog, see parseSnapshotAndCatalog()
+	 * */
 	@AutoValue
-	public static abstract class Value implements Serializable {
+	public static abstract class SnapshotCatalog {
+		SnapshotCatalog() {}
+		public static SnapshotCatalog create(StationSnapshot snapshot, StationCatalog catalog) {
+			return new AutoValue_BicingStationDao_SnapshotCatalog(snapshot, catalog);
+		}
+		public abstract StationSnapshot snapshot();
+		public abstract StationCatalog catalog();
+	}
+	
+	@AutoValue
+	public static abstract class Value implements Serializable, StationReading {
 		// generated by Eclipse
 		private static final long serialVersionUID = 8581922474241143038L;
 		
@@ -173,9 +251,304 @@ public class BicingStationDao implements Serializable {
 	 *  is added to each of these values 
 	 * */
 	public Iterable<Value> parse(String bicingFileContents) {
-		// Load bicing XML string
-		DataContext bicingData = DataContextFactory.createXmlDataContext(new InputSource(new ByteArrayInputStream(bicingFileContents.getBytes())), 
-				"bicing_data", true);
+		if (this.parser == Parser.STAX) {
+			return parseStax(bicingFileContents);
+		}
+		return parseMetaModel(new ByteArrayInputStream(bicingFileContents.getBytes(Charsets.UTF_8)));
+	}
+	
+	/**
+	 * Same as parse(String) but for the contents of a Bicing XML file encoded in UTF-8, e.g. the payload 
+	 * of a Kafka message. The array is not copied, and should not be modified during the call
+	 * */
+	public Iterable<Value> parse(byte [] bicingFileContents) {
+		return parse(new ByteArrayInputStream(bicingFileContents));
+	}
+	
+	/**
+	 * Same as parse(byte[]) for the remaining bytes of bicingFileContents. The buffer is not copied, 
+	 * and its position is not modified
+	 * */
+	public Iterable<Value> parse(ByteBuffer bicingFileContents) {
+		if (bicingFileContents.hasArray()) {
+			return parse(new ByteArrayInputStream(bicingFileContents.array(), 
+					bicingFileContents.arrayOffset() + bicingFileContents.position(), bicingFileContents.remaining()));
+		}
+		return parse(new ByteBufferInputStream(bicingFileContents.duplicate()));
+	}
+	
+	private Iterable<Value> parse(InputStream bicingFileContents) {
+		if (this.parser == Parser.STAX) {
+			return parseStax(bicingFileContents);
+		}
+		return parseMetaModel(bicingFileContents);
+	}
+	
+	/**
+	 * Same as parse(String) but returning a single StationSnapshot for all the stations, which is much
+	 * more compact than a Value per station. The static fields of the stations are only used for computing 
+	 * the version of their catalog, see parseSnapshotAndCatalog() for getting the catalog too
+	 * */
+	public StationSnapshot parseSnapshot(String bicingFileContents) {
+		SnapshotCollector collector = new SnapshotCollector();
+		if (this.parser == Parser.STAX) {
+			return parseStax(bicingFileContents, collector);
+		}
+		return collector.addAll(parse(bicingFileContents)).build();
+	}
+	
+	/**
+	 * Same as parseSnapshot(String) for the contents of a Bicing XML file encoded in UTF-8, 
+	 * see parse(byte[])
+	 * */
+	public StationSnapshot parseSnapshot(byte [] bicingFileContents) {
+		SnapshotCollector collector = new SnapshotCollector();
+		if (this.parser == Parser.STAX) {
+			return parseStax(new ByteArrayInputStream(bicingFileContents), collector);
+		}
+		return collector.addAll(parse(bicingFileContents)).build();
+	}
+	
+	/**
+	 * Same as parseSnapshot(byte[]) but also returning the StationCatalog of the snapshot. That is the
+	 * catalog in StationCatalogCache for the version of the snapshot if there is one, and a new catalog 
+	 * otherwise, which is not registered in StationCatalogCache 
+	 * */
+	public SnapshotCatalog parseSnapshotAndCatalog(byte [] bicingFileContents) {
+		SnapshotCollector collector = new SnapshotCollector();
+		StationSnapshot snapshot;
+		if (this.parser == Parser.STAX) {
+			snapshot = parseStax(new ByteArrayInputStream(bicingFileContents), collector);
+		} else {
+			snapshot = collector.addAll(parse(bicingFileContents)).build();
+		}
+		return SnapshotCatalog.create(snapshot, collector.catalog());
+	}
+	
+	/**
+	 * Receives the stations found by readStations()
+	 * */
+	private static interface StationCollector<T> {
+		public void add(long updatetime, int id, double latitude, double longitude, String street, 
+				int height, int streetNumber, ArrayList<Integer> nearbyStationList, String status, 
+				int slots, int bikes);
+		/**
+		 * @return the result of parsing
+		 * */
+		public T build();
+	}
+	
+	private static class ValuesCollector implements StationCollector<List<Value>> {
+		private final List<Value> stations = new ArrayList<Value>(EXPECTED_STATIONS);
+
+		@Override
+		public void add(long updatetime, int id, double latitude, double longitude, String street,
+				int height, int streetNumber, ArrayList<Integer> nearbyStationList, String status,
+				int slots, int bikes) {
+			this.stations.add(Value.create(updatetime, id, latitude, longitude, street, height, 
+					streetNumber, nearbyStationList, status, slots, bikes));
+		}
+
+		@Override
+		public List<Value> build() {
+			return this.stations;
+		}
+	}
+	
+	/**
+	 * Collects the dynamic fields into a snapshot, and the static fields into a catalog, which is
+	 * only built by catalog(), and if it is not already in StationCatalogCache
+	 * */
+	private static class SnapshotCollector implements StationCollector<StationSnapshot> {
+		private final StationSnapshot.Builder snapshot = new StationSnapshot.Builder();
+		private final StationCatalog.Builder catalog = new StationCatalog.Builder();
+		private long catalogVersion;
+
+		@Override
+		public void add(long updatetime, int id, double latitude, double longitude, String street,
+				int height, int streetNumber, ArrayList<Integer> nearbyStationList, String status,
+				int slots, int bikes) {
+			this.snapshot.add(updatetime, id, status, slots, bikes);
+			this.catalog.add(id, latitude, longitude, street, height, streetNumber, nearbyStationList);
+		}
+
+		SnapshotCollector addAll(Iterable<Value> values) {
+			for (Value value : values) {
+				add(value.updatetime(), value.id(), value.latitude(), value.longitude(), value.street(), 
+						value.height(), value.streetNumber(), value.nearbyStationList(), value.status(), 
+						value.slots(), value.bikes());
+			}
+			return this;
+		}
+
+		@Override
+		public StationSnapshot build() {
+			this.catalogVersion = this.catalog.version();
+			return this.snapshot.build(this.catalogVersion);
+		}
+		
+		/**
+		 * @return the catalog for the stations added, should be called after build()
+		 * */
+		StationCatalog catalog() {
+			StationCatalog catalog = StationCatalogCache.get(this.catalogVersion);
+			return catalog == null ? this.catalog.build() : catalog;
+		}
+	}
+	
+	/**
+	 * InputStream for the remaining bytes of a ByteBuffer without a backing array, e.g. a direct buffer
+	 * */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (! this.buffer.hasRemaining()) {
+				return -1;
+			}
+			int bytesRead = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, bytesRead);
+			return bytesRead;
+		}
+		
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+	
+	/**
+	 * Implementation of parse() for Parser.STAX 
+	 * 
+	 * @throws RuntimeException if the XML is not well formed, or a station is found before the updatetime, 
+	 * or without id. This is consistent with parseMetaModel()
+	 * */
+	private static List<Value> parseStax(String bicingFileContents) {
+		return parseStax(bicingFileContents, new ValuesCollector());
+	}
+	
+	/**
+	 * Same as parseStax(String) for contents encoded in UTF-8
+	 * */
+	private static List<Value> parseStax(InputStream bicingFileContents) {
+		return parseStax(bicingFileContents, new ValuesCollector());
+	}
+	
+	private static <T> T parseStax(String bicingFileContents, StationCollector<T> stations) {
+		try {
+			return parseStax(XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(bicingFileContents)), stations);
+		} catch (XMLStreamException xse) {
+			throw new RuntimeException(xse);
+		}
+	}
+	
+	private static <T> T parseStax(InputStream bicingFileContents, StationCollector<T> stations) {
+		try {
+			return parseStax(XML_INPUT_FACTORY.createXMLStreamReader(bicingFileContents, Charsets.UTF_8.name()), stations);
+		} catch (XMLStreamException xse) {
+			throw new RuntimeException(xse);
+		}
+	}
+	
+	/**
+	 * Parses the document and closes reader
+	 * */
+	private static <T> T parseStax(XMLStreamReader reader, StationCollector<T> stations) throws XMLStreamException {
+		try {
+			readStations(reader, stations);
+			return stations.build();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static void readStations(XMLStreamReader reader, StationCollector<?> stations) throws XMLStreamException {
+		long updatetime = -1;
+		boolean inStation = false;
+		// fields of the current station
+		Integer id = null;
+		double latitude = 0, longitude = 0;
+		String street = "", status = "";
+		int height = 0, streetNumber = -1, slots = 0, bikes = 0;
+		ArrayList<Integer> nearbyStationList = new ArrayList<Integer>();
+		
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("station")) {
+					inStation = true;
+					id = null;
+					latitude = longitude = 0;
+					street = status = "";
+					height = slots = bikes = 0;
+					streetNumber = -1;
+					nearbyStationList = new ArrayList<Integer>();
+				} else if (name.equals("updatetime")) {
+					updatetime = Long.parseLong(reader.getElementText().trim()) * 1000L;
+				} else if (inStation) {
+					// getElementText() moves the reader to the END_ELEMENT
+					String text = reader.getElementText();
+					if (name.equals("id")) {
+						// We need the station id, cannot use a default value
+						id = Integer.parseInt(text.trim());
+					} else if (name.equals("lat")) {
+						latitude = Double.parseDouble(text.trim());
+					} else if (name.equals("long")) {
+						longitude = Double.parseDouble(text.trim());
+					} else if (name.equals("street")) {
+						street = text;
+					} else if (name.equals("height")) {
+						height = safeNullableIntParse(text, 0);
+					} else if (name.equals("streetNumber")) {
+						streetNumber = safeNullableIntParse(text, -1);
+					} else if (name.equals("nearbyStationList")) {
+						for (String nearbyStation : Splitter.on(",").split(text)) {
+							nearbyStationList.add(safeNullableIntParse(nearbyStation, -1));
+						}
+					} else if (name.equals("status")) {
+						status = text;
+					} else if (name.equals("slots")) {
+						slots = safeNullableIntParse(text, 0);
+					} else if (name.equals("bikes")) {
+						bikes = safeNullableIntParse(text, 0);
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("station")) {
+				inStation = false;
+				if (updatetime < 0) {
+					throw new XMLStreamException("Found station before updatetime", reader.getLocation());
+				}
+				if (id == null) {
+					throw new XMLStreamException("Found station without id", reader.getLocation());
+				}
+				stations.add(updatetime, id, latitude, longitude, street, height, 
+						streetNumber, nearbyStationList, status, slots, bikes);
+			}
+		}
+	}
+	
+	/**
+	 * Implementation of parse() for Parser.METAMODEL, for contents encoded in UTF-8
+	 * */
+	private Iterable<Value> parseMetaModel(InputStream bicingFileContents) {
+		// Load bicing XML bytes
+		InputSource bicingSource = new InputSource(bicingFileContents);
+		bicingSource.setEncoding(Charsets.UTF_8.name());
+		DataContext bicingData = DataContextFactory.createXmlDataContext(bicingSource, "bicing_data", true);
 		
 		// get update time
 		DataSet updatetimeResults = bicingData.executeQuery(this.getupdatetimeQuery(bicingData));
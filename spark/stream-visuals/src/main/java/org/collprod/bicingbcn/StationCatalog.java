@@ -0,0 +1,230 @@
+package org.collprod.bicingbcn;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.collprod.bicingbcn.common.StationCatalogHasher;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.primitives.Ints;
+
+/**
+ * <p>
+ * Static attributes of the stations of a Bicing data source: coordinates, street, height, street number and
+ * nearby stations, which almost never change. These are kept once per catalog instead of once per station and
+ * snapshot, and a StationSnapshot just references its catalog by version.
+ * </p>
+ * <p>
+ * The version of a catalog is a hash of the static attributes of all its stations, so two snapshots have
+ * the same catalog iff they have the same version, with high probability. Catalogs are shared through
+ * StationCatalogCache, and the streets are interned, so consecutive catalogs share their strings.
+ * </p>
+ * <p>
+ * Stations are sorted by id, see indexOf(). Instances are immutable, see StationCatalog.Builder
+ * for creating them.
+ * </p>
+ * <p>
+ * The version is computed with StationCatalogHasher, as org.collprod.bicingbcn.ingestion.stations.StationCatalogTracker
+ * does in the Storm project
+ * </p>
+ * */
+public final class StationCatalog implements Serializable {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = -7302851745618934082L;
+
+	private static final Interner<String> STREETS = Interners.newWeakInterner();
+
+	private final long version;
+	private final int [] ids;
+	private final double [] latitudes;
+	private final double [] longitudes;
+	private final String [] streets;
+	private final int [] heights;
+	private final int [] streetNumbers;
+	private final int [][] nearbyStations;
+
+	private StationCatalog(long version, int [] ids, double [] latitudes, double [] longitudes, String [] streets,
+			int [] heights, int [] streetNumbers, int [][] nearbyStations) {
+		this.version = version;
+		this.ids = ids;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.streets = streets;
+		this.heights = heights;
+		this.streetNumbers = streetNumbers;
+		this.nearbyStations = nearbyStations;
+	}
+
+	public long version() {
+		return this.version;
+	}
+
+	/**
+	 * @return number of stations in the catalog
+	 * */
+	public int size() {
+		return this.ids.length;
+	}
+
+	/**
+	 * @return the position of the station with id in this catalog, or -1 if there is no such station
+	 * */
+	public int indexOf(int id) {
+		int index = Arrays.binarySearch(this.ids, id);
+		return index < 0 ? -1 : index;
+	}
+
+	public int id(int i) {
+		return this.ids[i];
+	}
+
+	public double latitude(int i) {
+		return this.latitudes[i];
+	}
+
+	public double longitude(int i) {
+		return this.longitudes[i];
+	}
+
+	public String street(int i) {
+		return this.streets[i];
+	}
+
+	public int height(int i) {
+		return this.heights[i];
+	}
+
+	public int streetNumber(int i) {
+		return this.streetNumbers[i];
+	}
+
+	/**
+	 * @return an unmodifiable view of the nearby stations of the station at position i
+	 * */
+	public List<Integer> nearbyStationList(int i) {
+		return Collections.unmodifiableList(Ints.asList(this.nearbyStations[i]));
+	}
+
+	/**
+	 * Deserialized catalogs are replaced by the instance in the StationCatalogCache of this JVM, if any,
+	 * so there is a single copy of each catalog per executor
+	 * */
+	private Object readResolve() {
+		for (int i = 0; i < this.streets.length; i++) {
+			this.streets[i] = STREETS.intern(this.streets[i]);
+		}
+		return StationCatalogCache.register(this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return (obj instanceof StationCatalog) && ((StationCatalog) obj).version == this.version;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (this.version ^ (this.version >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "StationCatalog{version=" + this.version + ", size=" + size() + "}";
+	}
+
+	/**
+	 * Builds a StationCatalog by adding stations one by one. Not thread safe
+	 * */
+	public static class Builder {
+
+		private static class Station {
+			final int id;
+			final double latitude;
+			final double longitude;
+			final String street;
+			final int height;
+			final int streetNumber;
+			final List<Integer> nearbyStationList;
+
+			Station(int id, double latitude, double longitude, String street, int height, int streetNumber,
+					List<Integer> nearbyStationList) {
+				this.id = id;
+				this.latitude = latitude;
+				this.longitude = longitude;
+				this.street = street;
+				this.height = height;
+				this.streetNumber = streetNumber;
+				this.nearbyStationList = nearbyStationList;
+			}
+		}
+
+		private static final Comparator<Station> BY_ID = new Comparator<Station>() {
+			@Override
+			public int compare(Station station1, Station station2) {
+				return station1.id < station2.id ? -1 : (station1.id == station2.id ? 0 : 1);
+			}
+		};
+
+		private final List<Station> stations = new ArrayList<Station>();
+		private boolean sorted = true;
+
+		public Builder add(int id, double latitude, double longitude, String street, int height,
+				int streetNumber, List<Integer> nearbyStationList) {
+			if (! this.stations.isEmpty() && this.stations.get(this.stations.size() - 1).id > id) {
+				this.sorted = false;
+			}
+			this.stations.add(new Station(id, latitude, longitude, street, height, streetNumber, nearbyStationList));
+			return this;
+		}
+
+		private void sort() {
+			if (! this.sorted) {
+				Collections.sort(this.stations, BY_ID);
+				this.sorted = true;
+			}
+		}
+
+		/**
+		 * @return the version of the catalog for the stations added so far, without building it. So
+		 * StationCatalogCache can be checked before building the catalog
+		 * */
+		public long version() {
+			sort();
+			StationCatalogHasher hasher = new StationCatalogHasher();
+			for (Station station : this.stations) {
+				hasher.add(station.id, station.latitude, station.longitude, station.street, station.height,
+						station.streetNumber, station.nearbyStationList);
+			}
+			return hasher.version();
+		}
+
+		public StationCatalog build() {
+			long version = version();
+			int size = this.stations.size();
+			int [] ids = new int[size];
+			double [] latitudes = new double[size];
+			double [] longitudes = new double[size];
+			String [] streets = new String[size];
+			int [] heights = new int[size];
+			int [] streetNumbers = new int[size];
+			int [][] nearbyStations = new int[size][];
+			for (int i = 0; i < size; i++) {
+				Station station = this.stations.get(i);
+				ids[i] = station.id;
+				latitudes[i] = station.latitude;
+				longitudes[i] = station.longitude;
+				streets[i] = STREETS.intern(station.street);
+				heights[i] = station.height;
+				streetNumbers[i] = station.streetNumber;
+				nearbyStations[i] = Ints.toArray(station.nearbyStationList);
+			}
+			return new StationCatalog(version, ids, latitudes, longitudes, streets, heights, streetNumbers,
+					nearbyStations);
+		}
+	}
+}
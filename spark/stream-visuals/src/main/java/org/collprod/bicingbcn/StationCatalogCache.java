@@ -0,0 +1,65 @@
+package org.collprod.bicingbcn;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * <p>
+ * Cache of the most recent StationCatalog objects in this JVM, indexed by version, so each Spark executor
+ * (and the driver) keeps a single copy of each catalog. Catalogs are registered explicitly with register(), 
+ * and when deserialized, e.g. when collected in the driver.
+ * </p>
+ * <p>
+ * versions() can be used in the driver for sending the catalogs to the driver only when they are not already 
+ * there, as the catalogs of a data source change very rarely. This class is thread safe
+ * </p>
+ * */
+public class StationCatalogCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationCatalogCache.class);
+
+	/**
+	 * Maximum number of catalogs kept, a few per data source is enough
+	 * */
+	private static final int MAX_CATALOGS = 16;
+
+	private static final Cache<Long, StationCatalog> CATALOGS = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CATALOGS).build();
+
+	private StationCatalogCache() {
+	}
+
+	/**
+	 * @return the catalog in the cache with the same version as catalog, which is catalog if there
+	 * was none
+	 * */
+	public static StationCatalog register(StationCatalog catalog) {
+		StationCatalog cachedCatalog = CATALOGS.asMap().putIfAbsent(catalog.version(), catalog);
+		if (cachedCatalog == null) {
+			LOGGER.info("Registered new station catalog with version {} and {} stations",
+					catalog.version(), catalog.size());
+			return catalog;
+		}
+		return cachedCatalog;
+	}
+
+	/**
+	 * @return the catalog for version, or null if it is not in the cache
+	 * */
+	public static StationCatalog get(long version) {
+		return CATALOGS.getIfPresent(version);
+	}
+
+	/**
+	 * @return a copy of the versions of the catalogs in the cache
+	 * */
+	public static Set<Long> versions() {
+		return new HashSet<Long>(CATALOGS.asMap().keySet());
+	}
+}
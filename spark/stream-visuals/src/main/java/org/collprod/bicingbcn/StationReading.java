@@ -0,0 +1,17 @@
+package org.collprod.bicingbcn;
+
+/**
+ * Dynamic fields of the state of a station at some update time, which are the fields
+ * needed for computing the facts of the ETL, see org.collprod.bicingbcn.etl.PhoenixWriter.
+ * Implemented by BicingStationDao.Value and by the rows of a StationSnapshot
+ * */
+public interface StationReading {
+	/**
+	 * @return update time of the snapshot this reading comes from, in milliseconds
+	 * */
+	public long updatetime();
+	public int id();
+	public String status();
+	public int slots();
+	public int bikes();
+}
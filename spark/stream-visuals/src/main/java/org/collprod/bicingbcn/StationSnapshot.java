@@ -0,0 +1,362 @@
+package org.collprod.bicingbcn;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Objects;
+
+/**
+ * <p>
+ * The state of all the stations in a Bicing XML file, stored as primitive columns with a position per station,
+ * instead of a BicingStationDao.Value object per station. This is much cheaper to keep in Spark windows and
+ * state, and to serialize, see BicingKryoRegistrator. The statuses are stored as codes for a small dictionary
+ * per snapshot, as there are very few different statuses
+ * </p>
+ *
+ * <p>
+ * Only the dynamic fields of the stations are kept, i.e. the fields of StationReading. The static fields
+ * are in the StationCatalog with version catalogVersion(), see StationCatalogCache. Use row() or iterator()
+ * for getting lightweight views of each station. Instances are immutable, see StationSnapshot.Builder
+ * for creating them
+ * </p>
+ * */
+public final class StationSnapshot implements Serializable, Iterable<StationSnapshot.Row> {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = -2306539468209005611L;
+
+	/**
+	 * Maximum number of different statuses in a snapshot, as status codes are bytes
+	 * */
+	static final int MAX_STATUSES = 256;
+
+	private final long updatetime;
+	private final long catalogVersion;
+	private final int [] ids;
+	private final byte [] statusCodes;
+	private final int [] slots;
+	private final int [] bikes;
+	/**
+	 * statuses[statusCodes[i] & 0xFF] is the status for station i
+	 * */
+	private final String [] statuses;
+
+	/**
+	 * The arrays are not copied, and should have the same length
+	 * */
+	StationSnapshot(long updatetime, long catalogVersion, int [] ids, byte [] statusCodes, int [] slots, 
+			int [] bikes, String [] statuses) {
+		this.updatetime = updatetime;
+		this.catalogVersion = catalogVersion;
+		this.ids = ids;
+		this.statusCodes = statusCodes;
+		this.slots = slots;
+		this.bikes = bikes;
+		this.statuses = statuses;
+	}
+
+	/**
+	 * @return a snapshot for values, that should all have the same update time. The catalog for
+	 * values is registered in StationCatalogCache
+	 * */
+	public static StationSnapshot fromValues(Iterable<BicingStationDao.Value> values) {
+		Builder builder = new Builder();
+		StationCatalog.Builder catalogBuilder = new StationCatalog.Builder();
+		for (BicingStationDao.Value value : values) {
+			builder.add(value.updatetime(), value.id(), value.status(), value.slots(), value.bikes());
+			catalogBuilder.add(value.id(), value.latitude(), value.longitude(), value.street(), value.height(),
+					value.streetNumber(), value.nearbyStationList());
+		}
+		return builder.build(StationCatalogCache.register(catalogBuilder.build()).version());
+	}
+
+	/**
+	 * @return update time of the snapshot in milliseconds, or Long.MIN_VALUE for an empty snapshot
+	 * */
+	public long updatetime() {
+		return this.updatetime;
+	}
+
+	/**
+	 * @return version of the StationCatalog with the static fields of the stations in this snapshot
+	 * */
+	public long catalogVersion() {
+		return this.catalogVersion;
+	}
+
+	/**
+	 * @return number of stations in the snapshot
+	 * */
+	public int size() {
+		return this.ids.length;
+	}
+
+	public int id(int i) {
+		return this.ids[i];
+	}
+
+	public String status(int i) {
+		return this.statuses[this.statusCodes[i] & 0xFF];
+	}
+
+	public int slots(int i) {
+		return this.slots[i];
+	}
+
+	public int bikes(int i) {
+		return this.bikes[i];
+	}
+
+	/**
+	 * Dictionary of statuses, used by BicingKryoRegistrator
+	 * */
+	String [] statuses() {
+		return this.statuses;
+	}
+
+	/**
+	 * Status codes for the dictionary in statuses(), used by BicingKryoRegistrator
+	 * */
+	byte [] statusCodes() {
+		return this.statusCodes;
+	}
+
+	/**
+	 * @return a view of the station at position i
+	 * */
+	public Row row(int i) {
+		if (i < 0 || i >= size()) {
+			throw new IndexOutOfBoundsException("Row " + i + " for snapshot of size " + size());
+		}
+		return new Row(this, i);
+	}
+
+	/**
+	 * @return the newest of two snapshots, i.e. the one with greatest update time
+	 * */
+	public static StationSnapshot newest(StationSnapshot snapshot1, StationSnapshot snapshot2) {
+		return snapshot1.updatetime() > snapshot2.updatetime() ? snapshot1 : snapshot2;
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		return new Iterator<Row>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < size();
+			}
+
+			@Override
+			public Row next() {
+				if (! hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return row(this.next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (! (obj instanceof StationSnapshot)) {
+			return false;
+		}
+		StationSnapshot other = (StationSnapshot) obj;
+		if (this.updatetime != other.updatetime || this.catalogVersion != other.catalogVersion 
+				|| this.size() != other.size()) {
+			return false;
+		}
+		for (int i = 0; i < this.size(); i++) {
+			if (this.ids[i] != other.ids[i] || this.slots[i] != other.slots[i] || this.bikes[i] != other.bikes[i]
+					|| ! this.status(i).equals(other.status(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(this.updatetime, Arrays.hashCode(this.ids), Arrays.hashCode(this.bikes));
+	}
+
+	@Override
+	public String toString() {
+		return "StationSnapshot{updatetime=" + this.updatetime + ", catalogVersion=" + this.catalogVersion 
+				+ ", size=" + size() + "}";
+	}
+
+	/**
+	 * <p>
+	 * View of a station of a StationSnapshot. Creating a row only allocates the view object.
+	 * </p>
+	 * <p>
+	 * A row only keeps its station when serialized, instead of the whole snapshot: Java serialization
+	 * replaces it by a row of a snapshot with just that station, and BicingKryoRegistrator does the same.
+	 * So rows can be used as the values in a shuffle, e.g. grouping by station id
+	 * </p>
+	 * */
+	public static final class Row implements StationReading, Serializable {
+
+		// generated by Eclipse
+		private static final long serialVersionUID = 5062740718432567452L;
+
+		private final StationSnapshot snapshot;
+		private final int index;
+
+		Row(StationSnapshot snapshot, int index) {
+			this.snapshot = snapshot;
+			this.index = index;
+		}
+
+		@Override
+		public long updatetime() {
+			return this.snapshot.updatetime();
+		}
+
+		@Override
+		public int id() {
+			return this.snapshot.id(this.index);
+		}
+
+		public long catalogVersion() {
+			return this.snapshot.catalogVersion();
+		}
+
+		@Override
+		public String status() {
+			return this.snapshot.status(this.index);
+		}
+
+		@Override
+		public int slots() {
+			return this.snapshot.slots(this.index);
+		}
+
+		@Override
+		public int bikes() {
+			return this.snapshot.bikes(this.index);
+		}
+
+		/**
+		 * @return a row equal to this one for a snapshot with just this station
+		 * */
+		Row detach() {
+			if (this.snapshot.size() == 1) {
+				return this;
+			}
+			return new Builder().add(updatetime(), id(), status(), slots(), bikes())
+					.build(catalogVersion()).row(0);
+		}
+
+		/**
+		 * Snapshot for detach(), used by BicingKryoRegistrator
+		 * */
+		StationSnapshot snapshot() {
+			return this.snapshot;
+		}
+
+		private Object writeReplace() {
+			return detach();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (! (obj instanceof Row)) {
+				return false;
+			}
+			Row other = (Row) obj;
+			return this.updatetime() == other.updatetime() && this.id() == other.id()
+					&& this.catalogVersion() == other.catalogVersion()
+					&& this.status().equals(other.status())
+					&& this.slots() == other.slots() && this.bikes() == other.bikes();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(updatetime(), id(), status(), slots(), bikes());
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(this).add("updatetime", updatetime()).add("id", id())
+					.add("catalogVersion", catalogVersion()).add("status", status())
+					.add("slots", slots()).add("bikes", bikes()).toString();
+		}
+	}
+
+	/**
+	 * Builds a StationSnapshot by adding stations one by one, growing the columns as needed.
+	 * Not thread safe
+	 * */
+	public static class Builder {
+		private static final int INITIAL_CAPACITY = 512;
+
+		private long updatetime = Long.MIN_VALUE;
+		private int size = 0;
+		private int [] ids = new int[INITIAL_CAPACITY];
+		private byte [] statusCodes = new byte[INITIAL_CAPACITY];
+		private int [] slots = new int[INITIAL_CAPACITY];
+		private int [] bikes = new int[INITIAL_CAPACITY];
+		private String [] statuses = new String[0];
+
+		/**
+		 * @throws IllegalArgumentException if updatetime is different to the update time of the stations
+		 * already added, or there are too many different statuses
+		 * */
+		public Builder add(long updatetime, int id, String status, int slots, int bikes) {
+			if (this.size == 0) {
+				this.updatetime = updatetime;
+			} else if (updatetime != this.updatetime) {
+				throw new IllegalArgumentException("Found station with update time " + updatetime
+						+ " for snapshot with update time " + this.updatetime);
+			}
+			if (this.size == this.ids.length) {
+				int capacity = this.size * 2;
+				this.ids = Arrays.copyOf(this.ids, capacity);
+				this.statusCodes = Arrays.copyOf(this.statusCodes, capacity);
+				this.slots = Arrays.copyOf(this.slots, capacity);
+				this.bikes = Arrays.copyOf(this.bikes, capacity);
+			}
+			this.ids[this.size] = id;
+			this.statusCodes[this.size] = statusCode(status);
+			this.slots[this.size] = slots;
+			this.bikes[this.size] = bikes;
+			this.size++;
+			return this;
+		}
+
+		private byte statusCode(String status) {
+			// linear search is faster than a map for so few statuses
+			for (int code = 0; code < this.statuses.length; code++) {
+				if (this.statuses[code].equals(status)) {
+					return (byte) code;
+				}
+			}
+			if (this.statuses.length == MAX_STATUSES) {
+				throw new IllegalArgumentException("More than " + MAX_STATUSES + " statuses in a snapshot");
+			}
+			this.statuses = Arrays.copyOf(this.statuses, this.statuses.length + 1);
+			this.statuses[this.statuses.length - 1] = status;
+			return (byte) (this.statuses.length - 1);
+		}
+
+		/**
+		 * @param catalogVersion version of the StationCatalog for the stations of the snapshot
+		 * */
+		public StationSnapshot build(long catalogVersion) {
+			return new StationSnapshot(this.updatetime, catalogVersion, Arrays.copyOf(this.ids, this.size),
+					Arrays.copyOf(this.statusCodes, this.size), Arrays.copyOf(this.slots, this.size),
+					Arrays.copyOf(this.bikes, this.size), this.statuses.clone());
+		}
+	}
+}
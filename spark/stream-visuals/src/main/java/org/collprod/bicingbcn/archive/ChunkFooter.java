@@ -0,0 +1,37 @@
+package org.collprod.bicingbcn.archive;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Statistics for a chunk of the station history archive, stored at the end of the chunk, 
+ * so chunks can be skipped without decoding them 
+ * */
+@AutoValue
+public abstract class ChunkFooter {
+	ChunkFooter() {}
+	public static ChunkFooter create(int rows, long minUpdatetime, long maxUpdatetime, 
+			int minBikes, int maxBikes, int minSlots, int maxSlots) {
+		return new AutoValue_ChunkFooter(rows, minUpdatetime, maxUpdatetime, minBikes, maxBikes, minSlots, maxSlots);
+	}
+	public abstract int rows();
+	public abstract long minUpdatetime();
+	public abstract long maxUpdatetime();
+	public abstract int minBikes();
+	public abstract int maxBikes();
+	public abstract int minSlots();
+	public abstract int maxSlots();
+	
+	/**
+	 * @return true if some row of the chunk might have an update time in [minUpdatetime, maxUpdatetime]
+	 * */
+	public boolean overlaps(long minUpdatetime, long maxUpdatetime) {
+		return minUpdatetime() <= maxUpdatetime && maxUpdatetime() >= minUpdatetime;
+	}
+	
+	/**
+	 * @return true if all the rows of the chunk have an update time in [minUpdatetime, maxUpdatetime]
+	 * */
+	public boolean within(long minUpdatetime, long maxUpdatetime) {
+		return minUpdatetime <= minUpdatetime() && maxUpdatetime() <= maxUpdatetime;
+	}
+}
@@ -0,0 +1,22 @@
+package org.collprod.bicingbcn.archive;
+
+/**
+ * Dynamic columns of the station history archive, see StationHistoryWriter. The order of the
+ * constants is the order of the column blocks in each chunk, do not change it
+ * */
+public enum StationColumn {
+	/**
+	 * Station id, which is also the key for the dictionary with the static attributes of the station  
+	 * */
+	ID,
+	/**
+	 * Update time in milliseconds
+	 * */
+	UPDATETIME,
+	BIKES,
+	SLOTS,
+	/**
+	 * Status code, see StationHistoryReader.statuses()
+	 * */
+	STATUS
+}
@@ -0,0 +1,114 @@
+package org.collprod.bicingbcn.archive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Constants and encodings shared by StationHistoryWriter and StationHistoryReader. 
+ * </p>
+ * <p>
+ * Columns are encoded as delta + run length: each value is replaced by its difference with the previous
+ * value, and runs of equal differences are stored as a pair (difference, run length) of varints, with the 
+ * difference zigzag encoded. As the rows of a chunk are sorted by station and then by time, the ids, bikes, slots
+ * and status of a station are constant for long runs, and its update times grow at the refresh rate of the 
+ * service, so most columns are a few pairs per station 
+ * </p>
+ * */
+final class StationHistoryFormat {
+	
+	/**
+	 * "BSHA" 
+	 * */
+	static final int MAGIC = 0x42534841;
+	static final int VERSION = 1;
+	
+	/**
+	 * Rows are split into chunks per hour of update time
+	 * */
+	static final long CHUNK_MILLIS = TimeUnit.HOURS.toMillis(1);
+	
+	/**
+	 * Number of blocks in a chunk: the dictionary and a block per column
+	 * */
+	static final int NUM_BLOCKS = 1 + StationColumn.values().length;
+	static final int DICTIONARY_BLOCK = 0;
+	
+	private StationHistoryFormat() {}
+	
+	static int blockIndex(StationColumn column) {
+		return 1 + column.ordinal();
+	}
+	
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Write value as an unsigned varint, 7 bits per byte 
+	 * */
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	/**
+	 * Write the first count values with delta + run length encoding 
+	 * */
+	static void writeDeltaRle(DataOutput out, long [] values, int count) throws IOException {
+		writeVarLong(out, count);
+		long previous = 0;
+		int i = 0;
+		while (i < count) {
+			long delta = values[i] - previous;
+			int end = i + 1;
+			while (end < count && values[end] - values[end - 1] == delta) {
+				end++;
+			}
+			writeVarLong(out, zigzag(delta));
+			writeVarLong(out, end - i);
+			previous = values[end - 1];
+			i = end;
+		}
+	}
+	
+	static long [] readDeltaRle(DataInput in) throws IOException {
+		int count = (int) readVarLong(in);
+		long [] values = new long[count];
+		long previous = 0;
+		int i = 0;
+		while (i < count) {
+			long delta = unzigzag(readVarLong(in));
+			long runLength = readVarLong(in);
+			if (runLength <= 0 || i + runLength > count) {
+				throw new IOException("Corrupt run length " + runLength);
+			}
+			for (long r = 0; r < runLength; r++) {
+				previous += delta;
+				values[i++] = previous;
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,320 @@
+package org.collprod.bicingbcn.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.collprod.bicingbcn.BicingStationDao;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Reads files written by StationHistoryWriter. The footers of all the chunks are read when the file is opened,
+ * so chunks outside of the requested time range are skipped without reading them, and a column is read by reading
+ * only its block in each chunk. The dictionary block of a chunk is only read when needed, i.e. for the STATUS
+ * column or for reading whole values.
+ * </p>
+ * <p>
+ * The codes in the STATUS column are translated from the dictionary of each chunk to a dictionary for the
+ * reader, so the code for a status is consistent across chunks, see statuses(). This class is not thread safe
+ * </p>
+ * */
+public class StationHistoryReader implements Closeable {
+
+	/**
+	 * Position and footer of a chunk
+	 * */
+	private static class Chunk {
+		/**
+		 * Position in the file of the first block
+		 * */
+		final long bodyPosition;
+		final ChunkFooter footer;
+		final int [] blockOffsets;
+		final int [] blockLengths;
+
+		Chunk(long bodyPosition, ChunkFooter footer, int [] blockOffsets, int [] blockLengths) {
+			this.bodyPosition = bodyPosition;
+			this.footer = footer;
+			this.blockOffsets = blockOffsets;
+			this.blockLengths = blockLengths;
+		}
+	}
+
+	/**
+	 * Dictionary block of a chunk
+	 * */
+	private static class Dictionary {
+		final List<String> statuses = new ArrayList<String>();
+		final Map<Integer, BicingStationDao.Value> stations = new HashMap<Integer, BicingStationDao.Value>();
+	}
+
+	private final File file;
+	private final RandomAccessFile input;
+	private final List<Chunk> chunks;
+
+	/**
+	 * Dictionary of statuses for the STATUS column, for all the chunks read so far
+	 * */
+	private final List<String> statuses;
+	private final Map<String, Integer> statusCodes;
+
+	/**
+	 * @throws IOException if the file cannot be read or was not written by StationHistoryWriter
+	 * */
+	public StationHistoryReader(File file) throws IOException {
+		this.file = file;
+		this.input = new RandomAccessFile(file, "r");
+		this.chunks = new ArrayList<Chunk>();
+		this.statuses = new ArrayList<String>();
+		this.statusCodes = new HashMap<String, Integer>();
+		try {
+			readChunkFooters();
+		} catch (IOException ioe) {
+			this.input.close();
+			throw ioe;
+		}
+	}
+
+	private void readChunkFooters() throws IOException {
+		if (this.input.readInt() != StationHistoryFormat.MAGIC) {
+			throw new IOException("Not a station history file: " + this.file);
+		}
+		int version = this.input.readInt();
+		if (version != StationHistoryFormat.VERSION) {
+			throw new IOException("Unsupported version " + version + " for station history file " + this.file);
+		}
+		long fileLength = this.input.length();
+		long position = this.input.getFilePointer();
+		while (position < fileLength) {
+			this.input.seek(position);
+			int chunkLength = this.input.readInt();
+			long bodyPosition = position + 4;
+			long chunkEnd = bodyPosition + chunkLength;
+			if (chunkEnd > fileLength) {
+				throw new IOException("Truncated chunk at position " + position + " of " + this.file);
+			}
+			this.input.seek(chunkEnd - 4);
+			int footerLength = this.input.readInt();
+			this.input.seek(chunkEnd - 4 - footerLength);
+			ChunkFooter footer = ChunkFooter.create(this.input.readInt(), this.input.readLong(), this.input.readLong(),
+					this.input.readInt(), this.input.readInt(), this.input.readInt(), this.input.readInt());
+			int [] blockOffsets = new int[StationHistoryFormat.NUM_BLOCKS];
+			int [] blockLengths = new int[StationHistoryFormat.NUM_BLOCKS];
+			for (int block = 0; block < StationHistoryFormat.NUM_BLOCKS; block++) {
+				blockOffsets[block] = this.input.readInt();
+				blockLengths[block] = this.input.readInt();
+			}
+			this.chunks.add(new Chunk(bodyPosition, footer, blockOffsets, blockLengths));
+			position = chunkEnd;
+		}
+	}
+
+	/**
+	 * @return the footers of the chunks in the file, in file order
+	 * */
+	public List<ChunkFooter> footers() {
+		List<ChunkFooter> footers = new ArrayList<ChunkFooter>(this.chunks.size());
+		for (Chunk chunk : this.chunks) {
+			footers.add(chunk.footer);
+		}
+		return footers;
+	}
+
+	/**
+	 * @return the statuses for the codes returned by readColumn() for the STATUS column, so the
+	 * status for code c is statuses().get(c)
+	 * */
+	public List<String> statuses() {
+		return this.statuses;
+	}
+
+	private DataInputStream readBlock(Chunk chunk, int block) throws IOException {
+		byte [] bytes = new byte[chunk.blockLengths[block]];
+		this.input.seek(chunk.bodyPosition + chunk.blockOffsets[block]);
+		this.input.readFully(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	private long [] readColumnBlock(Chunk chunk, StationColumn column) throws IOException {
+		return StationHistoryFormat.readDeltaRle(readBlock(chunk, StationHistoryFormat.blockIndex(column)));
+	}
+
+	private Dictionary readDictionary(Chunk chunk) throws IOException {
+		DataInputStream block = readBlock(chunk, StationHistoryFormat.DICTIONARY_BLOCK);
+		Dictionary dictionary = new Dictionary();
+		long numStatuses = StationHistoryFormat.readVarLong(block);
+		for (long i = 0; i < numStatuses; i++) {
+			dictionary.statuses.add(block.readUTF());
+		}
+		long numStations = StationHistoryFormat.readVarLong(block);
+		for (long i = 0; i < numStations; i++) {
+			int id = (int) StationHistoryFormat.readVarLong(block);
+			double latitude = block.readDouble();
+			double longitude = block.readDouble();
+			String street = block.readUTF();
+			int height = (int) StationHistoryFormat.unzigzag(StationHistoryFormat.readVarLong(block));
+			int streetNumber = (int) StationHistoryFormat.unzigzag(StationHistoryFormat.readVarLong(block));
+			int numNearbyStations = (int) StationHistoryFormat.readVarLong(block);
+			ArrayList<Integer> nearbyStationList = new ArrayList<Integer>(numNearbyStations);
+			for (int j = 0; j < numNearbyStations; j++) {
+				nearbyStationList.add((int) StationHistoryFormat.unzigzag(StationHistoryFormat.readVarLong(block)));
+			}
+			// dynamic fields are not used
+			dictionary.stations.put(id, BicingStationDao.Value.create(0, id, latitude, longitude, street, height,
+					streetNumber, nearbyStationList, "", 0, 0));
+		}
+		return dictionary;
+	}
+
+	/**
+	 * @return the code of status in the dictionary of this reader
+	 * */
+	private int statusCode(String status) {
+		Integer code = this.statusCodes.get(status);
+		if (code == null) {
+			code = this.statuses.size();
+			this.statuses.add(status);
+			this.statusCodes.put(status, code);
+		}
+		return code;
+	}
+
+	/**
+	 * @return mask of the rows of chunk with update time in [minUpdatetime, maxUpdatetime], or null
+	 * if all the rows are in that range
+	 * */
+	private boolean [] rowsInRange(Chunk chunk, long minUpdatetime, long maxUpdatetime) throws IOException {
+		if (chunk.footer.within(minUpdatetime, maxUpdatetime)) {
+			return null;
+		}
+		long [] updatetimes = readColumnBlock(chunk, StationColumn.UPDATETIME);
+		boolean [] inRange = new boolean[updatetimes.length];
+		for (int i = 0; i < updatetimes.length; i++) {
+			inRange[i] = updatetimes[i] >= minUpdatetime && updatetimes[i] <= maxUpdatetime;
+		}
+		return inRange;
+	}
+
+	/**
+	 * @return the values of column for the rows with update time in [minUpdatetime, maxUpdatetime], sorted
+	 * by chunk, then station id and then update time
+	 * */
+	public long [] readColumn(StationColumn column, long minUpdatetime, long maxUpdatetime) throws IOException {
+		long [] result = new long[0];
+		int resultSize = 0;
+		for (Chunk chunk : this.chunks) {
+			if (! chunk.footer.overlaps(minUpdatetime, maxUpdatetime)) {
+				continue;
+			}
+			long [] values = readColumnBlock(chunk, column);
+			if (column == StationColumn.STATUS) {
+				List<String> chunkStatuses = readDictionary(chunk).statuses;
+				for (int i = 0; i < values.length; i++) {
+					values[i] = statusCode(chunkStatuses.get((int) values[i]));
+				}
+			}
+			boolean [] inRange = rowsInRange(chunk, minUpdatetime, maxUpdatetime);
+			if (resultSize + values.length > result.length) {
+				result = Arrays.copyOf(result, Math.max(result.length * 2, resultSize + values.length));
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (inRange == null || inRange[i]) {
+					result[resultSize++] = values[i];
+				}
+			}
+		}
+		return Arrays.copyOf(result, resultSize);
+	}
+
+	/**
+	 * @return the values for the rows with update time in [minUpdatetime, maxUpdatetime], sorted
+	 * by chunk, then station id and then update time
+	 * */
+	public List<BicingStationDao.Value> readValues(long minUpdatetime, long maxUpdatetime) throws IOException {
+		List<BicingStationDao.Value> result = new ArrayList<BicingStationDao.Value>();
+		for (Chunk chunk : this.chunks) {
+			if (! chunk.footer.overlaps(minUpdatetime, maxUpdatetime)) {
+				continue;
+			}
+			Dictionary dictionary = readDictionary(chunk);
+			long [] ids = readColumnBlock(chunk, StationColumn.ID);
+			long [] updatetimes = readColumnBlock(chunk, StationColumn.UPDATETIME);
+			long [] bikes = readColumnBlock(chunk, StationColumn.BIKES);
+			long [] slots = readColumnBlock(chunk, StationColumn.SLOTS);
+			long [] statuses = readColumnBlock(chunk, StationColumn.STATUS);
+			for (int i = 0; i < ids.length; i++) {
+				if (updatetimes[i] < minUpdatetime || updatetimes[i] > maxUpdatetime) {
+					continue;
+				}
+				BicingStationDao.Value station = dictionary.stations.get((int) ids[i]);
+				if (station == null) {
+					throw new IOException("Station " + ids[i] + " not found in the dictionary of the chunk");
+				}
+				result.add(BicingStationDao.Value.create(updatetimes[i], station.id(), station.latitude(),
+						station.longitude(), station.street(), station.height(), station.streetNumber(),
+						station.nearbyStationList(), dictionary.statuses.get((int) statuses[i]),
+						(int) slots[i], (int) bikes[i]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the concatenation of the result of readColumn() for each of the files, e.g. for a file
+	 * per month. The codes for the STATUS column are for the dictionary in statuses
+	 * */
+	public static long [] readColumn(List<File> files, StationColumn column, long minUpdatetime, long maxUpdatetime,
+			List<String> statuses) throws IOException {
+		List<long []> fileValues = Lists.newArrayListWithCapacity(files.size());
+		int totalSize = 0;
+		Map<String, Integer> statusCodes = new HashMap<String, Integer>();
+		for (String status : statuses) {
+			statusCodes.put(status, statusCodes.size());
+		}
+		for (File file : files) {
+			StationHistoryReader reader = new StationHistoryReader(file);
+			try {
+				long [] values = reader.readColumn(column, minUpdatetime, maxUpdatetime);
+				if (column == StationColumn.STATUS) {
+					// translate to the common dictionary
+					for (int i = 0; i < values.length; i++) {
+						String status = reader.statuses().get((int) values[i]);
+						Integer code = statusCodes.get(status);
+						if (code == null) {
+							code = statuses.size();
+							statuses.add(status);
+							statusCodes.put(status, code);
+						}
+						values[i] = code;
+					}
+				}
+				fileValues.add(values);
+				totalSize += values.length;
+			} finally {
+				reader.close();
+			}
+		}
+		long [] result = new long[totalSize];
+		int position = 0;
+		for (long [] values : fileValues) {
+			System.arraycopy(values, 0, result, position, values.length);
+			position += values.length;
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.input.close();
+	}
+}
@@ -0,0 +1,264 @@
+package org.collprod.bicingbcn.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.collprod.bicingbcn.BicingStationDao;
+
+/**
+ * <p>
+ * Writes BicingStationDao.Value objects in a columnar format, so the history of the stations can be scanned
+ * without parsing the XML of each snapshot again, see StationHistoryReader. The file is:
+ * <ul>
+ * 	<li>Header: MAGIC and VERSION, as ints</li>
+ * 	<li>A sequence of chunks, each one with the rows for an hour of update time. The rows of a chunk are sorted
+ * by station id and then by update time. Each chunk is:
+ * 		<ul>
+ * 			<li>Length in bytes of the rest of the chunk, as an int</li>
+ * 			<li>Dictionary block: the status strings of the chunk, which index is the value in the STATUS column,
+ * followed by the static attributes of each station: id, latitude, longitude, street, height, street number and
+ * nearby stations</li>
+ * 			<li>A block per StationColumn, encoded with delta + run length, see StationHistoryFormat</li>
+ * 			<li>Footer: a ChunkFooter with the number of rows and the min / max of update time, bikes and slots,
+ * followed by the offset and length of each block</li>
+ * 			<li>Length of the footer as an int, so the footer can be read by seeking from the end of the chunk</li>
+ * 		</ul>
+ * 	</li>
+ * </ul>
+ * The static attributes of a station are stored once per chunk, taken from its last value in the chunk
+ * </p>
+ * <p>
+ * Rows are buffered in primitive arrays until a row for a different hour arrives, or the writer is closed.
+ * So the values should be appended approximately in time order, otherwise there will be several chunks for
+ * the same hour, which is still correct but less compact. This class is not thread safe
+ * </p>
+ * */
+public class StationHistoryWriter implements Closeable {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final DataOutputStream out;
+
+	/**
+	 * Hour of the buffered rows, since the epoch
+	 * */
+	private long currentChunk;
+	private int rows;
+	private long [] ids;
+	private long [] updatetimes;
+	private long [] bikes;
+	private long [] slots;
+	private long [] statuses;
+
+	/**
+	 * Dictionaries for the buffered rows
+	 * */
+	private final Map<String, Integer> statusCodes;
+	private final Map<Integer, BicingStationDao.Value> stations;
+
+	/**
+	 * @param out stream to write to, which is closed by close()
+	 * */
+	public StationHistoryWriter(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.writeInt(StationHistoryFormat.MAGIC);
+		this.out.writeInt(StationHistoryFormat.VERSION);
+		this.currentChunk = Long.MIN_VALUE;
+		this.rows = 0;
+		this.ids = new long[INITIAL_CAPACITY];
+		this.updatetimes = new long[INITIAL_CAPACITY];
+		this.bikes = new long[INITIAL_CAPACITY];
+		this.slots = new long[INITIAL_CAPACITY];
+		this.statuses = new long[INITIAL_CAPACITY];
+		this.statusCodes = new LinkedHashMap<String, Integer>();
+		this.stations = new LinkedHashMap<Integer, BicingStationDao.Value>();
+	}
+
+	/**
+	 * @return a writer for a new file, overwriting file if it exists
+	 * */
+	public static StationHistoryWriter create(File file) throws IOException {
+		return new StationHistoryWriter(new BufferedOutputStream(new FileOutputStream(file)));
+	}
+
+	public void append(BicingStationDao.Value value) throws IOException {
+		long chunk = value.updatetime() / StationHistoryFormat.CHUNK_MILLIS;
+		if (chunk != this.currentChunk) {
+			flushChunk();
+			this.currentChunk = chunk;
+		}
+		if (this.rows == this.ids.length) {
+			int capacity = this.rows * 2;
+			this.ids = Arrays.copyOf(this.ids, capacity);
+			this.updatetimes = Arrays.copyOf(this.updatetimes, capacity);
+			this.bikes = Arrays.copyOf(this.bikes, capacity);
+			this.slots = Arrays.copyOf(this.slots, capacity);
+			this.statuses = Arrays.copyOf(this.statuses, capacity);
+		}
+		Integer statusCode = this.statusCodes.get(value.status());
+		if (statusCode == null) {
+			statusCode = this.statusCodes.size();
+			this.statusCodes.put(value.status(), statusCode);
+		}
+		this.ids[this.rows] = value.id();
+		this.updatetimes[this.rows] = value.updatetime();
+		this.bikes[this.rows] = value.bikes();
+		this.slots[this.rows] = value.slots();
+		this.statuses[this.rows] = statusCode;
+		this.rows++;
+		this.stations.put(value.id(), value);
+	}
+
+	public void append(Iterable<BicingStationDao.Value> values) throws IOException {
+		for (BicingStationDao.Value value : values) {
+			append(value);
+		}
+	}
+
+	/**
+	 * @return a copy of the first rows values of column, in the order of rowOrder
+	 * */
+	private static long [] sorted(long [] column, Integer [] rowOrder) {
+		long [] sortedColumn = new long[rowOrder.length];
+		for (int i = 0; i < rowOrder.length; i++) {
+			sortedColumn[i] = column[rowOrder[i]];
+		}
+		return sortedColumn;
+	}
+
+	private static long min(long [] column) {
+		long min = Long.MAX_VALUE;
+		for (long value : column) {
+			min = Math.min(min, value);
+		}
+		return min;
+	}
+
+	private static long max(long [] column) {
+		long max = Long.MIN_VALUE;
+		for (long value : column) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	private void writeDictionary(DataOutputStream block) throws IOException {
+		StationHistoryFormat.writeVarLong(block, this.statusCodes.size());
+		for (String status : this.statusCodes.keySet()) {
+			block.writeUTF(status);
+		}
+		StationHistoryFormat.writeVarLong(block, this.stations.size());
+		for (BicingStationDao.Value station : this.stations.values()) {
+			StationHistoryFormat.writeVarLong(block, station.id());
+			block.writeDouble(station.latitude());
+			block.writeDouble(station.longitude());
+			block.writeUTF(station.street());
+			StationHistoryFormat.writeVarLong(block, StationHistoryFormat.zigzag(station.height()));
+			StationHistoryFormat.writeVarLong(block, StationHistoryFormat.zigzag(station.streetNumber()));
+			StationHistoryFormat.writeVarLong(block, station.nearbyStationList().size());
+			for (Integer nearbyStation : station.nearbyStationList()) {
+				StationHistoryFormat.writeVarLong(block, StationHistoryFormat.zigzag(nearbyStation));
+			}
+		}
+	}
+
+	/**
+	 * Write the buffered rows as a chunk
+	 * */
+	private void flushChunk() throws IOException {
+		if (this.rows == 0) {
+			return;
+		}
+		// sort by station and then by update time
+		Integer [] rowOrder = new Integer[this.rows];
+		for (int i = 0; i < this.rows; i++) {
+			rowOrder[i] = i;
+		}
+		Arrays.sort(rowOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer row1, Integer row2) {
+				long[] ids = StationHistoryWriter.this.ids;
+				long[] updatetimes = StationHistoryWriter.this.updatetimes;
+				if (ids[row1] != ids[row2]) {
+					return ids[row1] < ids[row2] ? -1 : 1;
+				}
+				return updatetimes[row1] < updatetimes[row2] ? -1 : (updatetimes[row1] == updatetimes[row2] ? 0 : 1);
+			}
+		});
+		Map<StationColumn, long []> columns = new HashMap<StationColumn, long[]>();
+		columns.put(StationColumn.ID, sorted(this.ids, rowOrder));
+		columns.put(StationColumn.UPDATETIME, sorted(this.updatetimes, rowOrder));
+		columns.put(StationColumn.BIKES, sorted(this.bikes, rowOrder));
+		columns.put(StationColumn.SLOTS, sorted(this.slots, rowOrder));
+		columns.put(StationColumn.STATUS, sorted(this.statuses, rowOrder));
+
+		// blocks
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream bodyOut = new DataOutputStream(body);
+		int [] blockOffsets = new int[StationHistoryFormat.NUM_BLOCKS];
+		int [] blockLengths = new int[StationHistoryFormat.NUM_BLOCKS];
+		blockOffsets[StationHistoryFormat.DICTIONARY_BLOCK] = bodyOut.size();
+		writeDictionary(bodyOut);
+		blockLengths[StationHistoryFormat.DICTIONARY_BLOCK] = bodyOut.size();
+		for (StationColumn column : StationColumn.values()) {
+			int block = StationHistoryFormat.blockIndex(column);
+			blockOffsets[block] = bodyOut.size();
+			StationHistoryFormat.writeDeltaRle(bodyOut, columns.get(column), this.rows);
+			blockLengths[block] = bodyOut.size() - blockOffsets[block];
+		}
+
+		// footer
+		int footerOffset = bodyOut.size();
+		long [] updatetimesColumn = columns.get(StationColumn.UPDATETIME);
+		long [] bikesColumn = columns.get(StationColumn.BIKES);
+		long [] slotsColumn = columns.get(StationColumn.SLOTS);
+		bodyOut.writeInt(this.rows);
+		bodyOut.writeLong(min(updatetimesColumn));
+		bodyOut.writeLong(max(updatetimesColumn));
+		bodyOut.writeInt((int) min(bikesColumn));
+		bodyOut.writeInt((int) max(bikesColumn));
+		bodyOut.writeInt((int) min(slotsColumn));
+		bodyOut.writeInt((int) max(slotsColumn));
+		for (int block = 0; block < StationHistoryFormat.NUM_BLOCKS; block++) {
+			bodyOut.writeInt(blockOffsets[block]);
+			bodyOut.writeInt(blockLengths[block]);
+		}
+		bodyOut.writeInt(bodyOut.size() - footerOffset);
+		bodyOut.flush();
+
+		this.out.writeInt(body.size());
+		body.writeTo(this.out);
+
+		this.rows = 0;
+		this.statusCodes.clear();
+		this.stations.clear();
+	}
+
+	/**
+	 * Write the rows for the current hour to the underlying stream, and flush it
+	 * */
+	public void flush() throws IOException {
+		flushChunk();
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			this.out.close();
+		}
+	}
+}
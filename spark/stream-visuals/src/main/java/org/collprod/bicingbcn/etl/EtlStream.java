@@ -2,41 +2,44 @@ package org.collprod.bicingbcn.etl;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.annotation.Nullable;
+import kafka.serializer.DefaultDecoder;
+import kafka.serializer.StringDecoder;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.spark.api.java.function.FlatMapFunction;
-import org.apache.spark.api.java.function.Function2;
-import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.Duration;
 import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaPairReceiverInputDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka.KafkaUtils;
+import org.collprod.bicingbcn.BicingKryoRegistrator;
 import org.collprod.bicingbcn.BicingStationDao;
-import org.collprod.bicingbcn.BicingStationDao.Value;
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.collprod.bicingbcn.StationReading;
+import org.collprod.bicingbcn.StationSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import scala.Tuple2;
 
 import com.atlassian.fugue.Pair;
-import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
-import com.google.common.primitives.Longs;
 
 /**
  * 
@@ -74,236 +77,166 @@ public class EtlStream {
 	}
 	
 	/**
-	Computing the new values for the fact table and the time dimension, and inserting in Phoenix. 
-	Using a state per station, the state is just an integer with the number of bikes in the station for 
-	the last batch, and its used to compute the number of bikes lent and returned 
+	Computing the facts for the new station readings, using a state per station. The state is a StationState 
+	with the number of bikes in the station and the update time for its last reading, and its used to compute 
+	the number of bikes lent and returned. Computing the state has no side effects, the facts are written
+	to Phoenix by updateBicingStar() or updateBicingBigTable()
 	
 	NOTE: trusting in Kafka ordering warranties, also ordering by timetag in each batch RDD		
-	NOTE: due to Spark Streaming design there is some constraints in the size of the batches used for
-		  checkpointed streams like those using updateStateByKey like this one, which implies a batch 
-		  size of at least 10 seconds (http://spark.apache.org/docs/latest/streaming-programming-guide.html#persistence
+	NOTE: the state is kept in a StationStateStore, that only updates the state of the stations
+		  with new readings in each batch. Like updateStateByKey, the state is checkpointed every 
+		  stateCheckpointInterval batches, which should correspond to at least 10 seconds 
+		  (http://spark.apache.org/docs/latest/streaming-programming-guide.html#persistence
 		  "For DStreams that must be checkpointed (that is, DStreams created by updateStateByKey and 
 		  reduceByKeyAndWindow with inverse function), the checkpoint interval of the DStream is by 
 		  default set to a multiple of the DStream’s sliding interval such that its at least 10 seconds.")
+		  Unlike updateStateByKey, the state is not recovered after a restart, see StationStateStore
+	 */
+	private static JavaDStream<StationFact> computeStationFacts(int statePartitions, int stateCheckpointInterval,
+								  JavaPairDStream<Integer, StationReading> stationStatePairs) {
+		return new StationStateStore(statePartitions, stateCheckpointInterval).updateState(stationStatePairs);
+	}
+	
+	/**
+	Inserting the facts in the fact table BICING_FACT and the time dimension BICING_DIM_TIME. Each partition 
+	of the facts is written with a single connection borrowed from the pool of the executor, and a single
+	PhoenixWriter.BatchWriter. The rows are upserts with the station and the timetag as primary key, and 
+	there is at most one fact per station and timetag, computed deterministically from the state, so writing 
+	a partition again after a task failure has no additional effect. After a restart of the driver the state
+	is lost, so facts for readings delivered again are written without bikes lent or returned, see StationFact
 	 */
 	private static void updateBicingStar(final Broadcast<String> phoenixJdbcDriver, final Broadcast<String> phoenixDbUrl, 
-								  final Broadcast<PhoenixWriter> phoenixWriter, JavaPairDStream<Integer, BicingStationDao.Value> stationStatePairs) {
+								  final Broadcast<Integer> phoenixMaxConnections, final Broadcast<Integer> phoenixCommitSize, 
+								  final Broadcast<PhoenixWriter> phoenixWriter, JavaDStream<StationFact> stationFacts) {
 		
-		JavaPairDStream<Integer, Integer> stateUpdates = stationStatePairs.updateStateByKey(new Function2<List<BicingStationDao.Value>, Optional<Integer>, Optional<Integer>>() {
-
+		stationFacts.foreachRDD(new Function<JavaRDD<StationFact>, Void>() {
+			// generated by Eclipse
 			private static final long serialVersionUID = 1869498697659731642L;
 
-			/**
-			 * @param lastBikeCountState bike count for the most recent station info in the last batch
-			 * @param stationsInfo station info instances for the station corresponding to this key, for this batch
-			 * 
-			 * @return number of stations in the most recent station info of this batch
-			 * 
-			 * */
 			@Override
-			public Optional<Integer> call(List<BicingStationDao.Value> stationsInfo, Optional<Integer> lastBikeCountState) throws Exception {				
-				// Prepare DB connection
-					// Register JDBC driver
-				try {
-					Class.forName(phoenixJdbcDriver.getValue());
-				} catch (ClassNotFoundException cne) {
-					LOGGER.error("Error loading Phoenix driver {}", ExceptionUtils.getFullStackTrace(cne));
-					// FIXME: use custom bicing exception class
-					throw new RuntimeException(cne);
-				}
-				
-				// get last state
-				int lastBikeCount = lastBikeCountState.or(-1);
-				
-				// sort by time stamp and generate a batch of upserts
-				List<BicingStationDao.Value> stationsInfoByUpdateTime = new Ordering<BicingStationDao.Value>() {
+			public Void call(JavaRDD<StationFact> stationFactsRDD) throws Exception {
+				stationFactsRDD.foreachPartition(new VoidFunction<Iterator<StationFact>>() {
+					// generated by Eclipse
+					private static final long serialVersionUID = -2239464620718012826L;
 
 					@Override
-					public int compare(@Nullable Value left, @Nullable Value right) {
-						return Longs.compare(left.updatetime(), right.updatetime());
-					}
-				}.sortedCopy(stationsInfo);
-				
-				Connection dbConnection = null;
-				PreparedStatement stmtBicingFact = null;
-				PreparedStatement stmtBicingDimTime = null;
-				// PreparedStatement stmtCheckExistsTimetagDimTime = null;
-				
-				try  {
-					// http://docs.oracle.com/javase/tutorial/jdbc/basics/prepared.html
-					dbConnection = DriverManager.getConnection(phoenixDbUrl.getValue());
-					dbConnection.setAutoCommit(true);
-
-					stmtBicingFact = phoenixWriter.getValue().buildBicingFactStatement(dbConnection); 
-					stmtBicingDimTime = phoenixWriter.getValue().buildBicingDimTime(dbConnection);
-					// stmtCheckExistsTimetagDimTime = phoenixWriter.getValue().buildCheckExistsTimetagDimTime(dbConnection);
-								
-					for (BicingStationDao.Value stationInfo : stationsInfoByUpdateTime) {				
-						// generate and execute an upsert for BICING_FACT
-						LOGGER.info("Updating table BICING_FACT");
-						phoenixWriter.getValue().loadBicingFactStatement(stationInfo, lastBikeCount, stmtBicingFact);							
-						stmtBicingFact.executeUpdate();
-						
-						// generate upsert for BICING_DIM_TIME
-						// Note the same timetag will be present for several stations. The update is deterministic
-						// so we perform it as many times as needed because we assume that the cost of checking
-						// whether it was performed or not and only updating if not is higher, because several
-						// nodes of the spark cluster will be processing different stationInfo values for the same 
-						// timetag and different stations at the same time, as these will correspond to the 
-						// same source bicing XML						
-						LOGGER.info("Updating table BICING_DIM_TIME");
-						phoenixWriter.getValue().loadBicingDimTimeStatement(stationInfo, stmtBicingDimTime);
-						stmtBicingDimTime.executeUpdate();
-						/*
-						 * Alternative that only updates if needed
-						 * 
-						 * if (EtlStream.checkExistsTimetagDimTime(stationInfo, stmtCheckExistsTimetagDimTime)) {
-						 
-						LOGGER.info("Row for timetag {} in BICING_DIM_TIME already exists", stationInfo.updatetime());
-						} else {
-							EtlStream.loadBicingDimTimeStatement(stationInfo, stmtBicingDimTime);
-							stmtBicingDimTime.executeUpdate();
-						}*/
+					public void call(Iterator<StationFact> stationsInfo) throws Exception {
+						if (! stationsInfo.hasNext()) {
+							// don't borrow a connection for empty partitions
+							return;
+						}
+						// Borrow a DB connection from the pool of this executor, with cached prepared statements
+						PhoenixConnectionPool.PooledConnection pooledConnection = PhoenixConnectionPool.get(phoenixJdbcDriver.getValue(), 
+								phoenixDbUrl.getValue(), phoenixMaxConnections.getValue()).borrow();
 						
-						// Commit to database both updates
-						dbConnection.commit();
+						try  {
+							// auto commit is disabled, the rows are committed every commit size rows and when the writer is closed
+							PhoenixWriter.BatchWriter batchWriter = phoenixWriter.getValue().newBatchWriter(pooledConnection, 
+									phoenixCommitSize.getValue());
+							
+							while (stationsInfo.hasNext()) {
+								StationFact stationInfo = stationsInfo.next();
+								// generate an upsert for BICING_FACT
+								batchWriter.addBicingFact(stationInfo);
+								
+								// generate upsert for BICING_DIM_TIME
+								// Note the same timetag will be present for several stations. The update is deterministic
+								// so we perform it as many times as needed because we assume that the cost of checking
+								// whether it was performed or not and only updating if not is higher, because several
+								// nodes of the spark cluster will be processing different stationInfo values for the same 
+								// timetag and different stations at the same time, as these will correspond to the 
+								// same source bicing XML. The batch writer only performs it once per timetag and batch						
+								batchWriter.addBicingDimTime(stationInfo);
+							}
+							batchWriter.close();
+						} catch(SQLException se)  {
+							LOGGER.error("Error updating tables BICING_FACT and BICING_DIM_TIME, {}", ExceptionUtils.getStackTrace(se));
+							// don't reuse a connection in an unknown state
+							pooledConnection.invalidate();
+							// FIXME: use custom bicing exception class
+							throw new RuntimeException(se);
+						}
+						catch (RuntimeException re) {
+							LOGGER.error("Error updating tables BICING_FACT and BICING_DIM_TIME, {}", ExceptionUtils.getStackTrace(re));
+							pooledConnection.invalidate();
+							throw re;
+						}
 						
-						// update state
-						lastBikeCount = stationInfo.bikes();
-					}
-				} catch(SQLException se)  {
-					LOGGER.error("Error updating tables BICING_FACT and BICING_DIM_TIME for stationInfo {}, {}", stationsInfo, ExceptionUtils.getStackTrace(se));
-					// FIXME: use custom bicing exception class
-					throw new RuntimeException(se);
-				}
-				
-				finally {
-					// Close DB resources
-					if (stmtBicingFact != null) {
-						stmtBicingFact.close();
-					}
-					/*
-					if (stmtCheckExistsTimetagDimTime != null) {
-						stmtCheckExistsTimetagDimTime.close();
-					} */
-					if (stmtBicingDimTime != null) {
-						stmtBicingDimTime.close();
-					}
-					if (dbConnection != null) {
-						dbConnection.close();
+						finally {
+							// Return the connection to the pool, the statements are closed with the connection
+							pooledConnection.release();
+						}
 					}
-				}
-				 
-				return Optional.of(lastBikeCount);
+				});
+				return null;
 			}	
 		});
-		
-		stateUpdates.print(); // force evaluation, this is essential for this code to have side effects!
 	}
 	
 	/**
-	Computing the new values for the fact table and the time dimension, and inserting in Phoenix. 
-	Using a state per station, the state is just an integer with the number of bikes in the station for 
-	the last batch, and its used to compute the number of bikes lent and returned 
-	
-	NOTE: trusting in Kafka ordering warranties, also ordering by timetag in each batch RDD		
-	NOTE: due to Spark Streaming design there is some constraints in the size of the batches used for
-		  checkpointed streams like those using updateStateByKey like this one, which implies a batch 
-		  size of at least 10 seconds (http://spark.apache.org/docs/latest/streaming-programming-guide.html#persistence
-		  "For DStreams that must be checkpointed (that is, DStreams created by updateStateByKey and 
-		  reduceByKeyAndWindow with inverse function), the checkpoint interval of the DStream is by 
-		  default set to a multiple of the DStream’s sliding interval such that its at least 10 seconds.")
+	Inserting the facts in the table BICING, joined with the station dimension. Each partition of the facts 
+	is written with a single connection borrowed from the pool of the executor, and a single 
+	PhoenixWriter.BatchWriter. The rows are upserts with the station and the timetag as primary key, and 
+	there is at most one fact per station and timetag, computed deterministically from the state, so writing 
+	a partition again after a task failure has no additional effect. After a restart of the driver the state
+	is lost, so facts for readings delivered again are written without bikes lent or returned, see StationFact
 	 */
 	private static void updateBicingBigTable(final Broadcast<String> phoenixJdbcDriver, final Broadcast<String> phoenixDbUrl, 
-								  final Broadcast<PhoenixWriter> phoenixWriter, JavaPairDStream<Integer, BicingStationDao.Value> stationStatePairs) {
+								  final Broadcast<Integer> phoenixMaxConnections, final Broadcast<Integer> phoenixCommitSize, 
+								  final Broadcast<PhoenixWriter> phoenixWriter, JavaDStream<StationFact> stationFacts) {
 		
-		JavaPairDStream<Integer, Integer> stateUpdates = stationStatePairs.updateStateByKey(new Function2<List<BicingStationDao.Value>, Optional<Integer>, Optional<Integer>>() {
-
-			private static final long serialVersionUID = 1869498697659731642L;
+		stationFacts.foreachRDD(new Function<JavaRDD<StationFact>, Void>() {
+			// generated by Eclipse
+			private static final long serialVersionUID = 3012436741208934575L;
 
-			/**
-			 * @param lastBikeCountState bike count for the most recent station info in the last batch
-			 * @param stationsInfo station info instances for the station corresponding to this key, for this batch
-			 * 
-			 * @return number of stations in the most recent station info of this batch
-			 * 
-			 * */
 			@Override
-			public Optional<Integer> call(List<BicingStationDao.Value> stationsInfo, Optional<Integer> lastBikeCountState) throws Exception {				
-				// Prepare DB connection
-					// Register JDBC driver
-				try {
-					Class.forName(phoenixJdbcDriver.getValue());
-				} catch (ClassNotFoundException cne) {
-					LOGGER.error("Error loading Phoenix driver {}", ExceptionUtils.getFullStackTrace(cne));
-					// FIXME: use custom bicing exception class
-					throw new RuntimeException(cne);
-				}
-				
-				// get last state
-				int lastBikeCount = lastBikeCountState.or(-1);
-				
-				// sort by time stamp and generate a batch of upserts
-				List<BicingStationDao.Value> stationsInfoByUpdateTime = new Ordering<BicingStationDao.Value>() {
+			public Void call(JavaRDD<StationFact> stationFactsRDD) throws Exception {
+				stationFactsRDD.foreachPartition(new VoidFunction<Iterator<StationFact>>() {
+					// generated by Eclipse
+					private static final long serialVersionUID = 5574934086524640781L;
 
 					@Override
-					public int compare(@Nullable Value left, @Nullable Value right) {
-						return Longs.compare(left.updatetime(), right.updatetime());
-					}
-				}.sortedCopy(stationsInfo);
+					public void call(Iterator<StationFact> stationsInfo) throws Exception {
+						if (! stationsInfo.hasNext()) {
+							// don't borrow a connection for empty partitions
+							return;
+						}
+						// Borrow a DB connection from the pool of this executor, with cached prepared statements
+						PhoenixConnectionPool.PooledConnection pooledConnection = PhoenixConnectionPool.get(phoenixJdbcDriver.getValue(), 
+								phoenixDbUrl.getValue(), phoenixMaxConnections.getValue()).borrow();
 				
-				Connection dbConnection = null;
-				PreparedStatement stmtGetStationInfo = null;
-				PreparedStatement stmtUpsertBicingBigTableStatement= null;
-		
-				try  {
-					// http://docs.oracle.com/javase/tutorial/jdbc/basics/prepared.html
-					dbConnection = DriverManager.getConnection(phoenixDbUrl.getValue());
-					dbConnection.setAutoCommit(true);
-					
-					stmtGetStationInfo = phoenixWriter.getValue().buildLookupStationStatement(dbConnection);
-					stmtUpsertBicingBigTableStatement  = phoenixWriter.getValue().buildBicingBigTableStatement(dbConnection);
-					boolean upsertOk; 
-								
-					for (BicingStationDao.Value stationInfo : stationsInfoByUpdateTime) {
-						// generate and execute an upsert for BICING
-						LOGGER.info("Updating table BICING");
-						
-						upsertOk = phoenixWriter.getValue().loadBicingBigTableStatement(stationInfo, lastBikeCount, stmtUpsertBicingBigTableStatement, stmtGetStationInfo);
-						if (upsertOk) {
-							stmtUpsertBicingBigTableStatement.executeUpdate();
-												
-							// Commit update to database 
-							dbConnection.commit();
+						try  {
+							// auto commit is disabled, the rows are committed every commit size rows and when the writer is closed
+							PhoenixWriter.BatchWriter batchWriter = phoenixWriter.getValue().newBatchWriter(pooledConnection, 
+									phoenixCommitSize.getValue());
+							
+							while (stationsInfo.hasNext()) {
+								// generate an upsert for BICING, skipped if the row cannot be created
+								batchWriter.addBicing(stationsInfo.next());
+							}
+							batchWriter.close();
+						} catch(SQLException se)  {
+							LOGGER.error("Error updating table BICING, {}", ExceptionUtils.getStackTrace(se));
+							// don't reuse a connection in an unknown state
+							pooledConnection.invalidate();
+							// FIXME: use custom bicing exception class
+							throw new RuntimeException(se);
+						}
+						catch (RuntimeException re) {
+							LOGGER.error("Error updating table BICING, {}", ExceptionUtils.getStackTrace(re));
+							pooledConnection.invalidate();
+							throw re;
 						}
 						
-						// update state
-						lastBikeCount = stationInfo.bikes();
-					}
-				} catch(SQLException se)  {
-					LOGGER.error("Error updating tables BICING_FACT and BICING_DIM_TIME for stationInfo {}, {}", stationsInfo, ExceptionUtils.getStackTrace(se));
-					// FIXME: use custom bicing exception class
-					throw new RuntimeException(se);
-				}
-				
-				finally {
-					// Close DB resources
-					if (stmtGetStationInfo != null) {
-						stmtGetStationInfo.close();
-					}
-					if (stmtUpsertBicingBigTableStatement != null) {
-						stmtUpsertBicingBigTableStatement.close();
-					}
-					if (dbConnection != null) {
-						dbConnection.close();
+						finally {
+							// Return the connection to the pool, the statements are closed with the connection
+							pooledConnection.release();
+						}
 					}
-				}
-				 
-				return Optional.of(lastBikeCount);
+				});
+				return null;
 			}	
 		});
-		
-		stateUpdates.print(); // force evaluation, this is essential for this code to have side effects!
 	}
 	
 	/**
@@ -313,11 +246,14 @@ public class EtlStream {
 	 * */
 	public static void run(PropertiesConfiguration config) {
 		// Connect to Spark cluster
-		JavaStreamingContext jssc = new JavaStreamingContext(config.getString("spark.master"), 
-				config.getString("spark.app_name"), 												
+		// Kryo serialization for StationSnapshot, see BicingKryoRegistrator
+		SparkConf sparkConf = BicingKryoRegistrator.configure(new SparkConf()
+				.setMaster(config.getString("spark.master"))
+				.setAppName(config.getString("spark.app_name")));
+		JavaStreamingContext jssc = new JavaStreamingContext(sparkConf, 
 				new Duration(config.getLong("spark.batch_duration")));
 
-		// Checkpointing is required when using updateStateByKey
+		// Checkpointing is required for the state of the stations, see StationStateStore
 		jssc.checkpoint(config.getString("spark.checkpoint_dir"));
 		
 		// Connect to Kafka
@@ -329,19 +265,26 @@ public class EtlStream {
 		 *  check that the partition key is datasource + timestamp.toString(), e.g. test_bicing_station_data1404244632)
 		 * - Second element is the message itself
 		 */
-		JavaPairReceiverInputDStream<String,String> kafkaStream = KafkaUtils.createStream(jssc, 
-				config.getString("kafka.zookeeper.quorum"),
-				config.getString("kafka.groupid"),
-				kafkaTopics);
+		// messages are framed by PayloadCodec, so they are read as byte[]
+		Map<String, String> kafkaParams = new HashMap<String, String>();
+		kafkaParams.put("zookeeper.connect", config.getString("kafka.zookeeper.quorum"));
+		kafkaParams.put("group.id", config.getString("kafka.groupid"));
+		kafkaParams.put("zookeeper.connection.timeout.ms", "10000");
+		JavaPairReceiverInputDStream<String, byte[]> kafkaStream = KafkaUtils.createStream(jssc, 
+				String.class, byte[].class, StringDecoder.class, DefaultDecoder.class,
+				kafkaParams, kafkaTopics, StorageLevel.MEMORY_AND_DISK_SER_2());
 			
 		final Broadcast<BicingStationDao> bicingStationDao = jssc.sparkContext().broadcast(new BicingStationDao());
 		final Broadcast<String> phoenixJdbcDriver = jssc.sparkContext().broadcast(config.getString("phoenix.jdbc_driver"));
 		final Broadcast<String> phoenixDbUrl = jssc.sparkContext().broadcast(config.getString("phoenix.db_url"));
+		final Broadcast<Integer> phoenixMaxConnections = jssc.sparkContext().broadcast(config.getInt("phoenix.pool.max_connections"));
+		final Broadcast<Integer> phoenixCommitSize = jssc.sparkContext().broadcast(config.getInt("phoenix.batch.commit_size"));
 		// To avoid the single thread problem described at http://engineering.sharethrough.com/blog/2013/09/13/top-3-troubleshooting-tips-to-keep-you-sparking/
-		final Broadcast<PhoenixWriter> phoenixWriter = jssc.sparkContext().broadcast(new PhoenixWriter());
+		final Broadcast<PhoenixWriter> phoenixWriter = jssc.sparkContext().broadcast(
+				new PhoenixWriter(config.getLong("phoenix.dim_station.max_age_ms")));
 		
-		// Parse XML data into BicingStationDao.Value objects
-		JavaDStream<BicingStationDao.Value> bicingStationStates = kafkaStream.flatMap(new FlatMapFunction<Tuple2<String, String>, BicingStationDao.Value>() {
+		// Parse XML data into a StationSnapshot per message
+		JavaDStream<StationSnapshot> bicingSnapshots = kafkaStream.map(new Function<Tuple2<String, byte[]>, StationSnapshot>() {
 			// generated by Eclipse
 			private static final long serialVersionUID = -164175401233776623L;
 
@@ -351,24 +294,35 @@ public class EtlStream {
 			 * - Second element is the message itself
 			 * */
 			@Override
-			public Iterable<BicingStationDao.Value> call(Tuple2<String, String> kafkakeyMessage)
+			public StationSnapshot call(Tuple2<String, byte[]> kafkakeyMessage)
 					throws Exception {
-				return bicingStationDao.value().parse(kafkakeyMessage._2);
+				// parse the message bytes directly, without decoding them into a String
+				return bicingStationDao.value().parseSnapshot(PayloadCodec.unframeAndDecode(kafkakeyMessage._2));
 			}
 		});
 			
-		// Group station data per station
-		JavaPairDStream<Integer, BicingStationDao.Value> stationStatePairs = 
-				bicingStationStates.mapToPair(new PairFunction<BicingStationDao.Value, Integer, BicingStationDao.Value>() {
+		// Group station data per station. The rows are views of the snapshot that only carry their 
+		// station when serialized for the shuffle
+		JavaPairDStream<Integer, StationReading> stationStatePairs = 
+				bicingSnapshots.flatMapToPair(new PairFlatMapFunction<StationSnapshot, Integer, StationReading>() {
 					private static final long serialVersionUID = 3493170766978489850L;
 
 					@Override
-					public Tuple2<Integer, BicingStationDao.Value> call(BicingStationDao.Value stationInfo) throws Exception {
-						return new Tuple2<Integer, BicingStationDao.Value>(stationInfo.id(), stationInfo);
+					public Iterable<Tuple2<Integer, StationReading>> call(StationSnapshot snapshot) throws Exception {
+						List<Tuple2<Integer, StationReading>> stationInfos = 
+								new ArrayList<Tuple2<Integer, StationReading>>(snapshot.size());
+						for (StationSnapshot.Row stationInfo : snapshot) {
+							stationInfos.add(new Tuple2<Integer, StationReading>(stationInfo.id(), stationInfo));
+						}
+						return stationInfos;
 					}
 				});
 		
-		updateBicingBigTable(phoenixJdbcDriver, phoenixDbUrl, phoenixWriter, stationStatePairs);
+		// Compute the facts without side effects, and write them to Phoenix in an output operation
+		JavaDStream<StationFact> stationFacts = computeStationFacts(config.getInt("spark.state.partitions"), 
+				config.getInt("spark.state.checkpoint_interval"), stationStatePairs);
+		updateBicingBigTable(phoenixJdbcDriver, phoenixDbUrl, phoenixMaxConnections, phoenixCommitSize, 
+				phoenixWriter, stationFacts);
 		
 		// Launch Spark stream and await for termination
 		jssc.start();
@@ -0,0 +1,316 @@
+package org.collprod.bicingbcn.etl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Bounded pool of Phoenix connections, with a cache of prepared statements per connection. There is
+ * a single pool per database URL and JVM, created lazily by get(), so all the tasks of a Spark executor
+ * share the same connections, instead of opening a connection per station and batch.
+ * </p>
+ *
+ * <p>
+ * Usage:
+ * <code>
+ * 		PooledConnection pooledConnection = PhoenixConnectionPool.get(jdbcDriver, dbUrl, maxConnections).borrow();
+ * 		try {
+ * 			PreparedStatement stmt = pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL);
+ * 			...
+ * 		} catch (SQLException se) {
+ * 			pooledConnection.invalidate();
+ * 			...
+ * 		} finally {
+ * 			pooledConnection.release();
+ * 		}
+ * </code>
+ * Borrowers are responsible for setting the auto commit mode they need, and shouldn't close the connection
+ * nor the prepared statements. On release the uncommitted changes are rolled back and the batches of the 
+ * statements are cleared, so they don't leak to the next borrower. Idle connections are validated before being borrowed, and all the
+ * connections are closed by a shutdown hook. This class is thread safe, but PooledConnection objects
+ * should be used by a single thread
+ * </p>
+ * */
+public class PhoenixConnectionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PhoenixConnectionPool.class);
+
+	/**
+	 * Maximum time to wait for a connection in borrow()
+	 * */
+	public static final long BORROW_TIMEOUT_MS = 60000;
+	/**
+	 * Connections idle for longer than this are checked with Connection.isValid() before being borrowed
+	 * */
+	private static final long VALIDATION_INTERVAL_MS = 30000;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private static final ConcurrentMap<String, PhoenixConnectionPool> POOLS = new ConcurrentHashMap<String, PhoenixConnectionPool>();
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("PhoenixConnectionPool shutdown") {
+			@Override
+			public void run() {
+				PhoenixConnectionPool.closeAll();
+			}
+		});
+	}
+
+	private final String dbUrl;
+	private final int maxConnections;
+	/**
+	 * A permit per connection that can be borrowed, idle or not created yet
+	 * */
+	private final Semaphore permits;
+	/**
+	 * Most recently released connections first, so idle connections are reused while warm
+	 * */
+	private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+	private volatile boolean closed = false;
+
+	private PhoenixConnectionPool(String jdbcDriver, String dbUrl, int maxConnections) {
+		// Register JDBC driver
+		try {
+			Class.forName(jdbcDriver);
+		} catch (ClassNotFoundException cne) {
+			LOGGER.error("Error loading Phoenix driver {}", ExceptionUtils.getFullStackTrace(cne));
+			// FIXME: use custom bicing exception class
+			throw new RuntimeException(cne);
+		}
+		this.dbUrl = dbUrl;
+		this.maxConnections = maxConnections;
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * @return the pool for dbUrl in this JVM, which is created with at most maxConnections connections if
+	 * it doesn't exist yet. Otherwise maxConnections is ignored
+	 * */
+	public static PhoenixConnectionPool get(String jdbcDriver, String dbUrl, int maxConnections) {
+		PhoenixConnectionPool pool = POOLS.get(dbUrl);
+		if (pool == null) {
+			PhoenixConnectionPool newPool = new PhoenixConnectionPool(jdbcDriver, dbUrl, maxConnections);
+			pool = POOLS.putIfAbsent(dbUrl, newPool);
+			if (pool == null) {
+				LOGGER.info("Created Phoenix connection pool for {} with at most {} connections", dbUrl, maxConnections);
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Closes all the pools in this JVM, called by a shutdown hook
+	 * */
+	static void closeAll() {
+		for (PhoenixConnectionPool pool : POOLS.values()) {
+			pool.close();
+		}
+		POOLS.clear();
+	}
+
+	public int maxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * @return number of connections that are open but not borrowed
+	 * */
+	public int idleConnections() {
+		return this.idleConnections.size();
+	}
+
+	/**
+	 * @return an idle valid connection, or a new connection if there is none. This waits up to BORROW_TIMEOUT_MS
+	 * if maxConnections are already borrowed
+	 *
+	 * @throws SQLException if no connection could be borrowed
+	 * */
+	public PooledConnection borrow() throws SQLException {
+		return borrow(BORROW_TIMEOUT_MS);
+	}
+
+	PooledConnection borrow(long timeoutMs) throws SQLException {
+		if (this.closed) {
+			throw new SQLException("Phoenix connection pool for " + this.dbUrl + " is closed");
+		}
+		try {
+			if (! this.permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Timeout waiting for a Phoenix connection for " + this.dbUrl);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a Phoenix connection for " + this.dbUrl, ie);
+		}
+		try {
+			PooledConnection pooledConnection;
+			while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+				if (pooledConnection.validate()) {
+					return pooledConnection;
+				}
+				LOGGER.warn("Discarding invalid Phoenix connection for {}", this.dbUrl);
+				pooledConnection.closeConnection();
+			}
+			return new PooledConnection(DriverManager.getConnection(this.dbUrl));
+		} catch (SQLException se) {
+			this.permits.release();
+			throw se;
+		} catch (RuntimeException re) {
+			this.permits.release();
+			throw re;
+		}
+	}
+
+	private void release(PooledConnection pooledConnection) {
+		if (! pooledConnection.invalid && ! this.closed) {
+			pooledConnection.reset();
+		}
+		if (pooledConnection.invalid || this.closed) {
+			pooledConnection.closeConnection();
+		} else {
+			pooledConnection.lastReleaseMs = System.currentTimeMillis();
+			this.idleConnections.offerFirst(pooledConnection);
+		}
+		this.permits.release();
+	}
+
+	/**
+	 * Closes the idle connections, and the borrowed connections when they are released
+	 * */
+	public void close() {
+		this.closed = true;
+		PooledConnection pooledConnection;
+		while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+			pooledConnection.closeConnection();
+		}
+	}
+
+	/**
+	 * A connection borrowed from a PhoenixConnectionPool, that should be returned to the pool by
+	 * calling release() exactly once
+	 * */
+	public class PooledConnection {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+		private boolean invalid = false;
+		private long lastReleaseMs;
+		/**
+		 * Whether the driver supports batch updates, or null if not checked yet
+		 * */
+		private Boolean supportsBatchUpdates = null;
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.lastReleaseMs = System.currentTimeMillis();
+		}
+
+		public Connection connection() {
+			return this.connection;
+		}
+
+		/**
+		 * @return database URL of the pool of this connection
+		 * */
+		public String dbUrl() {
+			return PhoenixConnectionPool.this.dbUrl;
+		}
+
+		/**
+		 * @return a PreparedStatement for sql, that is created the first time it is requested for this connection,
+		 * with its parameters cleared. The statement is closed with the connection
+		 * */
+		public PreparedStatement prepareStatement(String sql) throws SQLException {
+			PreparedStatement statement = this.statements.get(sql);
+			if (statement == null) {
+				statement = this.connection.prepareStatement(sql);
+				this.statements.put(sql, statement);
+			} else {
+				statement.clearParameters();
+			}
+			return statement;
+		}
+
+		/**
+		 * Marks this connection to be closed when released instead of returned to the pool, e.g.
+		 * after an error
+		 * */
+		public void invalidate() {
+			this.invalid = true;
+		}
+
+		/**
+		 * Returns this connection to the pool
+		 * */
+		public void release() {
+			PhoenixConnectionPool.this.release(this);
+		}
+
+		/**
+		 * Rolls back the changes not committed by the borrower, and clears the batches of the statements, 
+		 * invalidating this connection if that fails
+		 * */
+		private void reset() {
+			try {
+				if (! this.connection.getAutoCommit()) {
+					this.connection.rollback();
+				}
+				if (this.supportsBatchUpdates == null) {
+					this.supportsBatchUpdates = this.connection.getMetaData().supportsBatchUpdates();
+				}
+				// Phoenix 3 doesn't support batches, and throws on clearBatch()
+				if (this.supportsBatchUpdates) {
+					for (PreparedStatement statement : this.statements.values()) {
+						statement.clearBatch();
+					}
+				}
+			} catch (SQLException se) {
+				LOGGER.warn("Error resetting Phoenix connection for {}, discarding it: {}", PhoenixConnectionPool.this.dbUrl,
+						ExceptionUtils.getStackTrace(se));
+				this.invalid = true;
+			} catch (RuntimeException re) {
+				LOGGER.warn("Error resetting Phoenix connection for {}, discarding it: {}", PhoenixConnectionPool.this.dbUrl,
+						ExceptionUtils.getStackTrace(re));
+				this.invalid = true;
+			}
+		}
+
+		private boolean validate() {
+			try {
+				if (this.connection.isClosed()) {
+					return false;
+				}
+				if (System.currentTimeMillis() - this.lastReleaseMs > VALIDATION_INTERVAL_MS) {
+					return this.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+				}
+				return true;
+			} catch (SQLException se) {
+				return false;
+			}
+		}
+
+		private void closeConnection() {
+			try {
+				for (PreparedStatement statement : this.statements.values()) {
+					statement.close();
+				}
+				this.statements.clear();
+				this.connection.close();
+			} catch (SQLException se) {
+				LOGGER.warn("Error closing Phoenix connection for {}: {}", PhoenixConnectionPool.this.dbUrl,
+						ExceptionUtils.getStackTrace(se));
+			}
+		}
+	}
+}
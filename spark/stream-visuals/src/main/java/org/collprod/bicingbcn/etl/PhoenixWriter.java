@@ -8,9 +8,12 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.collprod.bicingbcn.BicingStationDao;
+import org.collprod.bicingbcn.StationReading;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +30,35 @@ public class PhoenixWriter implements Serializable {
 	private static final long serialVersionUID = -8620289406311041119L;
 	private static final Logger LOGGER = LoggerFactory.getLogger(PhoenixWriter.class);
 	
+	/*
+	 * SQL for the statements built by this class. Also useful for getting the statements from the 
+	 * statement cache of PhoenixConnectionPool 
+	 * */
+	public static final String LOOKUP_STATION_SQL = "SELECT * from BICING_DIM_STATION WHERE ID = ?";
+	public static final String UPSERT_BICING_SQL = "UPSERT INTO BICING VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String UPSERT_BICING_FACT_SQL = "UPSERT INTO BICING_FACT VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String UPSERT_BICING_DIM_TIME_SQL = "UPSERT INTO BICING_DIM_TIME VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String CHECK_EXISTS_TIMETAG_DIM_TIME_SQL = "SELECT TIMETAG from BICING_DIM_TIME WHERE TIMETAG = ?";
+	
+	/**
+	 * Default maximum age of the copy of BICING_DIM_STATION used by BatchWriter, see StationDimensionCache
+	 * */
+	public static final long DEFAULT_DIM_STATION_MAX_AGE_MS = 60 * 60 * 1000;
+	
+	private final long dimStationMaxAgeMs;
+	
+	public PhoenixWriter() {
+		this(DEFAULT_DIM_STATION_MAX_AGE_MS);
+	}
+	
+	/**
+	 * @param dimStationMaxAgeMs maximum age of the copy of BICING_DIM_STATION used by BatchWriter, 
+	 * see StationDimensionCache 
+	 * */
+	public PhoenixWriter(long dimStationMaxAgeMs) {
+		this.dimStationMaxAgeMs = dimStationMaxAgeMs;
+	}
+	
 	/**
 	 * POJO for a record of the table BICING_DIM_STATION <br>
 	 * 
@@ -82,7 +114,14 @@ public class PhoenixWriter implements Serializable {
 		// will take just first result
 		// move cursor to first result
 		stationInfoResults.next();
-
+		return currentRowToStationRecord(stationInfoResults);
+	}
+	
+	/**
+	 * @return the station record for the row at the cursor of stationInfoResults, which should be 
+	 * the result of querying all the columns of BICING_DIM_STATION
+	 * */
+	static DimStationRecord currentRowToStationRecord(ResultSet stationInfoResults) throws SQLException {
 		Double longitude = stationInfoResults.getDouble(2);
 		longitude = stationInfoResults.wasNull() ? null : longitude;
 
@@ -128,8 +167,7 @@ public class PhoenixWriter implements Serializable {
 	 * Is not responsible from closing con
 	 * */
 	public PreparedStatement buildLookupStationStatement(Connection con) throws SQLException {
-		String stmtGetStationInfoStr = "SELECT * from BICING_DIM_STATION WHERE ID = ?";
-		PreparedStatement stmtGetStationInfo = con.prepareStatement(stmtGetStationInfoStr);
+		PreparedStatement stmtGetStationInfo = con.prepareStatement(LOOKUP_STATION_SQL);
 		return stmtGetStationInfo;
 	}
 	
@@ -154,15 +192,14 @@ public class PhoenixWriter implements Serializable {
 	 * @throws SQLException 
 	 * */
 	public PreparedStatement buildBicingBigTableStatement(Connection con) throws SQLException {
-		String upsertBicingBigTableString = "UPSERT INTO BICING VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-		return con.prepareStatement(upsertBicingBigTableString);
+		return con.prepareStatement(UPSERT_BICING_SQL);
 	}
 	
 	/**
 	 *  -- [0 - 10), [10 - 15), [15 - 20), [20 - 25), [25 - 30), [30+ (thousands)
 		   S.POP_DENSITY_RANGE VARCHAR,
 	 * */
-	private static Optional<String> getDistrictPopulationDensityRange(DimStationRecord stationDimStationInfo) {
+	static Optional<String> getDistrictPopulationDensityRange(DimStationRecord stationDimStationInfo) {
 		if (! stationDimStationInfo.popDensity().isPresent()) {
 			return Optional.absent();
 		}
@@ -191,7 +228,7 @@ public class PhoenixWriter implements Serializable {
 	 *   -- [0 - 100), [100 - 150), [150 - 200), [200+ (thousands) 
 		    S.POP_RANGE VARCHAR,
 	 * */
-	private static Optional<String> getDistrictPopulationRange(DimStationRecord stationDimStationInfo) {
+	static Optional<String> getDistrictPopulationRange(DimStationRecord stationDimStationInfo) {
 		if (! stationDimStationInfo.population().isPresent()) {
 			return Optional.absent();
 		}
@@ -214,7 +251,7 @@ public class PhoenixWriter implements Serializable {
 	 *  -- [0 - 5), [5 - 10), [10 - 15), [15 - 20), [20+  (m2) 
 		   S.SIZE_RANGE VARCHAR,
 	 * */
-	private static Optional<String> getDistrictSizeRange(DimStationRecord stationDimStationInfo) {
+	static Optional<String> getDistrictSizeRange(DimStationRecord stationDimStationInfo) {
 		if (! stationDimStationInfo.size().isPresent()) {
 			return Optional.absent();
 		}
@@ -346,10 +383,44 @@ public class PhoenixWriter implements Serializable {
 	 * creating the statement (e.g. no record was found for the station id)
 	 * 
 	 * */
-	public boolean loadBicingBigTableStatement(BicingStationDao.Value stationInfo, int lastBikeCount, 
+	public boolean loadBicingBigTableStatement(StationReading stationInfo, int lastBikeCount, 
 			PreparedStatement stmtBicingBigTable, PreparedStatement stmtGetStationInfo)  {
+		StationDimensionCache.Station station;
+		try {
+			// Get station info: FIXME: StationReading uses int for station ids while the
+			// table BICING_DIM_STATION uses UNSIGNED_LONG
+			station = new StationDimensionCache.Station(lookupStationRecord(stmtGetStationInfo, (long) stationInfo.id()));
+		} catch (SQLException sqle) {
+			LOGGER.error("There was an error looking up station {} in BICING_DIM_STATION, {}", 
+					stationInfo.id(), ExceptionUtils.getFullStackTrace(sqle));
+			return false;
+		}
+		return loadBicingBigTableStatement(stationInfo, lastBikeCount, stmtBicingBigTable, station);
+	}
+	
+	/**
+	 * Same as loadBicingBigTableStatement(StationReading, int, PreparedStatement, PreparedStatement) but
+	 * taking the station dimension fields from station, e.g. from a StationDimensionCache, instead of
+	 * querying BICING_DIM_STATION
+	 * 
+	 * @return true if the statement was correctly filled, otherwise return false if there was some error
+	 * creating the statement
+	 * */
+	public boolean loadBicingBigTableStatement(StationReading stationInfo, int lastBikeCount, 
+			PreparedStatement stmtBicingBigTable, StationDimensionCache.Station station)  {
+		return loadBicingBigTableStatement(StationFact.create(stationInfo, lastBikeCount), stmtBicingBigTable, station);
+	}
+	
+	/**
+	 * Same as loadBicingBigTableStatement(StationReading, int, PreparedStatement, StationDimensionCache.Station) but
+	 * taking the number of bikes lent and returned from stationInfo
+	 * 
+	 * @return true if the statement was correctly filled, otherwise return false if there was some error
+	 * creating the statement
+	 * */
+	public boolean loadBicingBigTableStatement(StationFact stationInfo, PreparedStatement stmtBicingBigTable, 
+			StationDimensionCache.Station station)  {
 		boolean isStationOpen = stationInfo.status().equals("OPN");
-		boolean notValidState = lastBikeCount < 0;
 		
 		try {
 		    // -- station to which the data for this row applies
@@ -382,17 +453,14 @@ public class PhoenixWriter implements Serializable {
 			// 7.	    F.LENT UNSIGNED_LONG,
 			// -- Number of bikes returned to this station since 
 			// -- the previous update		
-			//  - if lastBikeCount is negative then we don't have info and we return as nothing
-			// 	- if we have more bikes now than in the previous update we assume no bike has been lent,  
-			//    this implies an error if bikes are returned and taken between updates
-			long lent = notValidState ? 0 : Math.max(lastBikeCount - stationInfo.bikes(), 0);
+			// see StationFact.create()
+			long lent = stationInfo.lent();
 			stmtBicingBigTable.setLong(7, lent);
 					
 			// -- Number of bikes returned to this station since 
 			// -- the previous update
 			// 8.	    F.RETURNED UNSIGNED_LONG,
-			// same compromises as the previous value
-			long returned =  notValidState ? 0 : Math.max(stationInfo.bikes() - lastBikeCount, 0);
+			long returned = stationInfo.returned();
 			stmtBicingBigTable.setLong(8, returned);
 			
 		    // --- Traffic as F.LENT + F.RETURNED, i.e. number of transactions
@@ -402,9 +470,7 @@ public class PhoenixWriter implements Serializable {
 			//	    --
 			//	    -- Station dimension fields
 			//	    --
-			// Get station info: FIXME: BicingStationDao.Value uses int for station ids while the
-			// table BICING_DIM_STATION uses UNSIGNED_LONG
-			DimStationRecord stationDimStationInfo = lookupStationRecord(stmtGetStationInfo, (long) stationInfo.id());
+			DimStationRecord stationDimStationInfo = station.record();
 			
 			 // -- geo info: dropped as not used
 			 // -- S.LONGITUDE UNSIGNED_DOUBLE,
@@ -469,7 +535,7 @@ public class PhoenixWriter implements Serializable {
 			// 
 		    // -- [0 - 10), [10 - 15), [15 - 20), [20 - 25), [25 - 30), 30+ (thousands)
 			//  17.	    S.POP_DENSITY_RANGE VARCHAR,
-			Optional<String> populationDensityRange = PhoenixWriter.getDistrictPopulationDensityRange(stationDimStationInfo);
+			Optional<String> populationDensityRange = station.populationDensityRange();
 			if (populationDensityRange.isPresent()) {
 				stmtBicingBigTable.setString(17, populationDensityRange.get());
 			} else {
@@ -478,7 +544,7 @@ public class PhoenixWriter implements Serializable {
 			
 			// -- [0 - 100), [100 - 150), [150 - 200), 200+ (thousands) 
 			// 18.	    S.POP_RANGE VARCHAR,
-			Optional<String> populationRange = PhoenixWriter.getDistrictPopulationRange(stationDimStationInfo);
+			Optional<String> populationRange = station.populationRange();
 			if (populationRange.isPresent()) {
 				stmtBicingBigTable.setString(18, populationRange.get());
 			} else {
@@ -487,7 +553,7 @@ public class PhoenixWriter implements Serializable {
 			
 		    // -- [0 - 5), [5 - 10), [10 - 15), [15 - 20), 20+  (m2) 
 			// 19.	    S.SIZE_RANGE VARCHAR,
-			Optional<String> sizeRange = PhoenixWriter.getDistrictSizeRange(stationDimStationInfo);
+			Optional<String> sizeRange = station.sizeRange();
 			if (sizeRange.isPresent()) {
 				stmtBicingBigTable.setString(19, sizeRange.get());
 			} else {
@@ -564,8 +630,7 @@ public class PhoenixWriter implements Serializable {
 	 * @throws SQLException 
 	 * */
 	public PreparedStatement buildBicingFactStatement(Connection con) throws SQLException {
-		String upsertBicingFactString = "UPSERT INTO BICING_FACT VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-		return con.prepareStatement(upsertBicingFactString);
+		return con.prepareStatement(UPSERT_BICING_FACT_SQL);
 	}
 	
 	
@@ -608,9 +673,16 @@ public class PhoenixWriter implements Serializable {
 	 *	
 	 * @throws SQLException 
 	 */
-	public void loadBicingFactStatement(BicingStationDao.Value stationInfo, int lastBikeCount, PreparedStatement stmtBicingFact) throws SQLException {
+	public void loadBicingFactStatement(StationReading stationInfo, int lastBikeCount, PreparedStatement stmtBicingFact) throws SQLException {
+		loadBicingFactStatement(StationFact.create(stationInfo, lastBikeCount), stmtBicingFact);
+	}
+	
+	/**
+	 * Same as loadBicingFactStatement(StationReading, int, PreparedStatement) but taking the number of 
+	 * bikes lent and returned from stationInfo
+	 * */
+	public void loadBicingFactStatement(StationFact stationInfo, PreparedStatement stmtBicingFact) throws SQLException {
 		boolean isStationOpen = stationInfo.status().equals("OPN");
-		boolean notValidState = lastBikeCount < 0;
 		
 		// STATION
 		stmtBicingFact.setInt(1, stationInfo.id());
@@ -628,15 +700,11 @@ public class PhoenixWriter implements Serializable {
 		//  Total capacity of the station as (parking slots + bikes) * (status == OPN)
 		stmtBicingFact.setInt(6, isStationOpen ? stationInfo.slots() + stationInfo.bikes() : 0); 
 		// F.LENT
-		// Number of bikes lent for this station since the previous update
-		//  - if lastBikeCount is negative then we don't have info and we return as nothing
-		// 	- if we have more bikes now than in the previous update we assume no bike has been lent,  
-		//    this implies an error if bikes are returned and taken between updates
-		stmtBicingFact.setInt(7, notValidState ? 0 : Math.max(lastBikeCount - stationInfo.bikes(), 0));
+		// Number of bikes lent for this station since the previous update, see StationFact.create()
+		stmtBicingFact.setInt(7, stationInfo.lent());
 		// F.RETURNED
 		// Number of bikes returned to this station since the previous update
-		// same compromises as the previous value
-		stmtBicingFact.setInt(8, notValidState ? 0 : Math.max(stationInfo.bikes() - lastBikeCount, 0));
+		stmtBicingFact.setInt(8, stationInfo.returned());
 	}
 	
 	/**
@@ -644,9 +712,7 @@ public class PhoenixWriter implements Serializable {
 	 * @throws SQLException 
 	 * */
 	public PreparedStatement buildBicingDimTime(Connection con) throws SQLException {
-		
-		String upsertBicingTimeString = "UPSERT INTO BICING_DIM_TIME VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-		return con.prepareStatement(upsertBicingTimeString);
+		return con.prepareStatement(UPSERT_BICING_DIM_TIME_SQL);
 	}
 	
 	/**
@@ -732,7 +798,7 @@ public class PhoenixWriter implements Serializable {
 	 * Sets the fields of stmtBicingDimTime according to the values of stationInfo 
 	 * so it can be used to update the table BICING_DIM_TIME
 	 * */
-	public void loadBicingDimTimeStatement(BicingStationDao.Value stationInfo, PreparedStatement stmtBicingDimTime) throws SQLException {
+	public void loadBicingDimTimeStatement(StationReading stationInfo, PreparedStatement stmtBicingDimTime) throws SQLException {
 			// in milliseconds 
 		DateTime stationTimetagDatetime = new DateTime(new Date(stationInfo.updatetime()));
 		// Joda time doesn't support week of month
@@ -791,19 +857,198 @@ public class PhoenixWriter implements Serializable {
 	 * @throws SQLException 
 	 * */
 	public PreparedStatement buildCheckExistsTimetagDimTime(Connection con) throws SQLException {
-		String stmtCheckExistsTimetagDimTimeStr = "SELECT TIMETAG from BICING_DIM_TIME WHERE TIMETAG = ?";
-		return con.prepareStatement(stmtCheckExistsTimetagDimTimeStr);
+		return con.prepareStatement(CHECK_EXISTS_TIMETAG_DIM_TIME_SQL);
 	}
 	
 	/**
 	 * Returns true iff exists some row in BICING_DIM_TIME with the same timetag as stationInfo, 
 	 * otherwise returns false
 	 * */
-	public boolean checkExistsTimetagDimTime(BicingStationDao.Value stationInfo, PreparedStatement stmtCheckExistsTimetagDimTime) throws SQLException {
+	public boolean checkExistsTimetagDimTime(StationReading stationInfo, PreparedStatement stmtCheckExistsTimetagDimTime) throws SQLException {
 			// in milliseconds 
 		stmtCheckExistsTimetagDimTime.setTimestamp(1, new Timestamp(stationInfo.updatetime()));
 		ResultSet queryResults = stmtCheckExistsTimetagDimTime.executeQuery();
 		return queryResults.next();
 	}
 
+	
+	/**
+	 * @return a new BatchWriter for writing to Phoenix through pooledConnection, that commits
+	 * every commitSize mutations
+	 * 
+	 * @throws SQLException 
+	 * */
+	public BatchWriter newBatchWriter(PhoenixConnectionPool.PooledConnection pooledConnection, int commitSize) throws SQLException {
+		return new BatchWriter(pooledConnection, commitSize);
+	}
+	
+	/**
+	 * <p>
+	 * Writes rows for the tables BICING, BICING_FACT and BICING_DIM_TIME in batches, with auto commit disabled
+	 * and a single commit every commitSize mutations, and when flushed or closed. Phoenix is much faster when 
+	 * the mutations are committed in bulk, instead of flushing each row to HBase.
+	 * </p>
+	 * <p>
+	 * If the JDBC driver supports batch updates the statements are executed with executeBatch(). Phoenix 3 
+	 * doesn't, but with auto commit disabled executeUpdate() just buffers the mutation in the client
+	 * until the commit, which has the same effect. The rows for BICING_DIM_TIME are only written once 
+	 * per timetag and batch, as they only depend on the timetag.
+	 * </p>
+	 * <p>
+	 * The writer leaves auto commit disabled in the connection. If some method throws a SQLException 
+	 * the uncommitted rows are lost, and the connection should be invalidated. Not thread safe
+	 * </p>
+	 * */
+	public class BatchWriter {
+		private final Connection con;
+		private final int commitSize;
+		private final boolean useJdbcBatches;
+		private final StationDimensionCache stationDimensionCache;
+		/**
+		 * Loaded on the first call to addBicing()
+		 * */
+		private StationDimensionCache.Stations stations = null;
+		private final PreparedStatement stmtBicingBigTable;
+		private final PreparedStatement stmtBicingFact;
+		private final PreparedStatement stmtBicingDimTime;
+		/**
+		 * Statements with batched rows not executed yet, only used when useJdbcBatches
+		 * */
+		private final Set<PreparedStatement> pendingStatements = new LinkedHashSet<PreparedStatement>();
+		/**
+		 * Timetags written to BICING_DIM_TIME since the last commit
+		 * */
+		private final Set<Long> dimTimeTimetags = new HashSet<Long>();
+		private int uncommittedRows = 0;
+		private long committedRows = 0;
+		private final long startNanos;
+		
+		private BatchWriter(PhoenixConnectionPool.PooledConnection pooledConnection, int commitSize) throws SQLException {
+			this.con = pooledConnection.connection();
+			this.con.setAutoCommit(false);
+			this.commitSize = commitSize;
+			this.useJdbcBatches = this.con.getMetaData().supportsBatchUpdates();
+			this.stationDimensionCache = StationDimensionCache.get(pooledConnection.dbUrl());
+			this.stmtBicingBigTable = pooledConnection.prepareStatement(UPSERT_BICING_SQL);
+			this.stmtBicingFact = pooledConnection.prepareStatement(UPSERT_BICING_FACT_SQL);
+			this.stmtBicingDimTime = pooledConnection.prepareStatement(UPSERT_BICING_DIM_TIME_SQL);
+			this.startNanos = System.nanoTime();
+		}
+		
+		/**
+		 * Adds a row for the table BICING, see loadBicingBigTableStatement(). The station dimension fields
+		 * are taken from the StationDimensionCache for the connection, that is reloaded if it is older than 
+		 * dimStationMaxAgeMs, or the station is not found
+		 * 
+		 * @return false if the row could not be created, e.g. no record was found for the station, true otherwise
+		 * */
+		public boolean addBicing(StationReading stationInfo, int lastBikeCount) throws SQLException {
+			return addBicing(StationFact.create(stationInfo, lastBikeCount));
+		}
+		
+		/**
+		 * Same as addBicing(StationReading, int) but taking the number of bikes lent and returned from stationInfo
+		 * */
+		public boolean addBicing(StationFact stationInfo) throws SQLException {
+			if (this.stations == null) {
+				this.stations = this.stationDimensionCache.stations(this.con, PhoenixWriter.this.dimStationMaxAgeMs);
+			}
+			StationDimensionCache.Station station = this.stations.get(stationInfo.id());
+			if (station == null) {
+				this.stations = this.stationDimensionCache.reloadOnMiss(this.con, this.stations);
+				station = this.stations.get(stationInfo.id());
+				if (station == null) {
+					LOGGER.warn("No record found in BICING_DIM_STATION for station {}, skipping row for table BICING", 
+							stationInfo.id());
+					return false;
+				}
+			}
+			if (! loadBicingBigTableStatement(stationInfo, this.stmtBicingBigTable, station)) {
+				return false;
+			}
+			add(this.stmtBicingBigTable);
+			return true;
+		}
+		
+		/**
+		 * Adds a row for the table BICING_FACT, see loadBicingFactStatement()
+		 * */
+		public void addBicingFact(StationReading stationInfo, int lastBikeCount) throws SQLException {
+			addBicingFact(StationFact.create(stationInfo, lastBikeCount));
+		}
+		
+		/**
+		 * Adds a row for the table BICING_FACT, see loadBicingFactStatement(StationFact, PreparedStatement)
+		 * */
+		public void addBicingFact(StationFact stationInfo) throws SQLException {
+			loadBicingFactStatement(stationInfo, this.stmtBicingFact);
+			add(this.stmtBicingFact);
+		}
+		
+		/**
+		 * Adds a row for the table BICING_DIM_TIME, see loadBicingDimTimeStatement(), unless it was 
+		 * already added for the same timetag since the last commit
+		 * */
+		public void addBicingDimTime(StationReading stationInfo) throws SQLException {
+			if (this.dimTimeTimetags.add(stationInfo.updatetime())) {
+				loadBicingDimTimeStatement(stationInfo, this.stmtBicingDimTime);
+				add(this.stmtBicingDimTime);
+			}
+		}
+		
+		private void add(PreparedStatement statement) throws SQLException {
+			if (this.useJdbcBatches) {
+				statement.addBatch();
+				this.pendingStatements.add(statement);
+			} else {
+				// buffered in the client until commit
+				statement.executeUpdate();
+			}
+			this.uncommittedRows++;
+			if (this.uncommittedRows >= this.commitSize) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Executes and commits all the rows added so far
+		 * */
+		public void flush() throws SQLException {
+			for (PreparedStatement statement : this.pendingStatements) {
+				statement.executeBatch();
+			}
+			this.pendingStatements.clear();
+			if (this.uncommittedRows > 0) {
+				this.con.commit();
+			}
+			this.committedRows += this.uncommittedRows;
+			this.uncommittedRows = 0;
+			this.dimTimeTimetags.clear();
+		}
+		
+		/**
+		 * @return number of rows committed so far
+		 * */
+		public long committedRows() {
+			return this.committedRows;
+		}
+		
+		/**
+		 * @return rows committed per second since this writer was created
+		 * */
+		public double rowsPerSecond() {
+			long elapsedNanos = Math.max(System.nanoTime() - this.startNanos, 1);
+			return this.committedRows * 1e9 / elapsedNanos;
+		}
+		
+		/**
+		 * Flushes the rows added so far and reports the throughput of the writer. Doesn't close 
+		 * the connection nor the statements, that belong to the connection pool
+		 * */
+		public void close() throws SQLException {
+			flush();
+			LOGGER.info("Committed {} rows to Phoenix, {} rows per second", this.committedRows, 
+					String.format("%.1f", rowsPerSecond()));
+		}
+	}
 }
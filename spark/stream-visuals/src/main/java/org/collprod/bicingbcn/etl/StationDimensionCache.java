@@ -0,0 +1,228 @@
+package org.collprod.bicingbcn.etl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.collprod.bicingbcn.etl.PhoenixWriter.DimStationRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+
+/**
+ * <p>
+ * In memory copy of the table BICING_DIM_STATION, so enriching each station reading with its station
+ * dimension fields is an array read instead of a query to Phoenix. The table is small (a few hundred stations)
+ * and almost never changes, so it is loaded with a single full scan, and there is a single cache per database
+ * URL and JVM, shared by all the tasks of a Spark executor.
+ * </p>
+ * <p>
+ * The stations are kept in an immutable Stations object, indexed by station id, that also contains the
+ * range fields computed from the district info. stations() reloads the table when the loaded copy is older
+ * than a maximum age, and reloadOnMiss() can be used to reload when a station is not found, e.g. because it was
+ * just added to the table. Each load has a version that is a hash of its contents, so reloads that change the
+ * table can be detected. This class is thread safe
+ * </p>
+ * */
+public class StationDimensionCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationDimensionCache.class);
+
+	public static final String SCAN_STATIONS_SQL = "SELECT * from BICING_DIM_STATION";
+
+	/**
+	 * Stations with greater ids are ignored, to avoid huge arrays. Bicing ids are below 1000
+	 * */
+	static final int MAX_STATION_ID = 1 << 16;
+
+	/**
+	 * Minimum time between reloads caused by reloadOnMiss(), so missing stations don't cause a
+	 * reload for each reading
+	 * */
+	private static final long MIN_RELOAD_ON_MISS_INTERVAL_MS = 60000;
+
+	private static final ConcurrentMap<String, StationDimensionCache> CACHES = new ConcurrentHashMap<String, StationDimensionCache>();
+
+	private final String dbUrl;
+	private volatile Stations stations = null;
+
+	private StationDimensionCache(String dbUrl) {
+		this.dbUrl = dbUrl;
+	}
+
+	/**
+	 * @return the cache for dbUrl in this JVM, which is created empty if it doesn't exist yet
+	 * */
+	public static StationDimensionCache get(String dbUrl) {
+		StationDimensionCache cache = CACHES.get(dbUrl);
+		if (cache == null) {
+			StationDimensionCache newCache = new StationDimensionCache(dbUrl);
+			cache = CACHES.putIfAbsent(dbUrl, newCache);
+			if (cache == null) {
+				cache = newCache;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @param con connection to the database of this cache, used if the table has to be loaded
+	 * @param maxAgeMs the table is loaded again if it was loaded more than maxAgeMs ago
+	 *
+	 * @return the stations in BICING_DIM_STATION, loaded at most maxAgeMs ago
+	 * */
+	public Stations stations(Connection con, long maxAgeMs) throws SQLException {
+		Stations currentStations = this.stations;
+		if (currentStations != null && System.currentTimeMillis() - currentStations.loadedMs() <= maxAgeMs) {
+			return currentStations;
+		}
+		synchronized (this) {
+			// other thread could have just loaded it
+			if (this.stations == null || System.currentTimeMillis() - this.stations.loadedMs() > maxAgeMs) {
+				reload(con);
+			}
+			return this.stations;
+		}
+	}
+
+	/**
+	 * For stations that were not found in stations: reloads the table unless it was loaded less than
+	 * MIN_RELOAD_ON_MISS_INTERVAL_MS ago
+	 *
+	 * @return the stations in BICING_DIM_STATION, maybe reloaded
+	 * */
+	public synchronized Stations reloadOnMiss(Connection con, Stations stations) throws SQLException {
+		if (this.stations == stations && System.currentTimeMillis() - stations.loadedMs() > MIN_RELOAD_ON_MISS_INTERVAL_MS) {
+			reload(con);
+		}
+		return this.stations;
+	}
+
+	private void reload(Connection con) throws SQLException {
+		long startMs = System.currentTimeMillis();
+		List<DimStationRecord> records = new ArrayList<DimStationRecord>();
+		Statement scanStatement = con.createStatement();
+		try {
+			ResultSet results = scanStatement.executeQuery(SCAN_STATIONS_SQL);
+			while (results.next()) {
+				records.add(PhoenixWriter.currentRowToStationRecord(results));
+			}
+		} finally {
+			scanStatement.close();
+		}
+		Stations newStations = new Stations(records, System.currentTimeMillis());
+		Stations oldStations = this.stations;
+		this.stations = newStations;
+		if (oldStations == null || oldStations.version() != newStations.version()) {
+			LOGGER.info("Loaded {} stations from BICING_DIM_STATION for {} in {} ms, new version {}",
+					newStations.size(), this.dbUrl, newStations.loadedMs() - startMs, newStations.version());
+		} else {
+			LOGGER.debug("Reloaded BICING_DIM_STATION for {}, same version {}", this.dbUrl, newStations.version());
+		}
+	}
+
+	/**
+	 * A record of BICING_DIM_STATION, together with the district info ranges for the table BICING,
+	 * which are computed only once
+	 * */
+	public static final class Station {
+		private final DimStationRecord record;
+		private final Optional<String> populationDensityRange;
+		private final Optional<String> populationRange;
+		private final Optional<String> sizeRange;
+
+		public Station(DimStationRecord record) {
+			this.record = record;
+			this.populationDensityRange = PhoenixWriter.getDistrictPopulationDensityRange(record);
+			this.populationRange = PhoenixWriter.getDistrictPopulationRange(record);
+			this.sizeRange = PhoenixWriter.getDistrictSizeRange(record);
+		}
+
+		public DimStationRecord record() {
+			return this.record;
+		}
+
+		public Optional<String> populationDensityRange() {
+			return this.populationDensityRange;
+		}
+
+		public Optional<String> populationRange() {
+			return this.populationRange;
+		}
+
+		public Optional<String> sizeRange() {
+			return this.sizeRange;
+		}
+	}
+
+	/**
+	 * Immutable copy of BICING_DIM_STATION, indexed by station id
+	 * */
+	public static final class Stations {
+		private final Station [] stationsById;
+		private final int size;
+		private final long version;
+		private final long loadedMs;
+
+		Stations(List<DimStationRecord> records, long loadedMs) {
+			long maxId = -1;
+			for (DimStationRecord record : records) {
+				if (record.id() <= MAX_STATION_ID) {
+					maxId = Math.max(maxId, record.id());
+				} else {
+					LOGGER.warn("Ignoring station {} of BICING_DIM_STATION with id greater than {}", record, MAX_STATION_ID);
+				}
+			}
+			this.stationsById = new Station[(int) maxId + 1];
+			long version = 17;
+			int size = 0;
+			for (DimStationRecord record : records) {
+				if (record.id() <= MAX_STATION_ID) {
+					if (this.stationsById[(int) record.id()] == null) {
+						size++;
+					}
+					this.stationsById[(int) record.id()] = new Station(record);
+					version = 31 * version + record.hashCode();
+				}
+			}
+			this.size = size;
+			this.version = version;
+			this.loadedMs = loadedMs;
+		}
+
+		/**
+		 * @return the station with id, or null if there is no such station
+		 * */
+		public Station get(int id) {
+			return (id >= 0 && id < this.stationsById.length) ? this.stationsById[id] : null;
+		}
+
+		/**
+		 * @return number of stations
+		 * */
+		public int size() {
+			return this.size;
+		}
+
+		/**
+		 * @return a hash of the records of the table, so different versions of the table have
+		 * different versions with high probability
+		 * */
+		public long version() {
+			return this.version;
+		}
+
+		/**
+		 * @return time when the table was loaded, in milliseconds
+		 * */
+		public long loadedMs() {
+			return this.loadedMs;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.collprod.bicingbcn.etl;
+
+import java.io.Serializable;
+
+import org.collprod.bicingbcn.StationReading;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A reading of a station together with the number of bikes lent and returned since the previous reading
+ * of the station, which are the fact fields computed by the ETL for the tables BICING and BICING_FACT.
+ * The primary key of those tables is the station and the update time, so writing the same fact
+ * several times has the same effect as writing it once. StationStateStore computes at most one fact per 
+ * station and update time, and the same fact when the state is recomputed, but not after a restart of
+ * the driver: then a reading delivered again gets a fact with no bikes lent or returned, which replaces
+ * the fact written before the restart
+ * */
+@AutoValue
+public abstract class StationFact implements Serializable, StationReading {
+	// generated by Eclipse
+	private static final long serialVersionUID = 6937146519806274231L;
+
+	StationFact() {}
+
+	/**
+	 * NOTE: The field slots is not used for computing the number of bikes lent and returned, as it changes with
+	 * the station health, and not necessarily because of bike lent transactions
+	 *
+	 * @param lastBikeCount number of bikes in the previous reading of the station, or a negative number if
+	 * it is unknown
+	 * */
+	public static StationFact create(StationReading reading, int lastBikeCount) {
+		boolean notValidState = lastBikeCount < 0;
+		// Number of bikes lent for this station since the previous update
+		//  - if lastBikeCount is negative then we don't have info and we return as nothing
+		// 	- if we have more bikes now than in the previous update we assume no bike has been lent,
+		//    this implies an error if bikes are returned and taken between updates
+		int lent = notValidState ? 0 : Math.max(lastBikeCount - reading.bikes(), 0);
+		// Number of bikes returned to this station since the previous update
+		// same compromises as the previous value
+		int returned = notValidState ? 0 : Math.max(reading.bikes() - lastBikeCount, 0);
+		return new AutoValue_StationFact(reading.updatetime(), reading.id(), reading.status(),
+				reading.slots(), reading.bikes(), lent, returned);
+	}
+
+	@Override
+	public abstract long updatetime();
+	@Override
+	public abstract int id();
+	@Override
+	public abstract String status();
+	@Override
+	public abstract int slots();
+	@Override
+	public abstract int bikes();
+	public abstract int lent();
+	public abstract int returned();
+}
@@ -0,0 +1,27 @@
+package org.collprod.bicingbcn.etl;
+
+import java.io.Serializable;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * State of a station kept by the ETL between batches, see StationStateStore
+ * */
+@AutoValue
+public abstract class StationState implements Serializable {
+	// generated by Eclipse
+	private static final long serialVersionUID = -2915702713651837412L;
+
+	StationState() {}
+
+	/**
+	 * @param lastBikeCount number of bikes in the most recent reading of the station
+	 * @param lastUpdatetime update time of the most recent reading of the station
+	 * */
+	public static StationState create(int lastBikeCount, long lastUpdatetime) {
+		return new AutoValue_StationState(lastBikeCount, lastUpdatetime);
+	}
+
+	public abstract int lastBikeCount();
+	public abstract long lastUpdatetime();
+}
@@ -0,0 +1,250 @@
+package org.collprod.bicingbcn.etl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.streaming.Time;
+import org.apache.spark.streaming.api.java.JavaDStream;
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.collprod.bicingbcn.StationReading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scala.Tuple2;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+
+/**
+ * <p>
+ * Keyed state of the stations for the ETL, used instead of updateStateByKey so the state is only
+ * updated for the stations with new readings in each batch. updateStateByKey calls the state function for every 
+ * key in the state on every batch, so the cost of a batch depends on the total number of stations instead of on
+ * the number of new readings
+ * </p>
+ * <p>
+ * The state is an RDD of pairs (station id, StationState) partitioned with a HashPartitioner. For each batch the
+ * previous state is cogrouped with the readings of the batch using the same partitioner, so only the readings
+ * are shuffled. Stations without readings keep their state, and readings that are not newer than the 
+ * lastUpdatetime of the state of their station are discarded, e.g. for messages delivered twice by Kafka. 
+ * The new readings of each station are sorted by update time, readings with the same update time as the
+ * previous one are also discarded, and a StationFact is computed for each of the remaining readings
+ * with the bike count of the previous reading. Updating the state has no side effects, so the facts are
+ * emitted as a stream to be written by some output operation, and recomputing the state or the facts
+ * after a failure is safe.
+ * </p>
+ * <p>
+ * Each state RDD is persisted, and one every checkpointInterval batches is checkpointed to the checkpoint
+ * directory of the streaming context to cut its lineage. Then the persisted state RDDs older than the last
+ * checkpointed one are unpersisted, as they are no longer needed for recomputing the state. 
+ * </p>
+ * <p>
+ * These checkpoints only cut the lineage, the state is NOT recovered after a restart of the driver, unlike 
+ * the state of updateStateByKey with JavaStreamingContext.getOrCreate(). The state RDDs are only referenced
+ * by this object in the driver, so after a restart the stations start without state, as when the ETL is 
+ * started for the first time. Then the first fact of each station has no previous bike count, so it counts
+ * no bikes lent or returned
+ * </p>
+ * */
+public class StationStateStore implements Serializable {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = 4711349624165379086L;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationStateStore.class);
+
+	private final Partitioner partitioner;
+	private final int checkpointInterval;
+
+	/**
+	 * State for the last batch, each state is paired with the facts for the readings of the station in that batch
+	 * */
+	private transient JavaPairRDD<Integer, Tuple2<StationState, List<StationFact>>> state = null;
+	/**
+	 * Persisted state RDDs, from oldest to newest
+	 * */
+	private transient LinkedList<JavaPairRDD<Integer, Tuple2<StationState, List<StationFact>>>> persistedStates = null;
+	private long batches = 0;
+
+	/**
+	 * @param numPartitions number of partitions of the state RDDs
+	 * @param checkpointInterval number of batches between checkpoints of the state
+	 * */
+	public StationStateStore(int numPartitions, int checkpointInterval) {
+		this.partitioner = new HashPartitioner(numPartitions);
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * @return a stream with the facts for the new readings in each batch of stationReadings. As with 
+	 * updateStateByKey, some output operation must be applied to the stream so the state is updated
+	 * */
+	public JavaDStream<StationFact> updateState(JavaPairDStream<Integer, StationReading> stationReadings) {
+		return stationReadings.transform(new Function2<JavaPairRDD<Integer, StationReading>, Time, JavaRDD<StationFact>>() {
+			// generated by Eclipse
+			private static final long serialVersionUID = -6297466207766498152L;
+
+			@Override
+			public JavaRDD<StationFact> call(JavaPairRDD<Integer, StationReading> readings, Time time) throws Exception {
+				return update(readings, time);
+			}
+		});
+	}
+
+	/**
+	 * Called in the driver for each batch
+	 * */
+	private synchronized JavaRDD<StationFact> update(JavaPairRDD<Integer, StationReading> readings, Time time) {
+		JavaPairRDD<Integer, StationState> previousState;
+		if (this.state == null) {
+			this.persistedStates = new LinkedList<JavaPairRDD<Integer, Tuple2<StationState, List<StationFact>>>>();
+			previousState = new JavaSparkContext(readings.context()).parallelizePairs(
+					new ArrayList<Tuple2<Integer, StationState>>(), this.partitioner.numPartitions());
+		} else {
+			// mapValues keeps the partitioner, so the previous state is not shuffled by cogroup
+			previousState = this.state.mapValues(new Function<Tuple2<StationState, List<StationFact>>, StationState>() {
+				// generated by Eclipse
+				private static final long serialVersionUID = 2184406727419931733L;
+
+				@Override
+				public StationState call(Tuple2<StationState, List<StationFact>> stateFacts) throws Exception {
+					return stateFacts._1();
+				}
+			});
+		}
+
+		JavaPairRDD<Integer, Tuple2<StationState, List<StationFact>>> newState = previousState
+				.cogroup(readings, this.partitioner)
+				.mapPartitionsToPair(new UpdatePartition(), true);
+		// as for updateStateByKey, computing the state has no side effects so it can be recomputed 
+		newState.persist(StorageLevel.MEMORY_ONLY_SER());
+		this.batches++;
+		if (this.batches % this.checkpointInterval == 0) {
+			newState.checkpoint();
+		}
+		this.persistedStates.addLast(newState);
+		unpersistBeforeCheckpoint(time);
+		this.state = newState;
+
+		return newState.flatMap(new FlatMapFunction<Tuple2<Integer, Tuple2<StationState, List<StationFact>>>, StationFact>() {
+			// generated by Eclipse
+			private static final long serialVersionUID = -3530180370442207045L;
+
+			@Override
+			public Iterable<StationFact> call(Tuple2<Integer, Tuple2<StationState, List<StationFact>>> stationStateFacts) throws Exception {
+				return stationStateFacts._2()._2();
+			}
+		});
+	}
+
+	/**
+	 * Unpersists the state RDDs older than the newest checkpointed state RDD. A state RDD is checkpointed
+	 * after the first job that computes it, so this is checked again for each batch
+	 * */
+	private void unpersistBeforeCheckpoint(Time time) {
+		int lastCheckpointed = -1;
+		int i = 0;
+		for (JavaPairRDD<Integer, Tuple2<StationState, List<StationFact>>> persistedState : this.persistedStates) {
+			if (persistedState.isCheckpointed()) {
+				lastCheckpointed = i;
+			}
+			i++;
+		}
+		for (i = 0; i < lastCheckpointed; i++) {
+			this.persistedStates.removeFirst().unpersist();
+		}
+		if (lastCheckpointed > 0) {
+			LOGGER.debug("Unpersisted {} state RDDs at {}", lastCheckpointed, time);
+		}
+	}
+
+	/**
+	 * @param state state of the station before readingsByUpdatetime, if any
+	 * @param readingsByUpdatetime new readings of the station, sorted by update time. Readings that are
+	 * not newer than the previous accepted reading are skipped, e.g. the same reading delivered twice by Kafka
+	 * in a single batch, so there is at most one fact per station and update time  
+	 * @param facts the facts for readingsByUpdatetime are added to this list
+	 * 
+	 * @return state of the station after readingsByUpdatetime
+	 * */
+	static StationState update(Optional<StationState> state, List<StationReading> readingsByUpdatetime, List<StationFact> facts) {
+		int lastBikeCount = state.isPresent() ? state.get().lastBikeCount() : -1;
+		long lastUpdatetime = state.isPresent() ? state.get().lastUpdatetime() : -1;
+		for (StationReading reading : readingsByUpdatetime) {
+			if (reading.updatetime() <= lastUpdatetime) {
+				continue;
+			}
+			facts.add(StationFact.create(reading, lastBikeCount));
+			lastBikeCount = reading.bikes();
+			lastUpdatetime = reading.updatetime();
+		}
+		return StationState.create(lastBikeCount, lastUpdatetime);
+	}
+
+	/**
+	 * Computes the new state for the stations of a partition of the cogroup of the previous state and the
+	 * readings of the batch, paired with the facts for the new readings of each station in this batch
+	 * */
+	static class UpdatePartition implements PairFlatMapFunction<Iterator<Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>>>,
+																Integer, Tuple2<StationState, List<StationFact>>> {
+		// generated by Eclipse
+		private static final long serialVersionUID = 8296271851493604163L;
+
+		private static final Ordering<StationReading> BY_UPDATETIME = new Ordering<StationReading>() {
+			@Override
+			public int compare(@Nullable StationReading left, @Nullable StationReading right) {
+				return Longs.compare(left.updatetime(), right.updatetime());
+			}
+		};
+
+		@Override
+		public Iterable<Tuple2<Integer, Tuple2<StationState, List<StationFact>>>> call(
+				Iterator<Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>>> stationsStatesReadings) throws Exception {
+			List<Tuple2<Integer, Tuple2<StationState, List<StationFact>>>> newStates = 
+					new ArrayList<Tuple2<Integer, Tuple2<StationState, List<StationFact>>>>();
+			while (stationsStatesReadings.hasNext()) {
+				Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>> stationStatesReadings = stationsStatesReadings.next();
+				// there is at most one state per station
+				Iterator<StationState> states = stationStatesReadings._2()._1().iterator();
+				Optional<StationState> state = states.hasNext() ? Optional.of(states.next()) : Optional.<StationState>absent();
+
+				List<StationReading> newReadings = new ArrayList<StationReading>();
+				for (StationReading reading : stationStatesReadings._2()._2()) {
+					if (! state.isPresent() || reading.updatetime() > state.get().lastUpdatetime()) {
+						newReadings.add(reading);
+					}
+				}
+
+				if (newReadings.isEmpty()) {
+					// idle station, the state is kept as is
+					if (state.isPresent()) {
+						newStates.add(new Tuple2<Integer, Tuple2<StationState, List<StationFact>>>(stationStatesReadings._1(),
+								new Tuple2<StationState, List<StationFact>>(state.get(), new ArrayList<StationFact>(0))));
+					}
+					continue;
+				}
+				List<StationFact> facts = new ArrayList<StationFact>(newReadings.size());
+				StationState newState = update(state, BY_UPDATETIME.sortedCopy(newReadings), facts);
+				newStates.add(new Tuple2<Integer, Tuple2<StationState, List<StationFact>>>(stationStatesReadings._1(),
+						new Tuple2<StationState, List<StationFact>>(newState, facts)));
+			}
+			return newStates;
+		}
+	}
+}
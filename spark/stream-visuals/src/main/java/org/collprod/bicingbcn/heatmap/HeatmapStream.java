@@ -9,28 +9,38 @@ import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import kafka.serializer.DefaultDecoder;
+import kafka.serializer.StringDecoder;
+
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.Duration;
 import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaPairReceiverInputDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka.KafkaUtils;
+import org.collprod.bicingbcn.BicingKryoRegistrator;
 import org.collprod.bicingbcn.BicingStationDao;
-import org.collprod.bicingbcn.BicingStationDao.Value;
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.collprod.bicingbcn.StationCatalog;
+import org.collprod.bicingbcn.StationCatalogCache;
+import org.collprod.bicingbcn.StationSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +48,8 @@ import scala.Tuple2;
 
 import com.atlassian.fugue.Pair;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Lists;
 
@@ -80,6 +92,43 @@ public class HeatmapStream {
 	private static BicingStationDao sharedBicingStationDao = new BicingStationDao();
 //	private static final SimpleDateFormat DATE_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss'Z'");
 	
+	/**
+	 * Parses a Kafka message into a StationSnapshot, paired with its StationCatalog iff the version of the 
+	 * catalog is not in knownCatalogVersions. knownCatalogVersions are the versions in the StationCatalogCache 
+	 * of the driver when the batch was defined, and they don't change for the batch, so recomputing a partition,
+	 * e.g. for a retried task or an evicted block, sends the same catalogs to the driver 
+	 * */
+	private static class ParseSnapshot implements PairFunction<Tuple2<String, byte[]>, StationSnapshot, Optional<StationCatalog>> {
+		// generated by Eclipse
+		private static final long serialVersionUID = 4921760186517103452L;
+		
+		private final Set<Long> knownCatalogVersions;
+		
+		ParseSnapshot(Set<Long> knownCatalogVersions) {
+			this.knownCatalogVersions = knownCatalogVersions;
+		}
+
+		/**
+		 * - First element is the Kafka partition key (see org.collprod.bicingbcn.ingestion.KafkaWriterBolt to
+		 * check that the partition key is datasource + timestamp.toString(), e.g. test_bicing_station_data1404244632)
+		 * - Second element is the message itself
+		 * */
+		@Override
+		public Tuple2<StationSnapshot, Optional<StationCatalog>> call(Tuple2<String, byte[]> kafkakeyMessage)
+				throws Exception {
+			byte [] message = PayloadCodec.unframeAndDecode(kafkakeyMessage._2);
+			// return sharedBicingStationDao.value().parseSnapshot(message); // works in local mode
+			BicingStationDao.SnapshotCatalog snapshotCatalog = HeatmapStream.sharedBicingStationDao.parseSnapshotAndCatalog(message);
+			StationSnapshot snapshot = snapshotCatalog.snapshot();
+			if (this.knownCatalogVersions.contains(snapshot.catalogVersion())) {
+				return new Tuple2<StationSnapshot, Optional<StationCatalog>>(snapshot, Optional.<StationCatalog>absent());
+			}
+			// registered so the next snapshots with this catalog in this executor don't build it again
+			StationCatalog catalog = StationCatalogCache.register(snapshotCatalog.catalog());
+			return new Tuple2<StationSnapshot, Optional<StationCatalog>>(snapshot, Optional.of(catalog));
+		}
+	}
+	
 	private static void loadConfiguration() throws ConfigurationException {
 		LOGGER.info("Loading configuration");
 		HeatmapStream.config = new PropertiesConfiguration();
@@ -143,18 +192,29 @@ public class HeatmapStream {
 	}	
 	
 	
-	public static Request updateCartoDBStationsStateTable(Iterable<BicingStationDao.Value> stationValues) throws URISyntaxException, ClientProtocolException, IOException {	
+	/**
+	 * @param catalog catalog with the coordinates of the stations in stationValues. Stations not in
+	 * the catalog are skipped
+	 * */
+	public static Request updateCartoDBStationsStateTable(StationSnapshot stationValues, final StationCatalog catalog) throws URISyntaxException, ClientProtocolException, IOException {	
 		// see http://blog.cartodb.com/post/53301057653/faster-data-updates-with-cartodb
 		StringBuffer qParam = new StringBuffer("WITH n(the_geom, status, num_available_bikes) AS (VALUES ");
 		qParam.append(
 				Joiner.on(",").join(FluentIterable.from(stationValues)
-						              .transform(new com.google.common.base.Function<BicingStationDao.Value, String>() {
+									  .filter(new Predicate<StationSnapshot.Row>() {
+			@Override
+			public boolean apply(@Nullable StationSnapshot.Row stationValue) {
+				return catalog.indexOf(stationValue.id()) >= 0;
+			}
+		})
+						              .transform(new com.google.common.base.Function<StationSnapshot.Row, String>() {
 			@Override
 			@Nullable
-			public String apply(@Nullable BicingStationDao.Value stationValue) {
+			public String apply(@Nullable StationSnapshot.Row stationValue) {
+				int station = catalog.indexOf(stationValue.id());
 				StringBuffer buffer = new StringBuffer();
 				buffer.append("(ST_GeomFromText('POINT(");
-				buffer.append(stationValue.longitude()); buffer.append(" "); buffer.append(stationValue.latitude()); 
+				buffer.append(catalog.longitude(station)); buffer.append(" "); buffer.append(catalog.latitude(station)); 
 				buffer.append(")', 4326),"); 
 				buffer.append("'"); buffer.append(stationValue.status()); buffer.append("'");
 				buffer.append(", "); buffer.append(stationValue.bikes()); buffer.append(")"); 
@@ -177,9 +237,9 @@ public class HeatmapStream {
 		return Request.Get(requestUri);
 	}
 	
-	public static void executeupdateCartoDBStationsStateTable(Iterable<BicingStationDao.Value> stationValues) throws URISyntaxException, ClientProtocolException, IOException {
+	public static void executeupdateCartoDBStationsStateTable(StationSnapshot stationValues, StationCatalog catalog) throws URISyntaxException, ClientProtocolException, IOException {
 		// WARNING: don't log the request, it contains the credentials
-		Request cartoDBRequest = HeatmapStream.updateCartoDBStationsStateTable(stationValues);
+		Request cartoDBRequest = HeatmapStream.updateCartoDBStationsStateTable(stationValues, catalog);
 		LOGGER.info("Sending data to CartoDB:stations_state");
 		
 		int responseStatusCode;
@@ -222,8 +282,11 @@ public class HeatmapStream {
 		HeatmapStream.loadConfiguration();	
 		
 		// Connect to Spark cluster
-		JavaStreamingContext jssc = new JavaStreamingContext(HeatmapStream.config.getString("spark.master"), 
-							HeatmapStream.config.getString("spark.app_name"), 												
+		// Kryo serialization for StationSnapshot, see BicingKryoRegistrator
+		SparkConf sparkConf = BicingKryoRegistrator.configure(new SparkConf()
+				.setMaster(HeatmapStream.config.getString("spark.master"))
+				.setAppName(HeatmapStream.config.getString("spark.app_name")));
+		JavaStreamingContext jssc = new JavaStreamingContext(sparkConf, 
 							new Duration(HeatmapStream.config.getLong("spark.batch_duration")));
 		
 		// jssc.checkpoint("sparkCheckpoint");
@@ -250,36 +313,56 @@ public class HeatmapStream {
 		 *  check that the partition key is datasource + timestamp.toString(), e.g. test_bicing_station_data1404244632)
 		 * - Second element is the message itself
 		*/
-		JavaPairReceiverInputDStream<String,String> kafkaStream = KafkaUtils.createStream(jssc, 
-				HeatmapStream.config.getString("kafka.zookeeper.quorum"),
-				HeatmapStream.config.getString("kafka.groupid"),
-				kafkaTopics);
+		// messages are framed by PayloadCodec, so they are read as byte[]
+		Map<String, String> kafkaParams = new HashMap<String, String>();
+		kafkaParams.put("zookeeper.connect", HeatmapStream.config.getString("kafka.zookeeper.quorum"));
+		kafkaParams.put("group.id", HeatmapStream.config.getString("kafka.groupid"));
+		kafkaParams.put("zookeeper.connection.timeout.ms", "10000");
+		JavaPairReceiverInputDStream<String, byte[]> kafkaStream = KafkaUtils.createStream(jssc, 
+				String.class, byte[].class, StringDecoder.class, DefaultDecoder.class,
+				kafkaParams, kafkaTopics, StorageLevel.MEMORY_AND_DISK_SER_2());
 		
-		// Parse XML data into BicingStationDao.Value objects
-		JavaDStream<BicingStationDao.Value> bicingStationStates = kafkaStream.flatMap(new FlatMapFunction<Tuple2<String, String>, BicingStationDao.Value>() {
+		// Parse XML data into a StationSnapshot per message, paired with the StationCatalog for the snapshot 
+		// if the driver didn't know its version when the batch was defined 
+		JavaPairDStream<StationSnapshot, Optional<StationCatalog>> bicingSnapshotCatalogs = kafkaStream.transformToPair(
+				new Function<JavaPairRDD<String, byte[]>, JavaPairRDD<StationSnapshot, Optional<StationCatalog>>>() {
 			// generated by Eclipse
 			private static final long serialVersionUID = -164175401233776623L;
 
-			/**
-			 * - First element is the Kafka partition key (see org.collprod.bicingbcn.ingestion.KafkaWriterBolt to
-			 * check that the partition key is datasource + timestamp.toString(), e.g. test_bicing_station_data1404244632)
-			 * - Second element is the message itself
-			 * */
 			@Override
-			public Iterable<BicingStationDao.Value> call(Tuple2<String, String> kafkakeyMessage)
+			public JavaPairRDD<StationSnapshot, Optional<StationCatalog>> call(JavaPairRDD<String, byte[]> messages)
 					throws Exception {
-				// return sharedBicingStationDao.value().parse(kafkakeyMessage._2); // works in local mode
-				return HeatmapStream.sharedBicingStationDao.parse(kafkakeyMessage._2);
+				// called in the driver for each batch
+				return messages.mapToPair(new ParseSnapshot(StationCatalogCache.versions()));
 			}
 		});
-				
-		JavaPairDStream<Integer, BicingStationDao.Value> idStatePairs = bicingStationStates.mapToPair(new PairFunction<BicingStationDao.Value, Integer, BicingStationDao.Value>() {
-
-			private static final long serialVersionUID = 4808961521304738950L;
-
+		// used twice
+		bicingSnapshotCatalogs.persist(StorageLevel.MEMORY_ONLY_SER());
+		
+		// Send the new catalogs to the driver, where they are registered in the StationCatalogCache
+		bicingSnapshotCatalogs.foreachRDD(new Function<JavaPairRDD<StationSnapshot, Optional<StationCatalog>>, Void>() {
+			private static final long serialVersionUID = 2212968453094235917L;
+			@Override
+			public Void call(JavaPairRDD<StationSnapshot, Optional<StationCatalog>> rdd) throws Exception {
+				List<Optional<StationCatalog>> newCatalogs = rdd.values().filter(new Function<Optional<StationCatalog>, Boolean>() {
+					private static final long serialVersionUID = -3050238416262539532L;
+					@Override
+					public Boolean call(Optional<StationCatalog> newCatalog) throws Exception {
+						return newCatalog.isPresent();
+					}
+				}).collect();
+				for (Optional<StationCatalog> newCatalog : newCatalogs) {
+					StationCatalogCache.register(newCatalog.get());
+				}
+				return null;
+			}
+		});
+		
+		JavaDStream<StationSnapshot> bicingSnapshots = bicingSnapshotCatalogs.map(new Function<Tuple2<StationSnapshot, Optional<StationCatalog>>, StationSnapshot>() {
+			private static final long serialVersionUID = -8231592106472233751L;
 			@Override
-			public Tuple2<Integer, BicingStationDao.Value> call(BicingStationDao.Value bicingStationValue) throws Exception {
-				return new Tuple2<Integer, BicingStationDao.Value>(bicingStationValue.id(), bicingStationValue);
+			public StationSnapshot call(Tuple2<StationSnapshot, Optional<StationCatalog>> snapshotCatalog) throws Exception {
+				return snapshotCatalog._1;
 			}
 		});
 		
@@ -288,45 +371,42 @@ public class HeatmapStream {
 		 * huge impact in the performance
 		 * */
 
-		// Get just last status in the window
+		// Get just last snapshot in the window: each snapshot contains all the stations, so this 
+		// is the last status of each station. Comparing whole snapshots is much cheaper than 
+		// grouping the values of each station
 		// TODO: change durations to 60000 and 30000
-		JavaPairDStream<Integer, BicingStationDao.Value> lastStatePairs = idStatePairs.reduceByKeyAndWindow(new Function2<BicingStationDao.Value, BicingStationDao.Value, BicingStationDao.Value>() {
+		JavaDStream<StationSnapshot> lastSnapshots = bicingSnapshots.reduceByWindow(new Function2<StationSnapshot, StationSnapshot, StationSnapshot>() {
 
 			private static final long serialVersionUID = -4248339957716659672L;
 
 			@Override
-			public BicingStationDao.Value call(BicingStationDao.Value state1, BicingStationDao.Value state2) throws Exception {
-				// take the newest value in the window
-				return (state1.updatetime() > state2.updatetime() ? state1 : state2);				
+			public StationSnapshot call(StationSnapshot snapshot1, StationSnapshot snapshot2) throws Exception {
+				// take the newest snapshot in the window
+				return StationSnapshot.newest(snapshot1, snapshot2);
 			}
 		}, new Duration(60000), new Duration(90000));
 		// new Duration(300), new Duration(100));
 			
-		lastStatePairs.foreachRDD(new Function<JavaPairRDD<Integer,BicingStationDao.Value>, Void>() {
+		lastSnapshots.foreachRDD(new Function<JavaRDD<StationSnapshot>, Void>() {
 			private static final long serialVersionUID = 3551715203820036276L;
 			@Override
-			public Void call(JavaPairRDD<Integer, BicingStationDao.Value> rdd) throws Exception {
+			public Void call(JavaRDD<StationSnapshot> rdd) throws Exception {
 				// This is a pattern in the code examples that come with Spark, I guess it's
 				// common to have empty batches from time to time
 				if (rdd.count() > 0) {
-					HeatmapStream.executeupdateCartoDBStationsStateTable(
-							FluentIterable.from(rdd.collect())
-							.transform(new com.google.common.base.Function<Tuple2<Integer, BicingStationDao.Value>, BicingStationDao.Value>(){
-								@Override
-								@Nullable
-								public BicingStationDao.Value apply(
-										@Nullable Tuple2<Integer, BicingStationDao.Value> input) {
-									// TODO Auto-generated method stub
-									return input._2;
-								}
-							})
-						);
+					StationSnapshot snapshot = rdd.first();
+					StationCatalog catalog = StationCatalogCache.get(snapshot.catalogVersion());
+					if (catalog == null) {
+						LOGGER.warn("Unknown station catalog with version {}, skipping snapshot {}", snapshot.catalogVersion(), snapshot);
+					} else {
+						HeatmapStream.executeupdateCartoDBStationsStateTable(snapshot, catalog);
+					}
 				} 
 				return null;
 			}
 		});
 //		
-//		lastStatePairs.print();
+//		lastSnapshots.print();
 		
 //		// Send data to CartoDB station_state table
 //		// TODO: optimize with a single SQL batch transaction instead one per station 
@@ -1,10 +1,96 @@
 package org.collprod.bicingbcn;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for class BicingStationDao
+ * */
 public class BicingStationDaoTest {
-	/*
-	 * TODO: add test for BicingStationDao.parse, by loading a file 
-	 * similarly to org.collprod.bicingbcn.ingestion.tsparser.BicingBCNTimeStampParserTest
-	 * */
+
+	private static final String FILE_3_STATIONS = "/bicing_2014-05-31_15.53.07_UTC.xml";
+	private static final String FILE_5_STATIONS = "/bicing_2014-06-01_17.35.07_UTC.xml";
+
+	private String loadFile(String path) throws IOException {
+		return Files.toString(new File(this.getClass().getResource(path).getFile()), Charsets.UTF_8);
+	}
+
+	@Test
+	public void parseStax() throws IOException {
+		List<BicingStationDao.Value> values = Lists.newArrayList(
+				new BicingStationDao(BicingStationDao.Parser.STAX).parse(loadFile(FILE_3_STATIONS)));
+		Assert.assertEquals(3, values.size());
+		Assert.assertEquals(BicingStationDao.Value.create(1401551587L * 1000L, 1, 41.3979520, 2.18004200,
+				"Gran Via Corts Catalanes", 21, 760, Lists.newArrayList(24, 369, 387, 426), "OPN", 18, 6),
+				values.get(0));
+		// CDATA is not unescaped
+		Assert.assertEquals("Plaza Tetu&aacute;n", values.get(1).street());
+	}
+
+	@Test
+	public void defaultValues() throws IOException {
+		List<BicingStationDao.Value> values = Lists.newArrayList(new BicingStationDao().parse(loadFile(FILE_5_STATIONS)));
+		Assert.assertEquals(5, values.size());
+		BicingStationDao.Value lastStation = values.get(4);
+		Assert.assertEquals(511, lastStation.id());
+		Assert.assertEquals(1401644107L * 1000L, lastStation.updatetime());
+		// <height></height>
+		Assert.assertEquals(0, lastStation.height());
+	}
+
+	@Test
+	public void parsersAgree() throws IOException {
+		for (String path : new String [] {FILE_3_STATIONS, FILE_5_STATIONS}) {
+			String contents = loadFile(path);
+			Assert.assertEquals(path,
+					Lists.newArrayList(new BicingStationDao(BicingStationDao.Parser.METAMODEL).parse(contents)),
+					Lists.newArrayList(new BicingStationDao(BicingStationDao.Parser.STAX).parse(contents)));
+		}
+	}
+
+	@Test
+	public void parseBytes() throws IOException {
+		String contents = loadFile(FILE_5_STATIONS);
+		byte [] bytes = contents.getBytes(Charsets.UTF_8);
+		List<BicingStationDao.Value> expected = Lists.newArrayList(new BicingStationDao().parse(contents));
+		for (BicingStationDao.Parser parser : BicingStationDao.Parser.values()) {
+			BicingStationDao dao = new BicingStationDao(parser);
+			Assert.assertEquals(parser.toString(), expected, Lists.newArrayList(dao.parse(bytes)));
+			
+			// buffer with an offset in its backing array
+			byte [] paddedBytes = new byte[bytes.length + 3];
+			System.arraycopy(bytes, 0, paddedBytes, 2, bytes.length);
+			ByteBuffer buffer = ByteBuffer.wrap(paddedBytes, 2, bytes.length);
+			Assert.assertEquals(parser.toString(), expected, Lists.newArrayList(dao.parse(buffer.slice())));
+			Assert.assertEquals(2, buffer.position());
+			
+			ByteBuffer directBuffer = ByteBuffer.allocateDirect(bytes.length);
+			directBuffer.put(bytes).flip();
+			Assert.assertEquals(parser.toString(), expected, Lists.newArrayList(dao.parse(directBuffer)));
+			Assert.assertEquals(bytes.length, directBuffer.remaining());
+		}
+	}
 	
+	@Test
+	public void parseBytesIsUtf8() throws IOException {
+		String contents = loadFile(FILE_3_STATIONS).replace("Plaza Tetu&aacute;n", "Plaza Tetu\u00e1n");
+		List<BicingStationDao.Value> values = Lists.newArrayList(
+				new BicingStationDao().parse(contents.getBytes(Charsets.UTF_8)));
+		Assert.assertEquals("Plaza Tetu\u00e1n", values.get(1).street());
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void malformedXml() {
+		new BicingStationDao().parse("<bicing_stations><updatetime>1401551587</updatetime><station><id>1</id>");
+	}
 }
@@ -0,0 +1,156 @@
+package org.collprod.bicingbcn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for classes StationSnapshot, StationCatalog and BicingKryoRegistrator
+ * */
+public class StationSnapshotTest {
+
+	private static final String FILE_5_STATIONS = "/bicing_2014-06-01_17.35.07_UTC.xml";
+
+	private String loadFile(String path) throws IOException {
+		return Files.toString(new File(this.getClass().getResource(path).getFile()), Charsets.UTF_8);
+	}
+
+	private static byte [] javaSerialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object javaDeserialize(byte [] bytes) throws IOException, ClassNotFoundException {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+
+	private static StationSnapshot snapshot(int numStations) {
+		StationSnapshot.Builder builder = new StationSnapshot.Builder();
+		for (int id = 1; id <= numStations; id++) {
+			builder.add(1401644107000L, id, id % 3 == 0 ? "CLS" : "OPN", 20 - id % 20, id % 20);
+		}
+		return builder.build(42L);
+	}
+
+	@Test
+	public void parseSnapshot() throws IOException {
+		String contents = loadFile(FILE_5_STATIONS);
+		List<BicingStationDao.Value> values = Lists.newArrayList(new BicingStationDao().parse(contents));
+		for (BicingStationDao.Parser parser : BicingStationDao.Parser.values()) {
+			BicingStationDao.SnapshotCatalog snapshotCatalog = new BicingStationDao(parser).parseSnapshotAndCatalog(contents.getBytes(Charsets.UTF_8));
+			StationSnapshot snapshot = snapshotCatalog.snapshot();
+			Assert.assertEquals(values.size(), snapshot.size());
+			Assert.assertEquals(values.get(0).updatetime(), snapshot.updatetime());
+			StationCatalog catalog = snapshotCatalog.catalog();
+			Assert.assertEquals(snapshot.catalogVersion(), catalog.version());
+			Assert.assertEquals(snapshot, new BicingStationDao(parser).parseSnapshot(contents.getBytes(Charsets.UTF_8)));
+			Assert.assertEquals(values.size(), catalog.size());
+			int i = 0;
+			for (StationSnapshot.Row row : snapshot) {
+				BicingStationDao.Value value = values.get(i++);
+				int station = catalog.indexOf(row.id());
+				Assert.assertEquals(value.id(), row.id());
+				Assert.assertEquals(value.updatetime(), row.updatetime());
+				Assert.assertEquals(value.latitude(), catalog.latitude(station));
+				Assert.assertEquals(value.longitude(), catalog.longitude(station));
+				Assert.assertEquals(value.street(), catalog.street(station));
+				Assert.assertEquals(value.nearbyStationList(), catalog.nearbyStationList(station));
+				Assert.assertEquals(value.status(), row.status());
+				Assert.assertEquals(value.slots(), row.slots());
+				Assert.assertEquals(value.bikes(), row.bikes());
+			}
+			Assert.assertEquals(StationSnapshot.fromValues(values), snapshot);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void differentUpdatetimes() {
+		new StationSnapshot.Builder().add(1000L, 1, "OPN", 1, 1).add(2000L, 2, "OPN", 1, 1);
+	}
+
+	@Test
+	public void catalogVersion() throws IOException, ClassNotFoundException {
+		StationCatalog.Builder builder = new StationCatalog.Builder();
+		StationCatalog.Builder reversedBuilder = new StationCatalog.Builder();
+		for (int id = 1; id <= 10; id++) {
+			builder.add(id, 41.39 + id, 2.18 + id, "street " + id, 21, id, Arrays.asList(id + 1));
+			int reversedId = 11 - id;
+			reversedBuilder.add(reversedId, 41.39 + reversedId, 2.18 + reversedId, "street " + reversedId, 21, 
+					reversedId, Arrays.asList(reversedId + 1));
+		}
+		StationCatalog catalog = builder.build();
+		Assert.assertEquals(catalog.version(), reversedBuilder.version());
+		Assert.assertEquals(4, catalog.indexOf(5));
+		Assert.assertEquals(-1, catalog.indexOf(11));
+		builder.add(11, 41.39, 2.18, "street 11", 21, 11, Collections.<Integer>emptyList());
+		Assert.assertFalse(catalog.version() == builder.version());
+
+		// deserialized catalogs are replaced by the registered one
+		StationCatalog registered = StationCatalogCache.register(catalog);
+		Assert.assertSame(registered, javaDeserialize(javaSerialize(catalog)));
+	}
+
+	/**
+	 * The same catalog and version as in StationCatalogHasherTest and the StationCatalogTracker test of
+	 * storm-ingestion, that computes the versions of the catalogs published to Kafka
+	 * */
+	@Test
+	public void catalogVersionAgreesWithIngestion() {
+		StationCatalog catalog = new StationCatalog.Builder()
+			.add(2, 41.394282, 2.175557, "Plaza Tetuan", 21, 8, Arrays.asList(360, 368, 387))
+			.add(1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, Arrays.asList(24, 369, 387, 426))
+			.build();
+		Assert.assertEquals(-2539698906791770675L, catalog.version());
+	}
+
+	@Test
+	public void javaSerialization() throws IOException, ClassNotFoundException {
+		StationSnapshot snapshot = snapshot(400);
+		Assert.assertEquals(snapshot, javaDeserialize(javaSerialize(snapshot)));
+
+		// a row only carries its station
+		StationSnapshot.Row row = snapshot.row(42);
+		byte [] rowBytes = javaSerialize(row);
+		Assert.assertEquals(row, javaDeserialize(rowBytes));
+		Assert.assertTrue(rowBytes.length * 10 < javaSerialize(snapshot).length);
+	}
+
+	@Test
+	public void kryoSerialization() {
+		Kryo kryo = new Kryo();
+		new BicingKryoRegistrator().registerClasses(kryo);
+		StationSnapshot snapshot = snapshot(400);
+
+		Output output = new Output(4096, -1);
+		kryo.writeObject(output, snapshot);
+		byte [] snapshotBytes = output.toBytes();
+		Assert.assertEquals(snapshot, kryo.readObject(new Input(snapshotBytes), StationSnapshot.class));
+
+		output = new Output(4096, -1);
+		StationSnapshot.Row row = snapshot.row(7);
+		kryo.writeObject(output, row);
+		byte [] rowBytes = output.toBytes();
+		Assert.assertEquals(row, kryo.readObject(new Input(rowBytes), StationSnapshot.Row.class));
+		Assert.assertTrue(rowBytes.length * 10 < snapshotBytes.length);
+	}
+}
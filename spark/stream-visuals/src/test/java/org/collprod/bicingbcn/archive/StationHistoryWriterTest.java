@@ -0,0 +1,147 @@
+package org.collprod.bicingbcn.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.collprod.bicingbcn.BicingStationDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for classes StationHistoryWriter and StationHistoryReader
+ * */
+public class StationHistoryWriterTest {
+
+	private static final long FIRST_UPDATETIME = 1401558787L * 1000L;
+	private static final long REFRESH_MILLIS = 20 * 1000L;
+	/**
+	 * Snapshots for more than 2 hours starting 7 minutes before an hour, so there are 4 chunks
+	 * */
+	private static final int NUM_SNAPSHOTS = 400;
+	private static final int NUM_STATIONS = 5;
+
+	private File archiveFile;
+
+	@Before
+	public void setUp() throws IOException {
+		archiveFile = File.createTempFile(StationHistoryWriterTest.class.getName(), ".bsha");
+	}
+
+	@After
+	public void tearDown() {
+		archiveFile.delete();
+	}
+
+	private static BicingStationDao.Value station(int snapshot, int id) {
+		return BicingStationDao.Value.create(FIRST_UPDATETIME + snapshot * REFRESH_MILLIS, id,
+				41.3979520 + id, 2.18004200 - id, "Street " + id, 21 + id, id == 3 ? -1 : 760 + id,
+				Lists.newArrayList(id + 1, id + 2), snapshot % 50 == 0 ? "CLS" : "OPN",
+				10 + (snapshot / 10 + id) % 7, (snapshot / 15 + id) % 11);
+	}
+
+	private List<BicingStationDao.Value> writeSnapshots() throws IOException {
+		List<BicingStationDao.Value> values = new ArrayList<BicingStationDao.Value>();
+		StationHistoryWriter writer = StationHistoryWriter.create(archiveFile);
+		for (int snapshot = 0; snapshot < NUM_SNAPSHOTS; snapshot++) {
+			for (int id = 1; id <= NUM_STATIONS; id++) {
+				values.add(station(snapshot, id));
+				writer.append(station(snapshot, id));
+			}
+		}
+		writer.close();
+		return values;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		List<BicingStationDao.Value> values = writeSnapshots();
+		StationHistoryReader reader = new StationHistoryReader(archiveFile);
+		List<BicingStationDao.Value> readValues = reader.readValues(Long.MIN_VALUE, Long.MAX_VALUE);
+		reader.close();
+		Assert.assertEquals(values.size(), readValues.size());
+		Assert.assertTrue(readValues.containsAll(values));
+
+		// much smaller than the values
+		Assert.assertTrue(archiveFile.length() < values.size() * 8);
+	}
+
+	@Test
+	public void footers() throws IOException {
+		writeSnapshots();
+		StationHistoryReader reader = new StationHistoryReader(archiveFile);
+		List<ChunkFooter> footers = reader.footers();
+		reader.close();
+		Assert.assertEquals(4, footers.size());
+		int rows = 0;
+		for (ChunkFooter footer : footers) {
+			rows += footer.rows();
+			Assert.assertEquals(footer.minUpdatetime() / StationHistoryFormat.CHUNK_MILLIS,
+					footer.maxUpdatetime() / StationHistoryFormat.CHUNK_MILLIS);
+			Assert.assertTrue(footer.minBikes() >= 0 && footer.maxBikes() <= 10);
+		}
+		Assert.assertEquals(NUM_SNAPSHOTS * NUM_STATIONS, rows);
+	}
+
+	@Test
+	public void readColumnInRange() throws IOException {
+		writeSnapshots();
+		long minUpdatetime = FIRST_UPDATETIME + 10 * REFRESH_MILLIS;
+		long maxUpdatetime = FIRST_UPDATETIME + 19 * REFRESH_MILLIS;
+		StationHistoryReader reader = new StationHistoryReader(archiveFile);
+		long [] bikes = reader.readColumn(StationColumn.BIKES, minUpdatetime, maxUpdatetime);
+		long [] statuses = reader.readColumn(StationColumn.STATUS, minUpdatetime, maxUpdatetime);
+		reader.close();
+
+		// sorted by station and then by time
+		long [] expectedBikes = new long[10 * NUM_STATIONS];
+		int i = 0;
+		for (int id = 1; id <= NUM_STATIONS; id++) {
+			for (int snapshot = 10; snapshot < 20; snapshot++) {
+				expectedBikes[i++] = station(snapshot, id).bikes();
+			}
+		}
+		Assert.assertTrue(Arrays.equals(expectedBikes, bikes));
+		Assert.assertEquals(10 * NUM_STATIONS, statuses.length);
+		Assert.assertEquals("OPN", reader.statuses().get((int) statuses[0]));
+	}
+
+	@Test
+	public void readColumnAcrossFiles() throws IOException {
+		writeSnapshots();
+		List<String> statuses = new ArrayList<String>();
+		long [] updatetimes = StationHistoryReader.readColumn(Lists.newArrayList(archiveFile, archiveFile),
+				StationColumn.UPDATETIME, Long.MIN_VALUE, Long.MAX_VALUE, statuses);
+		Assert.assertEquals(2 * NUM_SNAPSHOTS * NUM_STATIONS, updatetimes.length);
+		long [] codes = StationHistoryReader.readColumn(Lists.newArrayList(archiveFile),
+				StationColumn.STATUS, Long.MIN_VALUE, Long.MAX_VALUE, statuses);
+		Assert.assertEquals(NUM_SNAPSHOTS * NUM_STATIONS, codes.length);
+		Assert.assertEquals(2, statuses.size());
+	}
+
+	@Test
+	public void deltaRleEncoding() throws IOException {
+		long [] values = {5, 5, 5, 7, 9, 11, -3, Long.MAX_VALUE, 0};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		StationHistoryFormat.writeDeltaRle(new DataOutputStream(bytes), values, values.length);
+		long [] decoded = StationHistoryFormat.readDeltaRle(
+				new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		Assert.assertTrue(Arrays.equals(values, decoded));
+	}
+
+	@Test(expected=IOException.class)
+	public void notAnArchive() throws IOException {
+		new StationHistoryReader(new File(getClass().getResource("/bicing_2014-05-31_15.53.07_UTC.xml").getFile()));
+	}
+}
@@ -0,0 +1,102 @@
+package org.collprod.bicingbcn.etl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for class PhoenixConnectionPool, using a stub JDBC driver instead of Phoenix
+ * */
+public class PhoenixConnectionPoolTest {
+
+	@Test
+	public void connectionsAndStatementsAreReused() throws SQLException {
+		PhoenixConnectionPool pool = PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:reuse", 2);
+		Assert.assertTrue(pool == PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:reuse", 4));
+		Assert.assertEquals(2, pool.maxConnections());
+		int openedConnections = StubDriver.OPENED_CONNECTIONS.get();
+
+		PhoenixConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		PreparedStatement statement = pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL);
+		Assert.assertTrue(statement == pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL));
+		Connection connection = pooledConnection.connection();
+		pooledConnection.release();
+		Assert.assertEquals(1, pool.idleConnections());
+
+		pooledConnection = pool.borrow();
+		Assert.assertTrue(connection == pooledConnection.connection());
+		Assert.assertTrue(statement == pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL));
+		pooledConnection.release();
+		Assert.assertEquals(openedConnections + 1, StubDriver.OPENED_CONNECTIONS.get());
+	}
+
+	@Test
+	public void invalidConnectionsAreDiscarded() throws SQLException {
+		PhoenixConnectionPool pool = PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:invalid", 2);
+		PhoenixConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		Connection connection = pooledConnection.connection();
+		pooledConnection.invalidate();
+		pooledConnection.release();
+		Assert.assertTrue(connection.isClosed());
+		Assert.assertEquals(0, pool.idleConnections());
+
+		// closed by someone else while idle
+		pooledConnection = pool.borrow();
+		connection = pooledConnection.connection();
+		pooledConnection.release();
+		connection.close();
+		pooledConnection = pool.borrow();
+		Assert.assertFalse(connection == pooledConnection.connection());
+		Assert.assertFalse(pooledConnection.connection().isClosed());
+		pooledConnection.release();
+	}
+
+	@Test
+	public void poolIsBounded() throws SQLException {
+		PhoenixConnectionPool pool = PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:bounded", 1);
+		PhoenixConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		try {
+			pool.borrow(10);
+			Assert.fail("should not borrow more than maxConnections connections");
+		} catch (SQLException se) {
+			// expected
+		}
+		pooledConnection.release();
+		pool.borrow(10).release();
+	}
+
+	@Test
+	public void uncommittedChangesAreDiscardedOnRelease() throws SQLException {
+		PhoenixConnectionPool pool = PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:batch:reset", 1);
+		PhoenixConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		pooledConnection.connection().setAutoCommit(false);
+		PreparedStatement statement = pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL);
+		statement.addBatch();
+		int rollbacks = StubDriver.ROLLBACKS.get();
+		pooledConnection.release();
+		Assert.assertEquals(rollbacks + 1, StubDriver.ROLLBACKS.get());
+
+		// the next borrower doesn't execute the batch of the previous one
+		pooledConnection = pool.borrow();
+		statement = pooledConnection.prepareStatement(PhoenixWriter.UPSERT_BICING_FACT_SQL);
+		int batchedUpdates = StubDriver.BATCHED_UPDATES.get();
+		statement.executeBatch();
+		Assert.assertEquals(batchedUpdates, StubDriver.BATCHED_UPDATES.get());
+		pooledConnection.release();
+	}
+
+	@Test
+	public void connectionsThatCannotBeResetAreDiscarded() throws SQLException {
+		PhoenixConnectionPool pool = PhoenixConnectionPool.get(StubDriver.class.getName(), "jdbc:stub:failing_rollback", 1);
+		PhoenixConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		Connection connection = pooledConnection.connection();
+		connection.setAutoCommit(false);
+		pooledConnection.release();
+		Assert.assertTrue(connection.isClosed());
+		Assert.assertEquals(0, pool.idleConnections());
+	}
+}
@@ -0,0 +1,68 @@
+package org.collprod.bicingbcn.etl;
+
+import java.sql.SQLException;
+
+import junit.framework.Assert;
+
+import org.collprod.bicingbcn.StationSnapshot;
+import org.junit.Test;
+
+/**
+ * Unit tests for class PhoenixWriter.BatchWriter, using a stub JDBC driver instead of Phoenix
+ * */
+public class PhoenixWriterTest {
+
+	private static StationSnapshot snapshot(long updatetime, int numStations) {
+		StationSnapshot.Builder builder = new StationSnapshot.Builder();
+		for (int id = 1; id <= numStations; id++) {
+			builder.add(updatetime, id, "OPN", 20 - id, id);
+		}
+		return builder.build(42L);
+	}
+
+	/**
+	 * Writes 2 snapshots of 3 stations to BICING_FACT and BICING_DIM_TIME, that is 6 + 2 rows
+	 * */
+	private static PhoenixWriter.BatchWriter writeSnapshots(String dbUrl) throws SQLException {
+		PhoenixConnectionPool.PooledConnection pooledConnection = PhoenixConnectionPool
+				.get(StubDriver.class.getName(), dbUrl, 1).borrow();
+		try {
+			PhoenixWriter.BatchWriter batchWriter = new PhoenixWriter().newBatchWriter(pooledConnection, 5);
+			for (StationSnapshot snapshot : new StationSnapshot [] {snapshot(1000L, 3), snapshot(2000L, 3)}) {
+				for (StationSnapshot.Row row : snapshot) {
+					batchWriter.addBicingFact(row, 10);
+					batchWriter.addBicingDimTime(row);
+				}
+			}
+			batchWriter.close();
+			return batchWriter;
+		} finally {
+			pooledConnection.release();
+		}
+	}
+
+	@Test
+	public void commitsEveryCommitSizeRows() throws SQLException {
+		int commits = StubDriver.COMMITS.get();
+		int executedUpdates = StubDriver.EXECUTED_UPDATES.get();
+		PhoenixWriter.BatchWriter batchWriter = writeSnapshots("jdbc:stub:commits");
+		Assert.assertEquals(8, batchWriter.committedRows());
+		// buffered with executeUpdate as the driver doesn't support batches
+		Assert.assertEquals(executedUpdates + 8, StubDriver.EXECUTED_UPDATES.get());
+		// one commit after 5 rows, and another one when closing
+		Assert.assertEquals(commits + 2, StubDriver.COMMITS.get());
+		Assert.assertTrue(batchWriter.rowsPerSecond() > 0);
+	}
+
+	@Test
+	public void usesJdbcBatchesIfSupported() throws SQLException {
+		int commits = StubDriver.COMMITS.get();
+		int executedUpdates = StubDriver.EXECUTED_UPDATES.get();
+		int batchedUpdates = StubDriver.BATCHED_UPDATES.get();
+		PhoenixWriter.BatchWriter batchWriter = writeSnapshots("jdbc:stub:batch:commits");
+		Assert.assertEquals(8, batchWriter.committedRows());
+		Assert.assertEquals(executedUpdates, StubDriver.EXECUTED_UPDATES.get());
+		Assert.assertEquals(batchedUpdates + 8, StubDriver.BATCHED_UPDATES.get());
+		Assert.assertEquals(commits + 2, StubDriver.COMMITS.get());
+	}
+}
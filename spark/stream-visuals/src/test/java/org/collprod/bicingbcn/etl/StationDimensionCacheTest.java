@@ -0,0 +1,53 @@
+package org.collprod.bicingbcn.etl;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.collprod.bicingbcn.etl.PhoenixWriter.DimStationRecord;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+/**
+ * Unit tests for class StationDimensionCache.Stations
+ * */
+public class StationDimensionCacheTest {
+
+	private static DimStationRecord record(long id, Optional<Double> popDensity) {
+		return DimStationRecord.create(id, Optional.of(2.180042), Optional.of(41.397952), Optional.of(21L),
+				Optional.of("Eixample"), Optional.of("la Dreta de l'Eixample"), Optional.of("08010"),
+				Optional.of("Gran Via Corts Catalanes 760"), popDensity, Optional.of(266416L), Optional.of(7.46));
+	}
+
+	@Test
+	public void stationsAreIndexedById() {
+		DimStationRecord record1 = record(1, Optional.of(35720.0));
+		DimStationRecord record7 = record(7, Optional.<Double>absent());
+		StationDimensionCache.Stations stations = new StationDimensionCache.Stations(
+				Arrays.asList(record7, record1, record(StationDimensionCache.MAX_STATION_ID + 1, Optional.<Double>absent())), 0L);
+		Assert.assertEquals(2, stations.size());
+		Assert.assertEquals(record1, stations.get(1).record());
+		Assert.assertEquals(record7, stations.get(7).record());
+		Assert.assertNull(stations.get(0));
+		Assert.assertNull(stations.get(3));
+		Assert.assertNull(stations.get(8));
+		Assert.assertNull(stations.get(-1));
+
+		// ranges are computed when loading
+		Assert.assertEquals(PhoenixWriter.getDistrictPopulationDensityRange(record1), stations.get(1).populationDensityRange());
+		Assert.assertTrue(stations.get(1).populationDensityRange().isPresent());
+		Assert.assertFalse(stations.get(7).populationDensityRange().isPresent());
+		Assert.assertEquals(PhoenixWriter.getDistrictSizeRange(record7), stations.get(7).sizeRange());
+	}
+
+	@Test
+	public void versionDependsOnContents() {
+		StationDimensionCache.Stations stations = new StationDimensionCache.Stations(
+				Arrays.asList(record(1, Optional.of(35720.0)), record(2, Optional.of(35720.0))), 0L);
+		Assert.assertEquals(stations.version(), new StationDimensionCache.Stations(
+				Arrays.asList(record(1, Optional.of(35720.0)), record(2, Optional.of(35720.0))), 1000L).version());
+		Assert.assertFalse(stations.version() == new StationDimensionCache.Stations(
+				Arrays.asList(record(1, Optional.of(35720.0)), record(2, Optional.of(12000.0))), 0L).version());
+	}
+}
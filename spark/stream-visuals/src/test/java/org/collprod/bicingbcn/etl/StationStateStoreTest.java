@@ -0,0 +1,115 @@
+package org.collprod.bicingbcn.etl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.collprod.bicingbcn.StationReading;
+import org.collprod.bicingbcn.StationSnapshot;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.google.common.base.Optional;
+
+/**
+ * Unit tests for class StationStateStore.UpdatePartition, that computes the new state and the facts
+ * for a partition of the state of the stations
+ * */
+public class StationStateStoreTest {
+
+	private static StationReading reading(long updatetime, int id, int bikes) {
+		return new StationSnapshot.Builder().add(updatetime, id, "OPN", 20 - bikes, bikes).build(42L).row(0);
+	}
+
+	private static Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>> stationStatesReadings(int id,
+			List<StationState> states, StationReading ... readings) {
+		return new Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>>(id,
+				new Tuple2<Iterable<StationState>, Iterable<StationReading>>(states, Arrays.asList(readings)));
+	}
+
+	private static Map<Integer, Tuple2<StationState, List<StationFact>>> update(
+			List<Tuple2<Integer, Tuple2<Iterable<StationState>, Iterable<StationReading>>>> partition) throws Exception {
+		Map<Integer, Tuple2<StationState, List<StationFact>>> newStates = new HashMap<Integer, Tuple2<StationState, List<StationFact>>>();
+		for (Tuple2<Integer, Tuple2<StationState, List<StationFact>>> newState : new StationStateStore.UpdatePartition().call(partition.iterator())) {
+			Assert.assertFalse(newStates.containsKey(newState._1()));
+			newStates.put(newState._1(), newState._2());
+		}
+		return newStates;
+	}
+
+	@Test
+	public void onlyStationsWithNewReadingsAreUpdated() throws Exception {
+		StationState idleState = StationState.create(7, 1000L);
+		Map<Integer, Tuple2<StationState, List<StationFact>>> newStates = update(Arrays.asList(
+				// idle station
+				stationStatesReadings(1, Arrays.asList(idleState)),
+				// new station, with unsorted readings
+				stationStatesReadings(2, Collections.<StationState>emptyList(), reading(2000L, 2, 5), reading(1000L, 2, 4)),
+				stationStatesReadings(3, Arrays.asList(StationState.create(3, 1000L)), reading(2000L, 3, 1))));
+
+		Assert.assertEquals(idleState, newStates.get(1)._1());
+		Assert.assertTrue(newStates.get(1)._2().isEmpty());
+
+		Assert.assertEquals(StationState.create(5, 2000L), newStates.get(2)._1());
+		List<StationFact> station2Facts = newStates.get(2)._2();
+		Assert.assertEquals(2, station2Facts.size());
+		// no previous bike count for the first reading
+		Assert.assertEquals(1000L, station2Facts.get(0).updatetime());
+		Assert.assertEquals(0, station2Facts.get(0).lent());
+		Assert.assertEquals(0, station2Facts.get(0).returned());
+		Assert.assertEquals(2000L, station2Facts.get(1).updatetime());
+		Assert.assertEquals(0, station2Facts.get(1).lent());
+		Assert.assertEquals(1, station2Facts.get(1).returned());
+
+		Assert.assertEquals(StationState.create(1, 2000L), newStates.get(3)._1());
+		Assert.assertEquals(Arrays.asList(StationFact.create(reading(2000L, 3, 1), 3)), newStates.get(3)._2());
+		Assert.assertEquals(2, newStates.get(3)._2().get(0).lent());
+	}
+
+	@Test
+	public void oldReadingsAreDiscarded() throws Exception {
+		StationState state = StationState.create(7, 2000L);
+		Map<Integer, Tuple2<StationState, List<StationFact>>> newStates = update(Arrays.asList(
+				// redelivered reading
+				stationStatesReadings(1, Arrays.asList(state), reading(2000L, 1, 9)),
+				stationStatesReadings(2, Arrays.asList(state), reading(1000L, 2, 9), reading(3000L, 2, 8))));
+
+		Assert.assertEquals(state, newStates.get(1)._1());
+		Assert.assertTrue(newStates.get(1)._2().isEmpty());
+		Assert.assertEquals(StationState.create(8, 3000L), newStates.get(2)._1());
+		Assert.assertEquals(1, newStates.get(2)._2().size());
+		Assert.assertEquals(1, newStates.get(2)._2().get(0).returned());
+	}
+
+	@Test
+	public void duplicatedReadingsInABatchAreDiscarded() throws Exception {
+		Map<Integer, Tuple2<StationState, List<StationFact>>> newStates = update(Arrays.asList(
+				// new station, with a reading delivered twice in the same batch
+				stationStatesReadings(1, Collections.<StationState>emptyList(), reading(1000L, 1, 5), reading(1000L, 1, 5)),
+				stationStatesReadings(2, Arrays.asList(StationState.create(7, 500L)), 
+						reading(2000L, 2, 4), reading(1000L, 2, 6), reading(2000L, 2, 4))));
+
+		Assert.assertEquals(StationState.create(5, 1000L), newStates.get(1)._1());
+		Assert.assertEquals(Arrays.asList(StationFact.create(reading(1000L, 1, 5), -1)), newStates.get(1)._2());
+		Assert.assertEquals(StationState.create(4, 2000L), newStates.get(2)._1());
+		Assert.assertEquals(Arrays.asList(StationFact.create(reading(1000L, 2, 6), 7), StationFact.create(reading(2000L, 2, 4), 6)), 
+				newStates.get(2)._2());
+	}
+
+	@Test
+	public void recomputingGivesTheSameFacts() throws Exception {
+		List<StationFact> facts = new ArrayList<StationFact>();
+		List<StationFact> recomputedFacts = new ArrayList<StationFact>();
+		List<StationReading> readings = Arrays.asList(reading(1000L, 1, 9), reading(2000L, 1, 4), reading(3000L, 1, 6));
+		Optional<StationState> state = Optional.of(StationState.create(10, 500L));
+		Assert.assertEquals(StationStateStore.update(state, readings, facts),
+				StationStateStore.update(state, readings, recomputedFacts));
+		Assert.assertEquals(facts, recomputedFacts);
+	}
+}
@@ -0,0 +1,155 @@
+package org.collprod.bicingbcn.etl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBC driver for URLs starting with jdbc:stub:, for testing without Phoenix. Connections just track
+ * whether they are closed, and the global counters below. Connections for URLs starting with jdbc:stub:batch:
+ * support batch updates, like most drivers, while the rest don't, like Phoenix 3. Connections for URLs 
+ * containing :failing_rollback throw on rollback()
+ * */
+public class StubDriver implements Driver {
+	static final AtomicInteger OPENED_CONNECTIONS = new AtomicInteger();
+	static final AtomicInteger EXECUTED_UPDATES = new AtomicInteger();
+	static final AtomicInteger BATCHED_UPDATES = new AtomicInteger();
+	static final AtomicInteger COMMITS = new AtomicInteger();
+	static final AtomicInteger ROLLBACKS = new AtomicInteger();
+	static {
+		try {
+			DriverManager.registerDriver(new StubDriver());
+		} catch (SQLException se) {
+			throw new RuntimeException(se);
+		}
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (! acceptsURL(url)) {
+			return null;
+		}
+		OPENED_CONNECTIONS.incrementAndGet();
+		final boolean supportsBatchUpdates = url.startsWith("jdbc:stub:batch:");
+		final boolean failingRollback = url.contains(":failing_rollback");
+		return (Connection) Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+				new Class<?> [] {Connection.class}, new InvocationHandler() {
+			private boolean closed = false;
+			private boolean autoCommit = true;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("setAutoCommit")) {
+					this.autoCommit = (Boolean) args[0];
+				} else if (name.equals("getAutoCommit")) {
+					return this.autoCommit;
+				} else if (name.equals("rollback")) {
+					if (failingRollback) {
+						throw new SQLException("Injected rollback failure");
+					}
+					ROLLBACKS.incrementAndGet();
+				} else if (name.equals("close")) {
+					this.closed = true;
+				} else if (name.equals("isClosed")) {
+					return this.closed;
+				} else if (name.equals("isValid")) {
+					return ! this.closed;
+				} else if (name.equals("commit")) {
+					COMMITS.incrementAndGet();
+				} else if (name.equals("getMetaData")) {
+					return metaData(supportsBatchUpdates);
+				} else if (name.equals("prepareStatement")) {
+					return preparedStatement();
+				}
+				return null;
+			}
+		});
+	}
+
+	private static DatabaseMetaData metaData(final boolean supportsBatchUpdates) {
+		return (DatabaseMetaData) Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+				new Class<?> [] {DatabaseMetaData.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("supportsBatchUpdates")) {
+					return supportsBatchUpdates;
+				}
+				return null;
+			}
+		});
+	}
+
+	private static PreparedStatement preparedStatement() {
+		return (PreparedStatement) Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+				new Class<?> [] {PreparedStatement.class}, new InvocationHandler() {
+			private int pendingBatch = 0;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if (name.equals("equals")) {
+					return proxy == args[0];
+				}
+				if (name.equals("executeUpdate")) {
+					EXECUTED_UPDATES.incrementAndGet();
+					return 1;
+				}
+				if (name.equals("addBatch")) {
+					this.pendingBatch++;
+				} else if (name.equals("clearBatch")) {
+					this.pendingBatch = 0;
+				} else if (name.equals("executeBatch")) {
+					BATCHED_UPDATES.addAndGet(this.pendingBatch);
+					int [] updateCounts = new int[this.pendingBatch];
+					this.pendingBatch = 0;
+					return updateCounts;
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean acceptsURL(String url) throws SQLException {
+		return url.startsWith("jdbc:stub:");
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	// JDBC 4.1, no @Override so it compiles with Java 6
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
@@ -0,0 +1,361 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout.DatasourceState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Optional;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Downloads the files for the data sources of a RestIngestionSpout using a bounded pool of background
+ * threads, so a slow or unresponsive service doesn't block the downloads for the rest of the data sources,
+ * nor the calls to nextTuple(), ack() and fail() in the spout thread.
+ * </p>
+ * <p>
+ * Finished downloads are stored in a queue which is drained by the spout thread by calling poll(), either
+ * without blocking or waiting up to some timeout. At most one download per data source is in flight at any 
+ * time, so a data source with a service slower than its refresh rate doesn't pile up requests in the pool. 
+ * Requests have connect and socket timeouts of at most half the refresh rate of their data source, so an 
+ * unresponsive service releases its download thread instead of keeping it until the service closes the connection
+ * </p>
+ * <p>
+ * Downloads of unchanged data are avoided or rejected as early as possible: 
+ * <ul>
+ * 	<li>requests are conditional GETs with If-None-Match and If-Modified-Since headers, built from the 
+ * ETag and Last-Modified headers of the last response, so services supporting them answer with a 304 
+ * Not Modified and no body</li>
+ * 	<li>gzip and deflate encodings are accepted, and decompressed transparently by HttpClient</li> 
+ * 	<li>for services that ignore those headers, the body is hashed while it is read from the connection, and 
+ * if the hash is the same as the hash of the previous body for the data source then the body is discarded
+ * before building a String for it, and before the spout parses its timestamp</li>
+ * </ul>
+ * In those cases the download is returned as not modified.  
+ * </p>
+ * <p>
+ * Apart from the ConditionalRequestState, only the immutable configuration of a DatasourceState is accessed from 
+ * the download threads, the rest of the mutable state is only accessed by the spout thread when processing 
+ * the results of poll()
+ * </p>
+ * */
+class AsyncDownloader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDownloader.class);
+
+	/**
+	 * Pool of threads for performing the downloads
+	 * */
+	private final ExecutorService downloadExecutor;
+
+	/**
+	 * Downloads finished and not yet consumed by the spout
+	 * */
+	private final LinkedBlockingQueue<DownloadResult> finishedDownloads;
+
+	/**
+	 * Ids of the data sources with a download in flight
+	 * */
+	private final Set<String> inFlightDatasources;
+	
+	/**
+	 * Default timeout in milliseconds for establishing a connection, when "spout.connect_timeout_ms" 
+	 * is not in the configuration
+	 * */
+	static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+	
+	/**
+	 * Default timeout in milliseconds for waiting for data from a service, when "spout.socket_timeout_ms" 
+	 * is not in the configuration
+	 * */
+	static final int DEFAULT_SOCKET_TIMEOUT_MS = 10000;
+
+	/**
+	 * Hash function used to fingerprint the downloaded bodies
+	 * */
+	private static final HashFunction FINGERPRINT_FUNCTION = Hashing.murmur3_128();
+	
+	/**
+	 * <p>Mutable state used for avoiding the download of unchanged data for a data source. 
+	 * Only accessed from the download threads, but by a single download at a time, as there is at most 
+	 * one download in flight per data source</p>
+	 * <p>
+	 * Fields are volatile because consecutive downloads for the same data source might be 
+	 * performed by different threads of the pool 
+	 * </p>
+	 * */
+	static class ConditionalRequestState {
+		/**
+		 * Value of the ETag header in the last response, or null if absent
+		 * */
+		volatile String etag = null;
+		/**
+		 * Value of the Last-Modified header in the last response, or null if absent
+		 * */
+		volatile String lastModified = null;
+		/**
+		 * Fingerprint of the last body downloaded, or null if nothing has been downloaded yet
+		 * */
+		volatile byte [] lastFingerprint = null;
+	}
+
+	/**
+	 * Result of a download for a data source
+	 * */
+	@AutoValue
+	static abstract class DownloadResult {
+		DownloadResult() {}
+		public static DownloadResult create(DatasourceState datasourceState, Optional<String> content, boolean notModified) {
+			return new AutoValue_AsyncDownloader_DownloadResult(datasourceState, content, notModified);
+		}
+		/**
+		 * Data source for which the download was performed
+		 * */
+		public abstract DatasourceState datasourceState();
+		/**
+		 * Contents of the downloaded file, or absent if all the download attempts failed or if
+		 * the data was not modified since the last download
+		 * */
+		public abstract Optional<String> content();
+		/**
+		 * Whether the service reported the data was not modified, or the body was identical 
+		 * to the body of the last download
+		 * */
+		public abstract boolean notModified();
+	}
+	
+	/**
+	 * Reads the response from the service, updating conditionalState
+	 * */
+	private static class ConditionalResponseHandler implements ResponseHandler<DownloadResult> {
+		private final DatasourceState datasourceState;
+		private final ConditionalRequestState conditionalState;
+		
+		ConditionalResponseHandler(DatasourceState datasourceState) {
+			this.datasourceState = datasourceState;
+			this.conditionalState = datasourceState.conditionalRequestState();
+		}
+		
+		@Override
+		public DownloadResult handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+			StatusLine statusLine = response.getStatusLine();
+			HttpEntity entity = response.getEntity();
+			if (statusLine.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+				EntityUtils.consume(entity);
+				return DownloadResult.create(this.datasourceState, Optional.<String>absent(), true);
+			}
+			if (statusLine.getStatusCode() >= 300) {
+				// same behaviour as Response.returnContent()
+				EntityUtils.consume(entity);
+				throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+			}
+			if (entity == null) {
+				throw new ClientProtocolException("Response contains no content");
+			}
+			
+			// read the body while computing its fingerprint
+			long contentLength = entity.getContentLength();
+			ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 4096);
+			InputStream entityContent = entity.getContent();
+			HashingInputStream hashingContent = new HashingInputStream(FINGERPRINT_FUNCTION, entityContent); 
+			try {
+				ByteStreams.copy(hashingContent, body);
+			} finally {
+				entityContent.close();
+			}
+			
+			// store validators for the next request
+			this.conditionalState.etag = headerValue(response, HttpHeaders.ETAG);
+			this.conditionalState.lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+			
+			// reject the body before converting to String if it is the same as the last one
+			byte [] fingerprint = hashingContent.hash().asBytes();
+			if (Arrays.equals(fingerprint, this.conditionalState.lastFingerprint)) {
+				return DownloadResult.create(this.datasourceState, Optional.<String>absent(), true);
+			}
+			this.conditionalState.lastFingerprint = fingerprint;
+			
+			// same default charset as Content.asString()
+			Charset charset = ContentType.getOrDefault(entity).getCharset();
+			if (charset == null) {
+				charset = Consts.ISO_8859_1;
+			}
+			return DownloadResult.create(this.datasourceState, Optional.of(new String(body.toByteArray(), charset)), false);
+		}
+		
+		private static String headerValue(HttpResponse response, String headerName) {
+			Header header = response.getFirstHeader(headerName);
+			return header == null ? null : header.getValue();
+		}
+	}
+
+	/**
+	 * @param numThreads number of threads used to perform the downloads
+	 * @param threadNamePrefix prefix for the names of the download threads, for logging
+	 * */
+	AsyncDownloader(int numThreads, String threadNamePrefix) {
+		// daemon threads, so a pool that is not shutdown doesn't prevent the worker from exiting
+		this.downloadExecutor = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactoryBuilder()
+					.setNameFormat(threadNamePrefix + "-download-%d")
+					.setDaemon(true)
+					.build());
+		this.finishedDownloads = new LinkedBlockingQueue<DownloadResult>();
+		this.inFlightDatasources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	private static void logDownloadError(DatasourceState datasourceState, Exception e) {
+		LOGGER.warn("Error downloading file for data source "
+						+  datasourceState.datasourceId() + " : "+ e.getMessage());
+	}
+
+	/**
+	 * Builds the request for a data source. The timeouts are capped to half of refreshRate, so a connection 
+	 * attempt followed by a read can't block the data source for longer than its refresh rate. Note the socket
+	 * timeout bounds the time between two packets, not the time for the whole body
+	 * 
+	 * @param refreshRate refresh rate of the data source in milliseconds
+	 * @param connectTimeout timeout in milliseconds for establishing the connection
+	 * @param socketTimeout timeout in milliseconds for waiting for data from the service
+	 * */
+	static Request newRequest(String url, float refreshRate, int connectTimeout, int socketTimeout) {
+		int maxTimeout = Math.max(1, Math.round(refreshRate / 2));
+		return Request.Get(url)
+				.connectTimeout(Math.min(connectTimeout, maxTimeout))
+				.socketTimeout(Math.min(socketTimeout, maxTimeout));
+	}
+
+	/**
+	 * Sets the header headerName to value in request, or removes it if value is null
+	 * */
+	private static void setOrRemoveHeader(Request request, String headerName, String value) {
+		if (value == null) {
+			request.removeHeaders(headerName);
+		} else {
+			request.setHeader(headerName, value);
+		}
+	}
+	
+	/**
+	 * Blocking conditional download of a file for datasourceState, retrying up to 
+	 * datasourceState.dowloadRetries() times
+	 *
+	 * @return the result of the download. The content is absent if all the attempts failed, or if 
+	 * the data was not modified 
+	 * */
+	private static DownloadResult downloadFile(DatasourceState datasourceState) {
+		// the Request object is reused by all the downloads of the data source, but there is just one in flight
+		Request request = datasourceState.request();
+		ConditionalRequestState conditionalState = datasourceState.conditionalRequestState();
+		// HttpClient decompresses the response transparently
+		request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+		setOrRemoveHeader(request, HttpHeaders.IF_NONE_MATCH, conditionalState.etag);
+		setOrRemoveHeader(request, HttpHeaders.IF_MODIFIED_SINCE, conditionalState.lastModified);
+		
+		for (int i = 0; i < datasourceState.dowloadRetries(); i++) {
+			try {
+				return request.execute().handleResponse(new ConditionalResponseHandler(datasourceState));
+			} catch (ClientProtocolException cpe) {
+				// return code different to 200
+				logDownloadError(datasourceState, cpe);
+			} catch (IOException ioe) {
+				// bad URI or similar
+				logDownloadError(datasourceState, ioe);
+			}
+		}
+		return DownloadResult.create(datasourceState, Optional.<String>absent(), false);
+	}
+
+	/**
+	 * Schedules a download for datasourceState in the pool, unless there is already
+	 * a download in flight for that data source
+	 *
+	 * @return true iff a new download was scheduled
+	 * */
+	boolean submit(final DatasourceState datasourceState) {
+		if (! this.inFlightDatasources.add(datasourceState.datasourceId())) {
+			LOGGER.debug("Download for data source {} still in progress, skipping", datasourceState.datasourceId());
+			return false;
+		}
+		try {
+			this.downloadExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					DownloadResult result = DownloadResult.create(datasourceState, Optional.<String>absent(), false);
+					try {
+						result = downloadFile(datasourceState);
+					} catch (RuntimeException re) {
+						// unchecked exceptions from HttpClient should not kill the download thread
+						logDownloadError(datasourceState, re);
+					} finally {
+						AsyncDownloader.this.inFlightDatasources.remove(datasourceState.datasourceId());
+						AsyncDownloader.this.finishedDownloads.add(result);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			// the pool was shutdown
+			this.inFlightDatasources.remove(datasourceState.datasourceId());
+			LOGGER.warn("Download pool rejected download for data source {}", datasourceState.datasourceId());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Non blocking
+	 *
+	 * @return the oldest finished download not yet returned by this method, or null if there is none
+	 * */
+	DownloadResult poll() {
+		return this.finishedDownloads.poll();
+	}
+
+	/**
+	 * Waits up to timeout for a download to finish if there is no finished download available
+	 * 
+	 * @return the oldest finished download not yet returned by poll, or null if there is none after timeout 
+	 * */
+	DownloadResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.finishedDownloads.poll(timeout, unit);
+	}
+	
+	/**
+	 * Stop accepting new downloads, and interrupt the downloads in flight
+	 * */
+	void shutdown() {
+		this.downloadExecutor.shutdownNow();
+	}
+}
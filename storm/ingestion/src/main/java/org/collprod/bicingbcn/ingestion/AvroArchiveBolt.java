@@ -0,0 +1,557 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Tuple;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) which are archived
+ * in Avro files, in the path "hdfs_path" in the configuration of the data source, with an Avro record with the
+ * schema AVRO_SCHEMA per tuple, where the content is the CONTENT_FIELD decoded with the codec in CODEC_FIELD.
+ * </p>
+ * <p>
+ * This is a revision of attic.AvroWriterBolt, that didn't work because it appended to a file per month that
+ * was never closed properly, as Storm doesn't call cleanup() in cluster mode. Instead:
+ * <ul>
+ * 	<li>The data is partitioned by hour or by day in UTC according to "avro_archive.partition", so the files
+ * are at &lt;hdfs_path&gt;/&lt;partition&gt;/&lt;component&gt;_&lt;task index&gt;_&lt;creation millis&gt;.avro.
+ * Each bolt task writes its own files, which are never appended: when a writer is closed and the
+ * task gets more data for the same partition, a new file is created</li>
+ *  <li>A file is written with the suffix ".tmp", and renamed when it is closed. Writers are closed when
+ * they are not used for IDLE_WRITER_MINUTES minutes, so late tuples for the previous partition still go to
+ * the same file</li>
+ * 	<li>The records are written in blocks compressed with the codec in "avro_archive.codec", "deflate" or "snappy".
+ * This bolt decides where each block ends, instead of DataFileWriter: a block is written when its records
+ * add up to "avro_archive.sync_interval" bytes before compression, or when its first record is older than 
+ * "avro_archive.max_block_secs" seconds, which is checked on tick tuples every "avro_archive.flush_secs" seconds.
+ * After writing a block the file is flushed with hflush(), so the records are visible for readers and 
+ * will survive a crash of this worker, and only then the tuples of the block are acked</li>
+ * 	<li>So the tuples wait for their block for up to "avro_archive.max_block_secs" plus "avro_archive.flush_secs" 
+ * seconds, and this is the trade-off for compressing several snapshots together: with the defaults a block 
+ * holds about 8 Bicing snapshots of 130 KB, downloaded every 20 seconds, so blocks usually end by size. 
+ * IngestionTopology raises topology.message.timeout.secs above that delay</li>
+ * 	<li>If writing a block fails the tuples of the block are failed and the file is abandoned, by renaming 
+ * it with the suffix ".failed" instead. If appending a record fails, the tuples of the current block are 
+ * failed and the block is discarded, the file is closed with the blocks already written, and the next 
+ * tuples go to a new file</li>
+ * 	<li>Files are written to the default file system of the Hadoop configuration, or to the file system
+ * at the URI "avro_archive.fs_uri" if present, e.g. "file:///" for the local file system</li>
+ * </ul>
+ * Temporary files left by a crash contain the records flushed before the crash, all of them acked. These
+ * files are renamed when a task for the same component and index starts, so they are not lost.
+ * Their last block might be incomplete. Abandoned files are not renamed, as they might be corrupted, and the
+ * tuples for their last block were failed and replayed to a new file
+ * </p>
+ * */
+public class AvroArchiveBolt extends BaseRichBolt {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = -1986517006392633407L;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AvroArchiveBolt.class);
+
+	public static final String AVRO_RECORD_NAME = "archive_record";
+	public static final String AVRO_RECORD_NAMESPACE = "org.collprod.bicingbcn";
+	public static final String AVRO_TIMESTAMP_FIELD = "timestamp";
+	public static final String AVRO_KEY_FIELD = "key";
+	public static final String AVRO_CONTENT_FIELD = "content";
+	public static final Schema AVRO_SCHEMA;
+	static {
+		AVRO_SCHEMA = SchemaBuilder
+				.record(AVRO_RECORD_NAME).namespace(AVRO_RECORD_NAMESPACE)
+				.fields()
+					.name(AVRO_TIMESTAMP_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(AVRO_KEY_FIELD).type(Schema.create(Schema.Type.STRING)).noDefault()
+					// the data as UTF-8 bytes
+					.name(AVRO_CONTENT_FIELD).type(Schema.create(Schema.Type.BYTES)).noDefault()
+				.endRecord();
+	}
+
+	public static final String HOURLY_PARTITION = "hourly";
+	public static final String DAILY_PARTITION = "daily";
+
+	private static final String AVRO_SUFFIX = ".avro";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String FAILED_SUFFIX = ".failed";
+
+	/**
+	 * Writers not used for this time are closed
+	 * */
+	private static final long IDLE_WRITER_MINUTES = 5;
+
+	/**
+	 * Maximum sync interval supported by DataFileWriter, so it never ends a block by itself
+	 * */
+	private static final int MAX_AVRO_SYNC_INTERVAL = 1 << 30;
+
+	/**
+	 * Default values for the configuration, when not present
+	 * */
+	public static final int DEFAULT_FLUSH_SECS = 10;
+	public static final int DEFAULT_MAX_BLOCK_SECS = 180;
+	private static final String DEFAULT_CODEC = "deflate";
+	private static final int DEFAULT_DEFLATE_LEVEL = 6;
+	private static final int DEFAULT_SYNC_INTERVAL = 1024 * 1024;
+
+	/**
+	 * Storm collector for acking or failing
+	 * */
+	private OutputCollector collector;
+
+	/**
+	 * Frequency of the tick tuples, this is a field because getComponentConfiguration() is
+	 * called before prepare()
+	 * */
+	private final int flushSecs;
+
+	// Configuration
+	private Map<String, String> datasourcesDirectories;
+	private CodecFactory codec;
+	private int syncInterval;
+	private long maxBlockMillis;
+	private SimpleDateFormat partitionFormatter;
+	/**
+	 * Prefix for the names of the files of this task
+	 * */
+	private String filePrefix;
+
+	// Hadoop stuff
+	private FileSystem fs;
+
+	/**
+	 * Open writers
+	 * */
+	private Map<DatasourcePartition, PartitionWriter> writers;
+
+	@AutoValue
+	static abstract class DatasourcePartition {
+		DatasourcePartition() {}
+		public static DatasourcePartition create(String datasource, String partition) {
+			return new AutoValue_AvroArchiveBolt_DatasourcePartition(datasource, partition);
+		}
+		public abstract String datasource();
+		public abstract String partition();
+	}
+
+	/**
+	 * An open file, and the tuples for the records in its current block
+	 * */
+	private static class PartitionWriter {
+		final Path tmpPath;
+		final Path path;
+		final FSDataOutputStream outputStream;
+		final DataFileWriter<GenericRecord> writer;
+		final List<Tuple> pendingTuples = new ArrayList<Tuple>();
+		/**
+		 * Size of the records in the current block before compression, and time its first record was appended 
+		 * */
+		long pendingBytes = 0;
+		long firstPendingMillis = 0;
+		long lastWriteMillis = System.currentTimeMillis();
+		/**
+		 * Number of blocks written to the file
+		 * */
+		int blocks = 0;
+		/**
+		 * True if writing a block or appending a record failed, then the file or the current block
+		 * might be corrupted
+		 * */
+		boolean failed = false;
+
+		PartitionWriter(Path path, FSDataOutputStream outputStream, DataFileWriter<GenericRecord> writer) {
+			this.path = path;
+			this.tmpPath = tmpPath(path);
+			this.outputStream = outputStream;
+			this.writer = writer;
+		}
+	}
+
+	/**
+	 * @param flushSecs frequency in seconds of the tick tuples, when the blocks older than "avro_archive.max_block_secs"
+	 * are written. Use the value of "avro_archive.flush_secs"
+	 * */
+	public AvroArchiveBolt(int flushSecs) {
+		this.flushSecs = flushSecs;
+	}
+
+	private static Path tmpPath(Path path) {
+		return new Path(path.getParent(), path.getName() + TMP_SUFFIX);
+	}
+
+	private static Path failedPath(Path path) {
+		return new Path(path.getParent(), path.getName() + FAILED_SUFFIX);
+	}
+
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		return TupleUtils.tickTupleConfiguration(this.flushSecs);
+	}
+
+	@Override
+	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context,
+			OutputCollector collector) {
+		this.collector = collector;
+		this.writers = new HashMap<DatasourcePartition, PartitionWriter>();
+		this.filePrefix = context.getThisComponentId() + "_" + context.getThisTaskIndex() + "_";
+
+		// Load target datasource directories from Storm configuration
+		try {
+			@SuppressWarnings("unchecked")
+			Map<String, Configuration> datasourcesConfigurations =
+					IngestionTopology.deserializeConfigurations((Map<String, String>) stormConf.get(IngestionTopology.DATASOURCE_CONF_KEY));
+			this.datasourcesDirectories = new HashMap<String, String>();
+			for (Map.Entry<String, Configuration> datasourceConfig : datasourcesConfigurations.entrySet()) {
+				this.datasourcesDirectories.put(datasourceConfig.getKey(),
+											    datasourceConfig.getValue().getString("hdfs_path"));
+			}
+		} catch (ConfigurationException ce) {
+			LOGGER.error("Error parsing datasource configurations: " + ce.getMessage());
+			throw new RuntimeException(ce);
+		}
+
+		// Avro configuration
+		Object codecConf = stormConf.get("avro_archive.codec");
+		String codecName = codecConf == null ? DEFAULT_CODEC : codecConf.toString().trim();
+		if (codecName.equals("deflate")) {
+			this.codec = CodecFactory.deflateCodec(
+					IngestionTopology.getIntConf(stormConf, "avro_archive.deflate_level", DEFAULT_DEFLATE_LEVEL));
+		} else if (codecName.equals("snappy")) {
+			this.codec = CodecFactory.snappyCodec();
+		} else {
+			String msg = "Unknown Avro archive codec " + codecName;
+			LOGGER.error(msg);
+			throw new RuntimeException(msg);
+		}
+		this.syncInterval = IngestionTopology.getIntConf(stormConf, "avro_archive.sync_interval", DEFAULT_SYNC_INTERVAL);
+		this.maxBlockMillis = TimeUnit.SECONDS.toMillis(
+				IngestionTopology.getIntConf(stormConf, "avro_archive.max_block_secs", DEFAULT_MAX_BLOCK_SECS));
+
+		Object partitionConf = stormConf.get("avro_archive.partition");
+		String partition = partitionConf == null ? HOURLY_PARTITION : partitionConf.toString().trim();
+		if (partition.equals(HOURLY_PARTITION)) {
+			this.partitionFormatter = new SimpleDateFormat("yyyy-MM-dd-HH");
+		} else if (partition.equals(DAILY_PARTITION)) {
+			this.partitionFormatter = new SimpleDateFormat("yyyy-MM-dd");
+		} else {
+			String msg = "Unknown Avro archive partition " + partition;
+			LOGGER.error(msg);
+			throw new RuntimeException(msg);
+		}
+		this.partitionFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		// Connect to the file system
+		org.apache.hadoop.conf.Configuration hadoopConf = new org.apache.hadoop.conf.Configuration(true);
+		hadoopConf.addResource(new Path(stormConf.get("hadoop.res.core-site").toString()));
+		hadoopConf.addResource(new Path(stormConf.get("hadoop.res.hdfs-site").toString()));
+		Object fsUri = stormConf.get("avro_archive.fs_uri");
+		try {
+			this.fs = fsUri == null ? FileSystem.get(hadoopConf) : FileSystem.get(URI.create(fsUri.toString().trim()), hadoopConf);
+			recoverTmpFiles();
+		} catch (IOException ioe) {
+			LOGGER.error("Error connecting to the file system: " + ExceptionUtils.getStackTrace(ioe));
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * Rename the temporary files left by previous executions of this task
+	 * */
+	private void recoverTmpFiles() throws IOException {
+		for (String datasourceDirectory : this.datasourcesDirectories.values()) {
+			FileStatus [] tmpFiles = this.fs.globStatus(new Path(datasourceDirectory,
+					"*/" + this.filePrefix + "*" + AVRO_SUFFIX + TMP_SUFFIX));
+			if (tmpFiles == null) {
+				continue;
+			}
+			for (FileStatus tmpFile : tmpFiles) {
+				Path tmpPath = tmpFile.getPath();
+				String name = tmpPath.getName();
+				Path path = new Path(tmpPath.getParent(), name.substring(0, name.length() - TMP_SUFFIX.length()));
+				LOGGER.warn("Recovering temporary file {} from a previous execution", tmpPath);
+				if (! this.fs.rename(tmpPath, path)) {
+					LOGGER.error("Could not rename {} to {}", tmpPath, path);
+				}
+			}
+		}
+	}
+
+	private PartitionWriter openWriter(DatasourcePartition datasourcePartition) throws IOException {
+		String datasourceDirectory = this.datasourcesDirectories.get(datasourcePartition.datasource());
+		if (datasourceDirectory == null) {
+			throw new IOException("No hdfs_path configured for datasource " + datasourcePartition.datasource());
+		}
+		Path path = new Path(new Path(datasourceDirectory, datasourcePartition.partition()),
+				this.filePrefix + System.currentTimeMillis() + AVRO_SUFFIX);
+		LOGGER.info("Creating new file {} for datasource {}", path, datasourcePartition.datasource());
+
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<GenericRecord>(
+				new GenericDatumWriter<GenericRecord>(AVRO_SCHEMA));
+		writer.setCodec(this.codec);
+		// blocks are ended by writeBlock()
+		writer.setSyncInterval(MAX_AVRO_SYNC_INTERVAL);
+		// never overwrite
+		FSDataOutputStream outputStream = this.fs.create(tmpPath(path), false);
+		try {
+			writer.create(AVRO_SCHEMA, outputStream);
+		} catch (IOException ioe) {
+			outputStream.close();
+			throw ioe;
+		}
+		return new PartitionWriter(path, outputStream, writer);
+	}
+
+	/**
+	 * Write the current block of writer and make it durable with hflush(), then ack its pending tuples. 
+	 * If that fails, the tuples are failed and writer should be closed
+	 *
+	 * @return true iff the block was written
+	 * */
+	private boolean writeBlock(DatasourcePartition datasourcePartition, PartitionWriter writer) {
+		if (writer.pendingTuples.isEmpty()) {
+			return true;
+		}
+		boolean success = false;
+		try {
+			// ends the block, and flushes the buffer of DataFileWriter to outputStream
+			writer.writer.flush();
+			writer.outputStream.hflush();
+			writer.blocks++;
+			success = true;
+		} catch (IOException ioe) {
+			LOGGER.error("Error writing a block to file {} for datasource {}: {}",
+					new Object [] {writer.tmpPath, datasourcePartition.datasource(), ExceptionUtils.getStackTrace(ioe)});
+		}
+		completePending(writer, success);
+		writer.failed = writer.failed || ! success;
+		return success;
+	}
+
+	/**
+	 * Ack the pending tuples of writer if success, otherwise fail them
+	 * */
+	private void completePending(PartitionWriter writer, boolean success) {
+		for (Tuple tuple : writer.pendingTuples) {
+			if (success) {
+				this.collector.ack(tuple);
+			} else {
+				this.collector.fail(tuple);
+			}
+		}
+		writer.pendingTuples.clear();
+		writer.pendingBytes = 0;
+	}
+
+	/**
+	 * Write the current block of writer, close it, and rename the file to its final name
+	 *
+	 * @return true if the file was closed and renamed
+	 * */
+	private boolean close(DatasourcePartition datasourcePartition, PartitionWriter writer) {
+		boolean flushed = writeBlock(datasourcePartition, writer) && ! writer.failed;
+		try {
+			writer.writer.close();
+		} catch (IOException ioe) {
+			LOGGER.error("Error closing file {}: {}", writer.tmpPath, ExceptionUtils.getStackTrace(ioe));
+			abandon(writer);
+			return false;
+		}
+		if (! flushed) {
+			// the file might be corrupted
+			abandon(writer);
+			return false;
+		}
+		try {
+			if (this.fs.rename(writer.tmpPath, writer.path)) {
+				LOGGER.info("Closed file {}", writer.path);
+				return true;
+			}
+			LOGGER.error("Could not rename {} to {}", writer.tmpPath, writer.path);
+		} catch (IOException ioe) {
+			LOGGER.error("Error renaming {}: {}", writer.tmpPath, ExceptionUtils.getStackTrace(ioe));
+		}
+		return false;
+	}
+
+	/**
+	 * Close writer after appending a record failed, failing the tuples of its current block. The current block
+	 * is discarded by closing the file without closing the DataFileWriter, so the file keeps the blocks already 
+	 * written and is renamed to its final name, or deleted if it has no blocks 
+	 * */
+	private void discard(PartitionWriter writer) {
+		writer.failed = true;
+		completePending(writer, false);
+		try {
+			writer.outputStream.close();
+			if (writer.blocks == 0) {
+				this.fs.delete(writer.tmpPath, false);
+				LOGGER.warn("Deleted file {} without blocks", writer.tmpPath);
+			} else if (this.fs.rename(writer.tmpPath, writer.path)) {
+				LOGGER.warn("Closed file {} discarding its last block", writer.path);
+			} else {
+				LOGGER.error("Could not rename {} to {}", writer.tmpPath, writer.path);
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("Error closing file {}: {}", writer.tmpPath, ExceptionUtils.getStackTrace(ioe));
+			abandon(writer);
+		}
+	}
+
+	/**
+	 * Rename the file of writer with FAILED_SUFFIX, so recoverTmpFiles() doesn't rename it to its final name
+	 * */
+	private void abandon(PartitionWriter writer) {
+		Path failedPath = failedPath(writer.path);
+		try {
+			if (this.fs.rename(writer.tmpPath, failedPath)) {
+				LOGGER.warn("Abandoned file {}", failedPath);
+				return;
+			}
+			LOGGER.error("Could not rename {} to {}", writer.tmpPath, failedPath);
+		} catch (IOException ioe) {
+			LOGGER.error("Error renaming {}: {}", writer.tmpPath, ExceptionUtils.getStackTrace(ioe));
+		}
+	}
+
+	/**
+	 * Write the blocks which first record is older than maxBlockMillis, closing the idle writers and those 
+	 * for which writing the block failed
+	 * */
+	private void writeOldBlocks() {
+		long now = System.currentTimeMillis();
+		long idleLimitMillis = now - TimeUnit.MINUTES.toMillis(IDLE_WRITER_MINUTES);
+		Iterator<Map.Entry<DatasourcePartition, PartitionWriter>> writersIter = this.writers.entrySet().iterator();
+		while (writersIter.hasNext()) {
+			Map.Entry<DatasourcePartition, PartitionWriter> entry = writersIter.next();
+			PartitionWriter writer = entry.getValue();
+			if (writer.lastWriteMillis < idleLimitMillis) {
+				close(entry.getKey(), writer);
+				writersIter.remove();
+			} else if (! writer.pendingTuples.isEmpty() && now - writer.firstPendingMillis >= this.maxBlockMillis
+					&& ! writeBlock(entry.getKey(), writer)) {
+				// start a new file for the next tuples
+				close(entry.getKey(), writer);
+				writersIter.remove();
+			}
+		}
+	}
+
+	@Override
+	public void execute(Tuple inputTuple) {
+		if (TupleUtils.isTickTuple(inputTuple)) {
+			writeOldBlocks();
+			return;
+		}
+
+		/* Processing tuples of the shape
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) */
+		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
+		long timestamp = inputTuple.getLongByField(RestIngestionSpout.TIMESTAMP_FIELD);
+		DatasourcePartition datasourcePartition =
+				DatasourcePartition.create(datasource, this.partitionFormatter.format(new Date(timestamp)));
+
+		String key = inputTuple.getStringByField(RestIngestionSpout.KEY_FIELD);
+		byte [] content;
+		PartitionWriter writer = this.writers.get(datasourcePartition);
+		try {
+			content = PayloadCodec.forName(inputTuple.getStringByField(RestIngestionSpout.CODEC_FIELD))
+					.decode(inputTuple.getBinaryByField(RestIngestionSpout.CONTENT_FIELD));
+			if (writer == null) {
+				writer = openWriter(datasourcePartition);
+				this.writers.put(datasourcePartition, writer);
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("Error preparing Avro record for datasource " + datasource
+					+ " and timestamp " + timestamp + " : " + ioe.getMessage());
+			this.collector.fail(inputTuple);
+			return;
+		}
+		
+		GenericRecord record = new GenericData.Record(AVRO_SCHEMA);
+		record.put(AVRO_TIMESTAMP_FIELD, timestamp);
+		record.put(AVRO_KEY_FIELD, key);
+		record.put(AVRO_CONTENT_FIELD, ByteBuffer.wrap(content));
+		Exception appendException = null;
+		try {
+			// buffered in the current block, which is written by writeBlock()
+			writer.writer.append(record);
+		} catch (IOException ioe) {
+			appendException = ioe;
+		} catch (DataFileWriter.AppendWriteException awe) {
+			appendException = awe;
+		}
+		if (appendException != null) {
+			LOGGER.error("Error writing Avro record for datasource {} and timestamp {} to file {}, starting a new file: {}", 
+					new Object [] {datasource, timestamp, writer.tmpPath, ExceptionUtils.getStackTrace(appendException)});
+			this.collector.fail(inputTuple);
+			discard(writer);
+			this.writers.remove(datasourcePartition);
+			return;
+		}
+		
+		// acked when the block is written
+		if (writer.pendingTuples.isEmpty()) {
+			writer.firstPendingMillis = System.currentTimeMillis();
+		}
+		writer.pendingTuples.add(inputTuple);
+		writer.pendingBytes += key.length() + content.length;
+		writer.lastWriteMillis = System.currentTimeMillis();
+		if (writer.pendingBytes >= this.syncInterval && ! writeBlock(datasourcePartition, writer)) {
+			// start a new file for the next tuples
+			close(datasourcePartition, writer);
+			this.writers.remove(datasourcePartition);
+		}
+	}
+
+	/**
+	 * As Storm doesn't call this method in cluster mode, files are only guaranteed to be
+	 * closed after IDLE_WRITER_MINUTES minutes without writes
+	 * */
+	@Override
+	public void cleanup() {
+		for (Map.Entry<DatasourcePartition, PartitionWriter> entry : this.writers.entrySet()) {
+			close(entry.getKey(), entry.getValue());
+		}
+		this.writers.clear();
+		// this.fs is not closed, as FileSystem.get() returns an instance shared with the rest of the worker
+	}
+
+	@Override
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		// this bolts emits no tuples, just stores in the file system
+	}
+}
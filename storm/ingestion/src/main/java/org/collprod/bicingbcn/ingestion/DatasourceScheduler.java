@@ -0,0 +1,142 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.primitives.Longs;
+
+/**
+ * <p>
+ * Keeps a set of periodic items (e.g. the data sources of a RestIngestionSpout) in a priority queue ordered
+ * by the instant at which each item is next due, so finding the due items and the time until the next
+ * item is due only takes O(log n) per due item, instead of scanning all the items on each wakeup.
+ * </p>
+ * <p>
+ * Items are scheduled at a fixed rate with respect to an anchor that advances by exactly the item period on
+ * each poll, plus a random jitter of up to jitter * period that is not accumulated into the anchor. The first
+ * due instant of each item is chosen at random in the first period. This way items with the same period don't
+ * get polled in the same burst. If an item is polled after its next anchor has already passed (e.g. because
+ * the caller was busy), the anchor is moved to a period after the current instant instead of trying to catch up
+ * </p>
+ * <p>
+ * This class is not thread safe
+ * </p>
+ * */
+class DatasourceScheduler<T> {
+
+	private final PriorityQueue<ScheduledItem<T>> deadlines;
+	private final Ticker ticker;
+	private final Random random;
+	private final double jitter;
+
+	private static class ScheduledItem<T> implements Comparable<ScheduledItem<T>> {
+		final T item;
+		final long periodNanos;
+		/**
+		 * Due instant without jitter
+		 * */
+		long anchorNanos;
+		/**
+		 * Due instant with jitter, this is the ordering key for the queue
+		 * */
+		long dueNanos;
+
+		ScheduledItem(T item, long periodNanos) {
+			this.item = item;
+			this.periodNanos = periodNanos;
+		}
+
+		@Override
+		public int compareTo(ScheduledItem<T> other) {
+			// comparing differences is safe against overflow for nanoTime() values
+			return Longs.compare(this.dueNanos - other.dueNanos, 0);
+		}
+	}
+
+	/**
+	 * @param ticker source of time for the schedule
+	 * @param random source of randomness for the jitter
+	 * @param jitter fraction of the period of an item used as the maximum jitter for that item. Should be in [0, 1)
+	 * */
+	DatasourceScheduler(Ticker ticker, Random random, double jitter) {
+		if (jitter < 0 || jitter >= 1) {
+			throw new IllegalArgumentException("Jitter should be in [0, 1) but found " + jitter);
+		}
+		this.deadlines = new PriorityQueue<ScheduledItem<T>>();
+		this.ticker = ticker;
+		this.random = random;
+		this.jitter = jitter;
+	}
+
+	private long nextJitter(long periodNanos) {
+		return (long) (this.random.nextDouble() * this.jitter * periodNanos);
+	}
+
+	/**
+	 * Add item to the schedule, to be polled every periodMillis milliseconds. The first
+	 * due instant is chosen at random during the next periodMillis milliseconds
+	 * 
+	 * @throws IllegalArgumentException if periodMillis is not positive
+	 * */
+	void add(T item, long periodMillis) {
+		if (periodMillis <= 0) {
+			throw new IllegalArgumentException("Period should be positive but found " + periodMillis);
+		}
+		ScheduledItem<T> scheduledItem = new ScheduledItem<T>(item, TimeUnit.MILLISECONDS.toNanos(periodMillis));
+		scheduledItem.anchorNanos = this.ticker.read() + (long) (this.random.nextDouble() * scheduledItem.periodNanos);
+		scheduledItem.dueNanos = scheduledItem.anchorNanos;
+		this.deadlines.add(scheduledItem);
+	}
+
+	/**
+	 * Removes the items that are due at the current instant, and schedules them again for their next period
+	 *
+	 * @return the items that are due, in order of due instant
+	 * */
+	List<T> pollDue() {
+		List<T> dueItems = new LinkedList<T>();
+		long now = this.ticker.read();
+		while (! this.deadlines.isEmpty() && this.deadlines.peek().dueNanos - now <= 0) {
+			ScheduledItem<T> scheduledItem = this.deadlines.poll();
+			dueItems.add(scheduledItem.item);
+
+			// reschedule
+			scheduledItem.anchorNanos += scheduledItem.periodNanos;
+			if (scheduledItem.anchorNanos - now <= 0) {
+				// we are late, don't try to catch up
+				scheduledItem.anchorNanos = now + scheduledItem.periodNanos;
+			}
+			scheduledItem.dueNanos = scheduledItem.anchorNanos + nextJitter(scheduledItem.periodNanos);
+			this.deadlines.add(scheduledItem);
+		}
+
+		return dueItems;
+	}
+
+	/**
+	 * @return number of milliseconds until the next item is due, rounded up, or 0 if some item is already due.
+	 * Long.MAX_VALUE if there is no item in the schedule
+	 * */
+	long millisUntilNextDue() {
+		if (this.deadlines.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		long nanosUntilNextDue = this.deadlines.peek().dueNanos - this.ticker.read();
+		if (nanosUntilNextDue <= 0) {
+			return 0;
+		}
+		// round up so we don't wake up just before the item is due
+		return TimeUnit.NANOSECONDS.toMillis(nanosUntilNextDue + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+	}
+
+	/**
+	 * @return number of items in the schedule
+	 * */
+	int size() {
+		return this.deadlines.size();
+	}
+}
@@ -0,0 +1,111 @@
+package org.collprod.bicingbcn.ingestion;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * <p>
+ * Storage settings for the column family of the table of a data source written by HBaseWriterBolt.
+ * These are read from the following properties in the configuration file of the data source,
+ * using the defaults of HBase for the missing properties:
+ * <ul>
+ * 	<li>"hbase.compression": compression codec, a value of Compression.Algorithm like "SNAPPY" or "GZ"</li>
+ * 	<li>"hbase.data_block_encoding": a value of DataBlockEncoding like "FAST_DIFF" or "PREFIX"</li>
+ * 	<li>"hbase.block_size": block size in bytes</li>
+ * 	<li>"hbase.bloom_filter": a value of StoreFile.BloomType, "NONE", "ROW" or "ROWCOL"</li>
+ * 	<li>"hbase.ttl": time to live of the cells in seconds, "FOREVER" for no expiration</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The snapshots of a data source are very similar to each other, so compression and block encoding
+ * greatly reduce the storage and the IO of the scans
+ * </p>
+ * */
+@AutoValue
+public abstract class HBaseTablePolicy {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HBaseTablePolicy.class);
+
+	private static final String FOREVER = "FOREVER";
+
+	HBaseTablePolicy() {}
+
+	public static HBaseTablePolicy create(Compression.Algorithm compression, DataBlockEncoding dataBlockEncoding,
+			int blockSize, StoreFile.BloomType bloomFilter, int ttl) {
+		return new AutoValue_HBaseTablePolicy(compression, dataBlockEncoding, blockSize, bloomFilter, ttl);
+	}
+
+	/**
+	 * @return the policy with the HBase defaults
+	 * */
+	public static HBaseTablePolicy defaultPolicy() {
+		return create(Compression.Algorithm.NONE, DataBlockEncoding.NONE, HFile.DEFAULT_BLOCKSIZE,
+				StoreFile.BloomType.NONE, HConstants.FOREVER);
+	}
+
+	/**
+	 * @return the policy in the configuration of a data source, see the class comment
+	 * @throws RuntimeException if some property has an invalid value
+	 * */
+	public static HBaseTablePolicy fromConfiguration(Configuration datasourceConf) {
+		HBaseTablePolicy defaults = defaultPolicy();
+		try {
+			String ttl = datasourceConf.getString("hbase.ttl", FOREVER).trim();
+			return create(
+					Compression.Algorithm.valueOf(datasourceConf.getString("hbase.compression",
+							defaults.compression().name()).trim().toUpperCase()),
+					DataBlockEncoding.valueOf(datasourceConf.getString("hbase.data_block_encoding",
+							defaults.dataBlockEncoding().name()).trim().toUpperCase()),
+					datasourceConf.getInt("hbase.block_size", defaults.blockSize()),
+					StoreFile.BloomType.valueOf(datasourceConf.getString("hbase.bloom_filter",
+							defaults.bloomFilter().name()).trim().toUpperCase()),
+					ttl.equalsIgnoreCase(FOREVER) ? HConstants.FOREVER : Integer.parseInt(ttl));
+		} catch (IllegalArgumentException iae) {
+			// also thrown by Integer.parseInt()
+			String msg = "Invalid HBase table policy for datasource " + datasourceConf.getString("datasource_id")
+					+ ": " + iae.getMessage();
+			LOGGER.error(msg);
+			throw new RuntimeException(msg, iae);
+		}
+	}
+
+	public abstract Compression.Algorithm compression();
+	public abstract DataBlockEncoding dataBlockEncoding();
+	public abstract int blockSize();
+	public abstract StoreFile.BloomType bloomFilter();
+	/**
+	 * @return time to live in seconds, or HConstants.FOREVER
+	 * */
+	public abstract int ttl();
+
+	/**
+	 * Set the settings of this policy in columnFamily
+	 * */
+	public void applyTo(HColumnDescriptor columnFamily) {
+		columnFamily.setCompressionType(compression());
+		columnFamily.setDataBlockEncoding(dataBlockEncoding());
+		columnFamily.setBlocksize(blockSize());
+		columnFamily.setBloomFilterType(bloomFilter());
+		columnFamily.setTimeToLive(ttl());
+	}
+
+	/**
+	 * @return true if columnFamily has the settings of this policy
+	 * */
+	public boolean matches(HColumnDescriptor columnFamily) {
+		return columnFamily.getCompressionType() == compression()
+				&& columnFamily.getDataBlockEncoding() == dataBlockEncoding()
+				&& columnFamily.getBlocksize() == blockSize()
+				&& columnFamily.getBloomFilterType() == bloomFilter()
+				&& columnFamily.getTimeToLive() == ttl();
+	}
+}
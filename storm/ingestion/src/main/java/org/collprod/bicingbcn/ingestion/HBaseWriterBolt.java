@@ -1,12 +1,16 @@
 package org.collprod.bicingbcn.ingestion;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -18,6 +22,7 @@ import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.collprod.bicingbcn.common.PayloadCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,15 +39,37 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 
 /**
- * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD) which are sent to HBase
- * into a table named 'DATASOURCE_ID' using 'TIMESTAMP_FIELD' as row key, into the 
- * column "data:<KEY_FIELD>" with 'CONTENT_FIELD' as the value, and with a single version cell
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) which are sent to HBase
+ * into a table named 'DATASOURCE_ID' using the row key for 'TIMESTAMP_FIELD' from SaltedRowKeys, into the 
+ * column "data:<KEY_FIELD>" with 'CONTENT_FIELD' decoded with the codec in CODEC_FIELD as the value, 
+ * and with a single version cell. So the value is the data as UTF-8 bytes, no matter the codec used
+ * by the spout
  *  </p>
  * 
- * <p>TODO: this key schema generates RegionServer hot spotting on inserts, as it grows 
- * monotonically. Implement some salting mechanism like this http://blog.sematext.com/2012/04/09/hbasewd-avoid-regionserver-hotspotting-despite-writing-records-with-sequential-keys/ 
- * or the one in Phoenix to avoid this
+ * <p>Using just the timestamp as row key generates RegionServer hot spotting on inserts, as it grows 
+ * monotonically. So when "hbase_writer.salt_buckets" is greater than 0 the row key is prefixed with a salt
+ * computed from the timestamp and an hour bucket, similar to http://blog.sematext.com/2012/04/09/hbasewd-avoid-regionserver-hotspotting-despite-writing-records-with-sequential-keys/ 
+ * and the tables are created pre-split in a region per salt bucket. Use SaltedArchiveReader to read the time ranges 
+ * of these tables. With 0 buckets, the default, the row key is just the timestamp. The number of salt buckets of a table
+ * is stored in its descriptor with the key SALT_BUCKETS_KEY, and the row keys for a table always use the salt buckets 
+ * of the table, so changing "hbase_writer.salt_buckets" only applies to new tables. Tables without that key are
+ * not salted
  *  </p> 
+ *  
+ * <p>The column family of the tables is created with the HBaseTablePolicy in the configuration of each data source.
+ * When "hbase_writer.alter_tables" is true, existing tables which column family doesn't match the policy are
+ * altered by the first task of the bolt when it starts, so each table is disabled and enabled just once. 
+ * The new settings apply to the files written by later flushes and compactions
+ * </p>
+ *  
+ * <p>Buffering: when "hbase_writer.buffered" is true (the default) the puts are buffered per table in the bolt, together 
+ * with their tuples, and sent with a single call to HTableInterface.put(List) when the heap size of the buffered puts
+ * for a table reaches "hbase_writer.buffer_size" bytes, or on a tick tuple. So HBase groups the puts per RegionServer, 
+ * instead of performing a synchronous RPC per tuple. The tuples are acked after the flush of their buffer succeeds, 
+ * and all the tuples of the buffer are failed otherwise. The puts are buffered in the bolt instead of using the write 
+ * buffer of the HTable with autoflush disabled, because the later keeps the failed puts to be sent again with the 
+ * next flush, so the tuples of a failed flush could not be identified 
+ * </p>
  */
 public class HBaseWriterBolt extends BaseRichBolt {
 
@@ -52,6 +79,24 @@ public class HBaseWriterBolt extends BaseRichBolt {
 	private final static Logger LOGGER = LoggerFactory.getLogger(IngestionTopology.class);
 	private final static String DATA_COLUMN_FAMILY = "data";
 	private static final int CACHE_EXPIRATION_TIME = 10;
+	
+	/**
+	 * Default values for the configuration, when not present. The buffer size is the
+	 * default for hbase.client.write.buffer 
+	 * */
+	private static final boolean DEFAULT_BUFFERED = true;
+	private static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+	private static final int DEFAULT_SALT_BUCKETS = 0;
+	
+	/**
+	 * Key for the number of salt buckets in the table descriptors
+	 * */
+	public static final String SALT_BUCKETS_KEY = "bicingbcn.salt_buckets";
+	
+	/**
+	 * Frequency of tick tuples, used to flush the buffers
+	 * */
+	private static final int TICK_FREQUENCY_SECS = 1;
 
 	/**
 	 * Storm collector for acking or failing
@@ -66,51 +111,162 @@ public class HBaseWriterBolt extends BaseRichBolt {
 	 * Cache from data sources to connections to their 
 	 * corresponding tables in HBase 
 	 * */
-	LoadingCache<String, HTableInterface> tableConnectionsCache;
+	LoadingCache<String, OutputTable> tableConnectionsCache;
+	
+	/**
+	 * Configuration for buffering
+	 * */
+	private boolean buffered;
+	private long bufferSize;
+	
+	/**
+	 * Number of salt buckets for the row keys of new tables, see SaltedRowKeys
+	 * */
+	private int saltBuckets;
+	
+	/**
+	 * Policy for the table of each data source
+	 * */
+	private Map<String, HBaseTablePolicy> tablePolicies;
+	
+	
+	/**
+	 * Buffered puts for each data source, with their tuples
+	 * */
+	private Map<String, WriteBuffer> writeBuffers;
+	
+	/**
+	 * Connection to the table of a data source, and the number of salt buckets of the table
+	 * */
+	static class OutputTable {
+		final HTableInterface table;
+		final int saltBuckets;
+		
+		OutputTable(HTableInterface table, int saltBuckets) {
+			this.table = table;
+			this.saltBuckets = saltBuckets;
+		}
+	}
 	
 	/**
-	 * Ensures a table is created
+	 * Puts for a table that have not been sent yet, and the corresponding tuples
+	 * */
+	private static class WriteBuffer {
+		final List<Put> puts = new ArrayList<Put>();
+		final List<Tuple> tuples = new ArrayList<Tuple>();
+		long heapSize = 0;
+		
+		void clear() {
+			this.puts.clear();
+			this.tuples.clear();
+			this.heapSize = 0;
+		}
+	}
+	
+	/**
+	 * Ensures a table is created, without salting
 	 * 
 	 * @param hBaseAdmin handler to HBase administration
 	 * @param outputHBaseTable name of the table 
+	 * @return the number of salt buckets of the table
 	 * @throws ZooKeeperConnectionException 
 	 * @throws MasterNotRunningException 
 	 * @throws IOException
 	 * */
-	public static void ensureHBaseTableExists(HBaseAdmin hBaseAdmin, String outputHBaseTable) throws MasterNotRunningException, ZooKeeperConnectionException, IOException {
+	public static int ensureHBaseTableExists(HBaseAdmin hBaseAdmin, String outputHBaseTable) throws MasterNotRunningException, ZooKeeperConnectionException, IOException {
+		return ensureHBaseTableExists(hBaseAdmin, outputHBaseTable, 0, HBaseTablePolicy.defaultPolicy(), false);
+	}
+	
+	/**
+	 * Ensures a table is created, pre-split in a region per salt bucket, and with the column family settings
+	 * in tablePolicy
+	 * 
+	 * @param hBaseAdmin handler to HBase administration
+	 * @param outputHBaseTable name of the table 
+	 * @param saltBuckets number of salt buckets for a new table, see SaltedRowKeys. Existing tables keep
+	 * their number of salt buckets, as the rows already written could not be found otherwise
+	 * @param tablePolicy settings for the column family
+	 * @param alterTable if true and the table already exists with a column family that doesn't match tablePolicy,
+	 * then the table is disabled, altered and enabled again
+	 * @return the number of salt buckets of the table, to be used for its row keys
+	 * @throws ZooKeeperConnectionException 
+	 * @throws MasterNotRunningException 
+	 * @throws IOException
+	 * */
+	public static int ensureHBaseTableExists(HBaseAdmin hBaseAdmin, String outputHBaseTable, int saltBuckets,
+			HBaseTablePolicy tablePolicy, boolean alterTable) throws MasterNotRunningException, ZooKeeperConnectionException, IOException {
 		if (! hBaseAdmin.tableExists(outputHBaseTable)) {
 			// create table
-			LOGGER.info("Target HBase table {} doesn't exist, creating table", outputHBaseTable);
+			LOGGER.info("Target HBase table {} doesn't exist, creating table with policy {}", outputHBaseTable, tablePolicy);
 			HTableDescriptor tableDescriptor = new HTableDescriptor(outputHBaseTable);
 			HColumnDescriptor dataColumn = new HColumnDescriptor(DATA_COLUMN_FAMILY); 
 			dataColumn.setMaxVersions(1); // just one version per row
+			tablePolicy.applyTo(dataColumn);
 			tableDescriptor.addFamily(dataColumn);
-			hBaseAdmin.createTable(tableDescriptor);
+			tableDescriptor.setValue(SALT_BUCKETS_KEY, Integer.toString(saltBuckets));
+			byte [][] splitKeys = SaltedRowKeys.splitKeys(saltBuckets);
+			if (splitKeys == null) {
+				hBaseAdmin.createTable(tableDescriptor);
+			} else {
+				LOGGER.info("Pre-splitting table {} in {} regions", outputHBaseTable, saltBuckets);
+				hBaseAdmin.createTable(tableDescriptor, splitKeys);
+			}
 			LOGGER.info("Done creating target HBase table {}", outputHBaseTable);
+			return saltBuckets;
 		} else {
 			LOGGER.info("Target HBase table {} already exists", outputHBaseTable);
+			HTableDescriptor tableDescriptor = hBaseAdmin.getTableDescriptor(Bytes.toBytes(outputHBaseTable));
+			int tableSaltBuckets = saltBuckets(tableDescriptor);
+			if (tableSaltBuckets != saltBuckets) {
+				LOGGER.warn("HBase table {} has {} salt buckets instead of the configured {}, keeping the salt buckets of the table", 
+						new Object [] {outputHBaseTable, tableSaltBuckets, saltBuckets});
+			}
+			HColumnDescriptor dataColumn = tableDescriptor.getFamily(Bytes.toBytes(DATA_COLUMN_FAMILY));
+			if (alterTable && dataColumn != null && ! tablePolicy.matches(dataColumn)) {
+				LOGGER.info("Altering HBase table {} to policy {}", outputHBaseTable, tablePolicy);
+				tablePolicy.applyTo(dataColumn);
+				hBaseAdmin.disableTable(outputHBaseTable);
+				try {
+					hBaseAdmin.modifyColumn(outputHBaseTable, dataColumn);
+				} finally {
+					hBaseAdmin.enableTable(outputHBaseTable);
+				}
+				LOGGER.info("Done altering HBase table {}", outputHBaseTable);
+			}
+			return tableSaltBuckets;
 		}
 	}
 	
-	private LoadingCache<String, HTableInterface> buildTableConnectionsCache() {
-		CacheLoader<String, HTableInterface> loader = new CacheLoader<String, HTableInterface>(){
+	/**
+	 * @return the number of salt buckets of a table, stored under SALT_BUCKETS_KEY in its descriptor. Tables 
+	 * without that key were created before salting, and have 0 salt buckets 
+	 * */
+	public static int saltBuckets(HTableDescriptor tableDescriptor) {
+		String saltBucketsValue = tableDescriptor.getValue(SALT_BUCKETS_KEY);
+		return saltBucketsValue == null ? 0 : Integer.parseInt(saltBucketsValue);
+	}
+	
+	private LoadingCache<String, OutputTable> buildTableConnectionsCache() {
+		CacheLoader<String, OutputTable> loader = new CacheLoader<String, OutputTable>(){
 			@Override
-			public HTableInterface load(String datasource) throws Exception {
+			public OutputTable load(String datasource) throws Exception {
 				// Ensure the table exists 
-				ensureHBaseTableExists(HBaseWriterBolt.this.hBaseAdmin, datasource);
+				HBaseTablePolicy tablePolicy = HBaseWriterBolt.this.tablePolicies.get(datasource);
+				int tableSaltBuckets = ensureHBaseTableExists(HBaseWriterBolt.this.hBaseAdmin, datasource, HBaseWriterBolt.this.saltBuckets,
+						tablePolicy == null ? HBaseTablePolicy.defaultPolicy() : tablePolicy, false);
 				// Connect to the table
 				HTableInterface table = HBaseWriterBolt.this.hbasePool.getTable(datasource);
-				return table;
+				return new OutputTable(table, tableSaltBuckets);
 			}			
 		};
 		
-		RemovalListener<String, HTableInterface> removalListener = new RemovalListener<String, HTableInterface>() {
+		RemovalListener<String, OutputTable> removalListener = new RemovalListener<String, OutputTable>() {
 			@Override
 			public void onRemoval(
-					RemovalNotification<String, HTableInterface> notification) {
+					RemovalNotification<String, OutputTable> notification) {
 				LOGGER.info("Closing HBase table for datasource {}", notification.getKey());
 				try {
-					notification.getValue().close();
+					notification.getValue().table.close();
 				} catch (IOException ioe) {
 					LOGGER.error("Error closing connection to HBase table {} : {}", notification.getKey(), ExceptionUtils.getStackTrace(ioe));
 					throw new RuntimeException(ioe);
@@ -126,46 +282,101 @@ public class HBaseWriterBolt extends BaseRichBolt {
 	};
 
 	
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		return TupleUtils.tickTupleConfiguration(TICK_FREQUENCY_SECS);
+	}
+	
+	/**
+	 * Send the buffered puts for datasource, and ack or fail their tuples
+	 * */
+	private void flush(String datasource, WriteBuffer buffer) {
+		if (buffer.puts.isEmpty()) {
+			return;
+		}
+		boolean success = false;
+		try {
+			HTableInterface targetTable = this.tableConnectionsCache.get(datasource).table;
+			targetTable.put(buffer.puts);
+			success = true;
+		} catch (ExecutionException ee) {
+			LOGGER.error("Error inserting {} values for datasource {}: {}", 
+					new Object [] {buffer.puts.size(), datasource, ExceptionUtils.getStackTrace(ee)});
+		} catch (IOException ioe) {
+			LOGGER.error("Error inserting {} values for datasource {}: {}", 
+					new Object [] {buffer.puts.size(), datasource, ExceptionUtils.getStackTrace(ioe)});
+		}
+		for (Tuple tuple : buffer.tuples) {
+			if (success) {
+				this.collector.ack(tuple);
+			} else {
+				this.collector.fail(tuple);
+			}
+		}
+		buffer.clear();
+	}
+	
+	private void flushAll() {
+		for (Map.Entry<String, WriteBuffer> datasourceBuffer : this.writeBuffers.entrySet()) {
+			flush(datasourceBuffer.getKey(), datasourceBuffer.getValue());
+		}
+	}
+	
 	@Override
 	public void execute(Tuple inputTuple) {
+		if (TupleUtils.isTickTuple(inputTuple)) {
+			flushAll();
+			return;
+		}
+		
 		/* Processing tuples of the shape
-		   (DATASOURCE_ID, TIMESTAMP_FIELD, CONTENT_FIELD) */
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) */
 		// get data. No problem with receiving the same data twice, as there is just one versison
 		// it will just overwrite itself
 		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
 		Long timestamp = inputTuple.getLongByField(RestIngestionSpout.TIMESTAMP_FIELD);
 		String key = inputTuple.getStringByField(RestIngestionSpout.KEY_FIELD);
-		String content = inputTuple.getStringByField(RestIngestionSpout.CONTENT_FIELD);
+		byte [] encodedContent = inputTuple.getBinaryByField(RestIngestionSpout.CONTENT_FIELD);
+		String codecName = inputTuple.getStringByField(RestIngestionSpout.CODEC_FIELD);
 		
 		// create a new Put to insert into HBase into a table named 'DATASOURCE_ID' 
-		// using 'TIMESTAMP_FIELD' as row key, into the column DATA_COLUMN_FAMILY:DATA_QUAL with 
+		// using the salted key for 'TIMESTAMP_FIELD' as row key, into the column DATA_COLUMN_FAMILY:DATA_QUAL with 
 		// 'CONTENT_FIELD' as the value, and with a single version cell
-		HTableInterface targetTable = null;
+		byte [] content;
+		int tableSaltBuckets;
 		try {
-			targetTable = this.tableConnectionsCache.get(datasource);
-			Put put = new Put(Bytes.toBytes(timestamp));
-			put.add(Bytes.toBytes(DATA_COLUMN_FAMILY), Bytes.toBytes(key), Bytes.toBytes(content));
-			targetTable.put(put);
-		} catch (ExecutionException ee) {
-			LOGGER.error("Error inserting value for datasource {}: {}", datasource, ExceptionUtils.getStackTrace(ee));
+			content = PayloadCodec.forName(codecName).decode(encodedContent);
+			tableSaltBuckets = this.tableConnectionsCache.get(datasource).saltBuckets;
+		} catch (IOException ioe) {
+			LOGGER.error("Error decoding value for datasource {}: {}", datasource, ExceptionUtils.getStackTrace(ioe));
 			this.collector.fail(inputTuple);
 			return;
-		} catch (IOException ioe) {
-			LOGGER.error("Error inserting value for datasource {}: {}", datasource, ExceptionUtils.getStackTrace(ioe));
+		} catch (ExecutionException ee) {
+			LOGGER.error("Error connecting to the table for datasource {}: {}", datasource, ExceptionUtils.getStackTrace(ee));
 			this.collector.fail(inputTuple);
 			return;
 		}
+		Put put = new Put(SaltedRowKeys.rowKey(timestamp, tableSaltBuckets));
+		put.add(Bytes.toBytes(DATA_COLUMN_FAMILY), Bytes.toBytes(key), content);
 		
-		// ack this tuple
-		this.collector.ack(inputTuple);
+		// buffer the put, the tuple is acked or failed on flush
+		WriteBuffer buffer = this.writeBuffers.get(datasource);
+		if (buffer == null) {
+			buffer = new WriteBuffer();
+			this.writeBuffers.put(datasource, buffer);
+		}
+		buffer.puts.add(put);
+		buffer.tuples.add(inputTuple);
+		buffer.heapSize += put.heapSize();
+		if (! this.buffered || buffer.heapSize >= this.bufferSize) {
+			flush(datasource, buffer);
+		}
 	}
 
 	@Override
 	public void prepare(@SuppressWarnings("rawtypes")  Map stormConf, TopologyContext context,
 			OutputCollector collector) {
-		this.collector = collector;
-
-		Configuration hBaseConfig = HBaseConfiguration.create();
+		org.apache.hadoop.conf.Configuration hBaseConfig = HBaseConfiguration.create();
 		hBaseConfig.addResource(new Path(stormConf.get("hbase.res.hbase-site").toString()));
 		try {
 			this.hBaseAdmin = new HBaseAdmin(hBaseConfig);
@@ -179,7 +390,58 @@ public class HBaseWriterBolt extends BaseRichBolt {
 			throw new RuntimeException(ze);
 		}
 		
-		this.tableConnectionsCache = buildTableConnectionsCache();
+		prepareBuffers(stormConf, collector, buildTableConnectionsCache());
+		this.saltBuckets = IngestionTopology.getIntConf(stormConf, "hbase_writer.salt_buckets", DEFAULT_SALT_BUCKETS);
+		
+		// Load the table policies from the datasource configurations
+		this.tablePolicies = new HashMap<String, HBaseTablePolicy>();
+		try {
+			@SuppressWarnings("unchecked")
+			Map<String, Configuration> datasourcesConfigurations = 
+					IngestionTopology.deserializeConfigurations((Map<String, String>) stormConf.get(IngestionTopology.DATASOURCE_CONF_KEY));
+			for (Map.Entry<String, Configuration> datasourceConfig : datasourcesConfigurations.entrySet()) {
+				this.tablePolicies.put(datasourceConfig.getKey(), HBaseTablePolicy.fromConfiguration(datasourceConfig.getValue()));
+			}
+		} catch (ConfigurationException ce) {
+			LOGGER.error("Error parsing datasource configurations: " + ce.getMessage());
+			throw new RuntimeException(ce);
+		}
+		
+		if (Boolean.parseBoolean(String.valueOf(stormConf.get("hbase_writer.alter_tables")).trim()) 
+				&& context.getThisTaskIndex() == 0) {
+			alterTables();
+		}
+	}
+	
+	/**
+	 * Configure the buffering, for writing to the tables in tableConnectionsCache. Separated from prepare() 
+	 * so the buffering can be tested with stub tables
+	 * */
+	void prepareBuffers(@SuppressWarnings("rawtypes")  Map stormConf, OutputCollector collector, 
+			LoadingCache<String, OutputTable> tableConnectionsCache) {
+		this.collector = collector;
+		this.tableConnectionsCache = tableConnectionsCache;
+		Object bufferedConf = stormConf.get("hbase_writer.buffered");
+		this.buffered = bufferedConf == null ? DEFAULT_BUFFERED : Boolean.parseBoolean(bufferedConf.toString().trim());
+		this.bufferSize = IngestionTopology.getIntConf(stormConf, "hbase_writer.buffer_size", DEFAULT_BUFFER_SIZE);
+		this.writeBuffers = new HashMap<String, WriteBuffer>();
+	}
+	
+	/**
+	 * Alter the existing tables of the data sources which column family doesn't match their policy. 
+	 * Tables that cannot be altered are just logged, as the bolt can write to them anyway
+	 * */
+	private void alterTables() {
+		for (Map.Entry<String, HBaseTablePolicy> tablePolicy : this.tablePolicies.entrySet()) {
+			String datasource = tablePolicy.getKey();
+			try {
+				if (this.hBaseAdmin.tableExists(datasource)) {
+					ensureHBaseTableExists(this.hBaseAdmin, datasource, this.saltBuckets, tablePolicy.getValue(), true);
+				}
+			} catch (IOException ioe) {
+				LOGGER.error("Error altering HBase table {}: {}", datasource, ExceptionUtils.getStackTrace(ioe));
+			}
+		}
 	}
 
 	@Override
@@ -189,6 +451,7 @@ public class HBaseWriterBolt extends BaseRichBolt {
 	
 	@Override
 	public void cleanup() {
+		flushAll();
 		// Close connection to all tables
 		this.tableConnectionsCache.invalidateAll();
 		
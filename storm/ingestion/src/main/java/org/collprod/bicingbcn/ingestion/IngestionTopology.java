@@ -6,6 +6,7 @@ import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -13,6 +14,10 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationConverter;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.collprod.bicingbcn.ingestion.stations.StationCatalogBolt;
+import org.collprod.bicingbcn.ingestion.stations.StationDeltaBolt;
+import org.collprod.bicingbcn.ingestion.stations.StationParserBolt;
+import org.collprod.bicingbcn.ingestion.stations.StationRecordBolt;
 import org.reflections.Reflections;
 import org.reflections.scanners.ResourcesScanner;
 import org.slf4j.Logger;
@@ -50,6 +55,11 @@ public class IngestionTopology {
 	private static final String DEFAULT_DATASOURCE_PATH = "datasources"; // local as prefix for Reflections
 	
 	private static final String LOCAL_TOPOLOGY_NAME = IngestionTopology.class.getName() + "-local_test";
+	private static final int DEFAULT_MAX_SPOUT_PENDING = 100;
+	/**
+	 * Default value of topology.message.timeout.secs in Storm
+	 * */
+	private static final int DEFAULT_MESSAGE_TIMEOUT_SECS = 30;
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(IngestionTopology.class);
 
@@ -109,6 +119,38 @@ public class IngestionTopology {
 	}
 	
 	
+	/**
+	 * @return the value for key in conf parsed as an int, or defaultValue if conf has no value for key 
+	 * */
+	public static int getIntConf(@SuppressWarnings("rawtypes") Map conf, String key, int defaultValue) {
+		Object value = conf.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value.toString().trim());
+	}
+	
+	/**
+	 * @return the value for key in conf parsed as a double, or defaultValue if conf has no value for key 
+	 * */
+	public static double getDoubleConf(@SuppressWarnings("rawtypes") Map conf, String key, double defaultValue) {
+		Object value = conf.get(key);
+		return value == null ? defaultValue : Double.parseDouble(value.toString().trim());
+	}
+	
+	/**
+	 * @return the properties for a Kafka producer, taken from the entries of stormConf with a key starting 
+	 * with "kafka.", removing that prefix
+	 * */
+	public static Properties getKafkaProperties(@SuppressWarnings("rawtypes") Map stormConf) {
+		Properties kafkaProperties = new Properties();
+		int kafkaPrefixLenght = "kafka.".length();
+		for (Map.Entry<String, String> stormConfEntry : ((Map<String, String>) stormConf).entrySet()) {
+			String key = stormConfEntry.getKey(); 
+			if (key.startsWith("kafka.")) {
+				kafkaProperties.put(key.substring(kafkaPrefixLenght), stormConfEntry.getValue());
+			}
+		}
+		return kafkaProperties;
+	}
+	
 	/**
 	 * Load configuration from the default path
 	 * 
@@ -151,6 +193,8 @@ public class IngestionTopology {
 		conf.put(Config.TOPOLOGY_NAME, topologyName);
 		
 		// add other common fields to conf
+		// bound the number of tuples pending per spout task, so the spout waits when the bolts are slower 
+		conf.setMaxSpoutPending(getIntConf(conf, "spout.max_pending", DEFAULT_MAX_SPOUT_PENDING));
 		// FIXME: use the debug property for this 
 		conf.setDebug(true);
 		// conf.put(Config.TOPOLOGY_DEBUG, true); // this is not working, this disables even info logs
@@ -171,7 +215,9 @@ public class IngestionTopology {
 		Config conf = loadConfiguration();
 		
 		// Clear Redis
-		RestIngestionSpout.clearDb(conf);
+		if (! ReplayStores.JOURNAL_STORE.equals(String.valueOf(conf.get("spout.replay_store")).trim())) {
+			RestIngestionSpout.clearDb(conf);
+		}
 		
 		// Build topology
 		LOGGER.info("Building topology");
@@ -188,6 +234,59 @@ public class IngestionTopology {
 		topologyBuilder.setBolt(KafkaWriterBolt.class.getName(), new KafkaWriterBolt(), numDatasources)
 								.localOrShuffleGrouping(RestIngestionSpout.class.getName());
 		
+		// Station parser Bolt
+		// Parses each snapshot once for the station bolts. By using fieldsGrouping the snapshots of 
+		// each data source are emitted in order
+		boolean stationRecordsEnabled = Boolean.parseBoolean(String.valueOf(conf.get("station_records.enabled")).trim());
+		boolean stationDeltasEnabled = Boolean.parseBoolean(String.valueOf(conf.get("station_deltas.enabled")).trim());
+		boolean stationCatalogEnabled = Boolean.parseBoolean(String.valueOf(conf.get("station_catalog.enabled")).trim());
+		if (stationRecordsEnabled || stationDeltasEnabled || stationCatalogEnabled) {
+			topologyBuilder.setBolt(StationParserBolt.class.getName(), new StationParserBolt(), numDatasources)
+									.fieldsGrouping(RestIngestionSpout.class.getName(), 
+													new Fields(RestIngestionSpout.DATASOURCE_ID));
+		}
+		
+		// Station records Bolt
+		// No particular routing, local preferred
+		if (stationRecordsEnabled) {
+			topologyBuilder.setBolt(StationRecordBolt.class.getName(), new StationRecordBolt(), numDatasources)
+									.localOrShuffleGrouping(StationParserBolt.class.getName());
+		}
+		
+		// Station deltas Bolt
+		// Each bolt task keeps the state of the stations for its data sources
+		if (stationDeltasEnabled) {
+			topologyBuilder.setBolt(StationDeltaBolt.class.getName(), new StationDeltaBolt(), numDatasources)
+									.fieldsGrouping(StationParserBolt.class.getName(), 
+													new Fields(RestIngestionSpout.DATASOURCE_ID));
+		}
+		
+		// Station catalog Bolt
+		// Each bolt task keeps the version of the last catalog sent for its data sources
+		if (stationCatalogEnabled) {
+			topologyBuilder.setBolt(StationCatalogBolt.class.getName(), new StationCatalogBolt(), numDatasources)
+									.fieldsGrouping(StationParserBolt.class.getName(), 
+													new Fields(RestIngestionSpout.DATASOURCE_ID));
+		}
+		
+		// Avro archive Bolt
+		// By using fieldsGrouping each bolt task keeps open only the files for its data sources
+		if (Boolean.parseBoolean(String.valueOf(conf.get("avro_archive.enabled")).trim())) {
+			int archiveFlushSecs = getIntConf(conf, "avro_archive.flush_secs", AvroArchiveBolt.DEFAULT_FLUSH_SECS);
+			// the tuples are acked when their block is written, up to max_block_secs plus a tick after they are received
+			int archiveAckSecs = getIntConf(conf, "avro_archive.max_block_secs", AvroArchiveBolt.DEFAULT_MAX_BLOCK_SECS) 
+					+ 2 * archiveFlushSecs;
+			if (archiveAckSecs > getIntConf(conf, Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, DEFAULT_MESSAGE_TIMEOUT_SECS)) {
+				LOGGER.info("Setting {} to {} for the Avro archive", Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, archiveAckSecs);
+				conf.setMessageTimeoutSecs(archiveAckSecs);
+			}
+			topologyBuilder.setBolt(AvroArchiveBolt.class.getName(), 
+									new AvroArchiveBolt(archiveFlushSecs), 
+									numDatasources)
+									.fieldsGrouping(RestIngestionSpout.class.getName(), 
+													new Fields(RestIngestionSpout.DATASOURCE_ID));
+		}
+		
 		// HBase Bolt
 		/*
 		 * Tuples are written to an HBase table named after its datasource. Although there is no problem 
@@ -1,35 +1,69 @@
 package org.collprod.bicingbcn.ingestion;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
 import kafka.producer.ProducerConfig;
 
-import org.collprod.bicingbcn.ingestion.attic.AvroWriterBolt;
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.collprod.bicingbcn.ingestion.dedup.DedupFilter;
+import org.collprod.bicingbcn.ingestion.dedup.DedupFilters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichBolt;
 import backtype.storm.tuple.Tuple;
 
-import com.google.auto.value.AutoValue;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD) which are sent to Kafka:
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) which are sent to Kafka:
  * <ul>
  * 	<li>using the  DATASOURCE_ID as Kafka topic</li>
  *  <li>using DATASOURCE_ID + TIMESTAMP_FIELD as Kafka partition key</li>
- * 	<li>the message is the CONTENT_FIELD</li>
+ * 	<li>the message is the CONTENT_FIELD framed with the codec in CODEC_FIELD, see PayloadCodec.frame(). 
+ * So the data is not decoded nor encoded again in this bolt</li>
  * </ul>
+ * The producer should be configured with kafka.serializer.DefaultEncoder for the messages, and 
+ * kafka.serializer.StringEncoder for the keys
+ * </p>
+ * 
+ * <p>
+ * Messages are sent asynchronously in batches by a background sender thread: execute() hands the messages 
+ * to the sender, which groups them until "kafka_writer.batch_size" messages are buffered, or the first buffered 
+ * message is older than "kafka_writer.linger_ms" milliseconds. As the sender enforces the linger, a batch doesn't 
+ * wait for the next tuple to be sent. Then the whole batch is sent with a single call to Producer.send(List), so the
+ * producer groups the messages per broker, and compresses them if "kafka.compression.codec" is configured.
+ * The tuples in a batch are acked only after the send completes successfully, and failed otherwise, 
+ * so the at least once guarantee is preserved. The acks and fails are performed in the executor thread, 
+ * as OutputCollector is not thread safe, when the next tuple or tick tuple is received, so they are delayed up 
+ * to TICK_FREQUENCY_SECS when no tuples are received.
+ * </p>
+ * <p>
+ * Backpressure: at most "kafka_writer.max_in_flight" tuples can be buffered or being sent, after that execute() 
+ * blocks until some batch completes. Together with "spout.max_pending" (topology.max.spout.pending) this bounds 
+ * the memory used by the topology when Kafka is slower than the services
+ * </p>
+ * <p>
+ * The old Kafka producer has no completion callbacks, hence the background sender thread, which uses a 
+ * synchronous producer and reports the completed batches in a queue 
+ * </p>
+ * <p>
+ * Tuples for a DATASOURCE_ID and TIMESTAMP_FIELD already sent are skipped, according to the DedupFilter configured 
+ * with "kafka_writer.dedup", see DedupFilters.create(). The filter is checkpointed on each tick tuple, and the 
+ * number of duplicates and of false positives detected by the filter are reported as the metrics "dedup_hits" and 
+ * "dedup_false_positives"  
  * </p>
  * 
  * <p>
@@ -44,10 +78,31 @@ public class KafkaWriterBolt extends BaseRichBolt {
 
 	// generated by Eclipse
 	private static final long serialVersionUID = 3874964577899393556L;
-	private static final long TIMESTAMP_SET_MAX_SIZE = 40;
-	private static final long TIMESTAMP_SET_EXPIRE_TIME = 3;
 	
-	private static final Logger LOGGER = LoggerFactory.getLogger(AvroWriterBolt.class);
+	private static final Logger LOGGER = LoggerFactory.getLogger(KafkaWriterBolt.class);
+	
+	/**
+	 * Default values for the configuration, when not present 
+	 * */
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final long DEFAULT_LINGER_MS = 200;
+	private static final int DEFAULT_MAX_IN_FLIGHT = 200;
+	
+	/**
+	 * Frequency of tick tuples, used to process the completed batches when no tuples are received, and to 
+	 * checkpoint the dedup filter
+	 * */
+	private static final int TICK_FREQUENCY_SECS = 1;
+	
+	/**
+	 * Maximum time to wait for the batches in flight on cleanup()
+	 * */
+	private static final long SHUTDOWN_TIMEOUT_SECS = 30;
+	
+	/**
+	 * Time bucket for the metrics
+	 * */
+	private static final int METRICS_BUCKET_SECS = 60;
 	
 	/**
 	 * Storm collector for acking or failing
@@ -55,103 +110,311 @@ public class KafkaWriterBolt extends BaseRichBolt {
 	private OutputCollector collector;
 	
 	/**
-	 * Connection to Kafka as a producer. Uses String for the partition key, and String in the message
+	 * Sends the batches to Kafka, see ProducerMessageSender
+	 * */
+	private MessageSender messageSender;
+	
+	/**
+	 * Set of timestamps sent lately
+	 * */
+	private DedupFilter dedupFilter;
+	
+	/**
+	 * Configuration for batching 
+	 * */
+	private int batchSize;
+	private long lingerMillis;
+	private int maxInFlight;
+	
+	/**
+	 * Number of tuples buffered or being sent, that have not been acked or failed yet
 	 * */
-	private Producer<String, String> kafkaProducer;
+	private int inFlightTuples;
 	
 	/**
-	 * Cache representing the set of timestamps seen lately
+	 * Single thread that groups the pending messages in batches and sends them to Kafka, in order
 	 * */
-	private LoadingCache<DatasourceTimestamp, Boolean> timestampSeen;
+	private ExecutorService sender;
 	
-	@AutoValue
-	static abstract class DatasourceTimestamp {
-		DatasourceTimestamp() {}
-		public static DatasourceTimestamp create(String datasource, Long timestamp) {
-			return new AutoValue_KafkaWriterBolt_DatasourceTimestamp(datasource, timestamp);
+	/**
+	 * Messages handed to the sender thread and not yet added to a batch
+	 * */
+	private LinkedBlockingQueue<PendingMessage> pendingMessages;
+	
+	/**
+	 * Added to pendingMessages on cleanup(), then the sender sends the pending messages without lingering and stops
+	 * */
+	private static final PendingMessage STOP = new PendingMessage(null, null);
+	
+	/**
+	 * Batches which sending has completed, to be acked or failed in the executor thread
+	 * */
+	private LinkedBlockingQueue<Batch> completedBatches;
+	
+	/**
+	 * Sends batches of messages, blocking until they are sent. An interface so the bolt can be tested 
+	 * without Kafka 
+	 * */
+	interface MessageSender {
+		/**
+		 * @throws RuntimeException if the messages could not be sent
+		 * */
+		void send(List<KeyedMessage<String, byte[]>> messages);
+		void close();
+	}
+	
+	/**
+	 * Connection to Kafka as a producer. Uses String for the partition key, and byte[] in the message
+	 * */
+	private static class ProducerMessageSender implements MessageSender {
+		private final Producer<String, byte[]> kafkaProducer;
+		
+		ProducerMessageSender(Producer<String, byte[]> kafkaProducer) {
+			this.kafkaProducer = kafkaProducer;
+		}
+
+		@Override
+		public void send(List<KeyedMessage<String, byte[]>> messages) {
+			this.kafkaProducer.send(messages);
+		}
+
+		@Override
+		public void close() {
+			this.kafkaProducer.close();
 		}
-		public abstract String datasource();
-		public abstract Long timestamp();
 	}
 	
 	/**
-	 * To represent the set of the last seen timestamps, we use a cache from Long to Boolean (to use something),
-	 * so being a key in the cache is equivalent to appearing in the set  
+	 * A message for a tuple, waiting to be added to a batch by the sender thread
 	 * */
-	private LoadingCache<DatasourceTimestamp, Boolean> buildSeenTimestampsSetCache() {
-		CacheLoader<DatasourceTimestamp, Boolean> loader = 
-				new CacheLoader<DatasourceTimestamp, Boolean> () {
-					@Override
-					public Boolean load(DatasourceTimestamp key) {
-						// Here we treat Boolean as a Unit type. The point is that key
-						// now is in the key set, we only use the cache for the eviction
-						// capabilities to control the cache size
-						return true;
-					}
-		};
+	private static class PendingMessage {
+		final long creationMillis = System.currentTimeMillis();
+		final Tuple tuple;
+		final KeyedMessage<String, byte[]> message;
+		
+		PendingMessage(Tuple tuple, KeyedMessage<String, byte[]> message) {
+			this.tuple = tuple;
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * A batch of messages and the corresponding tuples
+	 * */
+	private static class Batch {
+		final List<Tuple> tuples = new ArrayList<Tuple>();
+		final List<KeyedMessage<String, byte[]>> messages = new ArrayList<KeyedMessage<String, byte[]>>();
+		/**
+		 * Set by the sender thread before adding the batch to completedBatches 
+		 * */
+		volatile boolean success = false;
+		
+		void add(PendingMessage pendingMessage) {
+			this.tuples.add(pendingMessage.tuple);
+			this.messages.add(pendingMessage.message);
+		}
+	}
+	
+	/**
+	 * Metric for the increment of a counter of the dedup filter since the last report
+	 * */
+	private abstract static class DedupCounterMetric implements IMetric {
+		private long lastValue = 0;
 		
-		return CacheBuilder.newBuilder()
-				.maximumSize(TIMESTAMP_SET_MAX_SIZE)
-				.expireAfterAccess(TIMESTAMP_SET_EXPIRE_TIME, TimeUnit.MINUTES)
-				.build(loader);
+		abstract long currentValue();
+		
+		@Override
+		public Object getValueAndReset() {
+			long value = currentValue();
+			long increment = value - this.lastValue;
+			this.lastValue = value;
+			return increment;
+		}
+	}
+	
+	public KafkaWriterBolt() {
+		this(null);
+	}
+	
+	/**
+	 * @param messageSender used instead of a Kafka producer if not null, for testing
+	 * */
+	KafkaWriterBolt(MessageSender messageSender) {
+		this.messageSender = messageSender;
+	}
+	
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		return TupleUtils.tickTupleConfiguration(TICK_FREQUENCY_SECS);
 	}
 	
 	@Override
 	public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
 		this.collector = collector;
 		
-		Properties kafkaProperties = new Properties();
-		int kafkaPrefixLenght = "kafka.".length();
-		for (Map.Entry<String, String> stormConfEntry : ((Map<String, String>) stormConf).entrySet()) {
-			String key = stormConfEntry.getKey(); 
-			if (key.startsWith("kafka.")) {
-				kafkaProperties.put(key.substring(kafkaPrefixLenght), stormConfEntry.getValue());
+		if (this.messageSender == null) {
+			this.messageSender = new ProducerMessageSender(
+					new Producer<String, byte[]>(new ProducerConfig(IngestionTopology.getKafkaProperties(stormConf))));
+		}
+		this.dedupFilter = DedupFilters.create(stormConf, context, "kafka_writer.");
+		context.registerMetric("dedup_hits", new DedupCounterMetric() {
+			@Override
+			long currentValue() {
+				return KafkaWriterBolt.this.dedupFilter.hits();
+			}
+		}, METRICS_BUCKET_SECS);
+		context.registerMetric("dedup_false_positives", new DedupCounterMetric() {
+			@Override
+			long currentValue() {
+				return KafkaWriterBolt.this.dedupFilter.falsePositives();
+			}
+		}, METRICS_BUCKET_SECS);
+		
+		this.batchSize = IngestionTopology.getIntConf(stormConf, "kafka_writer.batch_size", DEFAULT_BATCH_SIZE);
+		this.lingerMillis = IngestionTopology.getIntConf(stormConf, "kafka_writer.linger_ms", (int) DEFAULT_LINGER_MS);
+		this.maxInFlight = IngestionTopology.getIntConf(stormConf, "kafka_writer.max_in_flight", DEFAULT_MAX_IN_FLIGHT);
+		this.inFlightTuples = 0;
+		this.pendingMessages = new LinkedBlockingQueue<PendingMessage>();
+		this.completedBatches = new LinkedBlockingQueue<Batch>();
+		this.sender = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(KafkaWriterBolt.class.getSimpleName() + "-" + context.getThisTaskId() + "-sender")
+				.build());
+		this.sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				sendBatches();
 			}
+		});
+	}
+	
+	/**
+	 * Loop of the sender thread: groups the pending messages in batches of up to batchSize messages, waiting 
+	 * up to lingerMillis since the first message of the batch was created, and sends each batch. Returns 
+	 * after sending the messages before STOP
+	 * */
+	private void sendBatches() {
+		try {
+			boolean stopped = false;
+			while (! stopped) {
+				PendingMessage first = this.pendingMessages.take();
+				if (first == STOP) {
+					return;
+				}
+				Batch batch = new Batch();
+				batch.add(first);
+				long lingerDeadline = first.creationMillis + this.lingerMillis;
+				while (batch.tuples.size() < this.batchSize) {
+					long lingerLeft = lingerDeadline - System.currentTimeMillis();
+					PendingMessage next = lingerLeft > 0 
+							? this.pendingMessages.poll(lingerLeft, TimeUnit.MILLISECONDS)
+							: this.pendingMessages.poll();
+					if (next == null) {
+						break;
+					}
+					if (next == STOP) {
+						stopped = true;
+						break;
+					}
+					batch.add(next);
+				}
+				send(batch);
+			}
+		} catch (InterruptedException ie) {
+			// the tuples not sent will time out and be replayed
+			LOGGER.warn("Kafka sender interrupted with {} pending messages", this.pendingMessages.size());
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Send batch and report it as completed
+	 * */
+	private void send(Batch batch) {
+		try {
+			this.messageSender.send(batch.messages);
+			batch.success = true;
+		} catch (Exception e) {
+			// Exceptions in Kafka API are not checked
+			LOGGER.error("Error sending batch of {} messages to Kafka, will retry: {}", batch.messages.size(), e.getMessage());
+		} finally {
+			this.completedBatches.add(batch);
+		}
+	}
+	
+	/**
+	 * Ack or fail the tuples of a completed batch
+	 * */
+	private void complete(Batch batch) {
+		for (Tuple tuple : batch.tuples) {
+			if (batch.success) {
+				// only now the timestamp is in Kafka, add to the dedup filter
+				this.dedupFilter.add(tuple.getStringByField(RestIngestionSpout.DATASOURCE_ID), 
+						tuple.getLongByField(RestIngestionSpout.TIMESTAMP_FIELD));
+				this.collector.ack(tuple);
+			} else {
+				this.collector.fail(tuple);
+			}
+		}
+		this.inFlightTuples -= batch.tuples.size();
+	}
+	
+	/**
+	 * Ack or fail the tuples of the batches completed so far, without blocking
+	 * */
+	private void completeBatches() {
+		Batch batch;
+		while ((batch = this.completedBatches.poll()) != null) {
+			complete(batch);
 		}
-		this.kafkaProducer = new Producer<String, String>(new ProducerConfig(kafkaProperties));
-		this.timestampSeen = buildSeenTimestampsSetCache();
 	}
 	
 	@Override
 	public void execute(Tuple inputTuple) {
+		completeBatches();
+		if (TupleUtils.isTickTuple(inputTuple)) {
+			this.dedupFilter.checkpoint();
+			return;
+		}
+		
 		/* Processing tuples of the shape
-		   (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD) */
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) */
 		// get data
 		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
 		Long timestamp = inputTuple.getLongByField(RestIngestionSpout.TIMESTAMP_FIELD);
 		
-		DatasourceTimestamp  datasourceTimestamp = DatasourceTimestamp.create(datasource, timestamp);
-		Boolean tupleAlreadySeen = this.timestampSeen.getIfPresent(datasourceTimestamp);
-		if (tupleAlreadySeen == null) {
-			// we haven't seen this timestamp for this datasource, add to the cache / set
-			this.timestampSeen.getUnchecked(datasourceTimestamp);
-		} else {
-			// we have already seen this timestamp for this datasource
+		if (this.dedupFilter.contains(datasource, timestamp)) {
+			// we have already sent this timestamp for this datasource
 			// skip. This is relevant for replayed tuples if any (if AvroWriterBolt was working,
-			// for example)
-			LOGGER.debug("Repeated tuple {}", datasourceTimestamp);
+			// for example). The data is already in Kafka so the tuple is acked, otherwise 
+			// it would time out and be replayed again 
+			LOGGER.debug("Repeated tuple for datasource {} and timestamp {}", datasource, timestamp);
+			this.collector.ack(inputTuple);
 			return;
 		}
 		
-		String content = inputTuple.getStringByField(RestIngestionSpout.CONTENT_FIELD);
-				
-		try {
-			this.kafkaProducer.send(new KeyedMessage<String, String>
+		byte [] content = inputTuple.getBinaryByField(RestIngestionSpout.CONTENT_FIELD);
+		PayloadCodec codec = PayloadCodec.forName(inputTuple.getStringByField(RestIngestionSpout.CODEC_FIELD));
+		
+		// hand to the sender thread
+		this.pendingMessages.add(new PendingMessage(inputTuple, new KeyedMessage<String, byte[]>
 				// Kafka topic 
 				(datasource, 
 				// Partition key
 				datasource + timestamp.toString(),
 				// Message
-				content));
-		} catch (Exception e) {
-			// Exceptions in Kafka API are not checked
-			LOGGER.error("Error sending message to Kafka, will retry {}", e.getMessage());
-			this.collector.fail(inputTuple);
-			return;
-		}
+				codec.frame(content))));
+		this.inFlightTuples++;
 		
-		// ack this tuple
-		this.collector.ack(inputTuple);
+		// backpressure: wait for the batches in flight, the sender sends the pending messages after lingerMillis 
+		while (this.inFlightTuples > this.maxInFlight) {
+			try {
+				complete(this.completedBatches.take());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
 	}
 
 	/**
@@ -160,7 +423,16 @@ public class KafkaWriterBolt extends BaseRichBolt {
 	 * */
 	@Override
 	public void cleanup() {
-		this.kafkaProducer.close();
+		this.pendingMessages.add(STOP);
+		this.sender.shutdown();
+		try {
+			this.sender.awaitTermination(SHUTDOWN_TIMEOUT_SECS, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		completeBatches();
+		this.dedupFilter.checkpoint();
+		this.messageSender.close();
 	}
 
 	@Override
@@ -0,0 +1,262 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.tuple.Values;
+
+/**
+ * <p>
+ * ReplayStore that appends the tuples to a log in the local disk of the worker, so emitting a tuple
+ * doesn't require a network round trip as with RedisReplayStore.
+ * </p>
+ * <p>
+ * The log is split into segment files of a fixed size, that are memory mapped, so appending a tuple is
+ * just a copy into memory and the OS writes it to disk in background. Each record is the length of the
+ * serialized tuple as an int followed by the tuple serialized with ReplayStores.serialize(). An in-memory
+ * index maps each tuple id to the segment and offset of its record, so getting a tuple
+ * doesn't require scanning the log.
+ * </p>
+ * <p>
+ * Compaction: the number of live (not acked) records is kept per segment. When that number gets to 0 the
+ * segment file is deleted, or just rewound if it is the segment currently used for appending. As tuples are
+ * acked approximately in emission order, this keeps the log small without copying records around.
+ * Tuples bigger than the segment size get a dedicated segment.
+ * </p>
+ * <p>
+ * The journal is not recovered when the worker restarts: the files of a previous execution of the same task
+ * are deleted when the journal is created, because Storm doesn't replay tuples emitted by a previous
+ * instance of the spout anyway
+ * </p>
+ * <p>
+ * This class is not thread safe
+ * </p>
+ * */
+class MappedReplayJournal implements ReplayStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedReplayJournal.class);
+
+	/**
+	 * Size in bytes of the header of each record, that contains the length of the record
+	 * */
+	private static final int RECORD_HEADER_SIZE = 4;
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private static class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		/**
+		 * Number of records in this segment that have not been deleted
+		 * */
+		int liveRecords = 0;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Position of a record in the journal
+	 * */
+	private static class Location {
+		final Segment segment;
+		final int offset;
+
+		Location(Segment segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Directory for the segment files
+	 * */
+	private final File journalDir;
+
+	/**
+	 * Size in bytes for new segments
+	 * */
+	private final int segmentSize;
+
+	/**
+	 * Location of the record for each tuple id
+	 * */
+	private final Map<Object, Location> index;
+
+	/**
+	 * Segment where new records are appended
+	 * */
+	private Segment activeSegment;
+
+	/**
+	 * Used to name the segment files
+	 * */
+	private long nextSegmentId;
+
+	/**
+	 * @param journalDir directory to store the segment files, that is created if it doesn't exist. This journal
+	 * deletes all the segment files in this directory, so it shouldn't be shared with other journals
+	 * @param segmentSize size in bytes for the segments files
+	 * */
+	MappedReplayJournal(File journalDir, int segmentSize) {
+		if (segmentSize <= RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size should be greater than " + RECORD_HEADER_SIZE
+					+ " but found " + segmentSize);
+		}
+		this.journalDir = journalDir;
+		this.segmentSize = segmentSize;
+		this.index = new HashMap<Object, Location>();
+		this.activeSegment = null;
+		this.nextSegmentId = 0;
+
+		if (! journalDir.isDirectory() && ! journalDir.mkdirs()) {
+			String msg = "Could not create journal directory " + journalDir;
+			LOGGER.error(msg);
+			throw new RuntimeException(msg);
+		}
+		// delete segments from previous executions
+		for (File segmentFile : segmentFiles()) {
+			LOGGER.info("Deleting segment from a previous execution {}", segmentFile);
+			deleteFile(segmentFile);
+		}
+	}
+
+	/**
+	 * @return the segment files currently in the journal directory
+	 * */
+	List<File> segmentFiles() {
+		List<File> segmentFiles = new LinkedList<File>();
+		File [] files = this.journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+					segmentFiles.add(file);
+				}
+			}
+		}
+		return segmentFiles;
+	}
+
+	private static void deleteFile(File file) {
+		if (! file.delete()) {
+			LOGGER.warn("Could not delete journal file {}", file);
+		}
+	}
+
+	/**
+	 * Create and map a new segment file with size bytes
+	 * */
+	private Segment createSegment(int size) {
+		File segmentFile = new File(this.journalDir, String.format("%020d", this.nextSegmentId++) + SEGMENT_SUFFIX);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+			try {
+				raf.setLength(size);
+				// the mapping is still valid after closing the file
+				return new Segment(segmentFile, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("Error creating journal segment " + segmentFile + ": " + ioe.getMessage());
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/**
+	 * Delete a segment that has no live records and is not the active segment.
+	 * NOTE: a MappedByteBuffer cannot be unmapped explicitly, the mapping is released when the
+	 * buffer is garbage collected, but deleting the file is ok in the meantime
+	 * */
+	private void deleteSegment(Segment segment) {
+		LOGGER.debug("Deleting journal segment {}", segment.file);
+		deleteFile(segment.file);
+	}
+
+	@Override
+	public void store(Object tupleId, Values tuple) {
+		// a tuple might be stored again with the same id
+		delete(tupleId);
+
+		byte [] record = ReplayStores.serialize(tuple);
+		int recordSize = RECORD_HEADER_SIZE + record.length;
+		if (this.activeSegment == null || this.activeSegment.buffer.remaining() < recordSize) {
+			// roll to a new segment
+			if (this.activeSegment != null && this.activeSegment.liveRecords == 0) {
+				deleteSegment(this.activeSegment);
+			}
+			this.activeSegment = createSegment(Math.max(this.segmentSize, recordSize));
+		}
+
+		MappedByteBuffer buffer = this.activeSegment.buffer;
+		int offset = buffer.position();
+		buffer.putInt(record.length);
+		buffer.put(record);
+		this.activeSegment.liveRecords++;
+		this.index.put(tupleId, new Location(this.activeSegment, offset));
+	}
+
+	@Override
+	public Values get(Object tupleId) {
+		Location location = this.index.get(tupleId);
+		if (location == null) {
+			return null;
+		}
+		// use a view so the position of the segment buffer is not modified
+		ByteBuffer view = location.segment.buffer.duplicate();
+		view.position(location.offset);
+		byte [] record = new byte[view.getInt()];
+		view.get(record);
+		return ReplayStores.deserialize(record);
+	}
+
+	@Override
+	public void delete(Object tupleId) {
+		Location location = this.index.remove(tupleId);
+		if (location == null) {
+			return;
+		}
+		Segment segment = location.segment;
+		segment.liveRecords--;
+		if (segment.liveRecords == 0) {
+			if (segment == this.activeSegment) {
+				// reuse the active segment from the beginning
+				segment.buffer.clear();
+			} else {
+				deleteSegment(segment);
+			}
+		}
+	}
+
+	/**
+	 * Delete all the segments
+	 * */
+	@Override
+	public void close() {
+		this.index.clear();
+		this.activeSegment = null;
+		for (File segmentFile : segmentFiles()) {
+			deleteFile(segmentFile);
+		}
+	}
+
+	/**
+	 * @return number of tuples in the journal
+	 * */
+	int size() {
+		return this.index.size();
+	}
+}
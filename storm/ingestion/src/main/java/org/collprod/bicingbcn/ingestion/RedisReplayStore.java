@@ -0,0 +1,160 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
+import backtype.storm.tuple.Values;
+
+/**
+ * <p>
+ * Stores the tuples emitted by a spout in Redis, so they can be replayed in case of failure
+ * </p>
+ * <p>
+ * Each tuple is stored as a single binary value under the key prefix + tupleId, written with a single
+ * SETEX command. The value is the Java serialization of the tuple, so the types of the fields are preserved 
+ * (e.g. the timestamp is restored as a Long), and the XML documents take as much memory in Redis as in the 
+ * tuple, encoded with "spout.content_codec". Hence getting a tuple takes a single GET, and acking it a 
+ * single DEL for the same key.
+ * </p>
+ * <p>
+ * The values have a TTL of "redis.replay_ttl" seconds, so tuples that are never acked nor failed (e.g. because
+ * the topology was killed) don't stay in Redis forever
+ * </p>
+ * <p>
+ * This class is not thread safe, as Jedis connections are not thread safe
+ * </p>
+ * */
+class RedisReplayStore implements ReplayStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedisReplayStore.class);
+
+	/**
+	 * Default value for the TTL in seconds of the stored tuples, when "redis.replay_ttl" is not in the configuration
+	 * */
+	private static final int DEFAULT_REPLAY_TTL = 24 * 60 * 60;
+
+	/**
+	 * Number of keys requested per SCAN call in clearDb()
+	 * */
+	private static final int SCAN_COUNT = 1000;
+
+	/**
+	 * SCAN starts and ends with this cursor
+	 * */
+	private static final String SCAN_START = "0";
+
+	/**
+	 * Prefix for all the Redis keys
+	 * */
+	private final String keyPrefix;
+
+	/**
+	 * TTL in seconds for the stored tuples
+	 * */
+	private final int ttl;
+
+	/**
+	 * Connection to Redis
+	 * */
+	private final Jedis dbConnection;
+
+	/**
+	 * @param conf Configuration with the parameters to connect to Redis
+	 * @param keyPrefix prefix for the keys used to store the tuples
+	 * */
+	RedisReplayStore(@SuppressWarnings("rawtypes") Map conf, String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+		this.ttl = IngestionTopology.getIntConf(conf, "redis.replay_ttl", DEFAULT_REPLAY_TTL);
+		this.dbConnection = setupDbConnection(conf);
+	}
+
+	/**
+	 * Create an object for connecting to Redis according to conf, and use it to connect to Redis
+	 * @param conf Configuration with the parameters to connect to Redis
+	 * @return a Jedis object that can be used to talk to Redis
+	 * */
+	private static Jedis setupDbConnection(@SuppressWarnings("rawtypes") Map conf) {
+		Jedis dbConnection = new Jedis(conf.get("redis.host").toString(),
+									   Integer.parseInt(conf.get("redis.port").toString()));
+		dbConnection.connect();
+		return dbConnection;
+	}
+
+	private byte [] key(Object tupleId) {
+		return SafeEncoder.encode(this.keyPrefix + tupleId);
+	}
+
+	/**
+	 * Store tuple in Redis under tupleId, with a single command
+	 * */
+	@Override
+	public void store(Object tupleId, Values tuple) {
+		this.dbConnection.setex(key(tupleId), this.ttl, ReplayStores.serialize(tuple));
+	}
+
+	/**
+	 * Restore a tuple stored by store()
+	 *
+	 * @return the tuple, or null if there is no tuple for tupleId, e.g. because it was already deleted or expired
+	 * */
+	@Override
+	public Values get(Object tupleId) {
+		byte [] value = this.dbConnection.get(key(tupleId));
+		return value == null ? null : ReplayStores.deserialize(value);
+	}
+
+	/**
+	 * Delete the tuple stored for tupleId, if any
+	 * */
+	@Override
+	public void delete(Object tupleId) {
+		this.dbConnection.del(key(tupleId));
+	}
+
+	@Override
+	public void close() {
+		this.dbConnection.close();
+	}
+
+	/**
+	 * This is basically a test method, that might be called before starting the topology
+	 * to delete all the keys starting with keyPrefix. Keys are iterated using SCAN, so Redis
+	 * is not blocked as with KEYS, and deleted with a pipeline per batch of keys
+	 *
+	 * @param conf Configuration with the parameters to connect to Redis
+	 * */
+	static void clearDb(@SuppressWarnings("rawtypes") Map conf, String keyPrefix) {
+		Jedis dbConnection = setupDbConnection(conf);
+		try {
+			ScanParams scanParams = new ScanParams();
+			scanParams.match(keyPrefix + "*");
+			scanParams.count(SCAN_COUNT);
+			String cursor = SCAN_START;
+			int deletedKeys = 0;
+			do {
+				ScanResult<String> scanResult = dbConnection.scan(cursor, scanParams);
+				List<String> keys = scanResult.getResult();
+				if (keys.size() > 0) {
+					Pipeline pipeline = dbConnection.pipelined();
+					for (String key : keys) {
+						pipeline.del(key);
+					}
+					pipeline.sync();
+					deletedKeys += keys.size();
+				}
+				cursor = scanResult.getStringCursor();
+			} while (! cursor.equals(SCAN_START));
+			LOGGER.info("Deleted {} keys with prefix {}", deletedKeys, keyPrefix);
+		} finally {
+			dbConnection.close();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.collprod.bicingbcn.ingestion;
+
+import backtype.storm.tuple.Values;
+
+/**
+ * <p>
+ * Stores the tuples emitted by a spout until they are acked, so they can be emitted 
+ * again in case of failure
+ * </p>
+ * <p>
+ * Implementations are not required to be thread safe, as they are only accessed from the spout thread.
+ * Use ReplayStores.create() to get the implementation selected in the configuration 
+ * </p>
+ * */
+interface ReplayStore {
+	/**
+	 * Store tuple under tupleId
+	 * */
+	void store(Object tupleId, Values tuple);
+	
+	/**
+	 * Restore a tuple stored by store()
+	 *
+	 * @return the tuple, or null if there is no tuple for tupleId, e.g. because it was already deleted or expired
+	 * */
+	Values get(Object tupleId);
+	
+	/**
+	 * Delete the tuple stored for tupleId, if any
+	 * */
+	void delete(Object tupleId);
+	
+	/**
+	 * Release the resources used by this store
+	 * */
+	void close();
+}
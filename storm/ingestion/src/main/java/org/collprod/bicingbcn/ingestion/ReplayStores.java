@@ -0,0 +1,122 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Values;
+
+/**
+ * Utilities for ReplayStore implementations
+ * */
+final class ReplayStores {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplayStores.class);
+	
+	/**
+	 * Value of "spout.replay_store" for RedisReplayStore 
+	 * */
+	static final String REDIS_STORE = "redis";
+	
+	/**
+	 * Value of "spout.replay_store" for MappedReplayJournal 
+	 * */
+	static final String JOURNAL_STORE = "journal";
+	
+	/**
+	 * Default value for the size in bytes of the journal segments, when "spout.journal_segment_size" 
+	 * is not in the configuration
+	 * */
+	private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	private ReplayStores() {}
+	
+	/**
+	 * Create the ReplayStore for a task of spoutClass, according to the property "spout.replay_store" in conf,
+	 * which defaults to REDIS_STORE
+	 * <ul>
+	 * 	<li>REDIS_STORE: a RedisReplayStore</li>
+	 * 	<li>JOURNAL_STORE: a MappedReplayJournal in a directory for this task under "spout.journal_dir", 
+	 * with segments of "spout.journal_segment_size" bytes</li>
+	 * </ul>
+	 * 
+	 * @throws RuntimeException if the value for "spout.replay_store" is unknown
+	 * */
+	static ReplayStore create(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, 
+			@SuppressWarnings("rawtypes") Class spoutClass) {
+		Object replayStoreConf = conf.get("spout.replay_store");
+		String replayStoreType = replayStoreConf == null ? REDIS_STORE : replayStoreConf.toString().trim(); 
+		if (replayStoreType.equals(REDIS_STORE)) {
+			return new RedisReplayStore(conf, spoutClass.getName() + "_" + context.getStormId() + "_");
+		}
+		if (replayStoreType.equals(JOURNAL_STORE)) {
+			File journalDir = new File(conf.get("spout.journal_dir").toString().trim(), 
+					spoutClass.getName() + "_" + context.getStormId() + "_" + context.getThisTaskId());
+			return new MappedReplayJournal(journalDir, 
+					IngestionTopology.getIntConf(conf, "spout.journal_segment_size", DEFAULT_JOURNAL_SEGMENT_SIZE));
+		}
+		String msg = "Unknown replay store type " + replayStoreType;
+		LOGGER.error(msg);
+		throw new RuntimeException(msg);
+	}
+	
+	/**
+	 * @return tuple serialized. It is not compressed, as the content of the tuples is already encoded 
+	 * with the codec in "spout.content_codec", see PayloadCodec 
+	 * */
+	static byte [] serialize(Values tuple) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(tuple);
+			out.close();
+		} catch (IOException ioe) {
+			// should not happen for a ByteArrayOutputStream
+			LOGGER.error("Error serializing tuple: " + ioe.getMessage());
+			throw new RuntimeException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return true iff value starts with the magic number of gzip, instead of the magic number of 
+	 * Java serialization
+	 * */
+	private static boolean isGzipped(byte [] value) {
+		return value.length >= 2 
+				&& (value[0] & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff) 
+				&& (value[1] & 0xff) == (GZIPInputStream.GZIP_MAGIC >> 8);
+	}
+	
+	/**
+	 * Inverse of serialize(). Also accepts the tuples compressed with gzip by previous versions, 
+	 * that might still be in a replay store
+	 * */
+	static Values deserialize(byte [] value) {
+		try {
+			InputStream bytes = new ByteArrayInputStream(value);
+			ObjectInputStream in = new ObjectInputStream(isGzipped(value) ? new GZIPInputStream(bytes) : bytes);
+			try {
+				return (Values) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("Error deserializing tuple: " + ioe.getMessage());
+			throw new RuntimeException(ioe);
+		} catch (ClassNotFoundException cnfe) {
+			LOGGER.error("Error deserializing tuple: " + cnfe.getMessage());
+			throw new RuntimeException(cnfe);
+		}
+	}
+}
@@ -4,33 +4,32 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.lang.mutable.MutableLong;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.fluent.Request;
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.collprod.bicingbcn.ingestion.AsyncDownloader.DownloadResult;
 import org.collprod.bicingbcn.ingestion.tsparser.TimeStampParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import redis.clients.jedis.Jedis;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichSpout;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
-import backtype.storm.utils.Utils;
 
 import com.atlassian.fugue.Either;
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
-import com.google.common.base.Stopwatch;
-import com.google.common.math.LongMath;
+import com.google.common.base.Ticker;
 
 /**
  * <p>
@@ -38,9 +37,17 @@ import com.google.common.math.LongMath;
  * <ul>
  *  <li> DATASOURCE_ID :: String</li>
  *  <li> TIMESTAMP_FIELD :: Long</li>
- *  <li> CONTENT_FIELD :: String</li>
+ *  <li> KEY_FIELD :: String</li>
+ *  <li> CONTENT_FIELD :: byte[]</li>
+ *  <li> CODEC_FIELD :: String</li>
  *  </ul>
  * </p>
+ * <p>
+ * CONTENT_FIELD is the downloaded data as UTF-8 bytes, encoded with the PayloadCodec named in CODEC_FIELD. 
+ * The codec is configured with "spout.content_codec", e.g. "snappy", so the data is compressed once when it 
+ * is downloaded and then travels compressed through Storm, the replay store and Kafka. This also avoids 
+ * carrying the data as a String, that takes 2 bytes per character  
+ * </p>
  * 
  * <p>
  * This spouts parses the timestamp of the data and drops that data which was already downloaded, i.e., 
@@ -51,21 +58,42 @@ import com.google.common.math.LongMath;
  * </p>
  * <p>
  * The mutable state for this spout is stored as a DatasourceState object per data source
- * assigned to this spout. The only mutable state per data source is a Stopwatch object, a 
- * TimestampParser and the last timestamp.
+ * assigned to this spout. The only mutable state per data source is a TimestampParser and the last 
+ * timestamp, together with the next instant at which the data source should be polled, which is kept 
+ * in a DatasourceScheduler.
  * That mutable state could be persisted in some data store, but that is not needed because 
  * if the state is lost and the spout restarted that only affects the first call to nextTuple(), 
  * which maybe would download a file twice, but then the later calls would be ok
  * </p>
  * <p>
+ * Before parsing the timestamp, unchanged data is detected by AsyncDownloader by using conditional GET
+ * requests and by fingerprinting the downloaded data, which saves bandwidth and parsing for services which
+ * are polled more often than they update their data 
+ * </p>
+ * <p>
+ * Downloads are performed by an AsyncDownloader in a bounded pool of background threads, of size 
+ * "spout.download_threads" in the configuration, so nextTuple() never blocks waiting for a service: it just 
+ * schedules the downloads for the data sources that should be polled, and emits the downloads already finished  
+ * </p>
+ * <p>
+ * The data sources are polled according to a DatasourceScheduler, which orders them by the next instant 
+ * they are due, so nextTuple() waits exactly until the earliest data source is due or a download finishes, 
+ * instead of waking up with the greatest common divisor of all the refresh rates and checking every data source. 
+ * Each data source gets a random jitter of up to "spout.poll_jitter" times its refresh rate, so data sources with 
+ * the same refresh rate are not polled in the same burst    
+ * </p>
+ * <p>
  * Guaranteed processing strategy:
  * 	<ul>
- * 	<li> each file is stored in Redis as a String when download from the consumed service. Default Redis RDB
+ * 	<li> each tuple is stored in a ReplayStore when download from the consumed service. The implementation is 
+ * selected with "spout.replay_store": either "journal" for a MappedReplayJournal in the local disk of the worker, 
+ * which avoids a network round trip per tuple, or "redis" for a RedisReplayStore, where each tuple is stored as 
+ * a single binary value with a TTL of "redis.replay_ttl" seconds. Default Redis RDB
  * persistance and the capacity of up to 512 MB per Redis string (http://redis.io/topics/data-types) 
  * should be enough: if the service generates files bigger than that then this approach is not sound 
  * (another database and several instances of this spout taking turns to consume the service, and also
  * local grouping for connecting components, could be an option)</li>
- *  <li> a fresh UUID is used for each file to generate a fresh Redis key </li>
+ *  <li> a fresh UUID is used as the id of each tuple in the store </li>
  *  <li>in case of processing failure (e.g. in the Spout that stores the file) the tuple is emitted again; 
  * in case of ack its key is deleted </li>
  * </ul>
@@ -78,6 +106,7 @@ public class RestIngestionSpout extends BaseRichSpout {
 	public static final String TIMESTAMP_FIELD = "TIMESTAMP_FIELD";
 	public static final String KEY_FIELD = "KEY_FIELD";
 	public static final String DATASOURCE_ID = "DATASOURCE_ID"; 
+	public static final String CODEC_FIELD = "CODEC_FIELD";
 
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(RestIngestionSpout.class);
@@ -91,23 +120,47 @@ public class RestIngestionSpout extends BaseRichSpout {
 	private SpoutOutputCollector collector;
 	
 	/**
-	 * Prefix to use for all the Redis keys, composed by this class
-	 * name together with the Storm topology Id 
+	 * Stores the emitted tuples until they are acked, in Redis or in a local journal 
+	 * according to "spout.replay_store"
 	 * */
-	private String redisKeyPrefix; 
+	private ReplayStore replayStore;
 	
 	/**
-	 * Connection to Redis
+	 * Upper bound for the time in milliseconds nextTuple() waits when there is nothing to emit, so acks and 
+	 * fails are processed promptly even for big refresh rates
 	 * */
-	private Jedis dbConnection;
+	private static final long MAX_IDLE_SLEEP = 100;
 	
 	/**
-	 * Tuples will be emitted with this refresh rate in miliseconds, which corresponds to the 
-	 * greatest common divisor for the set of refresh rates for all sources
-	 * 
-	 * Using miliseconds as that is the resolution of storm Utils.sleep()
+	 * Default value for the fraction of the refresh rate used as jitter, when "spout.poll_jitter" 
+	 * is not in the configuration
+	 * */
+	private static final double DEFAULT_POLL_JITTER = 0.1;
+	
+	/**
+	 * Decides when each data source should be polled
+	 * */
+	private DatasourceScheduler<DatasourceState> scheduler;
+	
+	/**
+	 * Default value for the number of download threads, when "spout.download_threads" is not in the configuration 
+	 * */
+	private static final int DEFAULT_DOWNLOAD_THREADS = 4;
+	
+	/**
+	 * Performs the downloads in background
+	 * */
+	private AsyncDownloader downloader;
+	
+	/**
+	 * Default value for the name of the codec for CONTENT_FIELD, when "spout.content_codec" is not in the configuration 
 	 * */
-	private long refreshRate;
+	private static final String DEFAULT_CONTENT_CODEC = "none";
+	
+	/**
+	 * Codec for CONTENT_FIELD
+	 * */
+	private PayloadCodec contentCodec;
 	
 	/**
 	 * Configuration for each data source
@@ -131,11 +184,13 @@ public class RestIngestionSpout extends BaseRichSpout {
 	static abstract class DatasourceState {
 		DatasourceState() {}
 		public static DatasourceState create(String datasourceId, Request request, 
-				float refreshRate, int dowloadRetries, Stopwatch stopwatch,
-				Either<String, TimeStampParser> timestampParser, MutableLong lastTimestamp) {
+				float refreshRate, int dowloadRetries,
+				Either<String, TimeStampParser> timestampParser, MutableLong lastTimestamp,
+				AsyncDownloader.ConditionalRequestState conditionalRequestState) {
 	        return new AutoValue_RestIngestionSpout_DatasourceState(datasourceId, request, 
-	        														refreshRate, dowloadRetries, stopwatch,
-	        														timestampParser, lastTimestamp);
+	        														refreshRate, dowloadRetries,
+	        														timestampParser, lastTimestamp,
+	        														conditionalRequestState);
 	      }
 		/**
 		 * Id of the datasource corresponding to this configuration
@@ -160,13 +215,6 @@ public class RestIngestionSpout extends BaseRichSpout {
 	     * Kind: inmutable configuration
 	     * */
 	    public abstract int dowloadRetries();
-	    /**
-	     * Counts the number of miliseconds since the last request to the service associated 
-	     * to the data source.
-	     * 
-	     * Kind: mutable state
-	     * */
-	    public abstract Stopwatch stopwatch();
 	    
 	    /**
 		 * Either the class name for a TimeStampParser (left), or a TimeStampParser object (right)
@@ -181,12 +229,19 @@ public class RestIngestionSpout extends BaseRichSpout {
 		 * Kind: mutable state
 		 * */
 		public abstract MutableLong lastTimestamp();
+		
+		/**
+		 * Validators and fingerprint of the last download, to skip the download of unchanged data
+		 * 
+		 * Kind: mutable state, only accessed from the download threads  
+		 * */
+		public abstract AsyncDownloader.ConditionalRequestState conditionalRequestState();
 	}
 
 	/**
 	 * Find out which datasources correspond to this spout get the relevant configuration data 
 	 * 
-	 * @return a DatasourceConfig array with the state for each data source. Stopwatches are created stopped
+	 * @return a DatasourceConfig array with the state for each data source
 	 * @throws RuntimeException if no datasource is assigned to this spout, which happens when there are more
 	 * spout instances than data souces
 	 * */
@@ -197,6 +252,9 @@ public class RestIngestionSpout extends BaseRichSpout {
 		int thisTaskIndex = context.getThisTaskIndex();
 	    Map<String, String> datasourcesConfigurations = (Map<String, String>) conf.get(IngestionTopology.DATASOURCE_CONF_KEY);
 	    
+	    int connectTimeout = IngestionTopology.getIntConf(conf, "spout.connect_timeout_ms", AsyncDownloader.DEFAULT_CONNECT_TIMEOUT_MS);
+	    int socketTimeout = IngestionTopology.getIntConf(conf, "spout.socket_timeout_ms", AsyncDownloader.DEFAULT_SOCKET_TIMEOUT_MS);
+	    
 	    List<DatasourceState> assignedDatasourcesConfs = new LinkedList<DatasourceState>();
 		int i = 0;
 		for (Map.Entry<String, String> datasourceConf : datasourcesConfigurations.entrySet()) {
@@ -210,13 +268,16 @@ public class RestIngestionSpout extends BaseRichSpout {
 					throw new RuntimeException(ce);
 				}
 				Either<String, TimeStampParser> newTimestampParser = Either.left(newProperties.getString("timestamp_parser_class"));
+				// refresh_rate is in seconds in the configuration 
+				float refreshRate = newProperties.getFloat("refresh_rate") * 1000;
 				assignedDatasourcesConfs.add(DatasourceState.create(datasourceConf.getKey(), 
-						Request.Get(newProperties.getString("datasource_url")),
-						newProperties.getFloat("refresh_rate"),
+						AsyncDownloader.newRequest(newProperties.getString("datasource_url"), refreshRate, 
+								connectTimeout, socketTimeout),
+						refreshRate,
 						newProperties.getInt("dowload_retries"),
-						Stopwatch.createUnstarted(),
 						newTimestampParser, 
-						new MutableLong(-1)
+						new MutableLong(-1),
+						new AsyncDownloader.ConditionalRequestState()
 						));
 			}
 			i++;
@@ -232,42 +293,31 @@ public class RestIngestionSpout extends BaseRichSpout {
 		return assignedDatasourcesConfs.toArray(new DatasourceState[assignedDatasourcesConfs.size()]);
 	}
 	
-	/**
-	 * Create an object for connecting to Redis according to conf, and use it to connect to Redis
-	 * @param conf Configuration with the parameters to connect to Redis
-	 * @return a Jedis object that can be used to talk to Redis
-	 * */
-	private static Jedis setupDbConnection(@SuppressWarnings("rawtypes") Map conf) {
-		Jedis dbConnection = new Jedis(conf.get("redis.host").toString(),
-									   Integer.parseInt(conf.get("redis.port").toString()));
-		dbConnection.connect();
-		return dbConnection;
-	}
-			
 	@Override
 	public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, SpoutOutputCollector collector) {	
 		// store collector to be able to emit later
 		this.collector = collector;
 		
-		// Redis stuff
-		this.redisKeyPrefix =  this.getClass().getName() + "_" + context.getStormId();
-		this.dbConnection = setupDbConnection(conf);
+		// Storage for replaying tuples
+		this.replayStore = ReplayStores.create(conf, context, this.getClass());
+		
+		Object contentCodecConf = conf.get("spout.content_codec");
+		this.contentCodec = PayloadCodec.forName(contentCodecConf == null ? DEFAULT_CONTENT_CODEC : contentCodecConf.toString());
 		
 		// Find out which data sources correspond to this spout and store the relevant configuration
 		// data at this.assignedDatasourcesConfs
 		this.assignedDatasourcesConfs = getAssignedDatasources(conf, context);
 		
-		// refreshRate should be the greatest common divisor for the set of refresh rates for all sources
-		// source rates are floats in seconds, here we convert to miliseconds and round
-		this.refreshRate = Math.round(this.assignedDatasourcesConfs[0].refreshRate() * 1000);
-		for (int i = 1; i < this.assignedDatasourcesConfs.length; i++) {
-			this.refreshRate = LongMath.gcd(this.refreshRate, Math.round(this.assignedDatasourcesConfs[i].refreshRate() * 1000));
-		}
+		// Start the download threads: no point in having more threads than data sources
+		int downloadThreads = Math.min(this.assignedDatasourcesConfs.length, 
+				IngestionTopology.getIntConf(conf, "spout.download_threads", DEFAULT_DOWNLOAD_THREADS));
+		this.downloader = new AsyncDownloader(downloadThreads, context.getThisComponentId() + "-" + context.getThisTaskId());
 		
-		// reste and start stopwatches
+		// Schedule the data sources, source rates are floats in miliseconds, here we round them
+		this.scheduler = new DatasourceScheduler<DatasourceState>(Ticker.systemTicker(), new Random(), 
+				IngestionTopology.getDoubleConf(conf, "spout.poll_jitter", DEFAULT_POLL_JITTER));
 		for (DatasourceState datasourceSt : this.assignedDatasourcesConfs ) {
-			datasourceSt.stopwatch().reset();
-			datasourceSt.stopwatch().start();
+			this.scheduler.add(datasourceSt, Math.round(datasourceSt.refreshRate()));
 		}
 	}
 
@@ -282,80 +332,20 @@ public class RestIngestionSpout extends BaseRichSpout {
 	 * */
 	@Override
 	public void close() {
-		this.dbConnection.close();
+		this.downloader.shutdown();
+		this.replayStore.close();
 		super.close();
 	}
 	
-	// TODO: move to independent class, by adding extra arguments
-	/**
-	 * Store in Redis a tuple as one or more key-value pairs, using an UUID as the 
-	 * basis for the key.
-	 * NOTE: all the tuple components will be stored as the String returned by toString()
-	 * 
-	 * @param tuple Storm tuple to be stored in Redis
-	 * @param tupleId will be used to build the Redis key 
-	 * */ 
-	private void storeInRedis(Values tuple, UUID tupleId) {
-		int i = 0;
-		for (Object field : tuple) {
-			this.dbConnection.set(this.redisKeyPrefix + tupleId + "_" + i, field.toString());
-			i++;
-		}
-	}
-	
-	/**
-	 * Restore a tuple stored by storeInRedis()
-	 * @param UUID UUID used to store the tuple in Redis
-	 * */
-	private Values getFromRedis(Object tupleId) {
-		Set<String> keys = this.dbConnection.keys(this.redisKeyPrefix + tupleId + "_" + "*");
-		Object [] values = new String[keys.size()];
-		int tupleIndex;
-		for (String key : keys) {
-			// NOTE as keys are returned as a set its order is not preserved, hence we
-			// must exploit the definition of storeInRedis, and get the tuple component
-			// index from the last character of the key
-			tupleIndex = Integer.parseInt(key.substring(key.length() - 1));
-			values[tupleIndex] = this.dbConnection.get(key);
-		}
-		return new Values(values);
-	}
-	
 	/**
 	 * This is basically a test method, that might be called before starting the topology
-	 * to delete all the keys written by this spout
+	 * to delete all the keys written by this spout when using RedisReplayStore
 	 * @param conf Configuration with the parameters to connect to Redis
 	 * */
 	public static void clearDb(@SuppressWarnings("rawtypes") Map conf) {	
-		Jedis dbConnection = setupDbConnection(conf);
-		for (String key : dbConnection.keys(RestIngestionSpout.class.getName() + "_" + "*")) {
-			dbConnection.del(key);
-		} 
-		dbConnection.close();
+		RedisReplayStore.clearDb(conf, RestIngestionSpout.class.getName() + "_");
 	}
 	
-	private static void logDownloadError(DatasourceState datasourceState, Exception e) {
-		LOGGER.warn("Error downloading file for data source " 
-						+  datasourceState.datasourceId() + " : "+ e.getMessage());
-	}
-	
-	private static String downloadFile(DatasourceState datasourceState) {
-		String newData = null;
-		for (int i = 0; i < datasourceState.dowloadRetries(); i++) {
-			try {
-				newData = datasourceState.request().execute().returnContent().asString();
-				break;
-			} catch (ClientProtocolException cpe) {
-				// return code different to 200
-				logDownloadError(datasourceState, cpe);
-			} catch (IOException ioe) {
-				// bad URI or similar
-				logDownloadError(datasourceState, ioe);
-			}
-		}
-		return newData;
-	} 
-	
 	/**
 	 * Get the TimeStampParser for datasourceState, creating a new instance and storing it if necessary
 	 * */
@@ -381,77 +371,115 @@ public class RestIngestionSpout extends BaseRichSpout {
 		return timestampParser.right().get();
 	}
 	
+	/**
+	 * Emits a tuple for a finished download, if the download was successful and its data is new 
+	 * 
+	 * @return true iff a tuple was emitted
+	 * */
+	private boolean emitDownload(DownloadResult download) {
+		DatasourceState datasourceState = download.datasourceState();
+		// same data as in the last download
+		if (download.notModified()) {
+			LOGGER.debug("Skipping not modified data for data source {}", datasourceState.datasourceId());
+			return false;
+		}
+		// download error: will try later
+		if (! download.content().isPresent()) {
+			LOGGER.warn("Failed to download file for data source " 
+					+ datasourceState.datasourceId() + " will retry in " 
+					+ datasourceState.refreshRate() / 1000 + " seconds");
+			return false;
+		} 
+		
+		// successful download
+		// Emit tuple only if it's new: if it has a new timestamp
+		String newData = download.content().get();
+		TimeStampParser timestampParser = getParser(datasourceState);
+		Optional<Long> newTimestamp = timestampParser.apply(newData);
+		Optional<String> newKey = timestampParser.getKey(newData);
+		if (newTimestamp.isPresent() && newKey.isPresent()) {
+			// only emit the tuple if we obtain a new timestamp, so the data is new 
+			MutableLong lastTimestamp = datasourceState.lastTimestamp();
+			Long newTimestampValue = newTimestamp.get();
+			if (newTimestampValue > lastTimestamp.longValue()) {
+				// emit
+				byte [] content;
+				try {
+					content = this.contentCodec.encode(newData.getBytes(Charsets.UTF_8));
+				} catch (IOException ioe) {
+					LOGGER.error("Error encoding data for data source " + datasourceState.datasourceId() 
+							+ " with codec " + this.contentCodec + ": " + ioe.getMessage());
+					return false;
+				}
+				UUID tupleId = UUID.randomUUID();
+				Values tuple = new Values(datasourceState.datasourceId(), newTimestampValue, newKey.get(), 
+										  content, this.contentCodec.name());
+					// store for replay
+				this.replayStore.store(tupleId, tuple);
+					// emit a tuple with an id
+				this.collector.emit(tuple, tupleId);							
+					// update timestamp
+				lastTimestamp.setValue(newTimestampValue);
+				return true;
+			} else {
+				LOGGER.info("Skipping file with repeated timestamp {}", newTimestampValue);
+			}
+		}
+		else {
+			if (! newTimestamp.isPresent()) {
+				LOGGER.warn("Could not parse timestamp for data source " + datasourceState.datasourceId());
+			}
+			if (! newKey.isPresent()) {
+				LOGGER.warn("Could not get key for data source " + datasourceState.datasourceId());
+			}
+		}
+		return false;
+	}
+	
 	@Override
 	public void nextTuple() {
-		// Check which datasource/s should be polled
-		for (DatasourceState datasourceState : this.assignedDatasourcesConfs) {
-			if (datasourceState.stopwatch().elapsed(TimeUnit.MILLISECONDS) > datasourceState.refreshRate()) {
-				// time to download a new file
-				datasourceState.stopwatch().reset();
-
-				// try downloading a new file
-				String newData = downloadFile(datasourceState);
-				
-				// download error: will try later
-				if (newData == null) {
-					LOGGER.warn("Failed to download file for data source " 
-							+ datasourceState.datasourceId() + " will retry in " 
-							+ datasourceState.refreshRate() / 1000 + " seconds");
-				} else {
-					// successful download
-					// Emit tuple only if it's new: if it has a new timestamp
-					TimeStampParser timestampParser = getParser(datasourceState);
-					Optional<Long> newTimestamp = timestampParser.apply(newData);
-					Optional<String> newKey = timestampParser.getKey(newData);
-					if (newTimestamp.isPresent() && newKey.isPresent()) {
-						// only emit the tuple if we obtain a new timestamp, so the data is new 
-						MutableLong lastTimestamp = datasourceState.lastTimestamp();
-						Long newTimestampValue = newTimestamp.get();
-						if (newTimestampValue > lastTimestamp.longValue()) {
-							// emit
-							UUID tupleId = UUID.randomUUID();
-							Values tuple = new Values(datasourceState.datasourceId(), newTimestampValue, newKey.get(), newData);
-								// store is Redis
-							storeInRedis(tuple, tupleId);
-								// emit a tuple with an id
-							this.collector.emit(tuple, tupleId);							
-								// update timestamp
-							lastTimestamp.setValue(newTimestampValue);
-						} else {
-							LOGGER.info("Skipping file with repeated timestamp {}", newTimestampValue);
-						}
-					}
-					else {
-						if (! newTimestamp.isPresent()) {
-							LOGGER.warn("Could not parse timestamp for data source " + datasourceState.datasourceId());
-						}
-						if (! newKey.isPresent()) {
-							LOGGER.warn("Could not get key for data source " + datasourceState.datasourceId());
-						}
-					}
-				}
-				datasourceState.stopwatch().start();
+		// Schedule a download for the datasource/s that are due. If the previous download for 
+		// a data source is still in progress then this poll is skipped for that data source
+		for (DatasourceState datasourceState : this.scheduler.pollDue()) {
+			this.downloader.submit(datasourceState);
+		}
+		
+		// Emit the downloads finished so far, without blocking
+		boolean emitted = false;
+		DownloadResult download;
+		while ((download = this.downloader.poll()) != null) {
+			emitted |= emitDownload(download);
+		}
+		
+		// if there was nothing to emit then wait until the next data source is due or a download finishes
+		if (! emitted) {
+			try {
+				download = this.downloader.poll(Math.min(this.scheduler.millisUntilNextDue(), MAX_IDLE_SLEEP), 
+												 TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (download != null) {
+				emitDownload(download);
 			}
 		}
-		// sleep until next poll
-			// Note Util.sleep accepts milliseconds
-		Utils.sleep(this.refreshRate);
 	}
 
 	@Override
 	public void ack(Object tupleId) {
 		LOGGER.info("Finished processing tuple with id {}", tupleId);
-		this.dbConnection.del(tupleId.toString());
+		this.replayStore.delete(tupleId);
 	}
 
 	@Override
 	public void fail(Object tupleId) {
-		Values tuple = getFromRedis(tupleId); 		
+		Values tuple = this.replayStore.get(tupleId);
+		if (tuple == null) {
+			LOGGER.error("Tuple with id {} failed but it was not found in the replay store, it might have expired", tupleId);
+			return;
+		}
 		String datasourceId = tuple.get(0).toString();
-			// this type conversion is necessary as tuples are serialized in Redis
-			// with a String in each component, and the bolts expect a Long value 
-			// for that field
-		tuple.set(1, Long.parseLong(tuple.get(1).toString()));
 		LOGGER.warn("Failed to process data for data source {}, will retry", datasourceId);
 		this.collector.emit(tuple, tupleId);
 	}
@@ -459,7 +487,7 @@ public class RestIngestionSpout extends BaseRichSpout {
 
 	@Override
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
-		declarer.declare(new Fields(DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD));
+		declarer.declare(new Fields(DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD));
 	}
 
 }
@@ -0,0 +1,207 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Reads a time range of a raw archive table written by HBaseWriterBolt with SaltedRowKeys. The same range
+ * is scanned in each salt bucket in parallel, and then the results, which are sorted by time within each bucket,
+ * are merged by time. The number of salt buckets of each table is read from its descriptor, where 
+ * HBaseWriterBolt stores it, so tables written with different salt buckets can be read with the same reader.
+ * </p>
+ * <p>
+ * The results for the whole range are kept in memory, so this is intended for ranges of hours or days
+ * </p>
+ * */
+public class SaltedArchiveReader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SaltedArchiveReader.class);
+
+	/**
+	 * Number of rows fetched per RPC by each scanner
+	 * */
+	private static final int SCANNER_CACHING = 100;
+
+	private final HTablePool hbasePool;
+	private final ExecutorService scanners;
+	/**
+	 * Number of salt buckets for each table already scanned. The salt buckets of a table never change,
+	 * see HBaseWriterBolt.ensureHBaseTableExists() 
+	 * */
+	private final ConcurrentMap<String, Integer> tablesSaltBuckets;
+
+	/**
+	 * @param hbasePool pool for connecting to the tables. HTable is not thread safe so each scan uses
+	 * its own table from the pool
+	 * @param numThreads maximum number of buckets scanned in parallel
+	 * */
+	public SaltedArchiveReader(HTablePool hbasePool, int numThreads) {
+		this.hbasePool = hbasePool;
+		this.tablesSaltBuckets = new ConcurrentHashMap<String, Integer>();
+		this.scanners = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(SaltedArchiveReader.class.getSimpleName() + "-%d")
+				.build());
+	}
+
+	/**
+	 * @return the number of salt buckets of table, from its descriptor the first time the table is scanned
+	 * */
+	private int saltBuckets(String table) throws IOException {
+		Integer saltBuckets = this.tablesSaltBuckets.get(table);
+		if (saltBuckets == null) {
+			HTableInterface hTable = this.hbasePool.getTable(table);
+			try {
+				saltBuckets = HBaseWriterBolt.saltBuckets(hTable.getTableDescriptor());
+			} finally {
+				hTable.close();
+			}
+			LOGGER.info("Table {} has {} salt buckets", table, saltBuckets);
+			this.tablesSaltBuckets.put(table, saltBuckets);
+		}
+		return saltBuckets;
+	}
+
+	/**
+	 * Scan the rows in a salt bucket
+	 * */
+	private List<Result> scanBucket(String table, int salt, int saltBuckets, long startTimestamp, long stopTimestamp) throws IOException {
+		Scan scan = new Scan(SaltedRowKeys.bucketKey(salt, startTimestamp, saltBuckets),
+				SaltedRowKeys.bucketKey(salt, stopTimestamp, saltBuckets));
+		scan.setCaching(SCANNER_CACHING);
+		// this is a one off scan, do not pollute the block cache
+		scan.setCacheBlocks(false);
+
+		List<Result> results = new ArrayList<Result>();
+		HTableInterface hTable = this.hbasePool.getTable(table);
+		try {
+			ResultScanner scanner = hTable.getScanner(scan);
+			try {
+				for (Result result : scanner) {
+					results.add(result);
+				}
+			} finally {
+				scanner.close();
+			}
+		} finally {
+			// returns the table to the pool
+			hTable.close();
+		}
+		return results;
+	}
+
+	/**
+	 * A bucket being merged, and the position of its next result
+	 * */
+	private static class BucketCursor {
+		final List<Result> results;
+		int next = 0;
+		long nextTimestamp;
+
+		BucketCursor(List<Result> results) {
+			this.results = results;
+		}
+	}
+
+	/**
+	 * @return the rows of table with timestamp in [startTimestamp, stopTimestamp), sorted by timestamp
+	 * @throws IOException if the scan of some bucket fails
+	 * */
+	public List<Result> scan(final String table, final long startTimestamp, final long stopTimestamp) throws IOException {
+		final int saltBuckets = saltBuckets(table);
+		int numBuckets = Math.max(saltBuckets, 1);
+
+		// fan out
+		List<Future<List<Result>>> bucketFutures = new ArrayList<Future<List<Result>>>(numBuckets);
+		for (int salt = 0; salt < numBuckets; salt++) {
+			final int bucket = salt;
+			bucketFutures.add(this.scanners.submit(new Callable<List<Result>>() {
+				@Override
+				public List<Result> call() throws IOException {
+					return scanBucket(table, bucket, saltBuckets, startTimestamp, stopTimestamp);
+				}
+			}));
+		}
+		List<List<Result>> bucketResults = new ArrayList<List<Result>>(numBuckets);
+		try {
+			for (Future<List<Result>> bucketFuture : bucketFutures) {
+				bucketResults.add(bucketFuture.get());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ie);
+		} catch (ExecutionException ee) {
+			LOGGER.error("Error scanning table {}: {}", table, ExceptionUtils.getStackTrace(ee));
+			for (Future<List<Result>> bucketFuture : bucketFutures) {
+				bucketFuture.cancel(true);
+			}
+			throw new IOException(ee.getCause());
+		}
+
+		return merge(bucketResults, saltBuckets);
+	}
+
+	/**
+	 * k-way merge by timestamp of the results for the salt buckets
+	 * */
+	private static List<Result> merge(List<List<Result>> bucketResults, int saltBuckets) {
+		int totalResults = 0;
+		PriorityQueue<BucketCursor> cursors = new PriorityQueue<BucketCursor>(Math.max(bucketResults.size(), 1),
+				new Comparator<BucketCursor>() {
+					@Override
+					public int compare(BucketCursor cursor1, BucketCursor cursor2) {
+						return cursor1.nextTimestamp < cursor2.nextTimestamp ? -1
+								: (cursor1.nextTimestamp == cursor2.nextTimestamp ? 0 : 1);
+					}
+		});
+		for (List<Result> results : bucketResults) {
+			totalResults += results.size();
+			if (! results.isEmpty()) {
+				BucketCursor cursor = new BucketCursor(results);
+				cursor.nextTimestamp = SaltedRowKeys.timestamp(results.get(0).getRow(), saltBuckets);
+				cursors.add(cursor);
+			}
+		}
+
+		List<Result> merged = new ArrayList<Result>(totalResults);
+		BucketCursor cursor;
+		while ((cursor = cursors.poll()) != null) {
+			merged.add(cursor.results.get(cursor.next));
+			cursor.next++;
+			if (cursor.next < cursor.results.size()) {
+				cursor.nextTimestamp = SaltedRowKeys.timestamp(cursor.results.get(cursor.next).getRow(), saltBuckets);
+				cursors.add(cursor);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Stop the scanner threads
+	 * */
+	public void close() {
+		this.scanners.shutdownNow();
+	}
+}
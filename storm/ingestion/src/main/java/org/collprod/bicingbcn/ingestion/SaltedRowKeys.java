@@ -0,0 +1,125 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>
+ * Row keys for the raw archive tables written by HBaseWriterBolt, that avoid RegionServer hot spotting 
+ * for monotonically growing timestamps. The row key for a timestamp in milliseconds is:
+ * <ul>
+ * 	<li>1 byte salt: the hash of the timestamp modulo the number of salt buckets, so consecutive timestamps 
+ * go to different buckets, and so to different regions if the table is pre-split with splitKeys()</li>
+ * 	<li>4 bytes hour bucket: the number of hours since the epoch for the timestamp</li>
+ * 	<li>8 bytes timestamp</li>
+ * </ul>
+ * Within each salt bucket the rows are sorted by time, so a time range is read by scanning the same range
+ * in each bucket and merging the results, see SaltedArchiveReader.
+ * </p>
+ * <p>
+ * With 0 salt buckets the row key is just the timestamp, which is the original layout. Note the 
+ * number of buckets cannot be changed for an existing table, as the salt of the rows would change
+ * </p>
+ * */
+public final class SaltedRowKeys {
+
+	/**
+	 * Maximum number of salt buckets, so the salt fits in a byte
+	 * */
+	public static final int MAX_SALT_BUCKETS = 256;
+	
+	private static final int SALT_SIZE = 1;
+	private static final int HOUR_BUCKET_SIZE = 4;
+	private static final int TIMESTAMP_SIZE = 8;
+	public static final int SALTED_KEY_SIZE = SALT_SIZE + HOUR_BUCKET_SIZE + TIMESTAMP_SIZE;
+	
+	private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+	
+	private static final HashFunction SALT_HASH = Hashing.murmur3_32();
+	
+	private SaltedRowKeys() {}
+	
+	private static void checkSaltBuckets(int saltBuckets) {
+		if (saltBuckets < 0 || saltBuckets > MAX_SALT_BUCKETS) {
+			throw new IllegalArgumentException("The number of salt buckets should be between 0 and " + MAX_SALT_BUCKETS 
+					+ " but found " + saltBuckets);
+		}
+	}
+	
+	/**
+	 * @return salt bucket for timestamp, between 0 and saltBuckets - 1
+	 * */
+	public static int salt(long timestamp, int saltBuckets) {
+		checkSaltBuckets(saltBuckets);
+		if (saltBuckets == 0) {
+			return 0;
+		}
+		int hash = SALT_HASH.hashLong(timestamp).asInt();
+		return (hash & Integer.MAX_VALUE) % saltBuckets;
+	}
+	
+	/**
+	 * @return number of hours since the epoch for timestamp 
+	 * */
+	public static int hourBucket(long timestamp) {
+		return (int) (timestamp / HOUR_MILLIS);
+	}
+	
+	private static byte [] key(int salt, long timestamp) {
+		return ByteBuffer.allocate(SALTED_KEY_SIZE)
+				.put((byte) salt)
+				.putInt(hourBucket(timestamp))
+				.putLong(timestamp)
+				.array();
+	}
+	
+	/**
+	 * @return row key for timestamp in a table with saltBuckets salt buckets 
+	 * */
+	public static byte [] rowKey(long timestamp, int saltBuckets) {
+		checkSaltBuckets(saltBuckets);
+		if (saltBuckets == 0) {
+			return ByteBuffer.allocate(TIMESTAMP_SIZE).putLong(timestamp).array();
+		}
+		return key(salt(timestamp, saltBuckets), timestamp);
+	}
+	
+	/**
+	 * @return first row key in the bucket salt for timestamp, or later timestamps. Valid as start
+	 * row or stop row of a scan  
+	 * */
+	public static byte [] bucketKey(int salt, long timestamp, int saltBuckets) {
+		checkSaltBuckets(saltBuckets);
+		if (saltBuckets == 0) {
+			return ByteBuffer.allocate(TIMESTAMP_SIZE).putLong(timestamp).array();
+		}
+		return key(salt, timestamp);
+	}
+	
+	/**
+	 * @return timestamp of a row key created by rowKey() with the same saltBuckets
+	 * */
+	public static long timestamp(byte [] rowKey, int saltBuckets) {
+		checkSaltBuckets(saltBuckets);
+		return ByteBuffer.wrap(rowKey).getLong(saltBuckets == 0 ? 0 : SALT_SIZE + HOUR_BUCKET_SIZE);
+	}
+	
+	/**
+	 * @return split keys for pre-splitting a table in a region per salt bucket, or null
+	 * if no pre-splitting is needed 
+	 * */
+	public static byte [][] splitKeys(int saltBuckets) {
+		checkSaltBuckets(saltBuckets);
+		if (saltBuckets <= 1) {
+			return null;
+		}
+		byte [][] splitKeys = new byte[saltBuckets - 1][];
+		for (int salt = 1; salt < saltBuckets; salt++) {
+			splitKeys[salt - 1] = new byte [] {(byte) salt};
+		}
+		return splitKeys;
+	}
+}
@@ -0,0 +1,34 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import backtype.storm.Config;
+import backtype.storm.Constants;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Utilities for working with Storm tuples
+ * */
+public final class TupleUtils {
+	
+	private TupleUtils() {}
+	
+	/**
+	 * @return true iff tuple is a tick tuple sent by Storm, as configured with Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS 
+	 * */
+	public static boolean isTickTuple(Tuple tuple) {
+		return tuple.getSourceComponent().equals(Constants.SYSTEM_COMPONENT_ID) 
+				&& tuple.getSourceStreamId().equals(Constants.SYSTEM_TICK_STREAM_ID);
+	}
+	
+	/**
+	 * @return a component configuration for receiving a tick tuple every tickFrequencySecs seconds, 
+	 * to be returned by getComponentConfiguration()
+	 * */
+	public static Map<String, Object> tickTupleConfiguration(int tickFrequencySecs) {
+		Map<String, Object> conf = new HashMap<String, Object>();
+		conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, tickFrequencySecs);
+		return conf;
+	}
+}
@@ -0,0 +1,74 @@
+package org.collprod.bicingbcn.ingestion.dedup;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * DedupFilter that keeps the last timestamps seen in a Guava cache with bounded size and
+ * expiration time. This filter has no false positives, but allocates a key per call and is not 
+ * persisted
+ * */
+public class CacheDedupFilter implements DedupFilter {
+	
+	@AutoValue
+	static abstract class DatasourceTimestamp {
+		DatasourceTimestamp() {}
+		public static DatasourceTimestamp create(String datasource, Long timestamp) {
+			return new AutoValue_CacheDedupFilter_DatasourceTimestamp(datasource, timestamp);
+		}
+		public abstract String datasource();
+		public abstract Long timestamp();
+	}
+	
+	/**
+	 * To represent the set of the last seen timestamps, we use a cache from DatasourceTimestamp to 
+	 * Boolean (to use something), so being a key in the cache is equivalent to appearing in the set  
+	 * */
+	private final Cache<DatasourceTimestamp, Boolean> timestampSeen;
+	
+	private long hits;
+	
+	/**
+	 * @param maxSize maximum number of timestamps remembered
+	 * @param expireAfterMinutes timestamps are forgotten if not accessed for this number of minutes 
+	 * */
+	public CacheDedupFilter(long maxSize, long expireAfterMinutes) {
+		this.timestampSeen = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterAccess(expireAfterMinutes, TimeUnit.MINUTES)
+				.build();
+		this.hits = 0;
+	}
+
+	@Override
+	public boolean contains(String datasource, long timestamp) {
+		boolean seen = this.timestampSeen.getIfPresent(DatasourceTimestamp.create(datasource, timestamp)) != null;
+		if (seen) {
+			this.hits++;
+		}
+		return seen;
+	}
+
+	@Override
+	public void add(String datasource, long timestamp) {
+		this.timestampSeen.put(DatasourceTimestamp.create(datasource, timestamp), true);
+	}
+
+	@Override
+	public void checkpoint() {
+		// not persisted
+	}
+
+	@Override
+	public long hits() {
+		return this.hits;
+	}
+
+	@Override
+	public long falsePositives() {
+		return 0;
+	}
+}
@@ -0,0 +1,39 @@
+package org.collprod.bicingbcn.ingestion.dedup;
+
+/**
+ * <p>
+ * Remembers the timestamps of the data sent lately for each data source, so a bolt can skip
+ * the data it has already sent, e.g. for replayed tuples
+ * </p>
+ * <p>
+ * Implementations are not required to be thread safe
+ * </p>
+ * */
+public interface DedupFilter {
+	/**
+	 * @return true if the data for datasource and timestamp was probably added before, 
+	 * false if it certainly wasn't, or if it was added too long ago to remember it
+	 * */
+	boolean contains(String datasource, long timestamp);
+	
+	/**
+	 * Remember the data for datasource and timestamp 
+	 * */
+	void add(String datasource, long timestamp);
+	
+	/**
+	 * Persist the state of this filter, if supported, so it survives a restart 
+	 * */
+	void checkpoint();
+	
+	/**
+	 * @return number of times contains() returned true
+	 * */
+	long hits();
+	
+	/**
+	 * @return number of times contains() detected a false positive of the underlying data structure, 
+	 * if the implementation can detect them
+	 * */
+	long falsePositives();
+}
@@ -0,0 +1,88 @@
+package org.collprod.bicingbcn.ingestion.dedup;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.collprod.bicingbcn.ingestion.IngestionTopology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.TopologyContext;
+
+import com.google.common.base.Optional;
+
+/**
+ * Creation of DedupFilter implementations from the configuration
+ * */
+public final class DedupFilters {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(DedupFilters.class);
+	
+	/**
+	 * Value of "&lt;prefix&gt;dedup" for CacheDedupFilter 
+	 * */
+	public static final String CACHE_FILTER = "cache";
+	
+	/**
+	 * Value of "&lt;prefix&gt;dedup" for RingBloomDedupFilter 
+	 * */
+	public static final String RING_BLOOM_FILTER = "ring_bloom";
+	
+	/**
+	 * Default values for the configuration, when not present 
+	 * */
+	private static final int DEFAULT_CACHE_MAX_SIZE = 40;
+	private static final int DEFAULT_CACHE_EXPIRE_MINUTES = 3;
+	private static final int DEFAULT_RING_SIZE = 64;
+	private static final int DEFAULT_BLOOM_BITS = 1 << 16;
+	private static final int DEFAULT_BLOOM_HASHES = 5;
+	private static final int DEFAULT_BLOOM_ROTATION_MINUTES = 60;
+	
+	private DedupFilters() {}
+	
+	/**
+	 * Create the DedupFilter for a task of a bolt, according to the property "&lt;prefix&gt;dedup" in conf, 
+	 * which defaults to RING_BLOOM_FILTER
+	 * <ul>
+	 * 	<li>CACHE_FILTER: a CacheDedupFilter with at most "&lt;prefix&gt;dedup_cache_max_size" entries that expire 
+	 * after "&lt;prefix&gt;dedup_cache_expire_mins" minutes</li>
+	 * 	<li>RING_BLOOM_FILTER: a RingBloomDedupFilter with a ring of "&lt;prefix&gt;dedup_ring_size" timestamps, 
+	 * a Bloom filter of "&lt;prefix&gt;dedup_bloom_bits" bits and "&lt;prefix&gt;dedup_bloom_hashes" hash functions
+	 * rotated each "&lt;prefix&gt;dedup_bloom_rotation_mins" minutes, 
+	 * and checkpointed to a file for this task under "&lt;prefix&gt;dedup_checkpoint_dir", if that property is present. 
+	 * The file name doesn't depend on the storm id, so the checkpoint is also recovered when the topology is 
+	 * submitted again, as long as the task runs in the same host</li>
+	 * </ul>
+	 * 
+	 * @param prefix prefix for the configuration properties, e.g. "kafka_writer."
+	 * @throws RuntimeException if the value for "&lt;prefix&gt;dedup" is unknown
+	 * */
+	public static DedupFilter create(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, String prefix) {
+		Object filterConf = conf.get(prefix + "dedup");
+		String filterType = filterConf == null ? RING_BLOOM_FILTER : filterConf.toString().trim();
+		if (filterType.equals(CACHE_FILTER)) {
+			return new CacheDedupFilter(
+					IngestionTopology.getIntConf(conf, prefix + "dedup_cache_max_size", DEFAULT_CACHE_MAX_SIZE), 
+					IngestionTopology.getIntConf(conf, prefix + "dedup_cache_expire_mins", DEFAULT_CACHE_EXPIRE_MINUTES));
+		}
+		if (filterType.equals(RING_BLOOM_FILTER)) {
+			Optional<File> checkpointFile = Optional.absent();
+			Object checkpointDir = conf.get(prefix + "dedup_checkpoint_dir");
+			if (checkpointDir != null) {
+				checkpointFile = Optional.of(new File(checkpointDir.toString().trim(), 
+						context.getThisComponentId() + "_" + context.getThisTaskIndex() + ".dedup"));
+			}
+			return new RingBloomDedupFilter(
+					IngestionTopology.getIntConf(conf, prefix + "dedup_ring_size", DEFAULT_RING_SIZE), 
+					IngestionTopology.getIntConf(conf, prefix + "dedup_bloom_bits", DEFAULT_BLOOM_BITS), 
+					IngestionTopology.getIntConf(conf, prefix + "dedup_bloom_hashes", DEFAULT_BLOOM_HASHES),
+					TimeUnit.MINUTES.toMillis(IngestionTopology.getIntConf(conf, prefix + "dedup_bloom_rotation_mins", 
+							DEFAULT_BLOOM_ROTATION_MINUTES)), 
+					checkpointFile);
+		}
+		String msg = "Unknown dedup filter type " + filterType;
+		LOGGER.error(msg);
+		throw new RuntimeException(msg);
+	}
+}
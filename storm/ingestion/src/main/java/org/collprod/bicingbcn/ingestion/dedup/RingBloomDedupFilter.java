@@ -0,0 +1,414 @@
+package org.collprod.bicingbcn.ingestion.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+
+/**
+ * <p>
+ * DedupFilter that doesn't allocate memory in contains() nor add(), and that can be checkpointed
+ * to a local file so it survives worker restarts.
+ * </p>
+ * <p>
+ * For each datasource the last ringSize timestamps added are kept in a ring of primitive longs, together
+ * with the maximum timestamp added. As the timestamps of a datasource grow with time:
+ * <ul>
+ * 	<li>A timestamp greater than the maximum is always new, so it is never reported as a duplicate</li>
+ * 	<li>Otherwise a timestamp in the ring is a duplicate, this is the usual case for replayed tuples</li>
+ * 	<li>Timestamps older than all the timestamps in a full ring might have been evicted from it, and are checked
+ * in a Bloom filter for all the datasources. These hits are logged, as a false positive of the Bloom filter would 
+ * skip data that was never sent</li>
+ *  <li>Any other timestamp was never added, as it is in the range of the ring but not in it, or nothing was evicted 
+ * from the ring yet</li>
+ * </ul>
+ * If the Bloom filter says that a timestamp in the first or last case is present, that is a false positive of the 
+ * Bloom filter, which is counted
+ * The Bloom filter is split in two generations that are rotated each rotationMillis, so timestamps are
+ * remembered for between rotationMillis and twice that time, and the Bloom filter doesn't saturate.
+ * </p>
+ * <p>
+ * checkpoint() writes the state to a temporary file that then replaces checkpointFile, so a crash during the
+ * checkpoint doesn't corrupt the previous checkpoint. The file is only written if there were changes since
+ * the last checkpoint. The age of the Bloom filter generations is not persisted, the rotation period is
+ * restarted on recovery
+ * </p>
+ * <p>
+ * This class is not thread safe
+ * </p>
+ * */
+public class RingBloomDedupFilter implements DedupFilter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RingBloomDedupFilter.class);
+
+	/**
+	 * Written at the start of checkpoint files, to detect incompatible files
+	 * */
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * Last timestamps added for a datasource
+	 * */
+	private static class TimestampRing {
+		final long [] timestamps;
+		/**
+		 * Number of valid timestamps in the ring, at most timestamps.length
+		 * */
+		int size = 0;
+		/**
+		 * Position for the next timestamp
+		 * */
+		int next = 0;
+		long maxTimestamp = Long.MIN_VALUE;
+
+		TimestampRing(int ringSize) {
+			this.timestamps = new long[ringSize];
+		}
+
+		boolean contains(long timestamp) {
+			for (int i = 0; i < this.size; i++) {
+				if (this.timestamps[i] == timestamp) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void add(long timestamp) {
+			this.timestamps[this.next] = timestamp;
+			this.next = (this.next + 1) % this.timestamps.length;
+			this.size = Math.min(this.size + 1, this.timestamps.length);
+			this.maxTimestamp = Math.max(this.maxTimestamp, timestamp);
+		}
+
+		/**
+		 * @return true iff timestamps have been evicted from this ring, and timestamp is older than all
+		 * the timestamps in the ring, so it might have been evicted
+		 * */
+		boolean mightHaveEvicted(long timestamp) {
+			if (this.size < this.timestamps.length) {
+				return false;
+			}
+			for (int i = 0; i < this.size; i++) {
+				if (this.timestamps[i] <= timestamp) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final int ringSize;
+	private final Map<String, TimestampRing> rings;
+
+	/**
+	 * Bloom filter generations, as bit sets. Timestamps are added to current only, and
+	 * checked in both
+	 * */
+	private long [] currentBloom;
+	private long [] previousBloom;
+	private final int bloomBits;
+	private final int bloomHashes;
+
+	private final Ticker ticker;
+	private final long rotationNanos;
+	private long lastRotationNanos;
+
+	/**
+	 * File to checkpoint to, if present
+	 * */
+	private final Optional<File> checkpointFile;
+	/**
+	 * True if there are changes since the last checkpoint
+	 * */
+	private boolean dirty;
+
+	private long hits;
+	private long falsePositives;
+
+	/**
+	 * @param ringSize number of timestamps remembered exactly per datasource
+	 * @param bloomBits number of bits of each generation of the Bloom filter, rounded up to a multiple of 64
+	 * @param bloomHashes number of hash functions of the Bloom filter
+	 * @param rotationMillis time between rotations of the Bloom filter generations
+	 * @param checkpointFile file to checkpoint to. If it exists then the filter is recovered from it
+	 * @param ticker source of time for the rotations
+	 * */
+	public RingBloomDedupFilter(int ringSize, int bloomBits, int bloomHashes, long rotationMillis,
+			Optional<File> checkpointFile, Ticker ticker) {
+		if (ringSize <= 0 || bloomBits <= 0 || bloomHashes <= 0) {
+			throw new IllegalArgumentException("Ring size, bloom bits and bloom hashes should be positive");
+		}
+		this.ringSize = ringSize;
+		this.rings = new HashMap<String, TimestampRing>();
+		int bloomWords = (bloomBits + Long.SIZE - 1) / Long.SIZE;
+		this.bloomBits = bloomWords * Long.SIZE;
+		this.bloomHashes = bloomHashes;
+		this.currentBloom = new long[bloomWords];
+		this.previousBloom = new long[bloomWords];
+		this.ticker = ticker;
+		this.rotationNanos = TimeUnit.MILLISECONDS.toNanos(rotationMillis);
+		this.lastRotationNanos = ticker.read();
+		this.checkpointFile = checkpointFile;
+		this.dirty = false;
+		this.hits = 0;
+		this.falsePositives = 0;
+
+		if (checkpointFile.isPresent() && checkpointFile.get().isFile()) {
+			recover(checkpointFile.get());
+		}
+	}
+
+	/**
+	 * Filter using the system ticker
+	 * */
+	public RingBloomDedupFilter(int ringSize, int bloomBits, int bloomHashes, long rotationMillis,
+			Optional<File> checkpointFile) {
+		this(ringSize, bloomBits, bloomHashes, rotationMillis, checkpointFile, Ticker.systemTicker());
+	}
+
+	/**
+	 * murmur3 finalization mix
+	 * */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(String datasource, long timestamp) {
+		// String caches its hash code, so this doesn't traverse the string
+		return mix(datasource.hashCode() * 0x9e3779b97f4a7c15L + timestamp);
+	}
+
+	/**
+	 * @return the i-th bit index for hash, using double hashing
+	 * */
+	private int bitIndex(long hash, int i) {
+		int combined = (int) hash + i * (int) (hash >>> 32);
+		if (combined < 0) {
+			combined = ~combined;
+		}
+		return combined % this.bloomBits;
+	}
+
+	private static boolean getBit(long [] bits, int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private boolean bloomContains(long [] bits, long hash) {
+		for (int i = 0; i < this.bloomHashes; i++) {
+			if (! getBit(bits, bitIndex(hash, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rotateIfNeeded() {
+		long now = this.ticker.read();
+		if (now - this.lastRotationNanos < this.rotationNanos) {
+			return;
+		}
+		// the previous generation is forgotten and reused as the current one
+		long [] oldest = this.previousBloom;
+		this.previousBloom = this.currentBloom;
+		Arrays.fill(oldest, 0L);
+		this.currentBloom = oldest;
+		this.lastRotationNanos = now;
+		this.dirty = true;
+	}
+
+	@Override
+	public boolean contains(String datasource, long timestamp) {
+		rotateIfNeeded();
+		long hash = hash(datasource, timestamp);
+		boolean inBloom = bloomContains(this.currentBloom, hash) || bloomContains(this.previousBloom, hash);
+
+		TimestampRing ring = this.rings.get(datasource);
+		if (ring != null && timestamp <= ring.maxTimestamp) {
+			if (ring.contains(timestamp)) {
+				this.hits++;
+				return true;
+			}
+			if (ring.mightHaveEvicted(timestamp)) {
+				if (inBloom) {
+					LOGGER.info("Timestamp {} for datasource {} only found in the Bloom filter", timestamp, datasource);
+					this.hits++;
+				}
+				return inBloom;
+			}
+		}
+		// never added for this datasource
+		if (inBloom) {
+			this.falsePositives++;
+		}
+		return false;
+	}
+
+	@Override
+	public void add(String datasource, long timestamp) {
+		rotateIfNeeded();
+		TimestampRing ring = this.rings.get(datasource);
+		if (ring == null) {
+			ring = new TimestampRing(this.ringSize);
+			this.rings.put(datasource, ring);
+		}
+		ring.add(timestamp);
+		long hash = hash(datasource, timestamp);
+		for (int i = 0; i < this.bloomHashes; i++) {
+			int index = bitIndex(hash, i);
+			this.currentBloom[index >>> 6] |= 1L << index;
+		}
+		this.dirty = true;
+	}
+
+	@Override
+	public long hits() {
+		return this.hits;
+	}
+
+	@Override
+	public long falsePositives() {
+		return this.falsePositives;
+	}
+
+	@Override
+	public void checkpoint() {
+		if (! this.checkpointFile.isPresent() || ! this.dirty) {
+			return;
+		}
+		File file = this.checkpointFile.get();
+		File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (! parent.isDirectory() && ! parent.mkdirs()) {
+			LOGGER.error("Could not create checkpoint directory {}", parent);
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try {
+				writeState(out);
+			} finally {
+				out.close();
+			}
+			// File.renameTo fails in some platforms if the target exists
+			if (! tmpFile.renameTo(file) && ! (file.delete() && tmpFile.renameTo(file))) {
+				LOGGER.error("Could not replace dedup checkpoint {}", file);
+				return;
+			}
+			this.dirty = false;
+		} catch (IOException ioe) {
+			// the filter still works without the checkpoint, so this is not fatal
+			LOGGER.error("Error writing dedup checkpoint " + file + ": " + ioe.getMessage());
+		}
+	}
+
+	private void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(CHECKPOINT_VERSION);
+		out.writeInt(this.ringSize);
+		out.writeInt(this.rings.size());
+		for (Map.Entry<String, TimestampRing> entry : this.rings.entrySet()) {
+			TimestampRing ring = entry.getValue();
+			out.writeUTF(entry.getKey());
+			out.writeLong(ring.maxTimestamp);
+			out.writeInt(ring.size);
+			out.writeInt(ring.next);
+			for (int i = 0; i < ring.size; i++) {
+				out.writeLong(ring.timestamps[i]);
+			}
+		}
+		out.writeInt(this.bloomBits);
+		out.writeInt(this.bloomHashes);
+		for (long word : this.currentBloom) {
+			out.writeLong(word);
+		}
+		for (long word : this.previousBloom) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Load the state from a checkpoint file. If the file cannot be read, or was written with a
+	 * different configuration, then the filter starts empty
+	 * */
+	private void recover(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (readState(in)) {
+					LOGGER.info("Recovered dedup state for {} datasources from {}", this.rings.size(), file);
+				} else {
+					LOGGER.warn("Ignoring dedup checkpoint {} with a different configuration", file);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ioe) {
+			LOGGER.warn("Ignoring unreadable dedup checkpoint " + file + ": " + ioe.getMessage());
+			this.rings.clear();
+			Arrays.fill(this.currentBloom, 0L);
+			Arrays.fill(this.previousBloom, 0L);
+		}
+	}
+
+	/**
+	 * @return false if the checkpoint was written with a different configuration, in which case
+	 * this filter is not modified
+	 * */
+	private boolean readState(DataInputStream in) throws IOException {
+		if (in.readInt() != CHECKPOINT_VERSION || in.readInt() != this.ringSize) {
+			return false;
+		}
+		Map<String, TimestampRing> recoveredRings = new HashMap<String, TimestampRing>();
+		int numRings = in.readInt();
+		for (int r = 0; r < numRings; r++) {
+			String datasource = in.readUTF();
+			TimestampRing ring = new TimestampRing(this.ringSize);
+			ring.maxTimestamp = in.readLong();
+			ring.size = in.readInt();
+			ring.next = in.readInt();
+			if (ring.size > this.ringSize || ring.next >= this.ringSize) {
+				throw new IOException("Corrupt ring for datasource " + datasource);
+			}
+			for (int i = 0; i < ring.size; i++) {
+				ring.timestamps[i] = in.readLong();
+			}
+			recoveredRings.put(datasource, ring);
+		}
+		if (in.readInt() != this.bloomBits || in.readInt() != this.bloomHashes) {
+			return false;
+		}
+		long [] recoveredCurrent = new long[this.currentBloom.length];
+		long [] recoveredPrevious = new long[this.previousBloom.length];
+		for (int i = 0; i < recoveredCurrent.length; i++) {
+			recoveredCurrent[i] = in.readLong();
+		}
+		for (int i = 0; i < recoveredPrevious.length; i++) {
+			recoveredPrevious[i] = in.readLong();
+		}
+		this.rings.putAll(recoveredRings);
+		this.currentBloom = recoveredCurrent;
+		this.previousBloom = recoveredPrevious;
+		return true;
+	}
+}
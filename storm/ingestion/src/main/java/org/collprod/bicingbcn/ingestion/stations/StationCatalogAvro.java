@@ -0,0 +1,149 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * <p>
+ * Serializes the two kinds of messages sent by StationCatalogBolt as Avro binary records, with no
+ * schema or header in the serialized data, as StationRecordAvro does:
+ * <ul>
+ * 	<li>Catalogs, with schema CATALOG_SCHEMA: the version of the catalog, the update time of the snapshot
+ * it was taken from, and the static attributes of each station</li>
+ * 	<li>Readings, with schema READING_SCHEMA: the dynamic attributes of a station in a snapshot,
+ * and the version of the catalog for the snapshot</li>
+ * </ul>
+ * Consumers should use the same schemas for reading
+ * </p>
+ * <p>
+ * This class reuses the Avro encoder and decoder, so it is not thread safe
+ * </p>
+ * */
+public class StationCatalogAvro {
+
+	public static final String AVRO_RECORD_NAMESPACE = StationRecordAvro.AVRO_RECORD_NAMESPACE;
+	public static final String CATALOG_RECORD_NAME = "station_catalog";
+	public static final String CATALOG_STATION_RECORD_NAME = "catalog_station";
+	public static final String READING_RECORD_NAME = "station_reading";
+	public static final String VERSION_FIELD = "version";
+	public static final String STATIONS_FIELD = "stations";
+	public static final String CATALOG_VERSION_FIELD = "catalogVersion";
+	public static final Schema CATALOG_STATION_SCHEMA;
+	public static final Schema CATALOG_SCHEMA;
+	public static final Schema READING_SCHEMA;
+	static {
+		CATALOG_STATION_SCHEMA = SchemaBuilder
+				.record(CATALOG_STATION_RECORD_NAME).namespace(AVRO_RECORD_NAMESPACE)
+				.fields()
+					.name(StationRecordAvro.ID_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(StationRecordAvro.LATITUDE_FIELD).type(Schema.create(Schema.Type.DOUBLE)).noDefault()
+					.name(StationRecordAvro.LONGITUDE_FIELD).type(Schema.create(Schema.Type.DOUBLE)).noDefault()
+					.name(StationRecordAvro.STREET_FIELD).type(Schema.create(Schema.Type.STRING)).noDefault()
+					.name(StationRecordAvro.HEIGHT_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(StationRecordAvro.STREET_NUMBER_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(StationRecordAvro.NEARBY_STATION_LIST_FIELD).type(Schema.createArray(Schema.create(Schema.Type.INT))).noDefault()
+				.endRecord();
+		CATALOG_SCHEMA = SchemaBuilder
+				.record(CATALOG_RECORD_NAME).namespace(AVRO_RECORD_NAMESPACE)
+				.fields()
+					.name(VERSION_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(StationRecordAvro.UPDATETIME_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(STATIONS_FIELD).type(Schema.createArray(CATALOG_STATION_SCHEMA)).noDefault()
+				.endRecord();
+		READING_SCHEMA = SchemaBuilder
+				.record(READING_RECORD_NAME).namespace(AVRO_RECORD_NAMESPACE)
+				.fields()
+					.name(StationRecordAvro.UPDATETIME_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(StationRecordAvro.ID_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(CATALOG_VERSION_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(StationRecordAvro.STATUS_FIELD).type(Schema.create(Schema.Type.STRING)).noDefault()
+					.name(StationRecordAvro.SLOTS_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(StationRecordAvro.BIKES_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+				.endRecord();
+	}
+
+	private final GenericDatumWriter<GenericRecord> catalogWriter;
+	private final GenericDatumWriter<GenericRecord> readingWriter;
+	private final ByteArrayOutputStream buffer;
+	private BinaryEncoder encoder;
+	private BinaryDecoder decoder;
+
+	public StationCatalogAvro() {
+		this.catalogWriter = new GenericDatumWriter<GenericRecord>(CATALOG_SCHEMA);
+		this.readingWriter = new GenericDatumWriter<GenericRecord>(READING_SCHEMA);
+		this.buffer = new ByteArrayOutputStream();
+		this.encoder = null;
+		this.decoder = null;
+	}
+
+	private byte [] serialize(GenericDatumWriter<GenericRecord> datumWriter, GenericRecord record) throws IOException {
+		this.buffer.reset();
+		this.encoder = EncoderFactory.get().binaryEncoder(this.buffer, this.encoder);
+		datumWriter.write(record, this.encoder);
+		this.encoder.flush();
+		return this.buffer.toByteArray();
+	}
+
+	/**
+	 * @param version version of the catalog for stations, see StationCatalogTracker.version()
+	 * @return the static attributes of stations serialized as an Avro binary record
+	 * */
+	public byte [] serializeCatalog(long version, List<StationRecord> stations) throws IOException {
+		List<GenericRecord> stationRecords = new ArrayList<GenericRecord>(stations.size());
+		long updatetime = -1;
+		for (StationRecord station : stations) {
+			GenericRecord stationRecord = new GenericData.Record(CATALOG_STATION_SCHEMA);
+			stationRecord.put(StationRecordAvro.ID_FIELD, station.id());
+			stationRecord.put(StationRecordAvro.LATITUDE_FIELD, station.latitude());
+			stationRecord.put(StationRecordAvro.LONGITUDE_FIELD, station.longitude());
+			stationRecord.put(StationRecordAvro.STREET_FIELD, station.street());
+			stationRecord.put(StationRecordAvro.HEIGHT_FIELD, station.height());
+			stationRecord.put(StationRecordAvro.STREET_NUMBER_FIELD, station.streetNumber());
+			stationRecord.put(StationRecordAvro.NEARBY_STATION_LIST_FIELD, station.nearbyStationList());
+			stationRecords.add(stationRecord);
+			updatetime = station.updatetime();
+		}
+		GenericRecord record = new GenericData.Record(CATALOG_SCHEMA);
+		record.put(VERSION_FIELD, version);
+		record.put(StationRecordAvro.UPDATETIME_FIELD, updatetime);
+		record.put(STATIONS_FIELD, stationRecords);
+		return serialize(this.catalogWriter, record);
+	}
+
+	/**
+	 * @param catalogVersion version of the catalog of the snapshot for station
+	 * @return the dynamic attributes of station serialized as an Avro binary record
+	 * */
+	public byte [] serializeReading(StationRecord station, long catalogVersion) throws IOException {
+		GenericRecord record = new GenericData.Record(READING_SCHEMA);
+		record.put(StationRecordAvro.UPDATETIME_FIELD, station.updatetime());
+		record.put(StationRecordAvro.ID_FIELD, station.id());
+		record.put(CATALOG_VERSION_FIELD, catalogVersion);
+		record.put(StationRecordAvro.STATUS_FIELD, station.status());
+		record.put(StationRecordAvro.SLOTS_FIELD, station.slots());
+		record.put(StationRecordAvro.BIKES_FIELD, station.bikes());
+		return serialize(this.readingWriter, record);
+	}
+
+	/**
+	 * @param schema CATALOG_SCHEMA or READING_SCHEMA
+	 * @return the record for data, serialized with schema
+	 * */
+	public GenericRecord deserialize(byte [] data, Schema schema) throws IOException {
+		this.decoder = DecoderFactory.get().binaryDecoder(data, this.decoder);
+		return new GenericDatumReader<GenericRecord>(schema).read(null, this.decoder);
+	}
+}
@@ -0,0 +1,165 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import org.collprod.bicingbcn.ingestion.IngestionTopology;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) from StationParserBolt,
+ * and splits the static attributes of the stations from their dynamic attributes, see StationCatalogTracker.
+ * For each snapshot it sends to Kafka:
+ * <ul>
+ * 	<li>the catalog of the snapshot, only if it changed with respect to the last catalog sent for the data source,
+ *  using DATASOURCE_ID + "station_catalog.catalog_topic_suffix" as Kafka topic, and DATASOURCE_ID as partition
+ *  key. So the topic can be compacted by Kafka, keeping just the last catalog of each data source</li>
+ * 	<li>a reading per station with just the dynamic attributes and the version of the catalog, using
+ *  DATASOURCE_ID + "station_catalog.readings_topic_suffix" as Kafka topic, and the station id as
+ *  partition key</li>
+ * </ul>
+ * The messages are serialized by StationCatalogAvro. The readings are several times smaller than the
+ * messages sent by StationRecordBolt
+ * </p>
+ * <p>
+ * This bolt should be connected with a fieldsGrouping on DATASOURCE_ID, so all the snapshots of a data
+ * source are processed by the same task. The catalog and the readings of a snapshot are sent with a
+ * single call to Producer.send(List), and the version of the last catalog sent is only updated after
+ * that call completes. The state is not persisted: after a restart the first catalog of each data source
+ * is sent again
+ * </p>
+ * */
+public class StationCatalogBolt extends BaseRichBolt {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = 8937465160339725123L;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationCatalogBolt.class);
+
+	/**
+	 * Default values for the configuration, when not present
+	 * */
+	private static final String DEFAULT_CATALOG_TOPIC_SUFFIX = "_catalog";
+	private static final String DEFAULT_READINGS_TOPIC_SUFFIX = "_readings";
+
+	/**
+	 * Storm collector for acking or failing
+	 * */
+	private OutputCollector collector;
+
+	/**
+	 * Connection to Kafka as a producer. Uses String for the partition key, and byte[] in the message
+	 * */
+	private Producer<String, byte[]> kafkaProducer;
+
+	private String catalogTopicSuffix;
+
+	private String readingsTopicSuffix;
+
+	private StationRecordAvro stationRecordAvro;
+
+	private StationCatalogAvro stationCatalogAvro;
+
+	/**
+	 * Tracker for each data source
+	 * */
+	private Map<String, StationCatalogTracker> trackers;
+
+	@Override
+	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context, OutputCollector collector) {
+		this.collector = collector;
+		this.kafkaProducer = new Producer<String, byte[]>(new ProducerConfig(IngestionTopology.getKafkaProperties(stormConf)));
+		Object catalogTopicSuffixConf = stormConf.get("station_catalog.catalog_topic_suffix");
+		this.catalogTopicSuffix = catalogTopicSuffixConf == null ? DEFAULT_CATALOG_TOPIC_SUFFIX : catalogTopicSuffixConf.toString().trim();
+		Object readingsTopicSuffixConf = stormConf.get("station_catalog.readings_topic_suffix");
+		this.readingsTopicSuffix = readingsTopicSuffixConf == null ? DEFAULT_READINGS_TOPIC_SUFFIX : readingsTopicSuffixConf.toString().trim();
+		this.stationRecordAvro = new StationRecordAvro();
+		this.stationCatalogAvro = new StationCatalogAvro();
+		this.trackers = new HashMap<String, StationCatalogTracker>();
+	}
+
+	private StationCatalogTracker getTracker(String datasource) {
+		StationCatalogTracker tracker = this.trackers.get(datasource);
+		if (tracker == null) {
+			tracker = new StationCatalogTracker();
+			this.trackers.put(datasource, tracker);
+		}
+		return tracker;
+	}
+
+	@Override
+	public void execute(Tuple inputTuple) {
+		/* Processing tuples of the shape
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) */
+		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
+		StationCatalogTracker tracker = getTracker(datasource);
+
+		// parse into messages
+		String readingsTopic = StationRecordBolt.stationsTopic(datasource, this.readingsTopicSuffix);
+		long version;
+		boolean catalogChanged;
+		List<KeyedMessage<String, byte[]>> messages;
+		try {
+			List<StationRecord> stations = StationParserBolt.getStations(inputTuple, this.stationRecordAvro);
+			version = StationCatalogTracker.version(stations);
+			catalogChanged = tracker.changed(version);
+			messages = new ArrayList<KeyedMessage<String, byte[]>>(stations.size() + 1);
+			if (catalogChanged) {
+				// the catalog goes before the readings that use it
+				messages.add(new KeyedMessage<String, byte[]>(
+						StationRecordBolt.stationsTopic(datasource, this.catalogTopicSuffix), datasource,
+						this.stationCatalogAvro.serializeCatalog(version, stations)));
+			}
+			for (StationRecord station : stations) {
+				messages.add(new KeyedMessage<String, byte[]>(readingsTopic, Integer.toString(station.id()),
+						this.stationCatalogAvro.serializeReading(station, version)));
+			}
+		} catch (IOException ioe) {
+			// StationParserBolt emits valid records, so this is not expected
+			LOGGER.error("Error reading stations for datasource {}, skipping: {}", datasource, ioe.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		}
+
+		try {
+			this.kafkaProducer.send(messages);
+		} catch (Exception e) {
+			// Exceptions in Kafka API are not checked
+			LOGGER.error("Error sending station catalog and readings to Kafka, will retry {}", e.getMessage());
+			this.collector.fail(inputTuple);
+			return;
+		}
+		if (catalogChanged) {
+			LOGGER.info("Sent new catalog with version {} for datasource {}", version, datasource);
+		}
+
+		// the catalog is in Kafka, update the state and ack this tuple
+		tracker.published(version);
+		this.collector.ack(inputTuple);
+	}
+
+	@Override
+	public void cleanup() {
+		this.kafkaProducer.close();
+	}
+
+	@Override
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		// this bolts emits no tuples, just pushes them to Kafka
+	}
+}
@@ -0,0 +1,73 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.collprod.bicingbcn.common.StationCatalogHasher;
+
+/**
+ * <p>
+ * The catalog of a snapshot are the static attributes of its stations: coordinates, street, height,
+ * street number and nearby stations, which almost never change. The version of a catalog is a hash
+ * of those attributes for all the stations, see version(), so two snapshots have the same catalog iff
+ * they have the same version, with high probability.
+ * </p>
+ * <p>
+ * This class keeps the version of the last published catalog of a data source, so the catalog is only
+ * published when it changes. As in StationDeltaTracker, checking for changes and updating the state are
+ * separate steps, so the state is only updated after the catalog has been published
+ * </p>
+ * <p>
+ * version() is computed with StationCatalogHasher, as org.collprod.bicingbcn.StationCatalog in the
+ * Spark project. This class is not thread safe
+ * </p>
+ * */
+public class StationCatalogTracker {
+
+	private static final Comparator<StationRecord> BY_ID = new Comparator<StationRecord>() {
+		@Override
+		public int compare(StationRecord station1, StationRecord station2) {
+			return station1.id() < station2.id() ? -1 : (station1.id() == station2.id() ? 0 : 1);
+		}
+	};
+
+	private boolean published;
+	private long publishedVersion;
+
+	public StationCatalogTracker() {
+		this.published = false;
+		this.publishedVersion = 0;
+	}
+
+	/**
+	 * @return the version of the catalog for stations, which doesn't depend on the order of stations
+	 * */
+	public static long version(List<StationRecord> stations) {
+		List<StationRecord> stationsById = new ArrayList<StationRecord>(stations);
+		Collections.sort(stationsById, BY_ID);
+		StationCatalogHasher hasher = new StationCatalogHasher();
+		for (StationRecord station : stationsById) {
+			hasher.add(station.id(), station.latitude(), station.longitude(), station.street(), station.height(),
+					station.streetNumber(), station.nearbyStationList());
+		}
+		return hasher.version();
+	}
+
+	/**
+	 * @return true iff no catalog was published yet, or the last published catalog has a version different
+	 * to version
+	 * */
+	public boolean changed(long version) {
+		return ! this.published || this.publishedVersion != version;
+	}
+
+	/**
+	 * Record that the catalog with version has been published
+	 * */
+	public void published(long version) {
+		this.published = true;
+		this.publishedVersion = version;
+	}
+}
@@ -0,0 +1,150 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import org.collprod.bicingbcn.ingestion.IngestionTopology;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) from StationParserBolt, 
+ * and sends to Kafka only the stations that changed with respect to the previous snapshot, as computed by a 
+ * StationDeltaTracker per data source:
+ * <ul>
+ * 	<li>using DATASOURCE_ID + "station_deltas.topic_suffix" as Kafka topic</li>
+ *  <li>using the station id as Kafka partition key</li>
+ * 	<li>the message is the station serialized by StationRecordAvro, with the keyframe field set for the 
+ *  stations of a keyframe</li>
+ * </ul>
+ * A keyframe with all the stations is sent every "station_deltas.keyframe_interval" snapshots
+ * </p>
+ * <p>
+ * This bolt should be connected with a fieldsGrouping on DATASOURCE_ID, so all the snapshots of a data 
+ * source are processed by the same task. The state of the trackers is updated only after the delta is 
+ * sent successfully, otherwise the tuple is failed, and the delta will be computed again for the replay.
+ * The state is not persisted: after a restart the first snapshot of each data source is sent as a keyframe
+ * </p>
+ * */
+public class StationDeltaBolt extends BaseRichBolt {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = 5402919183346107474L;
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationDeltaBolt.class);
+	
+	/**
+	 * Default values for the configuration, when not present 
+	 * */
+	private static final String DEFAULT_TOPIC_SUFFIX = "_deltas";
+	private static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+	
+	/**
+	 * Storm collector for acking or failing
+	 * */
+	private OutputCollector collector;
+	
+	/**
+	 * Connection to Kafka as a producer. Uses String for the partition key, and byte[] in the message
+	 * */
+	private Producer<String, byte[]> kafkaProducer;
+	
+	private String topicSuffix;
+	
+	private int keyframeInterval;
+	
+	private StationRecordAvro stationRecordAvro;
+	
+	/**
+	 * Tracker for each data source
+	 * */
+	private Map<String, StationDeltaTracker> trackers;
+	
+	@Override
+	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context, OutputCollector collector) {
+		this.collector = collector;
+		this.kafkaProducer = new Producer<String, byte[]>(new ProducerConfig(IngestionTopology.getKafkaProperties(stormConf)));
+		Object topicSuffixConf = stormConf.get("station_deltas.topic_suffix");
+		this.topicSuffix = topicSuffixConf == null ? DEFAULT_TOPIC_SUFFIX : topicSuffixConf.toString().trim();
+		this.keyframeInterval = IngestionTopology.getIntConf(stormConf, "station_deltas.keyframe_interval", DEFAULT_KEYFRAME_INTERVAL);
+		this.stationRecordAvro = new StationRecordAvro();
+		this.trackers = new HashMap<String, StationDeltaTracker>();
+	}
+	
+	private StationDeltaTracker getTracker(String datasource) {
+		StationDeltaTracker tracker = this.trackers.get(datasource);
+		if (tracker == null) {
+			tracker = new StationDeltaTracker(this.keyframeInterval);
+			this.trackers.put(datasource, tracker);
+		}
+		return tracker;
+	}
+
+	@Override
+	public void execute(Tuple inputTuple) {
+		/* Processing tuples of the shape
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) */
+		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
+		StationDeltaTracker tracker = getTracker(datasource);
+		
+		// parse and compute delta
+		String topic = StationRecordBolt.stationsTopic(datasource, this.topicSuffix);
+		StationDeltaTracker.Delta delta;
+		List<KeyedMessage<String, byte[]>> messages;
+		try {
+			List<StationRecord> stations = StationParserBolt.getStations(inputTuple, this.stationRecordAvro);
+			delta = tracker.diff(stations);
+			messages = new ArrayList<KeyedMessage<String, byte[]>>(delta.stations().size());
+			for (StationRecord station : delta.stations()) {
+				messages.add(new KeyedMessage<String, byte[]>(topic, Integer.toString(station.id()), 
+						this.stationRecordAvro.serialize(station, delta.keyframe())));
+			}
+		} catch (IOException ioe) {
+			// StationParserBolt emits valid records, so this is not expected
+			LOGGER.error("Error reading stations for datasource {}, skipping: {}", datasource, ioe.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		}
+		
+		if (! messages.isEmpty()) {
+			try {
+				this.kafkaProducer.send(messages);
+			} catch (Exception e) {
+				// Exceptions in Kafka API are not checked
+				LOGGER.error("Error sending station deltas to Kafka, will retry {}", e.getMessage());
+				this.collector.fail(inputTuple);
+				return;
+			}
+		}
+		LOGGER.debug("Sent {} stations for datasource {}, keyframe: {}", 
+				new Object [] {messages.size(), datasource, delta.keyframe()});
+		
+		// the delta is in Kafka, update the state and ack this tuple
+		tracker.apply(delta);
+		this.collector.ack(inputTuple);
+	}
+	
+	@Override
+	public void cleanup() {
+		this.kafkaProducer.close();
+	}
+
+	@Override
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		// this bolts emits no tuples, just pushes them to Kafka
+	}
+}
@@ -0,0 +1,191 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * <p>
+ * Keeps the last state of each station of a data source, and computes the stations that changed 
+ * in a new snapshot. The state is kept in primitive arrays indexed by station id, that grow as 
+ * needed, so there is no allocation per station.  
+ * A station has changed when its bikes, slots or status are different, or if it is a new station.
+ * </p>
+ * <p>
+ * Every keyframeInterval snapshots, and for the first snapshot, all the stations are 
+ * considered changed, and the delta is marked as a keyframe. Consumers can use keyframes to recover
+ * the whole state without reading the topic from the beginning 
+ * </p>
+ * <p>
+ * Computing a delta and updating the state are separate steps, so the state is only updated after 
+ * the delta has been published: diff() doesn't modify the state, and apply() does. Snapshots with an 
+ * update time not newer than the last applied snapshot, e.g. replays, get an empty delta.
+ * </p>
+ * <p>
+ * Stations that disappear from a snapshot are not reported in the deltas, as a delta only contains 
+ * records for stations present in the snapshot. Consumers notice that a station was removed on the 
+ * next keyframe, that doesn't contain the station. The state of a removed station is kept, so if it
+ * comes back unchanged it is not reported until the next keyframe either
+ * </p>
+ * <p>
+ * This class is not thread safe
+ * </p>
+ * */
+public class StationDeltaTracker {
+	
+	/**
+	 * Initial size of the state arrays, Bicing station ids are currently below this value
+	 * */
+	private static final int INITIAL_CAPACITY = 512;
+	
+	@AutoValue
+	public static abstract class Delta {
+		Delta() {}
+		public static Delta create(long updatetime, boolean keyframe, List<StationRecord> stations) {
+			return new AutoValue_StationDeltaTracker_Delta(updatetime, keyframe, stations);
+		}
+		/**
+		 * Update time of the snapshot, in milliseconds
+		 * */
+		public abstract long updatetime();
+		/**
+		 * Whether stations contains all the stations in the snapshot
+		 * */
+		public abstract boolean keyframe();
+		/**
+		 * Stations that changed in the snapshot, or all the stations for keyframes
+		 * */
+		public abstract List<StationRecord> stations();
+	}
+	
+	private final int keyframeInterval;
+	
+	// last state per station id
+	private boolean [] known;
+	private int [] bikes;
+	private int [] slots;
+	private int [] statusCodes;
+	
+	/**
+	 * Dictionary for encoding the statuses in statusCodes, there are just a few different statuses 
+	 * */
+	private final Map<String, Integer> statusDictionary;
+	
+	/**
+	 * Update time for the last applied snapshot, -1 if none
+	 * */
+	private long lastUpdatetime;
+	
+	/**
+	 * Number of snapshots applied since the last keyframe, -1 if no keyframe was applied yet
+	 * */
+	private int snapshotsSinceKeyframe;
+	
+	/**
+	 * @param keyframeInterval number of snapshots between keyframes, should be positive
+	 * */
+	public StationDeltaTracker(int keyframeInterval) {
+		if (keyframeInterval <= 0) {
+			throw new IllegalArgumentException("Keyframe interval should be positive but found " + keyframeInterval);
+		}
+		this.keyframeInterval = keyframeInterval;
+		this.known = new boolean[INITIAL_CAPACITY];
+		this.bikes = new int[INITIAL_CAPACITY];
+		this.slots = new int[INITIAL_CAPACITY];
+		this.statusCodes = new int[INITIAL_CAPACITY];
+		this.statusDictionary = new HashMap<String, Integer>();
+		this.lastUpdatetime = -1;
+		this.snapshotsSinceKeyframe = -1;
+	}
+	
+	/**
+	 * @return the code for status, or -1 if it has no code yet, without modifying the dictionary 
+	 * */
+	private int statusCode(String status) {
+		Integer code = this.statusDictionary.get(status);
+		return code == null ? -1 : code;
+	}
+	
+	/**
+	 * @return the code for status, assigning a new code if it has none yet
+	 * */
+	private int encodeStatus(String status) {
+		Integer code = this.statusDictionary.get(status);
+		if (code == null) {
+			code = this.statusDictionary.size();
+			this.statusDictionary.put(status, code);
+		}
+		return code;
+	}
+	
+	private void ensureCapacity(int stationId) {
+		if (stationId >= this.known.length) {
+			int newCapacity = Math.max(stationId + 1, this.known.length * 2);
+			this.known = Arrays.copyOf(this.known, newCapacity);
+			this.bikes = Arrays.copyOf(this.bikes, newCapacity);
+			this.slots = Arrays.copyOf(this.slots, newCapacity);
+			this.statusCodes = Arrays.copyOf(this.statusCodes, newCapacity);
+		}
+	}
+	
+	private boolean changed(StationRecord station) {
+		int id = station.id();
+		return id >= this.known.length || ! this.known[id] 
+				|| this.bikes[id] != station.bikes() || this.slots[id] != station.slots()
+				// statuses without a code are new, so the station changed
+				|| this.statusCodes[id] != statusCode(station.status());
+	}
+	
+	/**
+	 * Compute the delta for snapshot with respect to the current state, without modifying the state
+	 * 
+	 * @param snapshot all the stations of a snapshot, with the same update time, should not be empty 
+	 * */
+	public Delta diff(List<StationRecord> snapshot) {
+		long updatetime = snapshot.get(0).updatetime();
+		if (updatetime <= this.lastUpdatetime) {
+			// old snapshot
+			return Delta.create(updatetime, false, new ArrayList<StationRecord>(0));
+		}
+		if (this.snapshotsSinceKeyframe < 0 || this.snapshotsSinceKeyframe + 1 >= this.keyframeInterval) {
+			return Delta.create(updatetime, true, snapshot);
+		}
+		List<StationRecord> changedStations = new ArrayList<StationRecord>();
+		for (StationRecord station : snapshot) {
+			if (changed(station)) {
+				changedStations.add(station);
+			}
+		}
+		return Delta.create(updatetime, false, changedStations);
+	}
+	
+	/**
+	 * Update the state with a delta computed by diff() 
+	 * */
+	public void apply(Delta delta) {
+		if (delta.updatetime() <= this.lastUpdatetime) {
+			return;
+		}
+		for (StationRecord station : delta.stations()) {
+			int id = station.id();
+			ensureCapacity(id);
+			this.known[id] = true;
+			this.bikes[id] = station.bikes();
+			this.slots[id] = station.slots();
+			this.statusCodes[id] = encodeStatus(station.status());
+		}
+		this.lastUpdatetime = delta.updatetime();
+		this.snapshotsSinceKeyframe = delta.keyframe() ? 0 : this.snapshotsSinceKeyframe + 1;
+	}
+	
+	/**
+	 * @return update time for the last applied snapshot, -1 if none
+	 * */
+	public long lastUpdatetime() {
+		return this.lastUpdatetime;
+	}
+}
@@ -0,0 +1,122 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+
+/**
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) for Bicing data sources,
+ * parses the snapshot in CONTENT_FIELD with a StationXmlParser, and emits tuples (DATASOURCE_ID, TIMESTAMP_FIELD,
+ * STATIONS_FIELD) where STATIONS_FIELD is a List<byte[]> with each station of the snapshot serialized by
+ * StationRecordAvro, in document order. So StationRecordBolt, StationDeltaBolt and StationCatalogBolt share
+ * a single parse of each snapshot
+ * </p>
+ * <p>
+ * The emitted tuples are anchored to the input tuple, so a failure in any of the downstream bolts replays the
+ * snapshot. Tuples which data cannot be parsed are acked without emitting anything, as replaying them would
+ * fail again, and so are snapshots without stations. This bolt should be connected with a fieldsGrouping on
+ * DATASOURCE_ID, so the snapshots of each data source are emitted in order
+ * </p>
+ * */
+public class StationParserBolt extends BaseRichBolt {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = -6184412905375541307L;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationParserBolt.class);
+
+	public static final String STATIONS_FIELD = "STATIONS_FIELD";
+
+	/**
+	 * Storm collector for emitting, acking or failing
+	 * */
+	private OutputCollector collector;
+
+	private StationXmlParser parser;
+
+	private StationRecordAvro stationRecordAvro;
+
+	@Override
+	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context, OutputCollector collector) {
+		this.collector = collector;
+		this.parser = new StationXmlParser();
+		this.stationRecordAvro = new StationRecordAvro();
+	}
+
+	@Override
+	public void execute(Tuple inputTuple) {
+		/* Processing tuples of the shape
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, KEY_FIELD, CONTENT_FIELD, CODEC_FIELD) */
+		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
+		Long timestamp = inputTuple.getLongByField(RestIngestionSpout.TIMESTAMP_FIELD);
+		byte [] content = inputTuple.getBinaryByField(RestIngestionSpout.CONTENT_FIELD);
+		String codecName = inputTuple.getStringByField(RestIngestionSpout.CODEC_FIELD);
+
+		List<byte []> stations;
+		try {
+			List<StationRecord> records = this.parser.parse(PayloadCodec.forName(codecName).decode(content));
+			stations = new ArrayList<byte []>(records.size());
+			for (StationRecord record : records) {
+				stations.add(this.stationRecordAvro.serialize(record));
+			}
+		} catch (XMLStreamException xse) {
+			LOGGER.error("Error parsing data for datasource {}, skipping: {}", datasource, xse.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		} catch (NumberFormatException nfe) {
+			LOGGER.error("Error parsing data for datasource {}, skipping: {}", datasource, nfe.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		} catch (IOException ioe) {
+			LOGGER.error("Error decoding data for datasource {}, skipping: {}", datasource, ioe.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		}
+
+		if (! stations.isEmpty()) {
+			this.collector.emit(inputTuple, new Values(datasource, timestamp, stations));
+		}
+		this.collector.ack(inputTuple);
+	}
+
+	/**
+	 * @return the stations in STATIONS_FIELD of tuple, deserialized with stationRecordAvro
+	 * */
+	static List<StationRecord> getStations(Tuple tuple, StationRecordAvro stationRecordAvro) throws IOException {
+		List<byte []> stations = getSerializedStations(tuple);
+		List<StationRecord> records = new ArrayList<StationRecord>(stations.size());
+		for (byte [] station : stations) {
+			records.add(stationRecordAvro.deserialize(station));
+		}
+		return records;
+	}
+
+	/**
+	 * @return the stations in STATIONS_FIELD of tuple, serialized by StationRecordAvro
+	 * */
+	@SuppressWarnings("unchecked")
+	static List<byte []> getSerializedStations(Tuple tuple) {
+		return (List<byte []>) tuple.getValueByField(STATIONS_FIELD);
+	}
+
+	@Override
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		declarer.declare(new Fields(RestIngestionSpout.DATASOURCE_ID, RestIngestionSpout.TIMESTAMP_FIELD, STATIONS_FIELD));
+	}
+}
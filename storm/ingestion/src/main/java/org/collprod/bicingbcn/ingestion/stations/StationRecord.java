@@ -0,0 +1,36 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.List;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * State of a Bicing station in a snapshot, with the same fields as the &lt;station&gt; elements of
+ * the Bicing XML plus the update time of the snapshot
+ * */
+@AutoValue
+public abstract class StationRecord {
+	StationRecord() {}
+	public static StationRecord create(long updatetime, int id, double latitude,
+			double longitude, String street, int height, int streetNumber,
+			List<Integer> nearbyStationList, String status, int slots,
+			int bikes) {
+		return new AutoValue_StationRecord(updatetime, id, latitude,
+				longitude, street, height, streetNumber, nearbyStationList, status, 
+				slots, bikes);
+	}
+	/**
+	 * Update time of the snapshot, in milliseconds
+	 * */
+	public abstract long updatetime();
+	public abstract int id();
+	public abstract double latitude();
+	public abstract double longitude();
+	public abstract String street();
+	public abstract int height();
+	public abstract int streetNumber();
+	public abstract List<Integer> nearbyStationList();
+	public abstract String status();
+	public abstract int slots();
+	public abstract int bikes();
+}
@@ -0,0 +1,144 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * <p>
+ * Serializes StationRecord objects as Avro binary records with schema SCHEMA, with no 
+ * schema or header in the serialized data, so each record is just a few tens of bytes. 
+ * Consumers should use the same schema for reading  
+ * </p>
+ * <p>
+ * This class reuses the Avro encoder and decoder, so it is not thread safe
+ * </p>
+ * */
+public class StationRecordAvro {
+	
+	public static final String AVRO_RECORD_NAME = "station";
+	public static final String AVRO_RECORD_NAMESPACE = "org.collprod.bicingbcn";
+	public static final String UPDATETIME_FIELD = "updatetime";
+	public static final String ID_FIELD = "id";
+	public static final String LATITUDE_FIELD = "latitude";
+	public static final String LONGITUDE_FIELD = "longitude";
+	public static final String STREET_FIELD = "street";
+	public static final String HEIGHT_FIELD = "height";
+	public static final String STREET_NUMBER_FIELD = "streetNumber";
+	public static final String NEARBY_STATION_LIST_FIELD = "nearbyStationList";
+	public static final String STATUS_FIELD = "status";
+	public static final String SLOTS_FIELD = "slots";
+	public static final String BIKES_FIELD = "bikes";
+	public static final String KEYFRAME_FIELD = "keyframe";
+	public static final Schema SCHEMA;
+	static {
+		SCHEMA = SchemaBuilder
+				.record(AVRO_RECORD_NAME).namespace(AVRO_RECORD_NAMESPACE)
+				.fields()
+					.name(UPDATETIME_FIELD).type(Schema.create(Schema.Type.LONG)).noDefault()
+					.name(ID_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(LATITUDE_FIELD).type(Schema.create(Schema.Type.DOUBLE)).noDefault()
+					.name(LONGITUDE_FIELD).type(Schema.create(Schema.Type.DOUBLE)).noDefault()
+					.name(STREET_FIELD).type(Schema.create(Schema.Type.STRING)).noDefault()
+					.name(HEIGHT_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(STREET_NUMBER_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(NEARBY_STATION_LIST_FIELD).type(Schema.createArray(Schema.create(Schema.Type.INT))).noDefault()
+					.name(STATUS_FIELD).type(Schema.create(Schema.Type.STRING)).noDefault()
+					.name(SLOTS_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(BIKES_FIELD).type(Schema.create(Schema.Type.INT)).noDefault()
+					.name(KEYFRAME_FIELD).type(Schema.create(Schema.Type.BOOLEAN)).withDefault(false)
+				.endRecord();
+	}
+	
+	private final GenericDatumWriter<GenericRecord> datumWriter;
+	private final GenericDatumReader<GenericRecord> datumReader;
+	private final ByteArrayOutputStream buffer;
+	private BinaryEncoder encoder;
+	private BinaryDecoder decoder;
+	
+	public StationRecordAvro() {
+		this.datumWriter = new GenericDatumWriter<GenericRecord>(SCHEMA);
+		this.datumReader = new GenericDatumReader<GenericRecord>(SCHEMA);
+		this.buffer = new ByteArrayOutputStream();
+		this.encoder = null;
+		this.decoder = null;
+	}
+	
+	/**
+	 * @return station serialized as an Avro binary record, not marked as part of a keyframe
+	 * */
+	public byte [] serialize(StationRecord station) throws IOException {
+		return serialize(station, false);
+	}
+	
+	/**
+	 * @param keyframe whether the record is part of a keyframe of a StationDeltaTracker
+	 * @return station serialized as an Avro binary record
+	 * */
+	public byte [] serialize(StationRecord station, boolean keyframe) throws IOException {
+		GenericRecord record = new GenericData.Record(SCHEMA);
+		record.put(UPDATETIME_FIELD, station.updatetime());
+		record.put(ID_FIELD, station.id());
+		record.put(LATITUDE_FIELD, station.latitude());
+		record.put(LONGITUDE_FIELD, station.longitude());
+		record.put(STREET_FIELD, station.street());
+		record.put(HEIGHT_FIELD, station.height());
+		record.put(STREET_NUMBER_FIELD, station.streetNumber());
+		record.put(NEARBY_STATION_LIST_FIELD, station.nearbyStationList());
+		record.put(STATUS_FIELD, station.status());
+		record.put(SLOTS_FIELD, station.slots());
+		record.put(BIKES_FIELD, station.bikes());
+		record.put(KEYFRAME_FIELD, keyframe);
+		
+		this.buffer.reset();
+		this.encoder = EncoderFactory.get().binaryEncoder(this.buffer, this.encoder);
+		this.datumWriter.write(record, this.encoder);
+		this.encoder.flush();
+		return this.buffer.toByteArray();
+	}
+	
+	/**
+	 * @return the station id of data, a record serialized by serialize(), by reading just the fields
+	 * up to ID_FIELD. This method is thread safe
+	 * */
+	public static int readId(byte [] data) throws IOException {
+		BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(data, null);
+		// UPDATETIME_FIELD goes before ID_FIELD in SCHEMA
+		decoder.readLong();
+		return decoder.readInt();
+	}
+
+	/**
+	 * Inverse of serialize(), the keyframe field is ignored
+	 * */
+	public StationRecord deserialize(byte [] data) throws IOException {
+		this.decoder = DecoderFactory.get().binaryDecoder(data, this.decoder);
+		GenericRecord record = this.datumReader.read(null, this.decoder);
+		@SuppressWarnings("unchecked")
+		List<Integer> nearbyStationList = new ArrayList<Integer>((List<Integer>) record.get(NEARBY_STATION_LIST_FIELD)); 
+		return StationRecord.create((Long) record.get(UPDATETIME_FIELD), 
+				(Integer) record.get(ID_FIELD), 
+				(Double) record.get(LATITUDE_FIELD), 
+				(Double) record.get(LONGITUDE_FIELD), 
+				// Avro strings are read as org.apache.avro.util.Utf8
+				record.get(STREET_FIELD).toString(), 
+				(Integer) record.get(HEIGHT_FIELD), 
+				(Integer) record.get(STREET_NUMBER_FIELD), 
+				nearbyStationList, 
+				record.get(STATUS_FIELD).toString(), 
+				(Integer) record.get(SLOTS_FIELD), 
+				(Integer) record.get(BIKES_FIELD));
+	}
+}
@@ -0,0 +1,122 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import org.collprod.bicingbcn.ingestion.IngestionTopology;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * <p>Accepts tuples (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) from StationParserBolt, and sends a message 
+ * per station to Kafka:
+ * <ul>
+ * 	<li>using DATASOURCE_ID + "station_records.topic_suffix" as Kafka topic</li>
+ *  <li>using the station id as Kafka partition key, so all the records for a station go to the same
+ *  partition, in order</li>
+ * 	<li>the message is the station serialized by StationRecordAvro, as emitted by StationParserBolt</li>
+ * </ul>
+ * So consumers can be parallelized by partition, and don't need to parse the XML nor to group the 
+ * data by station 
+ * </p>
+ * <p>
+ * All the messages for a snapshot are sent with a single call to Producer.send(List), and the tuple is
+ * acked after that call completes, or failed if it throws
+ * </p>
+ * */
+public class StationRecordBolt extends BaseRichBolt {
+
+	// generated by Eclipse
+	private static final long serialVersionUID = -2318734587207036361L;
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(StationRecordBolt.class);
+	
+	/**
+	 * Default value for the topic suffix, when "station_records.topic_suffix" is not in the configuration
+	 * */
+	private static final String DEFAULT_TOPIC_SUFFIX = "_stations";
+	
+	/**
+	 * Storm collector for acking or failing
+	 * */
+	private OutputCollector collector;
+	
+	/**
+	 * Connection to Kafka as a producer. Uses String for the partition key, and byte[] in the message
+	 * */
+	private Producer<String, byte[]> kafkaProducer;
+	
+	private String topicSuffix;
+	
+	@Override
+	public void prepare(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context, OutputCollector collector) {
+		this.collector = collector;
+		this.kafkaProducer = new Producer<String, byte[]>(new ProducerConfig(IngestionTopology.getKafkaProperties(stormConf)));
+		Object topicSuffixConf = stormConf.get("station_records.topic_suffix");
+		this.topicSuffix = topicSuffixConf == null ? DEFAULT_TOPIC_SUFFIX : topicSuffixConf.toString().trim();
+	}
+	
+	/**
+	 * @return the Kafka topic for the station records of datasource 
+	 * */
+	public static String stationsTopic(String datasource, String topicSuffix) {
+		return datasource + topicSuffix;
+	}
+
+	@Override
+	public void execute(Tuple inputTuple) {
+		/* Processing tuples of the shape
+		   (DATASOURCE_ID, TIMESTAMP_FIELD, STATIONS_FIELD) */
+		String datasource = inputTuple.getStringByField(RestIngestionSpout.DATASOURCE_ID);
+		List<byte []> stations = StationParserBolt.getSerializedStations(inputTuple);
+		
+		// the stations are already serialized, just read their ids for the partition keys
+		String topic = stationsTopic(datasource, this.topicSuffix);
+		List<KeyedMessage<String, byte[]>> messages = new ArrayList<KeyedMessage<String, byte[]>>(stations.size());
+		try {
+			for (byte [] station : stations) {
+				messages.add(new KeyedMessage<String, byte[]>(topic, Integer.toString(StationRecordAvro.readId(station)), station));
+			}
+		} catch (IOException ioe) {
+			// StationParserBolt emits valid records, so this is not expected
+			LOGGER.error("Error reading stations for datasource {}, skipping: {}", datasource, ioe.getMessage());
+			this.collector.ack(inputTuple);
+			return;
+		}
+		
+		try {
+			this.kafkaProducer.send(messages);
+		} catch (Exception e) {
+			// Exceptions in Kafka API are not checked
+			LOGGER.error("Error sending station records to Kafka, will retry {}", e.getMessage());
+			this.collector.fail(inputTuple);
+			return;
+		}
+		
+		// ack this tuple
+		this.collector.ack(inputTuple);
+	}
+	
+	@Override
+	public void cleanup() {
+		this.kafkaProducer.close();
+	}
+
+	@Override
+	public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		// this bolts emits no tuples, just pushes them to Kafka
+	}
+}
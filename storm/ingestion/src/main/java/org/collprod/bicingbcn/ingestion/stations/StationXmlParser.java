@@ -0,0 +1,136 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Ints;
+
+/**
+ * <p>
+ * Parses a Bicing XML snapshot into a StationRecord per station, in a single pass with a StAX
+ * reader, so no DOM is built for the document.
+ * </p>
+ * <p>
+ * Default values are the same as in org.collprod.bicingbcn.BicingStationDao in the Spark project:
+ * 	<ul>
+ * 		<li> If streetNumber is absent (i.e. tag <streetNumber></streetNumber>) then -1 is used for this field</li>
+ * 		<li> If height, slots or bikes are absent then 0 is used as default</li>
+ * 		<li> Unparseable elements of nearbyStationList are replaced by -1</li>
+ * </ul>
+ * The updatetime is converted from seconds to milliseconds
+ * </p>
+ * <p>
+ * This class is thread safe
+ * </p>
+ * */
+public class StationXmlParser {
+	
+	private static final XMLInputFactory XML_INPUT_FACTORY;
+	static {
+		XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+		// get CDATA sections together with the surrounding text
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+	
+	private static final Splitter NEARBY_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+	
+	/**
+	 * Expected number of stations per snapshot, used to size the result
+	 * */
+	private static final int EXPECTED_STATIONS = 512;
+	
+	private static int parseInt(String value, int defaultValue) {
+		Integer parsed = Ints.tryParse(value.trim());
+		return parsed == null ? defaultValue : parsed;
+	}
+	
+	/**
+	 * @param bicingData contents of a Bicing XML file, in the encoding declared in the XML prolog or UTF-8 by default 
+	 * @return a StationRecord for each station in bicingData, in document order
+	 * @throws XMLStreamException if bicingData is not well formed, has no updatetime, or a station has no id 
+	 * */
+	public List<StationRecord> parse(byte [] bicingData) throws XMLStreamException {
+		XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(bicingData));
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static List<StationRecord> parse(XMLStreamReader reader) throws XMLStreamException {
+		List<StationRecord> stations = new ArrayList<StationRecord>(EXPECTED_STATIONS);
+		long updatetime = -1;
+		boolean inStation = false;
+		// fields of the current station
+		int id = -1;
+		double latitude = 0, longitude = 0;
+		String street = "", status = "";
+		int height = 0, streetNumber = -1, slots = 0, bikes = 0;
+		List<Integer> nearbyStationList = new ArrayList<Integer>();
+		
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("station")) {
+					inStation = true;
+					id = -1;
+					latitude = longitude = 0;
+					street = status = "";
+					height = slots = bikes = 0;
+					streetNumber = -1;
+					nearbyStationList = new ArrayList<Integer>();
+				} else if (name.equals("updatetime")) {
+					updatetime = Long.parseLong(reader.getElementText().trim()) * 1000L;
+				} else if (inStation) {
+					// getElementText() moves the reader to the END_ELEMENT
+					String text = reader.getElementText();
+					if (name.equals("id")) {
+						id = parseInt(text, -1);
+					} else if (name.equals("lat")) {
+						latitude = Double.parseDouble(text.trim());
+					} else if (name.equals("long")) {
+						longitude = Double.parseDouble(text.trim());
+					} else if (name.equals("street")) {
+						street = text;
+					} else if (name.equals("height")) {
+						height = parseInt(text, 0);
+					} else if (name.equals("streetNumber")) {
+						streetNumber = parseInt(text, -1);
+					} else if (name.equals("nearbyStationList")) {
+						for (String nearbyStation : NEARBY_SPLITTER.split(text)) {
+							nearbyStationList.add(parseInt(nearbyStation, -1));
+						}
+					} else if (name.equals("status")) {
+						status = text;
+					} else if (name.equals("slots")) {
+						slots = parseInt(text, 0);
+					} else if (name.equals("bikes")) {
+						bikes = parseInt(text, 0);
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("station")) {
+				inStation = false;
+				if (updatetime < 0) {
+					throw new XMLStreamException("Found station before updatetime", reader.getLocation());
+				}
+				if (id < 0) {
+					throw new XMLStreamException("Found station without id", reader.getLocation());
+				}
+				stations.add(StationRecord.create(updatetime, id, latitude, longitude, street, height, 
+						streetNumber, nearbyStationList, status, slots, bikes));
+			}
+		}
+		
+		return stations;
+	}
+}
@@ -0,0 +1,255 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import org.collprod.bicingbcn.ingestion.AsyncDownloader.DownloadResult;
+import org.collprod.bicingbcn.ingestion.RestIngestionSpout.DatasourceState;
+import org.collprod.bicingbcn.ingestion.tsparser.TimeStampParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.fugue.Either;
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for AsyncDownloader against a local HTTP server with a fast and a slow service, and services 
+ * that support conditional requests or ignore them
+ * */
+public class AsyncDownloaderTest {
+	private static final int TIMEOUT_MS = 500;
+	private static final long POLL_TIMEOUT_MS = 5000;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private String baseUrl;
+	/**
+	 * The slow service doesn't answer until this is released
+	 * */
+	private CountDownLatch releaseSlow;
+	private AtomicInteger slowRequests;
+	/**
+	 * Body and validators of the conditional and unconditional services
+	 * */
+	private volatile String body;
+	private volatile String etag;
+	private volatile String lastModified;
+	/**
+	 * Value of If-None-Match in the last request to the conditional service 
+	 * */
+	private volatile String lastIfNoneMatch;
+	private AsyncDownloader downloader;
+
+	private static void respond(HttpExchange exchange, String body) throws IOException {
+		byte [] bodyBytes = body.getBytes(Charsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, bodyBytes.length);
+		OutputStream responseBody = exchange.getResponseBody();
+		try {
+			responseBody.write(bodyBytes);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		this.releaseSlow = new CountDownLatch(1);
+		this.slowRequests = new AtomicInteger(0);
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		// the slow service must not block the fast one in the server either
+		this.serverExecutor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.serverExecutor);
+		this.server.createContext("/slow", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				AsyncDownloaderTest.this.slowRequests.incrementAndGet();
+				try {
+					AsyncDownloaderTest.this.releaseSlow.await(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				respond(exchange, "slow");
+			}
+		});
+		this.server.createContext("/fast", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, "fast");
+			}
+		});
+		this.body = "<bicing_stations><updatetime>1</updatetime></bicing_stations>";
+		this.etag = "\"1\"";
+		this.lastModified = "Sun, 22 Jun 2014 16:00:00 GMT";
+		this.server.createContext("/conditional", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+				AsyncDownloaderTest.this.lastIfNoneMatch = ifNoneMatch;
+				if (AsyncDownloaderTest.this.etag.equals(ifNoneMatch)) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().set("ETag", AsyncDownloaderTest.this.etag);
+				exchange.getResponseHeaders().set("Last-Modified", AsyncDownloaderTest.this.lastModified);
+				respond(exchange, AsyncDownloaderTest.this.body);
+			}
+		});
+		this.server.createContext("/unconditional", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, AsyncDownloaderTest.this.body);
+			}
+		});
+		this.server.start();
+		this.baseUrl = "http://localhost:" + this.server.getAddress().getPort();
+		this.downloader = new AsyncDownloader(2, "test");
+	}
+
+	@After
+	public void tearDown() {
+		this.releaseSlow.countDown();
+		this.downloader.shutdown();
+		this.server.stop(0);
+		this.serverExecutor.shutdownNow();
+	}
+
+	/**
+	 * @param refreshRate refresh rate in milliseconds
+	 * */
+	private DatasourceState datasource(String path, float refreshRate, int timeout) {
+		return DatasourceState.create(path, AsyncDownloader.newRequest(this.baseUrl + path, refreshRate, timeout, timeout),
+				refreshRate, 1, Either.<String, TimeStampParser>left(TimeStampParser.class.getName()),
+				new MutableLong(-1), new AsyncDownloader.ConditionalRequestState());
+	}
+
+	@Test
+	public void slowServiceDoesNotBlockOtherDatasources() throws InterruptedException {
+		DatasourceState slow = datasource("/slow", 20000, TIMEOUT_MS);
+		DatasourceState fast = datasource("/fast", 20000, TIMEOUT_MS);
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(this.downloader.submit(slow));
+		Assert.assertTrue(this.downloader.submit(fast));
+
+		DownloadResult fastResult = this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(fastResult);
+		Assert.assertEquals(fast, fastResult.datasourceState());
+		Assert.assertEquals("fast", fastResult.content().get());
+
+		// the slow download is abandoned after the socket timeout
+		DownloadResult slowResult = this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(slowResult);
+		Assert.assertEquals(slow, slowResult.datasourceState());
+		Assert.assertFalse(slowResult.content().isPresent());
+		Assert.assertFalse(slowResult.notModified());
+		Assert.assertTrue(System.currentTimeMillis() - start < POLL_TIMEOUT_MS);
+	}
+
+	@Test
+	public void timeoutsAreCappedToHalfTheRefreshRate() throws InterruptedException {
+		DatasourceState slow = datasource("/slow", 2 * TIMEOUT_MS, 10 * (int) POLL_TIMEOUT_MS);
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(this.downloader.submit(slow));
+		DownloadResult slowResult = this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(slowResult);
+		Assert.assertFalse(slowResult.content().isPresent());
+		Assert.assertTrue(System.currentTimeMillis() - start < POLL_TIMEOUT_MS);
+	}
+
+	@Test
+	public void atMostOneDownloadInFlightPerDatasource() throws InterruptedException {
+		DatasourceState slow = datasource("/slow", 20000, TIMEOUT_MS);
+		Assert.assertTrue(this.downloader.submit(slow));
+		Assert.assertFalse(this.downloader.submit(slow));
+		Assert.assertFalse(this.downloader.submit(slow));
+
+		Assert.assertNotNull(this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		Assert.assertNull(this.downloader.poll());
+		Assert.assertEquals(1, this.slowRequests.get());
+
+		// a new download once the previous one has finished
+		this.releaseSlow.countDown();
+		Assert.assertTrue(this.downloader.submit(slow));
+		DownloadResult slowResult = this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(slowResult);
+		Assert.assertEquals("slow", slowResult.content().get());
+		Assert.assertEquals(2, this.slowRequests.get());
+	}
+
+	private DownloadResult download(DatasourceState datasourceState) throws InterruptedException {
+		Assert.assertTrue(this.downloader.submit(datasourceState));
+		DownloadResult result = this.downloader.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(result);
+		return result;
+	}
+
+	@Test
+	public void notModifiedResponseHasNoContent() throws InterruptedException {
+		DatasourceState conditional = datasource("/conditional", 20000, TIMEOUT_MS);
+		DownloadResult result = download(conditional);
+		Assert.assertEquals(this.body, result.content().get());
+		Assert.assertFalse(result.notModified());
+		Assert.assertNull(this.lastIfNoneMatch);
+		Assert.assertEquals(this.etag, conditional.conditionalRequestState().etag);
+		Assert.assertEquals(this.lastModified, conditional.conditionalRequestState().lastModified);
+
+		result = download(conditional);
+		Assert.assertEquals(this.etag, this.lastIfNoneMatch);
+		Assert.assertFalse(result.content().isPresent());
+		Assert.assertTrue(result.notModified());
+	}
+
+	@Test
+	public void identicalBodyIsSkipped() throws InterruptedException {
+		DatasourceState unconditional = datasource("/unconditional", 20000, TIMEOUT_MS);
+		DownloadResult result = download(unconditional);
+		Assert.assertEquals(this.body, result.content().get());
+		Assert.assertFalse(result.notModified());
+
+		// same body, rejected by its fingerprint
+		result = download(unconditional);
+		Assert.assertFalse(result.content().isPresent());
+		Assert.assertTrue(result.notModified());
+
+		this.body = "<bicing_stations><updatetime>2</updatetime></bicing_stations>";
+		result = download(unconditional);
+		Assert.assertEquals(this.body, result.content().get());
+		Assert.assertFalse(result.notModified());
+	}
+
+	@Test
+	public void changedBodyIsReturnedAndUpdatesTheValidators() throws InterruptedException {
+		DatasourceState conditional = datasource("/conditional", 20000, TIMEOUT_MS);
+		download(conditional);
+		String oldEtag = this.etag;
+
+		this.body = "<bicing_stations><updatetime>2</updatetime></bicing_stations>";
+		this.etag = "\"2\"";
+		this.lastModified = "Sun, 22 Jun 2014 16:00:20 GMT";
+		DownloadResult result = download(conditional);
+		Assert.assertEquals(oldEtag, this.lastIfNoneMatch);
+		Assert.assertEquals(this.body, result.content().get());
+		Assert.assertFalse(result.notModified());
+		Assert.assertEquals(this.etag, conditional.conditionalRequestState().etag);
+		Assert.assertEquals(this.lastModified, conditional.conditionalRequestState().lastModified);
+
+		// the next request uses the new validators
+		result = download(conditional);
+		Assert.assertEquals(this.etag, this.lastIfNoneMatch);
+		Assert.assertTrue(result.notModified());
+	}
+}
@@ -0,0 +1,322 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Tests for AvroArchiveBolt writing to the local file system, in a temporary directory
+ * */
+public class AvroArchiveBoltTest {
+	private static final String DATASOURCE = "test_bicing_station_data";
+	// 2014-06-01 10:59:00 UTC and 2014-06-01 11:00:05 UTC
+	private static final long TIMESTAMP_10H = 1401620340000L;
+	private static final long TIMESTAMP_11H = 1401620405000L;
+	private static final String PARTITION_10H = "2014-06-01-10";
+	private static final String PARTITION_11H = "2014-06-01-11";
+
+	private File archiveDir;
+	private Map<String, Object> stormConf;
+	private TopologyContext context;
+	private StormTestUtils.RecordingCollector collector;
+	private AvroArchiveBolt bolt;
+
+	/**
+	 * Local file system which streams fail while failWrites is true
+	 * */
+	private static class FailingFileSystem extends FilterFileSystem {
+		volatile boolean failWrites = false;
+
+		FailingFileSystem(FileSystem fs) {
+			super(fs);
+			setConf(fs.getConf());
+		}
+
+		@Override
+		public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+				short replication, long blockSize, Progressable progress) throws IOException {
+			final FSDataOutputStream out = super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+			return new FSDataOutputStream(new OutputStream() {
+				private void checkFailure() throws IOException {
+					if (FailingFileSystem.this.failWrites) {
+						throw new IOException("Injected failure for " + FailingFileSystem.class.getSimpleName());
+					}
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					checkFailure();
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					checkFailure();
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					checkFailure();
+					out.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			}, null);
+		}
+	}
+
+	@Before
+	public void setup() {
+		this.archiveDir = Files.createTempDir();
+		this.stormConf = new HashMap<String, Object>();
+		this.stormConf.put(IngestionTopology.DATASOURCE_CONF_KEY, Collections.singletonMap(DATASOURCE,
+				"datasource_id=" + DATASOURCE + "\nhdfs_path=" + new File(this.archiveDir, DATASOURCE).getAbsolutePath() + "\n"));
+		// these files don't exist, so they are ignored by the Hadoop configuration
+		this.stormConf.put("hadoop.res.core-site", new File(this.archiveDir, "core-site.xml").getAbsolutePath());
+		this.stormConf.put("hadoop.res.hdfs-site", new File(this.archiveDir, "hdfs-site.xml").getAbsolutePath());
+		this.stormConf.put("avro_archive.fs_uri", "file:///");
+		this.stormConf.put("avro_archive.partition", AvroArchiveBolt.HOURLY_PARTITION);
+		this.stormConf.put("avro_archive.codec", "deflate");
+		this.stormConf.put("avro_archive.sync_interval", "1048576");
+		// write the blocks on each tick
+		this.stormConf.put("avro_archive.max_block_secs", "0");
+		this.collector = new StormTestUtils.RecordingCollector();
+	}
+
+	@After
+	public void tearDown() {
+		if (this.bolt != null) {
+			this.bolt.cleanup();
+		}
+		FileUtil.fullyDelete(this.archiveDir);
+	}
+
+	/**
+	 * The files are named with the time they are created, so the bolts of a test have to create them
+	 * in different milliseconds
+	 * */
+	private void prepareBolt() throws InterruptedException {
+		Thread.sleep(2);
+		this.context = StormTestUtils.topologyContext(this.stormConf);
+		this.bolt = new AvroArchiveBolt(AvroArchiveBolt.DEFAULT_FLUSH_SECS);
+		this.bolt.prepare(this.stormConf, this.context, this.collector.outputCollector());
+	}
+
+	private Tuple tuple(long timestamp) {
+		return StormTestUtils.spoutTuple(this.context, DATASOURCE, timestamp,
+				("content for " + timestamp).getBytes(Charsets.UTF_8), "none");
+	}
+
+	private void tick() {
+		this.bolt.execute(StormTestUtils.tickTuple(this.context));
+	}
+
+	/**
+	 * @return the files for partition with suffix, skipping the checksum files of the local file system
+	 * */
+	private List<File> files(String partition, final String suffix) {
+		File [] files = new File(new File(this.archiveDir, DATASOURCE), partition).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return ! name.startsWith(".") && name.endsWith(suffix);
+			}
+		});
+		return files == null ? new ArrayList<File>() : Arrays.asList(files);
+	}
+
+	/**
+	 * Checks that file contains the records for timestamps, in that order
+	 *
+	 * @return number of blocks in file
+	 * */
+	private int checkRecords(File file, long ... timestamps) throws IOException {
+		DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(file,
+				new GenericDatumReader<GenericRecord>(AvroArchiveBolt.AVRO_SCHEMA));
+		Set<Long> blocks = new HashSet<Long>();
+		try {
+			for (long timestamp : timestamps) {
+				Assert.assertTrue(reader.hasNext());
+				GenericRecord record = reader.next();
+				blocks.add(reader.previousSync());
+				Assert.assertEquals(timestamp, record.get(AvroArchiveBolt.AVRO_TIMESTAMP_FIELD));
+				Assert.assertEquals(DATASOURCE + timestamp, record.get(AvroArchiveBolt.AVRO_KEY_FIELD).toString());
+				ByteBuffer content = (ByteBuffer) record.get(AvroArchiveBolt.AVRO_CONTENT_FIELD);
+				byte [] contentBytes = new byte[content.remaining()];
+				content.get(contentBytes);
+				Assert.assertEquals("content for " + timestamp, new String(contentBytes, Charsets.UTF_8));
+			}
+			Assert.assertFalse(reader.hasNext());
+		} finally {
+			reader.close();
+		}
+		return blocks.size();
+	}
+
+	@Test
+	public void writesAFilePerHourlyPartition() throws Exception {
+		prepareBolt();
+		Tuple tuple10h = tuple(TIMESTAMP_10H);
+		Tuple tuple11h = tuple(TIMESTAMP_11H);
+		this.bolt.execute(tuple10h);
+		this.bolt.execute(tuple11h);
+		tick();
+		Assert.assertEquals(Arrays.asList(tuple10h, tuple11h), this.collector.acked);
+
+		// a new file for a partition already closed
+		this.bolt.cleanup();
+		prepareBolt();
+		Tuple otherTuple10h = tuple(TIMESTAMP_10H + 1000);
+		this.bolt.execute(otherTuple10h);
+		this.bolt.cleanup();
+		Assert.assertEquals(Arrays.asList(tuple10h, tuple11h, otherTuple10h), this.collector.acked);
+
+		List<File> files10h = new ArrayList<File>(files(PARTITION_10H, ".avro"));
+		Collections.sort(files10h);
+		Assert.assertEquals(2, files10h.size());
+		checkRecords(files10h.get(0), TIMESTAMP_10H);
+		checkRecords(files10h.get(1), TIMESTAMP_10H + 1000);
+		List<File> files11h = files(PARTITION_11H, ".avro");
+		Assert.assertEquals(1, files11h.size());
+		checkRecords(files11h.get(0), TIMESTAMP_11H);
+	}
+
+	@Test
+	public void tmpFileIsRenamedOnClose() throws Exception {
+		prepareBolt();
+		this.bolt.execute(tuple(TIMESTAMP_10H));
+		tick();
+		List<File> tmpFiles = files(PARTITION_10H, ".avro.tmp");
+		Assert.assertEquals(1, tmpFiles.size());
+		Assert.assertTrue(files(PARTITION_10H, ".avro").isEmpty());
+
+		this.bolt.cleanup();
+		Assert.assertTrue(files(PARTITION_10H, ".avro.tmp").isEmpty());
+		List<File> files = files(PARTITION_10H, ".avro");
+		Assert.assertEquals(1, files.size());
+		String tmpName = tmpFiles.get(0).getName();
+		Assert.assertEquals(tmpName.substring(0, tmpName.length() - ".tmp".length()), files.get(0).getName());
+	}
+
+	@Test
+	public void tuplesAreAckedWhenTheirBlockIsWritten() throws Exception {
+		// blocks are only written by size or on close
+		this.stormConf.put("avro_archive.max_block_secs", "3600");
+		prepareBolt();
+		Tuple tuple1 = tuple(TIMESTAMP_10H);
+		Tuple tuple2 = tuple(TIMESTAMP_10H + 1000);
+		this.bolt.execute(tuple1);
+		tick();
+		this.bolt.execute(tuple2);
+		tick();
+		Assert.assertTrue(this.collector.acked.isEmpty());
+		this.bolt.cleanup();
+		Assert.assertEquals(Arrays.asList(tuple1, tuple2), this.collector.acked);
+		// the ticks didn't end the block
+		Assert.assertEquals(1, checkRecords(files(PARTITION_10H, ".avro").get(0), TIMESTAMP_10H, TIMESTAMP_10H + 1000));
+
+		// written on each tick
+		this.stormConf.put("avro_archive.max_block_secs", "0");
+		prepareBolt();
+		Tuple tuple3 = tuple(TIMESTAMP_11H);
+		this.bolt.execute(tuple3);
+		Assert.assertEquals(2, this.collector.acked.size());
+		tick();
+		Assert.assertEquals(Arrays.asList(tuple1, tuple2, tuple3), this.collector.acked);
+
+		// written on each tuple
+		this.bolt.cleanup();
+		this.stormConf.put("avro_archive.max_block_secs", "3600");
+		this.stormConf.put("avro_archive.sync_interval", "1");
+		prepareBolt();
+		Tuple tuple4 = tuple(TIMESTAMP_11H + 1000);
+		this.bolt.execute(tuple4);
+		Assert.assertEquals(Arrays.asList(tuple1, tuple2, tuple3, tuple4), this.collector.acked);
+		Assert.assertTrue(this.collector.failed.isEmpty());
+	}
+
+	@Test
+	public void failedBlockFailsItsTuplesAndAbandonsTheFile() throws Exception {
+		prepareBolt();
+		Field fsField = AvroArchiveBolt.class.getDeclaredField("fs");
+		fsField.setAccessible(true);
+		FailingFileSystem failingFs = new FailingFileSystem((FileSystem) fsField.get(this.bolt));
+		fsField.set(this.bolt, failingFs);
+
+		Tuple tuple1 = tuple(TIMESTAMP_10H);
+		this.bolt.execute(tuple1);
+		failingFs.failWrites = true;
+		tick();
+		Assert.assertTrue(this.collector.acked.isEmpty());
+		Assert.assertEquals(Arrays.asList(tuple1), this.collector.failed);
+		Assert.assertEquals(1, files(PARTITION_10H, ".avro.failed").size());
+		Assert.assertTrue(files(PARTITION_10H, ".avro.tmp").isEmpty());
+
+		// the next tuples go to a new file
+		failingFs.failWrites = false;
+		Tuple tuple2 = tuple(TIMESTAMP_10H + 1000);
+		this.bolt.execute(tuple2);
+		tick();
+		this.bolt.cleanup();
+		Assert.assertEquals(Arrays.asList(tuple2), this.collector.acked);
+		List<File> files = files(PARTITION_10H, ".avro");
+		Assert.assertEquals(1, files.size());
+		checkRecords(files.get(0), TIMESTAMP_10H + 1000);
+	}
+
+	@Test
+	public void recordsAreReadBackWithDataFileReader() throws Exception {
+		this.stormConf.put("avro_archive.codec", "snappy");
+		prepareBolt();
+		long [] timestamps = new long [10];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = TIMESTAMP_10H + i * 1000;
+			this.bolt.execute(tuple(timestamps[i]));
+			if (i % 5 == 4) {
+				tick();
+			}
+		}
+		this.bolt.cleanup();
+		Assert.assertEquals(timestamps.length, this.collector.acked.size());
+		List<File> files = files(PARTITION_10H, ".avro");
+		Assert.assertEquals(1, files.size());
+		// a block per tick
+		Assert.assertEquals(2, checkRecords(files.get(0), timestamps));
+	}
+}
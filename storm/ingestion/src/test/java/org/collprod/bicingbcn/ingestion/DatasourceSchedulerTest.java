@@ -0,0 +1,112 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Unit tests for class DatasourceScheduler
+ * */
+public class DatasourceSchedulerTest {
+
+	/**
+	 * Ticker that only advances when told to
+	 * */
+	private static class ManualTicker extends Ticker {
+		private long nanos = 0;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		void advanceMillis(long millis) {
+			nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
+	private ManualTicker ticker;
+
+	@Before
+	public void setUp() {
+		ticker = new ManualTicker();
+	}
+
+	@Test
+	public void itemsAreDueInOrder() {
+		DatasourceScheduler<String> scheduler = new DatasourceScheduler<String>(ticker, new Random(0), 0);
+		scheduler.add("slow", 20000);
+		scheduler.add("fast", 7000);
+
+		// all the items are due during their first period
+		ticker.advanceMillis(20000);
+		List<String> due = scheduler.pollDue();
+		Assert.assertEquals(2, due.size());
+		Assert.assertTrue(due.contains("slow"));
+		Assert.assertTrue(due.contains("fast"));
+		Assert.assertTrue(scheduler.pollDue().isEmpty());
+
+		// then "fast" is due before "slow"
+		long waitMillis = scheduler.millisUntilNextDue();
+		Assert.assertTrue(waitMillis > 0 && waitMillis <= 7000);
+		ticker.advanceMillis(waitMillis);
+		due = scheduler.pollDue();
+		Assert.assertEquals(1, due.size());
+		Assert.assertEquals("fast", due.get(0));
+		Assert.assertEquals(2, scheduler.size());
+	}
+
+	@Test
+	public void fixedRateWithoutJitter() {
+		DatasourceScheduler<String> scheduler = new DatasourceScheduler<String>(ticker, new Random(0), 0);
+		scheduler.add("source", 1000);
+		ticker.advanceMillis(scheduler.millisUntilNextDue());
+		Assert.assertEquals(1, scheduler.pollDue().size());
+
+		// one poll per period
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(1000, scheduler.millisUntilNextDue());
+			ticker.advanceMillis(999);
+			Assert.assertTrue(scheduler.pollDue().isEmpty());
+			ticker.advanceMillis(1);
+			Assert.assertEquals(1, scheduler.pollDue().size());
+		}
+	}
+
+	@Test
+	public void lateItemsDontCatchUp() {
+		DatasourceScheduler<String> scheduler = new DatasourceScheduler<String>(ticker, new Random(0), 0);
+		scheduler.add("source", 1000);
+		// several periods late
+		ticker.advanceMillis(10000);
+		Assert.assertEquals(1, scheduler.pollDue().size());
+		Assert.assertTrue(scheduler.pollDue().isEmpty());
+		Assert.assertEquals(1000, scheduler.millisUntilNextDue());
+	}
+
+	@Test
+	public void jitterIsBounded() {
+		DatasourceScheduler<String> scheduler = new DatasourceScheduler<String>(ticker, new Random(0), 0.5);
+		scheduler.add("source", 1000);
+		ticker.advanceMillis(scheduler.millisUntilNextDue());
+		Assert.assertEquals(1, scheduler.pollDue().size());
+		for (int i = 0; i < 100; i++) {
+			long waitMillis = scheduler.millisUntilNextDue();
+			Assert.assertTrue(waitMillis <= 1500);
+			ticker.advanceMillis(waitMillis);
+			Assert.assertEquals(1, scheduler.pollDue().size());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void wrongJitter() {
+		new DatasourceScheduler<String>(ticker, new Random(0), 1);
+	}
+}
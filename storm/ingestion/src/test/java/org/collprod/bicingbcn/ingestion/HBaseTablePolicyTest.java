@@ -0,0 +1,136 @@
+package org.collprod.bicingbcn.ingestion;
+
+import junit.framework.Assert;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.junit.Test;
+
+/**
+ * Tests for parsing the HBase table policy of a data source, and for comparing it with the
+ * column family of an existing table
+ * */
+public class HBaseTablePolicyTest {
+	private static final String DATASOURCE_CONF = "datasource_id=test_bicing_station_data\n";
+
+	private static HBaseTablePolicy parse(String properties) throws ConfigurationException {
+		return HBaseTablePolicy.fromConfiguration(
+				IngestionTopology.deserializeConfiguration(DATASOURCE_CONF + properties));
+	}
+
+	/**
+	 * Asserts that properties are rejected by HBaseTablePolicy.fromConfiguration()
+	 * */
+	private static void assertInvalid(String properties) throws ConfigurationException {
+		Configuration datasourceConf = IngestionTopology.deserializeConfiguration(DATASOURCE_CONF + properties);
+		try {
+			HBaseTablePolicy.fromConfiguration(datasourceConf);
+			Assert.fail("Invalid policy accepted: " + properties);
+		} catch (RuntimeException re) {
+			// expected
+		}
+	}
+
+	@Test
+	public void missingPropertiesTakeTheDefaults() throws ConfigurationException {
+		Assert.assertEquals(HBaseTablePolicy.defaultPolicy(), parse(""));
+		Assert.assertEquals(HConstants.FOREVER, HBaseTablePolicy.defaultPolicy().ttl());
+	}
+
+	@Test
+	public void eachPropertyIsParsed() throws ConfigurationException {
+		Assert.assertEquals(Compression.Algorithm.SNAPPY, parse("hbase.compression=SNAPPY").compression());
+		Assert.assertEquals(Compression.Algorithm.GZ, parse("hbase.compression= gz ").compression());
+		Assert.assertEquals(DataBlockEncoding.FAST_DIFF, parse("hbase.data_block_encoding=FAST_DIFF").dataBlockEncoding());
+		Assert.assertEquals(DataBlockEncoding.PREFIX, parse("hbase.data_block_encoding=prefix").dataBlockEncoding());
+		Assert.assertEquals(16384, parse("hbase.block_size=16384").blockSize());
+		Assert.assertEquals(StoreFile.BloomType.ROW, parse("hbase.bloom_filter=ROW").bloomFilter());
+		Assert.assertEquals(StoreFile.BloomType.ROWCOL, parse("hbase.bloom_filter=rowcol").bloomFilter());
+		Assert.assertEquals(86400, parse("hbase.ttl=86400").ttl());
+		Assert.assertEquals(HConstants.FOREVER, parse("hbase.ttl=FOREVER").ttl());
+		Assert.assertEquals(HConstants.FOREVER, parse("hbase.ttl=forever").ttl());
+
+		// the other settings keep their defaults
+		HBaseTablePolicy defaults = HBaseTablePolicy.defaultPolicy();
+		HBaseTablePolicy policy = parse("hbase.block_size=16384");
+		Assert.assertEquals(defaults.compression(), policy.compression());
+		Assert.assertEquals(defaults.dataBlockEncoding(), policy.dataBlockEncoding());
+		Assert.assertEquals(defaults.bloomFilter(), policy.bloomFilter());
+		Assert.assertEquals(defaults.ttl(), policy.ttl());
+	}
+
+	@Test
+	public void allPropertiesAreParsed() throws ConfigurationException {
+		HBaseTablePolicy policy = parse("hbase.compression=SNAPPY\n"
+				+ "hbase.data_block_encoding=FAST_DIFF\n"
+				+ "hbase.block_size=65536\n"
+				+ "hbase.bloom_filter=ROW\n"
+				+ "hbase.ttl=2592000\n");
+		Assert.assertEquals(HBaseTablePolicy.create(Compression.Algorithm.SNAPPY, DataBlockEncoding.FAST_DIFF, 65536,
+				StoreFile.BloomType.ROW, 2592000), policy);
+	}
+
+	@Test
+	public void invalidPropertiesAreRejected() throws ConfigurationException {
+		assertInvalid("hbase.compression=ZIP");
+		assertInvalid("hbase.data_block_encoding=SMALLER");
+		assertInvalid("hbase.block_size=big");
+		assertInvalid("hbase.bloom_filter=COLUMN");
+		assertInvalid("hbase.ttl=1 day");
+	}
+
+	@Test
+	public void columnFamilyMatchesTheAppliedPolicy() throws ConfigurationException {
+		HBaseTablePolicy policy = parse("hbase.compression=SNAPPY\n"
+				+ "hbase.data_block_encoding=FAST_DIFF\n"
+				+ "hbase.block_size=16384\n"
+				+ "hbase.bloom_filter=ROWCOL\n"
+				+ "hbase.ttl=86400\n");
+		HColumnDescriptor columnFamily = new HColumnDescriptor("data");
+		Assert.assertFalse(policy.matches(columnFamily));
+		policy.applyTo(columnFamily);
+		Assert.assertTrue(policy.matches(columnFamily));
+		Assert.assertFalse(HBaseTablePolicy.defaultPolicy().matches(columnFamily));
+
+		// a column family created without a policy has the default settings
+		Assert.assertTrue(HBaseTablePolicy.defaultPolicy().matches(new HColumnDescriptor("data")));
+	}
+
+	@Test
+	public void columnFamilyWithADifferentSettingDoesNotMatch() throws ConfigurationException {
+		HBaseTablePolicy policy = parse("hbase.compression=SNAPPY\n"
+				+ "hbase.data_block_encoding=FAST_DIFF\n"
+				+ "hbase.block_size=16384\n"
+				+ "hbase.bloom_filter=ROWCOL\n"
+				+ "hbase.ttl=86400\n");
+		HColumnDescriptor columnFamily = new HColumnDescriptor("data");
+
+		policy.applyTo(columnFamily);
+		columnFamily.setCompressionType(Compression.Algorithm.GZ);
+		Assert.assertFalse(policy.matches(columnFamily));
+
+		policy.applyTo(columnFamily);
+		columnFamily.setDataBlockEncoding(DataBlockEncoding.PREFIX);
+		Assert.assertFalse(policy.matches(columnFamily));
+
+		policy.applyTo(columnFamily);
+		columnFamily.setBlocksize(65536);
+		Assert.assertFalse(policy.matches(columnFamily));
+
+		policy.applyTo(columnFamily);
+		columnFamily.setBloomFilterType(StoreFile.BloomType.ROW);
+		Assert.assertFalse(policy.matches(columnFamily));
+
+		policy.applyTo(columnFamily);
+		columnFamily.setTimeToLive(HConstants.FOREVER);
+		Assert.assertFalse(policy.matches(columnFamily));
+
+		policy.applyTo(columnFamily);
+		Assert.assertTrue(policy.matches(columnFamily));
+	}
+}
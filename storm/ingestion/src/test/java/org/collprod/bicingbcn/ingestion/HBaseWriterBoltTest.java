@@ -0,0 +1,221 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.collprod.bicingbcn.ingestion.HBaseWriterBolt.OutputTable;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Tests for the write buffers of HBaseWriterBolt, with stub tables instead of a connection to HBase
+ * */
+public class HBaseWriterBoltTest {
+	private static final String DATASOURCE = "test_bicing_station_data";
+	private static final String OTHER_DATASOURCE = "test_other_station_data";
+	private static final long TIMESTAMP = 1403452626L * 1000L;
+	private static final int SALT_BUCKETS = 4;
+
+	/**
+	 * Records the lists of puts sent to a table, and fails them when told to
+	 * */
+	private static class StubTable implements InvocationHandler {
+		final List<List<Put>> sentBatches = new ArrayList<List<Put>>();
+		boolean failPuts = false;
+
+		HTableInterface table() {
+			return (HTableInterface) Proxy.newProxyInstance(HTableInterface.class.getClassLoader(),
+					new Class<?> [] {HTableInterface.class}, this);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("put") && args[0] instanceof List) {
+				if (this.failPuts) {
+					throw new IOException("Injected failure for " + StubTable.class.getSimpleName());
+				}
+				this.sentBatches.add(new ArrayList<Put>((List<Put>) args[0]));
+				return null;
+			}
+			if (method.getName().equals("close")) {
+				return null;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private Map<String, Object> stormConf;
+	private TopologyContext context;
+	private StormTestUtils.RecordingCollector collector;
+	private Map<String, StubTable> stubTables;
+	private HBaseWriterBolt bolt;
+
+	@Before
+	public void setup() {
+		this.stormConf = new HashMap<String, Object>();
+		this.stormConf.put("hbase_writer.buffered", "true");
+		this.stormConf.put("hbase_writer.buffer_size", Integer.toString(1024 * 1024));
+		this.collector = new StormTestUtils.RecordingCollector();
+		this.stubTables = new HashMap<String, StubTable>();
+		this.stubTables.put(DATASOURCE, new StubTable());
+		this.stubTables.put(OTHER_DATASOURCE, new StubTable());
+	}
+
+	private void prepareBolt() {
+		this.context = StormTestUtils.topologyContext(this.stormConf);
+		LoadingCache<String, OutputTable> tables = CacheBuilder.newBuilder().build(
+				new CacheLoader<String, OutputTable>() {
+					@Override
+					public OutputTable load(String datasource) {
+						return new OutputTable(HBaseWriterBoltTest.this.stubTables.get(datasource).table(), SALT_BUCKETS);
+					}
+				});
+		this.bolt = new HBaseWriterBolt();
+		this.bolt.prepareBuffers(this.stormConf, this.collector.outputCollector(), tables);
+	}
+
+	private static byte [] content(long timestamp) {
+		return ("content for " + timestamp).getBytes(Charsets.UTF_8);
+	}
+
+	private Tuple tuple(String datasource, long timestamp) {
+		return StormTestUtils.spoutTuple(this.context, datasource, timestamp, content(timestamp), "none");
+	}
+
+	private List<Tuple> executeTuples(String datasource, int numTuples, long firstTimestamp) {
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < numTuples; i++) {
+			Tuple tuple = tuple(datasource, firstTimestamp + i * 1000);
+			tuples.add(tuple);
+			this.bolt.execute(tuple);
+		}
+		return tuples;
+	}
+
+	/**
+	 * @return size of the put for a tuple created with tuple()
+	 * */
+	private static long putHeapSize(String datasource, long timestamp) {
+		Put put = new Put(SaltedRowKeys.rowKey(timestamp, SALT_BUCKETS));
+		put.add(Bytes.toBytes("data"), Bytes.toBytes(datasource + timestamp), content(timestamp));
+		return put.heapSize();
+	}
+
+	private void tick() {
+		this.bolt.execute(StormTestUtils.tickTuple(this.context));
+	}
+
+	@Test
+	public void putsAreBufferedPerTable() {
+		prepareBolt();
+		List<Tuple> tuples = executeTuples(DATASOURCE, 3, TIMESTAMP);
+		List<Tuple> otherTuples = executeTuples(OTHER_DATASOURCE, 2, TIMESTAMP);
+		Assert.assertTrue(this.stubTables.get(DATASOURCE).sentBatches.isEmpty());
+		Assert.assertTrue(this.stubTables.get(OTHER_DATASOURCE).sentBatches.isEmpty());
+		Assert.assertTrue(this.collector.acked.isEmpty());
+
+		// a single list of puts per table, with the row keys and values of its tuples
+		tick();
+		List<List<Put>> sentBatches = this.stubTables.get(DATASOURCE).sentBatches;
+		Assert.assertEquals(1, sentBatches.size());
+		Assert.assertEquals(3, sentBatches.get(0).size());
+		for (int i = 0; i < tuples.size(); i++) {
+			Put put = sentBatches.get(0).get(i);
+			long timestamp = TIMESTAMP + i * 1000;
+			Assert.assertEquals(timestamp, SaltedRowKeys.timestamp(put.getRow(), SALT_BUCKETS));
+			Assert.assertTrue(put.has(Bytes.toBytes("data"), Bytes.toBytes(DATASOURCE + timestamp), content(timestamp)));
+		}
+		Assert.assertEquals(1, this.stubTables.get(OTHER_DATASOURCE).sentBatches.size());
+		Assert.assertEquals(2, this.stubTables.get(OTHER_DATASOURCE).sentBatches.get(0).size());
+
+		// all the tuples of a flush are acked together
+		Assert.assertEquals(tuples.size() + otherTuples.size(), this.collector.acked.size());
+		Assert.assertTrue(this.collector.acked.containsAll(tuples));
+		Assert.assertTrue(this.collector.acked.containsAll(otherTuples));
+		Assert.assertTrue(this.collector.failed.isEmpty());
+
+		// nothing left to flush
+		tick();
+		Assert.assertEquals(1, sentBatches.size());
+		Assert.assertEquals(tuples.size() + otherTuples.size(), this.collector.acked.size());
+	}
+
+	@Test
+	public void bufferIsFlushedWhenFull() {
+		// all the tuples have puts of the same size
+		long putHeapSize = putHeapSize(DATASOURCE, TIMESTAMP);
+		Assert.assertEquals(putHeapSize, putHeapSize(DATASOURCE, TIMESTAMP + 2000));
+		this.stormConf.put("hbase_writer.buffer_size", Long.toString(2 * putHeapSize + 1));
+		prepareBolt();
+
+		List<Tuple> tuples = executeTuples(DATASOURCE, 2, TIMESTAMP);
+		Assert.assertTrue(this.stubTables.get(DATASOURCE).sentBatches.isEmpty());
+		tuples.addAll(executeTuples(DATASOURCE, 1, TIMESTAMP + 2000));
+		Assert.assertEquals(1, this.stubTables.get(DATASOURCE).sentBatches.size());
+		Assert.assertEquals(3, this.stubTables.get(DATASOURCE).sentBatches.get(0).size());
+		Assert.assertEquals(tuples, this.collector.acked);
+
+		// the size is counted again from an empty buffer
+		List<Tuple> nextTuples = executeTuples(DATASOURCE, 2, TIMESTAMP + 3000);
+		Assert.assertEquals(1, this.stubTables.get(DATASOURCE).sentBatches.size());
+		tick();
+		Assert.assertEquals(2, this.stubTables.get(DATASOURCE).sentBatches.size());
+		tuples.addAll(nextTuples);
+		Assert.assertEquals(tuples, this.collector.acked);
+	}
+
+	@Test
+	public void unbufferedPutsAreSentPerTuple() {
+		this.stormConf.put("hbase_writer.buffered", "false");
+		prepareBolt();
+		List<Tuple> tuples = executeTuples(DATASOURCE, 2, TIMESTAMP);
+		Assert.assertEquals(2, this.stubTables.get(DATASOURCE).sentBatches.size());
+		Assert.assertEquals(1, this.stubTables.get(DATASOURCE).sentBatches.get(1).size());
+		Assert.assertEquals(tuples, this.collector.acked);
+	}
+
+	@Test
+	public void failedFlushFailsTheTuplesOfItsBuffer() {
+		prepareBolt();
+		this.stubTables.get(DATASOURCE).failPuts = true;
+		List<Tuple> failedTuples = executeTuples(DATASOURCE, 3, TIMESTAMP);
+		List<Tuple> otherTuples = executeTuples(OTHER_DATASOURCE, 2, TIMESTAMP);
+		tick();
+		Assert.assertEquals(failedTuples.size(), this.collector.failed.size());
+		Assert.assertTrue(this.collector.failed.containsAll(failedTuples));
+		Assert.assertEquals(otherTuples, this.collector.acked);
+
+		// the failed puts are not sent again with the next flush, the tuples are replayed instead
+		this.stubTables.get(DATASOURCE).failPuts = false;
+		List<Tuple> ackedTuples = executeTuples(DATASOURCE, 2, TIMESTAMP + 3000);
+		tick();
+		List<List<Put>> sentBatches = this.stubTables.get(DATASOURCE).sentBatches;
+		Assert.assertEquals(1, sentBatches.size());
+		Assert.assertEquals(ackedTuples.size(), sentBatches.get(0).size());
+		Assert.assertEquals(failedTuples.size(), this.collector.failed.size());
+		List<Tuple> allAcked = new ArrayList<Tuple>(otherTuples);
+		allAcked.addAll(ackedTuples);
+		Assert.assertEquals(allAcked, this.collector.acked);
+		Assert.assertFalse(this.collector.acked.contains(failedTuples.get(0)));
+	}
+}
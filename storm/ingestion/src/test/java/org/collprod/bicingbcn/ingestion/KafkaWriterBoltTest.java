@@ -0,0 +1,215 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import kafka.producer.KeyedMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Tests for KafkaWriterBolt, with a stub instead of a Kafka producer
+ * */
+public class KafkaWriterBoltTest {
+	private static final String DATASOURCE = "test_bicing_station_data";
+	private static final long TIMESTAMP = 1403452626L * 1000L;
+	private static final long WAIT_TIMEOUT_MS = 5000;
+
+	/**
+	 * Records the batches sent, and fails or blocks the sends when told to
+	 * */
+	private static class StubMessageSender implements KafkaWriterBolt.MessageSender {
+		final List<List<KeyedMessage<String, byte[]>>> sentBatches =
+				Collections.synchronizedList(new ArrayList<List<KeyedMessage<String, byte[]>>>());
+		final AtomicInteger sendAttempts = new AtomicInteger(0);
+		volatile boolean failSends = false;
+		volatile CountDownLatch sendsBlocked = new CountDownLatch(0);
+
+		@Override
+		public void send(List<KeyedMessage<String, byte[]>> messages) {
+			try {
+				this.sendsBlocked.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			this.sendAttempts.incrementAndGet();
+			if (this.failSends) {
+				throw new RuntimeException("Injected failure for " + StubMessageSender.class.getSimpleName());
+			}
+			this.sentBatches.add(new ArrayList<KeyedMessage<String, byte[]>>(messages));
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private Map<String, Object> stormConf;
+	private TopologyContext context;
+	private StormTestUtils.RecordingCollector collector;
+	private StubMessageSender messageSender;
+	private KafkaWriterBolt bolt;
+
+	@Before
+	public void setup() {
+		this.stormConf = new HashMap<String, Object>();
+		this.stormConf.put("kafka_writer.dedup", "cache");
+		this.stormConf.put("kafka_writer.batch_size", "3");
+		this.stormConf.put("kafka_writer.linger_ms", "60000");
+		this.stormConf.put("kafka_writer.max_in_flight", "100");
+		this.collector = new StormTestUtils.RecordingCollector();
+		this.messageSender = new StubMessageSender();
+	}
+
+	@After
+	public void tearDown() {
+		this.messageSender.sendsBlocked.countDown();
+		if (this.bolt != null) {
+			this.bolt.cleanup();
+		}
+	}
+
+	private void prepareBolt() {
+		this.context = StormTestUtils.topologyContext(this.stormConf);
+		this.bolt = new KafkaWriterBolt(this.messageSender);
+		this.bolt.prepare(this.stormConf, this.context, this.collector.outputCollector());
+	}
+
+	private Tuple tuple(long timestamp) {
+		return StormTestUtils.spoutTuple(this.context, DATASOURCE, timestamp,
+				("content for " + timestamp).getBytes(Charsets.UTF_8), "none");
+	}
+
+	private List<Tuple> executeTuples(int numTuples, long firstTimestamp) {
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < numTuples; i++) {
+			Tuple tuple = tuple(firstTimestamp + i * 1000);
+			tuples.add(tuple);
+			this.bolt.execute(tuple);
+		}
+		return tuples;
+	}
+
+	/**
+	 * Waits until the sender has attempted numAttempts sends, without executing any tuple
+	 * */
+	private void awaitSendAttempts(int numAttempts) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+		while (this.messageSender.sendAttempts.get() < numAttempts && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(numAttempts, this.messageSender.sendAttempts.get());
+	}
+
+	/**
+	 * Executes tick tuples until numTuples tuples have been acked or failed
+	 * */
+	private void awaitCompletedTuples(int numTuples) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+		while (this.collector.acked.size() + this.collector.failed.size() < numTuples
+				&& System.currentTimeMillis() < deadline) {
+			this.bolt.execute(StormTestUtils.tickTuple(this.context));
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(numTuples, this.collector.acked.size() + this.collector.failed.size());
+	}
+
+	@Test
+	public void batchIsSentWhenFull() throws InterruptedException {
+		prepareBolt();
+		List<Tuple> tuples = executeTuples(2, TIMESTAMP);
+		Thread.sleep(200);
+		Assert.assertEquals(0, this.messageSender.sendAttempts.get());
+
+		tuples.addAll(executeTuples(4, TIMESTAMP + 2000));
+		awaitSendAttempts(2);
+		Assert.assertEquals(3, this.messageSender.sentBatches.get(0).size());
+		Assert.assertEquals(3, this.messageSender.sentBatches.get(1).size());
+		KeyedMessage<String, byte[]> message = this.messageSender.sentBatches.get(0).get(0);
+		Assert.assertEquals(DATASOURCE, message.topic());
+		Assert.assertEquals(DATASOURCE + TIMESTAMP, message.key());
+
+		awaitCompletedTuples(tuples.size());
+		Assert.assertEquals(tuples, this.collector.acked);
+	}
+
+	@Test
+	public void batchIsSentAfterLinger() throws InterruptedException {
+		this.stormConf.put("kafka_writer.batch_size", "50");
+		this.stormConf.put("kafka_writer.linger_ms", "100");
+		prepareBolt();
+		long start = System.currentTimeMillis();
+		List<Tuple> tuples = executeTuples(2, TIMESTAMP);
+		// sent by the sender thread, without more tuples
+		awaitSendAttempts(1);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+		Assert.assertEquals(2, this.messageSender.sentBatches.get(0).size());
+
+		awaitCompletedTuples(tuples.size());
+		Assert.assertEquals(tuples, this.collector.acked);
+	}
+
+	@Test
+	public void failedSendFailsTheTuplesOfItsBatch() throws InterruptedException {
+		prepareBolt();
+		this.messageSender.failSends = true;
+		List<Tuple> failedTuples = executeTuples(3, TIMESTAMP);
+		awaitSendAttempts(1);
+		this.messageSender.failSends = false;
+		List<Tuple> ackedTuples = executeTuples(3, TIMESTAMP + 3000);
+		awaitSendAttempts(2);
+
+		awaitCompletedTuples(failedTuples.size() + ackedTuples.size());
+		Assert.assertEquals(failedTuples, this.collector.failed);
+		Assert.assertEquals(ackedTuples, this.collector.acked);
+
+		// the failed tuples are sent when replayed, but the acked ones are filtered as duplicates
+		this.bolt.execute(failedTuples.get(0));
+		this.bolt.execute(ackedTuples.get(0));
+		Assert.assertEquals(Arrays.asList(ackedTuples.get(0), ackedTuples.get(1), ackedTuples.get(2), ackedTuples.get(0)),
+				this.collector.acked);
+		Assert.assertEquals(3, this.collector.failed.size());
+	}
+
+	@Test
+	public void executeBlocksAtMaxInFlight() throws InterruptedException {
+		this.stormConf.put("kafka_writer.batch_size", "1");
+		this.stormConf.put("kafka_writer.max_in_flight", "2");
+		prepareBolt();
+		this.messageSender.sendsBlocked = new CountDownLatch(1);
+		executeTuples(2, TIMESTAMP);
+
+		Thread executor = new Thread() {
+			@Override
+			public void run() {
+				KafkaWriterBoltTest.this.bolt.execute(tuple(TIMESTAMP + 2000));
+			}
+		};
+		executor.start();
+		executor.join(300);
+		Assert.assertTrue(executor.isAlive());
+		Assert.assertTrue(this.collector.acked.isEmpty());
+
+		this.messageSender.sendsBlocked.countDown();
+		executor.join(WAIT_TIMEOUT_MS);
+		Assert.assertFalse(executor.isAlive());
+		Assert.assertFalse(this.collector.acked.isEmpty());
+		awaitCompletedTuples(3);
+		Assert.assertEquals(3, this.collector.acked.size());
+	}
+}
@@ -0,0 +1,115 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.File;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.tuple.Values;
+
+/**
+ * Unit tests for class MappedReplayJournal
+ * */
+public class MappedReplayJournalTest {
+
+	private File journalDir;
+
+	@Before
+	public void setUp() {
+		journalDir = new File(System.getProperty("java.io.tmpdir"),
+				MappedReplayJournalTest.class.getName() + "_" + UUID.randomUUID());
+	}
+
+	@After
+	public void tearDown() {
+		File [] files = journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		journalDir.delete();
+	}
+
+	private static Values tuple(long timestamp, int contentSize) {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < contentSize; i++) {
+			content.append((char) ('a' + (i * 7919 + timestamp) % 26));
+		}
+		return new Values("bicing", timestamp, "key" + timestamp, content.toString());
+	}
+
+	@Test
+	public void storeGetDelete() {
+		MappedReplayJournal journal = new MappedReplayJournal(journalDir, 1024 * 1024);
+		Values tuple = tuple(1400000000L, 1000);
+		UUID tupleId = UUID.randomUUID();
+		journal.store(tupleId, tuple);
+		Assert.assertEquals(1, journal.size());
+
+		Values storedTuple = journal.get(tupleId);
+		Assert.assertEquals(tuple, storedTuple);
+		// types are preserved
+		Assert.assertEquals(Long.class, storedTuple.get(1).getClass());
+
+		journal.delete(tupleId);
+		Assert.assertNull(journal.get(tupleId));
+		Assert.assertEquals(0, journal.size());
+		// deleting twice is ok
+		journal.delete(tupleId);
+		journal.close();
+	}
+
+	@Test
+	public void segmentsAreDeletedWhenAcked() {
+		// small segments so the tuples span several segments
+		MappedReplayJournal journal = new MappedReplayJournal(journalDir, 4096);
+		int numTuples = 50;
+		UUID [] tupleIds = new UUID[numTuples];
+		for (int i = 0; i < numTuples; i++) {
+			tupleIds[i] = UUID.randomUUID();
+			journal.store(tupleIds[i], tuple(i, 1000));
+		}
+		Assert.assertTrue(journal.segmentFiles().size() > 1);
+		for (int i = 0; i < numTuples; i++) {
+			Assert.assertEquals(tuple(i, 1000), journal.get(tupleIds[i]));
+		}
+
+		// ack all the tuples but the last one: only the active segment is left
+		for (int i = 0; i < numTuples - 1; i++) {
+			journal.delete(tupleIds[i]);
+		}
+		Assert.assertEquals(1, journal.segmentFiles().size());
+		Assert.assertEquals(tuple(numTuples - 1, 1000), journal.get(tupleIds[numTuples - 1]));
+
+		journal.close();
+		Assert.assertEquals(0, journal.segmentFiles().size());
+	}
+
+	@Test
+	public void tuplesBiggerThanSegments() {
+		MappedReplayJournal journal = new MappedReplayJournal(journalDir, 64);
+		UUID smallId = UUID.randomUUID();
+		UUID bigId = UUID.randomUUID();
+		journal.store(smallId, tuple(0, 10));
+		journal.store(bigId, tuple(1, 10000));
+		Assert.assertEquals(tuple(0, 10), journal.get(smallId));
+		Assert.assertEquals(tuple(1, 10000), journal.get(bigId));
+		journal.close();
+	}
+
+	@Test
+	public void previousSegmentsAreDeleted() {
+		MappedReplayJournal journal = new MappedReplayJournal(journalDir, 4096);
+		journal.store(UUID.randomUUID(), tuple(0, 10));
+		Assert.assertEquals(1, journal.segmentFiles().size());
+		// new journal for the same directory, as if the worker was restarted
+		journal = new MappedReplayJournal(journalDir, 4096);
+		Assert.assertEquals(0, journal.segmentFiles().size());
+		Assert.assertEquals(0, journal.size());
+	}
+}
@@ -0,0 +1,72 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.collprod.bicingbcn.common.PayloadCodec;
+import org.junit.Test;
+
+import backtype.storm.tuple.Values;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for the serialization of the tuples in ReplayStores
+ * */
+public class ReplayStoresTest {
+	private static final long TIMESTAMP = 1403452626L * 1000L;
+
+	/**
+	 * @return a tuple like those emitted by RestIngestionSpout, with the content encoded with codec
+	 * */
+	private static Values tuple(PayloadCodec codec) throws IOException {
+		byte [] content = codec.encode("<bicing_stations><updatetime>1403452626</updatetime></bicing_stations>"
+				.getBytes(Charsets.UTF_8));
+		return new Values("bicing", TIMESTAMP, "bicing" + TIMESTAMP, content, codec.name().toLowerCase());
+	}
+
+	private static void assertSameTuple(Values expected, Values actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) instanceof byte []) {
+				Assert.assertTrue(Arrays.equals((byte []) expected.get(i), (byte []) actual.get(i)));
+			} else {
+				Assert.assertEquals(expected.get(i), actual.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void serializationRoundTrip() throws IOException {
+		for (PayloadCodec codec : PayloadCodec.values()) {
+			Values tuple = tuple(codec);
+			Values restored = ReplayStores.deserialize(ReplayStores.serialize(tuple));
+			assertSameTuple(tuple, restored);
+			// the timestamp keeps its type
+			Assert.assertTrue(restored.get(1) instanceof Long);
+		}
+	}
+
+	@Test
+	public void encodedContentIsNotCompressedAgain() throws IOException {
+		byte [] serialized = ReplayStores.serialize(tuple(PayloadCodec.GZIP));
+		// magic number of Java serialization, instead of the magic number of gzip
+		Assert.assertEquals((byte) 0xAC, serialized[0]);
+		Assert.assertEquals((byte) 0xED, serialized[1]);
+	}
+
+	@Test
+	public void gzippedTuplesAreStillRead() throws IOException {
+		Values tuple = tuple(PayloadCodec.NONE);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+		out.writeObject(tuple);
+		out.close();
+		assertSameTuple(tuple, ReplayStores.deserialize(bytes.toByteArray()));
+	}
+}
@@ -0,0 +1,96 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for class SaltedRowKeys
+ * */
+public class SaltedRowKeysTest {
+
+	private static final int SALT_BUCKETS = 8;
+	
+	/**
+	 * Bicing timestamps are seconds converted to milliseconds
+	 * */
+	private static final long FIRST_TIMESTAMP = 1401558787000L;
+	
+	/**
+	 * Unsigned lexicographical order, as in HBase
+	 * */
+	private static int compareKeys(byte [] key1, byte [] key2) {
+		for (int i = 0; i < Math.min(key1.length, key2.length); i++) {
+			int diff = (key1[i] & 0xff) - (key2[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return key1.length - key2.length;
+	}
+	
+	@Test
+	public void consecutiveTimestampsAreSpread() {
+		Set<Integer> salts = new HashSet<Integer>();
+		for (int i = 0; i < 100; i++) {
+			int salt = SaltedRowKeys.salt(FIRST_TIMESTAMP + i * 1000L, SALT_BUCKETS);
+			Assert.assertTrue(salt >= 0 && salt < SALT_BUCKETS);
+			salts.add(salt);
+		}
+		Assert.assertEquals(SALT_BUCKETS, salts.size());
+	}
+	
+	@Test
+	public void keysAreSortedByTimeWithinBucket() {
+		long timestamp = FIRST_TIMESTAMP;
+		byte [] rowKey = SaltedRowKeys.rowKey(timestamp, SALT_BUCKETS);
+		int salt = SaltedRowKeys.salt(timestamp, SALT_BUCKETS);
+		Assert.assertEquals(SaltedRowKeys.SALTED_KEY_SIZE, rowKey.length);
+		Assert.assertEquals(salt, rowKey[0] & 0xff);
+		Assert.assertEquals(timestamp, SaltedRowKeys.timestamp(rowKey, SALT_BUCKETS));
+		Assert.assertTrue(Arrays.equals(rowKey, SaltedRowKeys.bucketKey(salt, timestamp, SALT_BUCKETS)));
+		
+		// the row is in the scan range for [timestamp, timestamp + 1) in its bucket
+		Assert.assertTrue(compareKeys(SaltedRowKeys.bucketKey(salt, timestamp, SALT_BUCKETS), rowKey) <= 0);
+		Assert.assertTrue(compareKeys(rowKey, SaltedRowKeys.bucketKey(salt, timestamp + 1, SALT_BUCKETS)) < 0);
+		// even across hour buckets
+		long nextHour = timestamp + 3600 * 1000L;
+		Assert.assertEquals(SaltedRowKeys.hourBucket(timestamp) + 1, SaltedRowKeys.hourBucket(nextHour));
+		Assert.assertTrue(compareKeys(rowKey, SaltedRowKeys.bucketKey(salt, nextHour, SALT_BUCKETS)) < 0);
+	}
+	
+	@Test
+	public void unsaltedKeys() {
+		byte [] rowKey = SaltedRowKeys.rowKey(FIRST_TIMESTAMP, 0);
+		Assert.assertEquals(8, rowKey.length);
+		Assert.assertEquals(FIRST_TIMESTAMP, SaltedRowKeys.timestamp(rowKey, 0));
+		Assert.assertNull(SaltedRowKeys.splitKeys(0));
+	}
+	
+	@Test
+	public void splitKeys() {
+		byte [][] splitKeys = SaltedRowKeys.splitKeys(SALT_BUCKETS);
+		Assert.assertEquals(SALT_BUCKETS - 1, splitKeys.length);
+		for (int i = 1; i < splitKeys.length; i++) {
+			Assert.assertTrue(compareKeys(splitKeys[i - 1], splitKeys[i]) < 0);
+		}
+		// every salted key falls in the region of its salt
+		byte [] rowKey = SaltedRowKeys.rowKey(FIRST_TIMESTAMP, SALT_BUCKETS);
+		int salt = rowKey[0] & 0xff;
+		if (salt > 0) {
+			Assert.assertTrue(compareKeys(splitKeys[salt - 1], rowKey) <= 0);
+		}
+		if (salt < SALT_BUCKETS - 1) {
+			Assert.assertTrue(compareKeys(rowKey, splitKeys[salt]) < 0);
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void tooManyBuckets() {
+		SaltedRowKeys.rowKey(FIRST_TIMESTAMP, SaltedRowKeys.MAX_SALT_BUCKETS + 1);
+	}
+}
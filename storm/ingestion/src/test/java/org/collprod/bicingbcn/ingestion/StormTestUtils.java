@@ -0,0 +1,105 @@
+package org.collprod.bicingbcn.ingestion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.Constants;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+
+/**
+ * Topology contexts, tuples and collectors for testing a bolt without running a topology. The bolt
+ * is the only task of the component BOLT_COMPONENT, and receives the tuples of RestIngestionSpout
+ * */
+class StormTestUtils {
+
+	static final String BOLT_COMPONENT = "test_bolt";
+	static final int BOLT_TASK = 2;
+	private static final String SPOUT_COMPONENT = RestIngestionSpout.class.getName();
+	private static final int SPOUT_TASK = 1;
+
+	private StormTestUtils() {}
+
+	/**
+	 * @return a context for the task of BOLT_COMPONENT with stormConf as configuration
+	 * */
+	@SuppressWarnings("rawtypes")
+	static TopologyContext topologyContext(Map stormConf) {
+		Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+		taskToComponent.put(SPOUT_TASK, SPOUT_COMPONENT);
+		taskToComponent.put(BOLT_TASK, BOLT_COMPONENT);
+		Map<String, List<Integer>> componentToSortedTasks = new HashMap<String, List<Integer>>();
+		componentToSortedTasks.put(SPOUT_COMPONENT, Arrays.asList(SPOUT_TASK));
+		componentToSortedTasks.put(BOLT_COMPONENT, Arrays.asList(BOLT_TASK));
+
+		Map<String, Map<String, Fields>> componentToStreamToFields = new HashMap<String, Map<String, Fields>>();
+		componentToStreamToFields.put(SPOUT_COMPONENT, Collections.singletonMap(Utils.DEFAULT_STREAM_ID,
+				new Fields(RestIngestionSpout.DATASOURCE_ID, RestIngestionSpout.TIMESTAMP_FIELD, RestIngestionSpout.KEY_FIELD,
+						RestIngestionSpout.CONTENT_FIELD, RestIngestionSpout.CODEC_FIELD)));
+		componentToStreamToFields.put(Constants.SYSTEM_COMPONENT_ID,
+				Collections.singletonMap(Constants.SYSTEM_TICK_STREAM_ID, new Fields("rate_secs")));
+		componentToStreamToFields.put(BOLT_COMPONENT, new HashMap<String, Fields>());
+
+		return new TopologyContext(null, stormConf, taskToComponent, componentToSortedTasks, componentToStreamToFields,
+				"test_topology", null, null, BOLT_TASK, null, Arrays.asList(BOLT_TASK), null, null,
+				new HashMap<String, Object>(), new HashMap(), new clojure.lang.Atom(false));
+	}
+
+	/**
+	 * @return a tuple emitted by RestIngestionSpout, with key datasource + timestamp as in the spout
+	 * */
+	static Tuple spoutTuple(TopologyContext context, String datasource, long timestamp, byte [] content, String codec) {
+		return new TupleImpl(context, new Values(datasource, timestamp, datasource + timestamp, content, codec),
+				SPOUT_TASK, Utils.DEFAULT_STREAM_ID);
+	}
+
+	static Tuple tickTuple(TopologyContext context) {
+		return new TupleImpl(context, new Values(1), (int) Constants.SYSTEM_TASK_ID, Constants.SYSTEM_TICK_STREAM_ID);
+	}
+
+	/**
+	 * Records the acked and failed tuples, and can be used from several threads
+	 * */
+	static class RecordingCollector implements IOutputCollector {
+		final List<Tuple> acked = Collections.synchronizedList(new ArrayList<Tuple>());
+		final List<Tuple> failed = Collections.synchronizedList(new ArrayList<Tuple>());
+
+		OutputCollector outputCollector() {
+			return new OutputCollector(this);
+		}
+
+		@Override
+		public void reportError(Throwable error) {
+		}
+
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			return new ArrayList<Integer>();
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+		}
+
+		@Override
+		public void ack(Tuple input) {
+			this.acked.add(input);
+		}
+
+		@Override
+		public void fail(Tuple input) {
+			this.failed.add(input);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.collprod.bicingbcn.ingestion.dedup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+
+/**
+ * Unit tests for class RingBloomDedupFilter
+ * */
+public class RingBloomDedupFilterTest {
+
+	private static final long ROTATION_MILLIS = TimeUnit.MINUTES.toMillis(60);
+
+	/**
+	 * Ticker that only advances when told so
+	 * */
+	private static class ManualTicker extends Ticker {
+		long nanos = 0;
+
+		@Override
+		public long read() {
+			return this.nanos;
+		}
+
+		void advanceMillis(long millis) {
+			this.nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+	}
+
+	private File checkpointFile;
+	private ManualTicker ticker;
+
+	@Before
+	public void setUp() {
+		checkpointFile = new File(System.getProperty("java.io.tmpdir"),
+				RingBloomDedupFilterTest.class.getName() + "_" + UUID.randomUUID() + ".dedup");
+		ticker = new ManualTicker();
+	}
+
+	@After
+	public void tearDown() {
+		checkpointFile.delete();
+	}
+
+	private RingBloomDedupFilter newFilter(int ringSize, int bloomBits) {
+		return new RingBloomDedupFilter(ringSize, bloomBits, 5, ROTATION_MILLIS, Optional.of(checkpointFile), ticker);
+	}
+
+	@Test
+	public void addedTimestampsAreDuplicates() {
+		RingBloomDedupFilter filter = newFilter(4, 1 << 16);
+		Assert.assertFalse(filter.contains("bicing", 1000L));
+		filter.add("bicing", 1000L);
+		filter.add("bicing", 1010L);
+		Assert.assertTrue(filter.contains("bicing", 1000L));
+		Assert.assertTrue(filter.contains("bicing", 1010L));
+		// newer timestamps and other datasources are not duplicates
+		Assert.assertFalse(filter.contains("bicing", 1020L));
+		Assert.assertFalse(filter.contains("weather", 1000L));
+		Assert.assertEquals(2, filter.hits());
+	}
+
+	@Test
+	public void evictedTimestampsAreInTheBloomFilter() {
+		RingBloomDedupFilter filter = newFilter(4, 1 << 16);
+		for (long timestamp = 0; timestamp < 100; timestamp++) {
+			filter.add("bicing", timestamp);
+		}
+		for (long timestamp = 0; timestamp < 100; timestamp++) {
+			Assert.assertTrue(filter.contains("bicing", timestamp));
+		}
+		// after two rotations only the ring is left
+		ticker.advanceMillis(ROTATION_MILLIS);
+		filter.contains("bicing", 0L);
+		ticker.advanceMillis(ROTATION_MILLIS);
+		Assert.assertFalse(filter.contains("bicing", 0L));
+		Assert.assertTrue(filter.contains("bicing", 99L));
+	}
+
+	@Test
+	public void newerTimestampsAreFalsePositives() {
+		// a tiny and saturated Bloom filter says yes to everything
+		RingBloomDedupFilter filter = newFilter(4, 64);
+		for (long timestamp = 0; timestamp < 1000; timestamp++) {
+			filter.add("bicing", timestamp);
+		}
+		Assert.assertFalse(filter.contains("bicing", 2000L));
+		Assert.assertEquals(1, filter.falsePositives());
+		Assert.assertEquals(0, filter.hits());
+	}
+
+	@Test
+	public void bloomFilterOnlyForEvictedTimestamps() {
+		// a tiny and saturated Bloom filter says yes to everything
+		RingBloomDedupFilter filter = newFilter(4, 64);
+		for (long timestamp = 0; timestamp < 1000; timestamp += 2) {
+			filter.add("weather", timestamp);
+		}
+		// nothing evicted from the ring yet
+		filter.add("bicing", 10L);
+		filter.add("bicing", 20L);
+		Assert.assertFalse(filter.contains("bicing", 5L));
+		Assert.assertFalse(filter.contains("bicing", 15L));
+		Assert.assertEquals(2, filter.falsePositives());
+
+		// in the range of the ring, but not in it
+		Assert.assertFalse(filter.contains("weather", 997L));
+		Assert.assertEquals(3, filter.falsePositives());
+		// older than the ring, so it might have been evicted
+		Assert.assertTrue(filter.contains("weather", 990L));
+		Assert.assertTrue(filter.contains("weather", 991L));
+		Assert.assertEquals(2, filter.hits());
+	}
+
+	@Test
+	public void checkpointAndRecover() {
+		RingBloomDedupFilter filter = newFilter(4, 1 << 16);
+		for (long timestamp = 0; timestamp < 10; timestamp++) {
+			filter.add("bicing", timestamp);
+		}
+		filter.add("weather", 500L);
+		Assert.assertFalse(checkpointFile.exists());
+		filter.checkpoint();
+		Assert.assertTrue(checkpointFile.isFile());
+
+		// new filter for the same file, as if the worker was restarted
+		RingBloomDedupFilter recovered = newFilter(4, 1 << 16);
+		for (long timestamp = 0; timestamp < 10; timestamp++) {
+			Assert.assertTrue(recovered.contains("bicing", timestamp));
+		}
+		Assert.assertTrue(recovered.contains("weather", 500L));
+		Assert.assertFalse(recovered.contains("bicing", 10L));
+
+		// a checkpoint for a different configuration is ignored
+		RingBloomDedupFilter otherConf = newFilter(8, 1 << 16);
+		Assert.assertFalse(otherConf.contains("weather", 500L));
+	}
+}
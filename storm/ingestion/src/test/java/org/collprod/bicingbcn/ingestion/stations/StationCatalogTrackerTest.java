@@ -0,0 +1,79 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for class StationCatalogTracker
+ * */
+public class StationCatalogTrackerTest {
+
+	private static StationRecord station(long updatetime, int id, String street, int bikes) {
+		return StationRecord.create(updatetime, id, 41.39 + id, 2.18 + id, street, 21, id,
+				Arrays.asList(id + 1, id + 2), "OPN", 20 - bikes, bikes);
+	}
+
+	private static List<StationRecord> snapshot(long updatetime, int numStations) {
+		List<StationRecord> stations = new ArrayList<StationRecord>();
+		for (int id = 1; id <= numStations; id++) {
+			stations.add(station(updatetime, id, "street " + id, (int) (updatetime / 1000 + id) % 20));
+		}
+		return stations;
+	}
+
+	@Test
+	public void versionOnlyDependsOnStaticAttributes() {
+		long version = StationCatalogTracker.version(snapshot(1000, 10));
+		// different update time and bikes
+		Assert.assertEquals(version, StationCatalogTracker.version(snapshot(2000, 10)));
+		// different order
+		List<StationRecord> stations = snapshot(1000, 10);
+		Collections.reverse(stations);
+		Assert.assertEquals(version, StationCatalogTracker.version(stations));
+
+		// a new station
+		Assert.assertFalse(version == StationCatalogTracker.version(snapshot(1000, 11)));
+		// a station changes its street
+		stations = snapshot(1000, 10);
+		stations.set(3, station(1000, 4, "new street", 3));
+		Assert.assertFalse(version == StationCatalogTracker.version(stations));
+	}
+
+	/**
+	 * The same catalog and version as in StationCatalogHasherTest and the StationSnapshot test of 
+	 * spark-stream-visuals, that reads the catalogs published to Kafka
+	 * */
+	@Test
+	public void versionAgreesWithSpark() {
+		List<StationRecord> stations = Arrays.asList(
+				StationRecord.create(1000, 2, 41.394282, 2.175557, "Plaza Tetuan", 21, 8, 
+						Arrays.asList(360, 368, 387), "OPN", 10, 5),
+				StationRecord.create(1000, 1, 41.397952, 2.180042, "Gran Via Corts Catalanes", 21, 760, 
+						Arrays.asList(24, 369, 387, 426), "OPN", 20, 0));
+		Assert.assertEquals(-2539698906791770675L, StationCatalogTracker.version(stations));
+	}
+
+	@Test
+	public void changedUntilPublished() {
+		StationCatalogTracker tracker = new StationCatalogTracker();
+		long version = StationCatalogTracker.version(snapshot(1000, 10));
+		Assert.assertTrue(tracker.changed(version));
+		// not published yet
+		Assert.assertTrue(tracker.changed(version));
+		tracker.published(version);
+		Assert.assertFalse(tracker.changed(version));
+		Assert.assertFalse(tracker.changed(StationCatalogTracker.version(snapshot(2000, 10))));
+
+		long newVersion = StationCatalogTracker.version(snapshot(3000, 11));
+		Assert.assertTrue(tracker.changed(newVersion));
+		tracker.published(newVersion);
+		Assert.assertFalse(tracker.changed(newVersion));
+		Assert.assertTrue(tracker.changed(version));
+	}
+}
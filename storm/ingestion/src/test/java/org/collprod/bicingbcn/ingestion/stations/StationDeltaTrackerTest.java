@@ -0,0 +1,115 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for class StationDeltaTracker
+ * */
+public class StationDeltaTrackerTest {
+	
+	private static StationRecord station(long updatetime, int id, String status, int slots, int bikes) {
+		return StationRecord.create(updatetime, id, 41.39, 2.18, "street " + id, 21, id, 
+				Arrays.asList(id + 1), status, slots, bikes);
+	}
+	
+	private static List<StationRecord> snapshot(long updatetime, int [] bikes) {
+		List<StationRecord> stations = new ArrayList<StationRecord>();
+		for (int id = 0; id < bikes.length; id++) {
+			stations.add(station(updatetime, id + 1, "OPN", 20 - bikes[id], bikes[id]));
+		}
+		return stations;
+	}
+	
+	@Test
+	public void onlyChangedStations() {
+		StationDeltaTracker tracker = new StationDeltaTracker(100);
+		
+		// first snapshot is a keyframe
+		StationDeltaTracker.Delta delta = tracker.diff(snapshot(1000, new int [] {1, 2, 3}));
+		Assert.assertTrue(delta.keyframe());
+		Assert.assertEquals(3, delta.stations().size());
+		tracker.apply(delta);
+		
+		// only station 2 changes
+		delta = tracker.diff(snapshot(2000, new int [] {1, 5, 3}));
+		Assert.assertFalse(delta.keyframe());
+		Assert.assertEquals(1, delta.stations().size());
+		Assert.assertEquals(2, delta.stations().get(0).id());
+		tracker.apply(delta);
+		
+		// a status change and a new station
+		List<StationRecord> stations = snapshot(3000, new int [] {1, 5, 3});
+		stations.set(0, station(3000, 1, "CLS", 19, 1));
+		stations.add(station(3000, 1000, "OPN", 10, 10));
+		delta = tracker.diff(stations);
+		Assert.assertEquals(2, delta.stations().size());
+		Assert.assertEquals(1, delta.stations().get(0).id());
+		Assert.assertEquals(1000, delta.stations().get(1).id());
+		tracker.apply(delta);
+		Assert.assertEquals(3000, tracker.lastUpdatetime());
+		
+		// nothing changes
+		Assert.assertTrue(tracker.diff(stations).stations().isEmpty());
+	}
+	
+	@Test
+	public void stateOnlyChangesOnApply() {
+		StationDeltaTracker tracker = new StationDeltaTracker(100);
+		tracker.apply(tracker.diff(snapshot(1000, new int [] {1, 2, 3})));
+		
+		// delta not applied, e.g. because it could not be sent, so computed again for the replay
+		List<StationRecord> stations = snapshot(2000, new int [] {0, 2, 3});
+		Assert.assertEquals(1, tracker.diff(stations).stations().size());
+		StationDeltaTracker.Delta delta = tracker.diff(stations);
+		Assert.assertEquals(1, delta.stations().size());
+		tracker.apply(delta);
+		
+		// replays of old snapshots get an empty delta
+		delta = tracker.diff(snapshot(1000, new int [] {7, 7, 7}));
+		Assert.assertTrue(delta.stations().isEmpty());
+		Assert.assertFalse(delta.keyframe());
+	}
+	
+	@Test
+	public void newStatusesAndRemovedStations() {
+		StationDeltaTracker tracker = new StationDeltaTracker(100);
+		tracker.apply(tracker.diff(snapshot(1000, new int [] {1, 2, 3})));
+		
+		// a status never seen is a change, also when the delta is computed again
+		List<StationRecord> stations = snapshot(2000, new int [] {1, 2, 3});
+		stations.set(1, station(2000, 2, "CLS", 18, 2));
+		for (int i = 0; i < 2; i++) {
+			StationDeltaTracker.Delta delta = tracker.diff(stations);
+			Assert.assertEquals(Arrays.asList(stations.get(1)), delta.stations());
+		}
+		tracker.apply(tracker.diff(stations));
+		Assert.assertTrue(tracker.diff(snapshot(3000, new int [] {1, 2, 3})).stations().size() == 1);
+		
+		// removed stations are not reported
+		stations = snapshot(3000, new int [] {1});
+		Assert.assertTrue(tracker.diff(stations).stations().isEmpty());
+	}
+	
+	@Test
+	public void periodicKeyframes() {
+		int keyframeInterval = 5;
+		StationDeltaTracker tracker = new StationDeltaTracker(keyframeInterval);
+		for (int i = 0; i < 3 * keyframeInterval; i++) {
+			StationDeltaTracker.Delta delta = tracker.diff(snapshot(1000 * (i + 1), new int [] {1, 2, 3}));
+			Assert.assertEquals(i % keyframeInterval == 0, delta.keyframe());
+			Assert.assertEquals(delta.keyframe() ? 3 : 0, delta.stations().size());
+			tracker.apply(delta);
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void wrongKeyframeInterval() {
+		new StationDeltaTracker(0);
+	}
+}
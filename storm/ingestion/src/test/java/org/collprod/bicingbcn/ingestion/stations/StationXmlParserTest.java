@@ -0,0 +1,69 @@
+package org.collprod.bicingbcn.ingestion.stations;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for class StationXmlParser
+ * */
+public class StationXmlParserTest {
+	
+	private static final String BICING_DATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<bicing_stations>\n"
+			+ " <updatetime><![CDATA[1401551587]]></updatetime>\n"
+			+ " <station>\n"
+			+ "  <id>1</id>\n"
+			+ "  <lat>41.3979520</lat>\n"
+			+ "  <long>2.18004200</long>\n"
+			+ "  <street><![CDATA[Gran Via Corts Catalanes]]></street>\n"
+			+ "  <height>21</height>\n"
+			+ "  <streetNumber>760</streetNumber>\n"
+			+ "  <nearbyStationList>24,369,387,426</nearbyStationList>\n"
+			+ "  <status>OPN</status>\n"
+			+ "  <slots>18</slots>\n"
+			+ "  <bikes>6</bikes>\n"
+			+ " </station>\n"
+			+ " <station>\n"
+			+ "  <id>2</id>\n"
+			+ "  <lat>41.3942720</lat>\n"
+			+ "  <long>2.17516900</long>\n"
+			+ "  <street><![CDATA[Plaza Tetu&aacute;n]]></street>\n"
+			+ "  <height></height>\n"
+			+ "  <streetNumber></streetNumber>\n"
+			+ "  <nearbyStationList>360,x</nearbyStationList>\n"
+			+ "  <status>CLS</status>\n"
+			+ "  <slots>23</slots>\n"
+			+ "  <bikes>4</bikes>\n"
+			+ " </station>\n"
+			+ "</bicing_stations>";
+	
+	@Test
+	public void parseStations() throws XMLStreamException {
+		List<StationRecord> stations = new StationXmlParser().parse(BICING_DATA.getBytes(Charsets.UTF_8));
+		Assert.assertEquals(2, stations.size());
+		
+		Assert.assertEquals(StationRecord.create(1401551587000L, 1, 41.3979520, 2.18004200, "Gran Via Corts Catalanes", 
+				21, 760, Arrays.asList(24, 369, 387, 426), "OPN", 18, 6), stations.get(0));
+		// default values
+		Assert.assertEquals(StationRecord.create(1401551587000L, 2, 41.3942720, 2.17516900, "Plaza Tetu&aacute;n", 
+				0, -1, Arrays.asList(360, -1), "CLS", 23, 4), stations.get(1));
+	}
+	
+	@Test
+	public void noStations() throws XMLStreamException {
+		Assert.assertTrue(new StationXmlParser().parse("<bicing_stations></bicing_stations>".getBytes(Charsets.UTF_8)).isEmpty());
+	}
+	
+	@Test(expected=XMLStreamException.class)
+	public void malformedData() throws XMLStreamException {
+		new StationXmlParser().parse(BICING_DATA.substring(0, BICING_DATA.length() / 2).getBytes(Charsets.UTF_8));
+	}
+}